@@ -2,9 +2,12 @@ package collagene.alignment;
 
 import java.util.Collection;
 import java.util.LinkedList;
+
+import collagene.alignment.emboss.EmbossCost;
 import collagene.gui.paneLinear.tracks.PlacedTrace;
 import collagene.io.trace.SequenceTrace;
 import collagene.seq.AnnotatedSequence;
+import collagene.sequtil.NucleotideUtil;
 
 /**
  * 
@@ -42,37 +45,22 @@ public class AlignTraces
 		//Different ways depending on if there is a reference or not
 		
 
-		//For each trace, align it with genome. global alignment, but no cost for going outside the region
+		//For each trace, align it with genome. global alignment, but no cost for going outside the region.
+		//Most traces are placed quickly using k-mer matches, and only those without are aligned to the full reference
+		SeedAlignment seedal=new SeedAlignment(refseq);
+		seedal.costtable=EmbossCost.tableBlosum62;
 		for(PlacedTrace t:placedtraces)
 			{
 			//Try to align both ways
-			AnnotatedSequence seqb=new AnnotatedSequence();
-			seqb.setSequence(t.getTrace().getTrustedSequence());
-			
-			
-			
-			AnnotatedSequenceAlignment al=new AnnotatedSequenceAlignment();
-			al.isLocal=true; //????
-			al.canGoOutside=true;
-			al.includeAllA=false;
-			//al.costtable.penaltySkip=-200; //Essentially, disallow gaps? or only allow a few ones?
-			al.align(refseq, seqb);
-
-			if(al.rotateB)
+			String seqb=t.getTrace().getTrustedSequence();
+			if(seedal.align(seqb, NucleotideUtil.revcomplement(seqb)) && seedal.bestal!=null)
 				{
-				t.rotate();
-				System.out.println("rotated!");
+				if(seedal.bestQuery==1)
+					t.rotate();
+				t.from=seedal.getStartOfA()+seedal.bestal.getStartOfB();   //totally wrong. but close
 				}
-			System.out.println("------------");
-			System.out.println(al.bestal.alignedSequenceA);
-			System.out.println(al.bestal.alignedSequenceB);
-			System.out.println("----------");
-			
-			//Insert gaps into reference, but also previously added traces
-			//Sequence may already have gaps! but also, may have too many gaps. in that case, should also correct the trace
-
-			
-			t.from=al.bestal.getStartOfA()+al.bestal.getStartOfB();   //totally wrong. but close
+			else
+				alignFull(t);
 			
 			//May later need a function to re-align, given new choice of what parts of traces to consider
 			//Need "trustFrom, trustTo"
@@ -85,6 +73,30 @@ public class AlignTraces
 		
 		}
 	
+	/**
+	 * Place a trace by aligning it to the full reference
+	 */
+	private void alignFull(PlacedTrace t)
+		{
+		AnnotatedSequence seqb=new AnnotatedSequence();
+		seqb.setSequence(t.getTrace().getTrustedSequence());
+		
+		AnnotatedSequenceAlignment al=new AnnotatedSequenceAlignment();
+		al.isLocal=true; //????
+		al.canGoOutside=true;
+		al.includeAllA=false;
+		//al.costtable.penaltySkip=-200; //Essentially, disallow gaps? or only allow a few ones?
+		al.align(refseq, seqb);
+
+		if(al.rotateB)
+			t.rotate();
+		
+		//Insert gaps into reference, but also previously added traces
+		//Sequence may already have gaps! but also, may have too many gaps. in that case, should also correct the trace
+
+		t.from=al.bestal.getStartOfA()+al.bestal.getStartOfB();   //totally wrong. but close
+		}
+	
 	/**
 	 * 
 	 * consensus: we can collect for each aligned sequence where it wants to insert splits in the reference.
@@ -0,0 +1,86 @@
+package collagene.alignment;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * Several alignments of which only the best one is of interest, such as the orientations of a sequence.
+ * They are run concurrently, and an alignment stops early once it can no longer beat the best score found
+ * by the others. Such an alignment is marked as aborted. The alignments should use the same costs
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class AlignmentRace
+	{
+	/**
+	 * Pool shared by all alignments. The threads are daemons and do not keep the program running
+	 */
+	public static final ForkJoinPool pool=new ForkJoinPool();
+
+	private final AtomicLong bestScore=new AtomicLong(Double.doubleToLongBits(Double.NEGATIVE_INFINITY));
+	private final ArrayList<ForkJoinTask<?>> tasks=new ArrayList<ForkJoinTask<?>>();
+
+	/**
+	 * Start an alignment
+	 */
+	public void add(final PairwiseAlignment al, final String seqA, final String seqB)
+		{
+		al.race=this;
+		tasks.add(submit(new Callable<PairwiseAlignment>()
+			{
+			public PairwiseAlignment call() throws Exception
+				{
+				al.align(seqA, seqB);
+				return al;
+				}
+			}));
+		}
+
+	/**
+	 * Wait for all alignments to finish
+	 */
+	public void join()
+		{
+		for(ForkJoinTask<?> t:tasks)
+			t.join();
+		tasks.clear();
+		}
+
+	/**
+	 * Run a task on the shared pool. From within the pool, the task is forked so that joining it can run it on the same thread
+	 */
+	public static <E> ForkJoinTask<E> submit(Callable<E> c)
+		{
+		ForkJoinTask<E> t=ForkJoinTask.adapt(c);
+		if(ForkJoinTask.inForkJoinPool())
+			return t.fork();
+		else
+			return pool.submit(t);
+		}
+
+	/**
+	 * The best score any alignment is known to reach
+	 */
+	public double getBestScore()
+		{
+		return Double.longBitsToDouble(bestScore.get());
+		}
+
+	/**
+	 * Tell the others that an alignment reaches at least this score
+	 */
+	void offerScore(double score)
+		{
+		for(;;)
+			{
+			long cur=bestScore.get();
+			if(Double.longBitsToDouble(cur)>=score || bestScore.compareAndSet(cur, Double.doubleToLongBits(score)))
+				return;
+			}
+		}
+	}
@@ -44,8 +44,12 @@ public class AnnotatedSequenceAlignment
 		
 		alB.costtable=costtable;
 		alC.costtable=costtable;
-		alB.align(seqA.getSequence(), seqB.getSequence());
-		alC.align(seqA.getSequence(), seqC.getSequence());
+		
+		//Both orientations at the same time. The losing one may stop early
+		AlignmentRace race=new AlignmentRace();
+		race.add(alB, seqA.getSequence(), seqB.getSequence());
+		race.add(alC, seqA.getSequence(), seqC.getSequence());
+		race.join();
 
 		/*
 		System.out.println("X "+seqA.getSequence());
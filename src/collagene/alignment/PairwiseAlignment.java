@@ -2,15 +2,17 @@ package collagene.alignment;
 
 import java.util.Collections;
 import java.util.LinkedList;
+import java.util.Random;
 
 import collagene.alignment.emboss.EmbossCost;
 import collagene.sequtil.NucleotideUtil;
 
 /**
  * 
- * Pairwise sequence alignment
+ * Pairwise sequence alignment, with affine gap costs (Gotoh)
  * 
  * http://en.wikipedia.org/wiki/Needleman%E2%80%93Wunsch_algorithm
+ * http://en.wikipedia.org/wiki/Smith%E2%80%93Waterman_algorithm#Gotoh
  * 
  * @author Johan Henriksson
  *
@@ -20,14 +22,14 @@ public class PairwiseAlignment
 	public boolean isLocalAlignment=true;
 	public boolean canGoOutside=false;
 	public boolean includeAllA=false;
-	private boolean printMatrix=false;
 	
 	public AlignmentCostTable costtable=new AlignmentCostTable();
 	
 
 	public double bestCost;
 	
-	private static byte TRAJ_LEFT=3, TRAJ_UP=1, TRAJ_MATCH=2, TRAJ_END=6;
+	private static final int TRAJ_END=0, TRAJ_UP=1, TRAJ_MATCH=2, TRAJ_LEFT=3;
+	private static final int TRAJ_UP_EXTEND=4, TRAJ_LEFT_EXTEND=8;
 
 
 	
@@ -40,178 +42,236 @@ public class PairwiseAlignment
 	public char gapSymbol=' ';
 	
 	/**
-	 * Compute the alignment
+	 * If >=0, only cells at most this far from the diagonal between the corners of the matrix are considered,
+	 * in addition to the columns the diagonal passes from one row to the next.
+	 * Much faster for sequences that are nearly the same, but the alignment can differ if the best one leaves the band
+	 */
+	public int bandWidth=-1;
+	
+	/**
+	 * If set, the alignment stops early once it cannot beat the best score of the other alignments in the race
+	 */
+	public AlignmentRace race;
+	
+	/**
+	 * Set if the alignment stopped early. The score is then -infinity and the alignment is empty
+	 */
+	public boolean aborted;
+	
+	private static final int NEG=Integer.MIN_VALUE/2;
+	
+	//Work data during alignment
+	private int n, m;
+	private int[] indA;
+	private int[][] profile;
+	private int open, extend;
+	
+	
+	/**
+	 * Find a power of two that turns all costs into integers. If there is none, costs are rounded to 1/1024.
+	 * The scale is kept low enough that sums cannot overflow. The score reported is always that of the path
+	 * found, summed with the costs unrounded
+	 */
+	private int getIntegerScale(int maxSteps)
+		{
+		double maxCost=Math.max(Math.abs(costtable.penaltySkip), Math.abs(costtable.penaltyExtend));
+		for(double[] row:costtable.cost)
+			for(double v:row)
+				maxCost=Math.max(maxCost, Math.abs(v));
+		int scale=1;
+		scaleloop: for(;scale<1024;scale*=2)
+			{
+			if(maxCost*scale*2*(maxSteps+2)>Integer.MAX_VALUE/8)
+				return Math.max(1, scale/2);
+			if(!isInteger(costtable.penaltySkip*scale) || !isInteger(costtable.penaltyExtend*scale))
+				continue;
+			for(double[] row:costtable.cost)
+				for(double v:row)
+					if(!isInteger(v*scale))
+						continue scaleloop;
+			return scale;
+			}
+		return scale;
+		}
+	
+	private static boolean isInteger(double v)
+		{
+		return v==Math.rint(v);
+		}
+	
+	
+	/**
+	 * Compute the alignment.
+	 * 
+	 * A gap costs penaltySkip for the first letter and penaltyExtend for each following letter. Each cell has three
+	 * states: the best score ending in a match (or anything, H), ending in a gap in B (F, moving up), and ending in
+	 * a gap in A (E, moving left). Only two rows are kept while filling in the table, plus a checkpoint every sqrt(n)
+	 * rows. During traceback the rows between two checkpoints are computed again, this time keeping the trajectory
+	 * at 4 bits per cell: 2 for the move into H, and 1 each for whether the gaps open or extend.
+	 * Memory is thus O(sqrt(n)*m), for twice the time of filling the table once
 	 */
 	public void align(String seqA, String seqB)
 		{
-		//Arrays are [a][b]
-		double cost[][];
-		int numskip[][];  // for extension costs
-		byte traj[][];    // for simplicity, keep track of directions. strictly speaking not needed
-
-		//Convert strings into indices
-		int[] indA=costtable.indexOfChars(seqA);
+		n=seqA.length();
+		m=seqB.length();
+		indA=costtable.indexOfChars(seqA);
 		int[] indB=costtable.indexOfChars(seqB);
+		int scale=getIntegerScale(n+m);
+		open=(int)Math.round(costtable.penaltySkip*scale);
+		extend=(int)Math.round(costtable.penaltyExtend*scale);
 		
-		//Fill in borders
-		cost=new double[indA.length+1][indB.length+1];
-		traj=new byte[indA.length+1][indB.length+1];
-		numskip=new int[indA.length+1][indB.length+1];
+		//For each letter in A, the cost against every position in B. This keeps the inner loop simple
+		profile=new int[costtable.letters.length()][];
+		for(int a:indA)
+			if(profile[a]==null)
+				{
+				int[] p=new int[m+1];
+				for(int j=0;j<m;j++)
+					p[j+1]=(int)Math.round(costtable.cost[a][indB[j]]*scale);
+				profile[a]=p;
+				}
 
-		//TODO bug: numskip, depends on left/up. or?
-		
-		//Fill in main table upper/left border
-		for(int i=0;i<seqA.length();i++)
-			{
-			numskip[i+1][0]=Math.max(0,i-1);
-			if(!canGoOutside)
-				cost[i+1][0]=costtable.penaltySkip+Math.max(0,i-1)*costtable.penaltyExtend;
-			traj[i+1][0]=TRAJ_UP;
-			}
-		for(int i=0;i<seqB.length();i++)
+		//Fill in the table, keeping checkpoints and the best end point
+		int k=Math.max(1, (int)Math.sqrt(n));
+		int[][] checkH=new int[n/k+1][];
+		int[][] checkF=new int[n/k+1][];
+		int[] prevH=new int[m+1];
+		int[] curH=new int[m+1];
+		int[] prevF=new int[m+1];
+		int[] curF=new int[m+1];
+		for(int j=0;j<=m;j++)
 			{
-			numskip[0][i+1]=Math.max(0,i-1);
-			if(!canGoOutside)
-				cost[0][i+1]=costtable.penaltySkip+Math.max(0,i-1)*costtable.penaltyExtend;
-			traj[0][i+1]=TRAJ_LEFT;
+			if(!canGoOutside && j>0)
+				prevH[j]=open+(j-1)*extend;
+			prevF[j]=NEG;
 			}
-		cost[0][0]=0;
-		traj[0][0]=TRAJ_END;
+		checkH[0]=prevH.clone();
+		checkF[0]=prevF.clone();
 		
-		//Fill in main table body
-		for(int i=0;i<seqA.length();i++)
-			for(int j=0;j<seqB.length();j++)
-				{
-				int mati=i+1;
-				int matj=j+1;
-				
-				//Compute costs
-				double costFromUp    = (numskip[mati-1][matj]==0 ? costtable.penaltySkip : costtable.penaltyExtend) + cost[mati-1][matj];
-				double costFromLeft  = (numskip[mati][matj-1]==0 ? costtable.penaltySkip : costtable.penaltyExtend) + cost[mati][matj-1];
-				double costFromMatch = costtable.cost[indA[i]][indB[j]] + cost[mati-1][matj-1];
-				if(canGoOutside)
+		//Every step down gains at most the best match, and no other step gains anything. This gives an upper bound
+		//on the final score from any row, provided that gaps do not give points
+		boolean canAbort=race!=null && open<=0 && extend<=0;
+		int maxMatch=0;
+		for(int[] p:profile)
+			if(p!=null)
+				for(int j=1;j<=m;j++)
+					maxMatch=Math.max(maxMatch, p[j]);
+		aborted=false;
+		
+		int bestcost=0;
+		int besti=0, bestj=0;
+		if(isLocalAlignment)
+			for(int j=1;j<=m;j++)
+				if(prevH[j]>bestcost)
 					{
-					if(i==seqA.length()-1)
-						costFromLeft=cost[mati][matj-1];
-					if(j==seqB.length()-1)
-						costFromUp=cost[mati-1][matj];
+					bestcost=prevH[j];
+					bestj=j;
 					}
-				
-				
-				//Pick the smallest cost
-				if(costFromUp>costFromLeft)
+		for(int i=1;i<=n;i++)
+			{
+			int rowMax=computeRow(i, prevH, prevF, curH, curF, null, 0);
+			if(isLocalAlignment)
+				{
+				int lastBest=bestcost;
+				if(curH[0]>bestcost)
 					{
-					if(costFromUp>costFromMatch)
-						{
-						traj[mati][matj]=TRAJ_UP;
-						cost[mati][matj]=costFromUp;
-						numskip[mati][matj]=1+numskip[mati-1][matj];
-						}
-					else
-						{
-						traj[mati][matj]=TRAJ_MATCH;
-						cost[mati][matj]=costFromMatch;
-						numskip[mati][matj]=0;
-						}
+					bestcost=curH[0];
+					besti=i;
+					bestj=0;
 					}
-				else
-					{
-					if(costFromLeft>costFromMatch)
-						{
-						traj[mati][matj]=TRAJ_LEFT;
-						cost[mati][matj]=costFromLeft;
-						numskip[mati][matj]=1+numskip[mati][matj-1];
-						}
-					else
+				for(int j=getBandFrom(i);j<=getBandTo(i);j++)
+					if(curH[j]>bestcost)
 						{
-						traj[mati][matj]=TRAJ_MATCH;
-						cost[mati][matj]=costFromMatch;
-						numskip[mati][matj]=0;
+						bestcost=curH[j];
+						besti=i;
+						bestj=j;
 						}
-					}
-				
-				//The restart condition for local alignment
-				if((isLocalAlignment) && cost[mati][matj]<0)
-					{
-					traj[mati][matj]=TRAJ_END;
-					cost[mati][matj]=0;
-					}
+				if(race!=null && bestcost>lastBest)
+					race.offerScore(bestcost/(double)scale);
 				}
-			
-
-		//Find optimal end point
-		double bestcost=Integer.MIN_VALUE;
-		int besti=0, bestj=0;
-		int fromi=0;
-		int fromj=0;
-		if(!isLocalAlignment)
-			{
-			fromi=seqA.length();
-			fromj=seqB.length();
-			}
-		for(int i=fromi;i<seqA.length()+1;i++)
-			{
-			for(int j=fromj;j<seqB.length()+1;j++)
+			if(canAbort)
 				{
-				if(cost[i][j]>bestcost)
+				long upper=Math.max(rowMax, isLocalAlignment ? bestcost : NEG)+(long)maxMatch*(n-i);
+				if(upper/(double)scale<race.getBestScore())
 					{
-					bestcost=cost[i][j];
-					besti=i;
-					bestj=j;
+					abort();
+					return;
 					}
 				}
-			}
-		
-		//Print matrix if requested
-		if(printMatrix)
-			{
-			System.out.println();
-			System.out.print("\t\t");
-			for(int j=0;j<seqB.length();j++)
-				System.out.print(seqB.charAt(j)+"\t");
-			System.out.println();
-			for(int i=0;i<seqA.length()+1;i++)
-				{
-				if(i==0)
-					System.out.print("\t");
-				else
-					System.out.print(seqA.charAt(i-1)+"\t");
-				for(int j=0;j<seqB.length()+1;j++)
-					System.out.print(trajToString(traj[i][j])+"\t");
-				System.out.println();
-				}
-			System.out.println();
-			System.out.print("\t\t");
-			for(int j=0;j<seqB.length();j++)
-				System.out.print(seqB.charAt(j)+"\t");
-			System.out.println();
-			for(int i=0;i<seqA.length()+1;i++)
+			if(i%k==0)
 				{
-				if(i==0)
-					System.out.print("\t");
-				else
-					System.out.print(seqA.charAt(i-1)+"\t");
-				for(int j=0;j<seqB.length()+1;j++)
-					System.out.print(cost[i][j]+"\t");
-				System.out.println();
+				checkH[i/k]=curH.clone();
+				checkF[i/k]=curF.clone();
 				}
-			System.out.println("best cost "+bestcost+"  from  "+besti+"  "+bestj);
+			int[] t=prevH;
+			prevH=curH;
+			curH=t;
+			t=prevF;
+			prevF=curF;
+			curF=t;
 			}
-
-		this.bestCost=bestcost;
-		
-		//Traverse back to find alignment
+		if(!isLocalAlignment)
+			{
+			bestcost=prevH[m];
+			besti=n;
+			bestj=m;
+			}
+		//Traverse back to find alignment, recomputing one block of rows at a time. The score of the path is summed
+		//up again meanwhile, as the table may hold rounded costs
 		StringBuilder sbA=new StringBuilder();
 		StringBuilder sbB=new StringBuilder();
 		alignedIndexA.clear();
 		alignedIndexB.clear();
 
+		byte[] traj=new byte[(int)(((long)k*(m+1)+1)/2)];
+		int blockFrom=-1;
 		int mati=besti;
 		int matj=bestj;
-		while(!(mati==0 && matj==0)) //correct?
+		int state=TRAJ_MATCH; //The state of the current cell: H, or inside a gap (F or E)
+		double score=0;
+		while(!(mati==0 && matj==0))
 			{
-			if(traj[mati][matj]==TRAJ_MATCH)
+			int t;
+			if(mati==0 || matj==0)
+				{
+				//Along the border, the gap starts in the corner
+				t=mati==0 ? TRAJ_LEFT|TRAJ_LEFT_EXTEND : TRAJ_UP|TRAJ_UP_EXTEND;
+				if(!canGoOutside)
+					score+=mati+matj==1 ? costtable.penaltySkip : costtable.penaltyExtend;
+				}
+			else
 				{
+				if(blockFrom==-1 || mati<blockFrom || mati>=blockFrom+k)
+					{
+					//Recompute rows following the checkpoint
+					int c=(mati-1)/k;
+					blockFrom=c*k+1;
+					System.arraycopy(checkH[c], 0, prevH, 0, m+1);
+					System.arraycopy(checkF[c], 0, prevF, 0, m+1);
+					for(int i=blockFrom;i<blockFrom+k && i<=n;i++)
+						{
+						computeRow(i, prevH, prevF, curH, curF, traj, (i-blockFrom)*(m+1));
+						int[] tt=prevH;
+						prevH=curH;
+						curH=tt;
+						tt=prevF;
+						prevF=curF;
+						curF=tt;
+						}
+					}
+				//Cells outside the band are -infinity, so the best path cannot pass them
+				if(!isInBand(mati, matj))
+					throw new RuntimeException("Traceback left the band at "+mati+","+matj);
+				int idx=(mati-blockFrom)*(m+1)+matj;
+				t=(traj[idx>>1]>>((idx&1)*4))&15;
+				}
+			
+			//Inside a gap, the move is given by the gap
+			int move=state==TRAJ_MATCH ? t&3 : state;
+			boolean onBorder=mati==0 || matj==0;
+			if(move==TRAJ_MATCH)
+				{
+				score+=costtable.cost[indA[mati-1]][indB[matj-1]];
 				sbA.append(seqA.charAt(mati-1));
 				sbB.append(seqB.charAt(matj-1));
 				alignedIndexA.add(mati);
@@ -219,30 +279,37 @@ public class PairwiseAlignment
 				mati--;
 				matj--;
 				}
-			else if(traj[mati][matj]==TRAJ_UP)
+			else if(move==TRAJ_UP)
 				{
 				sbA.append(seqA.charAt(mati-1));
 				sbB.append(gapSymbol);
 				alignedIndexA.add(mati);
 				alignedIndexB.add(-1);
+				if(!onBorder && !(matj==m && canGoOutside))
+					score+=(t&TRAJ_UP_EXTEND)!=0 ? costtable.penaltyExtend : costtable.penaltySkip;
+				state=(t&TRAJ_UP_EXTEND)!=0 ? TRAJ_UP : TRAJ_MATCH;
 				mati--;
 				}
-			else if(traj[mati][matj]==TRAJ_LEFT)
+			else if(move==TRAJ_LEFT)
 				{
 				sbA.append(gapSymbol);
 				sbB.append(seqB.charAt(matj-1));
 				alignedIndexA.add(-1);
 				alignedIndexB.add(matj);
+				if(!onBorder && !(mati==n && canGoOutside))
+					score+=(t&TRAJ_LEFT_EXTEND)!=0 ? costtable.penaltyExtend : costtable.penaltySkip;
+				state=(t&TRAJ_LEFT_EXTEND)!=0 ? TRAJ_LEFT : TRAJ_MATCH;
 				matj--;
 				}
-			else if(traj[mati][matj]==TRAJ_END)
-				break;
 			else
-				throw new RuntimeException("Unknown traj code "+traj[mati][matj]);
+				break;
 			}
+		indA=null;
+		profile=null;
+		this.bestCost=score;
+		if(race!=null)
+			race.offerScore(bestCost);
 
-		
-		
 		alignedSequenceA=NucleotideUtil.reverse(sbA.toString());
 		alignedSequenceB=NucleotideUtil.reverse(sbB.toString());
 
@@ -267,7 +334,166 @@ public class PairwiseAlignment
 				alignedIndexB.add(-1);
 				}
 			}
+		}
+	
+	
+	/**
+	 * Give up on the alignment
+	 */
+	private void abort()
+		{
+		aborted=true;
+		bestCost=Double.NEGATIVE_INFINITY;
+		alignedSequenceA="";
+		alignedSequenceB="";
+		alignedIndexA.clear();
+		alignedIndexB.clear();
+		indA=null;
+		profile=null;
+		}
+	
+	
+	/**
+	 * First column of B to consider in a row of the table. The band covers all columns the diagonal passes
+	 * between the row above and this one, so that the bands of two rows always connect, also if B is longer than A
+	 */
+	private int getBandFrom(int i)
+		{
+		if(bandWidth<0 || i==0)
+			return 1;
+		else
+			return Math.max(1, (int)((long)(i-1)*m/n)-bandWidth);
+		}
+
+	/**
+	 * Last column of B to consider in a row of the table
+	 */
+	private int getBandTo(int i)
+		{
+		if(bandWidth<0 || i==0)
+			return m;
+		else
+			return (int)Math.min(m, ((long)i*m+n-1)/n+bandWidth);
+		}
+	
+	/**
+	 * Check if a cell is in the band. Cells outside it count as -infinity
+	 */
+	private boolean isInBand(int i, int j)
+		{
+		return j==0 || (j>=getBandFrom(i) && j<=getBandTo(i));
+		}
+	
+	
+	/**
+	 * Compute row i of the table from the row above. The trajectory is stored if an array is given, 4 bits per cell.
+	 * Returns the best score in the row
+	 */
+	private int computeRow(int i, int[] prevH, int[] prevF, int[] curH, int[] curF, byte[] traj, int trajOffset)
+		{
+		int[] prof=profile[indA[i-1]];
+		int from=getBandFrom(i);
+		int to=getBandTo(i);
+		boolean checkBand=bandWidth>=0;
 		
+		//Going outside, gaps at the end are free
+		boolean freeLeft=i==n && canGoOutside;
+		int leftOpen=freeLeft ? 0 : open;
+		int leftExtend=freeLeft ? 0 : extend;
+
+		//Left border
+		curH[0]=canGoOutside ? 0 : open+(i-1)*extend;
+		curF[0]=NEG;
+		if(from>1)
+			curH[from-1]=NEG;
+		int e=NEG;
+		int rowMax=curH[0];
+		
+		for(int j=from;j<=to;j++)
+			{
+			//Gap in B, moving up
+			int upOpen=open, upExtend=extend;
+			if(j==m && canGoOutside)
+				upOpen=upExtend=0;
+			int fOpen=prevH[j]+upOpen;
+			int fExtend=prevF[j]+upExtend;
+			
+			//Gap in A, moving left
+			int eOpen=curH[j-1]+leftOpen;
+			int eExtend=e+leftExtend;
+			
+			int costFromMatch=prof[j]+prevH[j-1];
+			if(checkBand)
+				{
+				//The row above is only valid in its band. For a B longer than A, the band moves several columns per row
+				if(!isInBand(i-1, j))
+					fOpen=fExtend=NEG;
+				if(!isInBand(i-1, j-1))
+					costFromMatch=NEG;
+				}
+			
+			int t=0;
+			int f=fOpen;
+			if(fExtend>fOpen)
+				{
+				f=fExtend;
+				t|=TRAJ_UP_EXTEND;
+				}
+			e=eOpen;
+			if(eExtend>eOpen)
+				{
+				e=eExtend;
+				t|=TRAJ_LEFT_EXTEND;
+				}
+			f=Math.max(f, NEG);
+			e=Math.max(e, NEG);
+			
+			//Pick the best move. Matches are preferred if equal
+			int h;
+			if(f>e)
+				{
+				if(f>costFromMatch)
+					{
+					t|=TRAJ_UP;
+					h=f;
+					}
+				else
+					{
+					t|=TRAJ_MATCH;
+					h=costFromMatch;
+					}
+				}
+			else
+				{
+				if(e>costFromMatch)
+					{
+					t|=TRAJ_LEFT;
+					h=e;
+					}
+				else
+					{
+					t|=TRAJ_MATCH;
+					h=costFromMatch;
+					}
+				}
+			
+			//The restart condition for local alignment
+			if(isLocalAlignment && h<0)
+				{
+				t&=~3;
+				h=0;
+				}
+			curH[j]=Math.max(h, NEG);
+			curF[j]=f;
+			rowMax=Math.max(rowMax, h);
+			if(traj!=null)
+				{
+				int idx=trajOffset+j;
+				int shift=(idx&1)*4;
+				traj[idx>>1]=(byte)((traj[idx>>1] & ~(15<<shift)) | (t<<shift));
+				}
+			}
+		return rowMax;
 		}
 	
 	
@@ -280,7 +506,6 @@ public class PairwiseAlignment
 		al.costtable=EmbossCost.tableBlosum62;
 		al.isLocalAlignment=false;
 		al.canGoOutside=true;
-		al.printMatrix=true;
 //		al.align("aabccca", "abcccbbb");
 //		al.align("attcccacct".toUpperCase(), "ttccccct".toUpperCase());
 
@@ -300,6 +525,56 @@ public class PairwiseAlignment
 		System.out.println(al.alignedIndexA);
 		System.out.println(al.alignedIndexB);
 
+		checkBandedAlignment();
+		}
+
+
+	/**
+	 * Check banded alignments when B is about twice as long as A, so that the band moves more than one column
+	 * per row. With a band covering the whole table, the result must be the same as without a band
+	 */
+	private static void checkBandedAlignment()
+		{
+		Random r=new Random(5);
+		for(int it=0;it<500;it++)
+			{
+			StringBuilder sbA=new StringBuilder();
+			StringBuilder sbB=new StringBuilder();
+			int n=20+r.nextInt(200);
+			for(int i=0;i<n;i++)
+				{
+				char c="ACGT".charAt(r.nextInt(4));
+				sbA.append(c);
+				sbB.append(c);
+				if(r.nextBoolean())
+					sbB.append("ACGT".charAt(r.nextInt(4)));
+				}
+			String seqA=sbA.toString();
+			String seqB=sbB.toString();
+
+			PairwiseAlignment full=new PairwiseAlignment();
+			full.isLocalAlignment=false;
+			full.align(seqA, seqB);
+			
+			PairwiseAlignment banded=new PairwiseAlignment();
+			banded.isLocalAlignment=false;
+			banded.bandWidth=seqB.length();
+			banded.align(seqA, seqB);
+			
+			if(full.bestCost!=banded.bestCost || !full.alignedSequenceA.equals(banded.alignedSequenceA) || 
+					!full.alignedSequenceB.equals(banded.alignedSequenceB))
+				throw new RuntimeException("Banded alignment differs for "+seqA+" "+seqB);
+			
+			//A narrow band can give a worse alignment, but it must still be a global alignment
+			PairwiseAlignment narrow=new PairwiseAlignment();
+			narrow.isLocalAlignment=false;
+			narrow.bandWidth=2;
+			narrow.align(seqA, seqB);
+			if(narrow.bestCost>full.bestCost || 
+					!narrow.alignedSequenceA.replace(" ", "").equals(seqA) || 
+					!narrow.alignedSequenceB.replace(" ", "").equals(seqB))
+				throw new RuntimeException("Narrow banded alignment is not global for "+seqA+" "+seqB);
+			}
 		}
 
 
@@ -0,0 +1,233 @@
+package collagene.alignment;
+
+import java.util.Arrays;
+
+import collagene.seq.AnnotatedSequence;
+import collagene.seq.KmerIndex;
+
+/**
+ *
+ * Fast local alignment of short queries onto a long reference, by seed and extend. Exact k-mer matches between the
+ * query and the reference are found using an index of the reference. The diagonal with the most matches gives a
+ * window of the reference, and only this window is aligned, using a band around the diagonal.
+ *
+ * Several queries can be given, such as the orientations of a sequence. Then the best one is kept
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class SeedAlignment
+	{
+	private static final int K=11;
+
+	public AlignmentCostTable costtable=new AlignmentCostTable();
+
+	/**
+	 * Fewest k-mer matches needed to consider a window
+	 */
+	public int minSeeds=2;
+
+	/**
+	 * The best alignment, with indices relative to the window of the reference
+	 */
+	public PairwiseAlignment bestal;
+	public int bestQuery=-1;
+	public int windowFrom;
+
+	private String reference;
+	private boolean isCircular;
+	private KmerIndex index;
+
+	/**
+	 * Prepare for aligning onto a reference. The index is kept by the reference, and reused for all queries
+	 */
+	public SeedAlignment(AnnotatedSequence reference)
+		{
+		this.reference=reference.getSequence();
+		this.isCircular=reference.isCircular;
+		index=reference.getKmerIndex(K);
+		}
+
+	/**
+	 * A window of the reference to align
+	 */
+	private static class Window
+		{
+		int query;
+		int from, length;
+		int numSeeds;
+
+		//Range of the diagonals with seeds, relative to the start of the window
+		int diagFrom, diagTo;
+		PairwiseAlignment al=new PairwiseAlignment();
+		}
+
+	/**
+	 * Align the queries and keep the best. Returns false if no query has enough seeds, in which case a full
+	 * alignment is needed instead
+	 */
+	public boolean align(String... queries)
+		{
+		bestal=null;
+		bestQuery=-1;
+
+		Window[] windows=new Window[queries.length];
+		int maxSeeds=0;
+		for(int i=0;i<queries.length;i++)
+			{
+			windows[i]=findWindow(queries[i]);
+			if(windows[i]!=null)
+				{
+				windows[i].query=i;
+				maxSeeds=Math.max(maxSeeds, windows[i].numSeeds);
+				}
+			}
+		if(maxSeeds<minSeeds)
+			return false;
+
+		//Align the windows that are nearly as good as the best one
+		AlignmentRace race=new AlignmentRace();
+		for(Window w:windows)
+			if(w!=null && w.numSeeds*2>=maxSeeds)
+				{
+				int m=queries[w.query].length();
+				w.al.isLocalAlignment=true;
+				w.al.costtable=costtable;
+				w.al.bandWidth=getBandWidth(w, m);
+				race.add(w.al, getWindowSequence(w), queries[w.query]);
+				}
+		race.join();
+
+		//Keep the best. Ties go to the first query
+		for(Window w:windows)
+			if(w!=null && w.numSeeds*2>=maxSeeds && !w.al.aborted && (bestal==null || w.al.bestCost>bestal.bestCost))
+				{
+				bestal=w.al;
+				bestQuery=w.query;
+				windowFrom=w.from;
+				}
+		return true;
+		}
+
+	/**
+	 * Find the window of the reference around the diagonal with the most k-mer matches
+	 */
+	private Window findWindow(String query)
+		{
+		int m=query.length();
+		int length=index.getLength();
+		if(m<K || length==0)
+			return null;
+
+		//The diagonal of every match, as the position in the reference where the query would start
+		int[] diag=new int[16];
+		int numDiag=0;
+		for(int j=0;j+K<=m;j++)
+			{
+			long kmer=KmerIndex.encode(query, j, K);
+			if(kmer>=0)
+				for(int p:index.getPositions(kmer))
+					{
+					int d=p-j;
+					if(isCircular)
+						d=((d%length)+length)%length;
+					if(numDiag==diag.length)
+						diag=Arrays.copyOf(diag, numDiag*2);
+					diag[numDiag++]=d;
+					}
+			}
+		if(numDiag==0)
+			return null;
+		Arrays.sort(diag, 0, numDiag);
+
+		//Diagonals close enough to be the same match, given some indels. On a circular sequence,
+		//diagonals are also close across the 0-position
+		int spread=16+m/10;
+		int num=numDiag;
+		if(isCircular)
+			{
+			for(int i=0;i<numDiag && diag[i]<spread;i++)
+				{
+				if(num==diag.length)
+					diag=Arrays.copyOf(diag, num*2);
+				diag[num++]=diag[i]+length;
+				}
+			}
+		int bestCount=0;
+		int bestFrom=0, bestTo=0;
+		for(int i=0, j=0;i<numDiag;i++)
+			{
+			while(j<num && diag[j]<=diag[i]+spread)
+				j++;
+			if(j-i>bestCount)
+				{
+				bestCount=j-i;
+				bestFrom=diag[i];
+				bestTo=diag[j-1];
+				}
+			}
+
+		//The window covers the query on all these diagonals, with some extra space. At the ends of a linear
+		//sequence, the query may hang outside the window
+		Window w=new Window();
+		w.numSeeds=bestCount;
+		int margin=16+m/20;
+		w.from=bestFrom-margin;
+		int to=bestTo+m+margin;
+		if(isCircular)
+			w.length=Math.min(to-w.from, length+m);
+		else
+			{
+			w.from=Math.max(0, w.from);
+			w.length=Math.min(length, to)-w.from;
+			}
+		w.diagFrom=bestFrom-w.from;
+		w.diagTo=bestTo-w.from;
+		if(isCircular)
+			w.from=((w.from%length)+length)%length;
+		return w;
+		}
+
+	/**
+	 * Width of a band that holds the diagonals with seeds, with space for some indels. The band follows the
+	 * diagonal from corner to corner of the window, so the further a seed diagonal is from it at either end
+	 * of the window, the wider the band
+	 */
+	private static int getBandWidth(Window w, int m)
+		{
+		int slack=w.length-m;
+		int width=Math.max(
+				Math.max(Math.abs(w.diagFrom), Math.abs(slack-w.diagFrom)),
+				Math.max(Math.abs(w.diagTo), Math.abs(slack-w.diagTo)));
+		return width+16;
+		}
+
+	/**
+	 * Get the sequence of a window, wrapping around if circular
+	 */
+	private String getWindowSequence(Window w)
+		{
+		if(w.from+w.length<=reference.length())
+			return reference.substring(w.from, w.from+w.length);
+		StringBuilder sb=new StringBuilder(w.length);
+		for(int i=0;i<w.length;i++)
+			sb.append(reference.charAt((w.from+i)%reference.length()));
+		return sb.toString();
+		}
+
+	/**
+	 * Start of the alignment in the reference, as a 1-based index. On a circular sequence it may be beyond the end
+	 */
+	public int getStartOfA()
+		{
+		return windowFrom+bestal.getStartOfA();
+		}
+
+	/**
+	 * End of the alignment in the reference, as a 1-based index. On a circular sequence it may be beyond the end
+	 */
+	public int getEndOfA()
+		{
+		return windowFrom+bestal.getEndOfA();
+		}
+	}
@@ -2,7 +2,9 @@ package collagene.gui;
 
 import java.util.HashMap;
 
+import collagene.alignment.AlignmentRace;
 import collagene.alignment.PairwiseAlignment;
+import collagene.alignment.SeedAlignment;
 import collagene.seq.AnnotatedSequence;
 import collagene.seq.Orientation;
 import collagene.seq.SeqAnnotation;
@@ -20,21 +22,44 @@ public class Autofit
 	
 	public SeqAnnotation autofit(AnnotatedSequence reference, AnnotatedSequence seqtofit)
 		{
+		//Try all variations of the sequence (or? maybe only 2?)
+		String seqB=seqtofit.getSequence();
+		String[] variants=new String[]{
+				seqB, 
+				NucleotideUtil.reverse(seqB), 
+				NucleotideUtil.complement(seqB), 
+				NucleotideUtil.revcomplement(seqB)};
+
+		//Fast path: only align where there are k-mer matches
+		SeedAlignment seedal=new SeedAlignment(reference);
+		if(seedal.align(variants) && seedal.bestal!=null)
+			{
+			SeqAnnotation ann=new SeqAnnotation();
+			ann.range.from=seedal.getStartOfA();
+			ann.range.to=seedal.getEndOfA();
+			if(seedal.bestQuery==0 || seedal.bestQuery==2)
+				ann.orientation=Orientation.FORWARD;
+			else
+				ann.orientation=Orientation.REVERSE;
+			return ann;
+			}
+		
 		//If circular then repeat the sequence for the search
 		//Actually, only need to add as much as the length of the second sequence. saves half the time almost
 		String seqA=reference.getSequence();
 		if(reference.isCircular)
 			seqA=seqA+seqA;
 		
-		//Try all variations of the sequence (or? maybe only 2?)
 		PairwiseAlignment al1=getal(reference);
 		PairwiseAlignment al2=getal(reference);
 		PairwiseAlignment al3=getal(reference);
 		PairwiseAlignment al4=getal(reference);
-		al1.align(seqA, seqtofit.getSequence());
-		al2.align(seqA, NucleotideUtil.reverse(seqtofit.getSequence()));
-		al3.align(seqA, NucleotideUtil.complement(seqtofit.getSequence()));
-		al4.align(seqA, NucleotideUtil.revcomplement(seqtofit.getSequence()));
+		AlignmentRace race=new AlignmentRace();
+		race.add(al1, seqA, variants[0]);
+		race.add(al2, seqA, variants[1]);
+		race.add(al3, seqA, variants[2]);
+		race.add(al4, seqA, variants[3]);
+		race.join();
 		
 		HashMap<Integer, PairwiseAlignment> scores=new HashMap<Integer, PairwiseAlignment>();
 		scores.put(1,al1);
@@ -42,12 +67,13 @@ public class Autofit
 		scores.put(3,al3);
 		scores.put(4,al4);
 
-		int maxlength=-1;
-		int maxind=-1;
+		//Pick the best score. Those that stopped early cannot be the best
+		double maxscore=Double.NEGATIVE_INFINITY;
+		int maxind=1;
 		for(int ind:scores.keySet())
-			if(scores.get(ind).getMatchLength()>maxlength)
+			if(scores.get(ind).bestCost>maxscore)
 				{
-				maxlength=scores.get(ind).getMatchLength();
+				maxscore=scores.get(ind).bestCost;
 				maxind=ind; 
 				}
 		
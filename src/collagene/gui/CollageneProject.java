@@ -2,28 +2,468 @@ package collagene.gui;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
 
+import collagene.io.collagene.CollageneBinary;
 import collagene.io.collagene.CollageneXML;
+import collagene.io.collagene.ProjectJournal;
+import collagene.io.collagene.ProjectSnapshot;
+import collagene.primer.Primer;
 import collagene.restrictionEnzyme.RestrictionEnzymeSet;
 import collagene.seq.AnnotatedSequence;
+import collagene.seq.SeqAnnotation;
+import collagene.seq.SequenceRange;
 
 /**
- * 
- * 
+ *
+ * A project. Sequences are kept as handles; sequences from a binary project file are read when first needed,
+ * and those not recently used are dropped from memory again
+ *
  * @author Johan Henriksson
  *
  */
 public class CollageneProject
 	{
+	/**
+	 * How many sequences that can be read again to keep in memory
+	 */
+	public static int maxLoadedSequences=20;
+
 	public File currentProjectFile=null;
 
-	public LinkedList<AnnotatedSequence> sequenceLinkedList=new LinkedList<AnnotatedSequence>();
+	public LinkedList<SequenceHandle> sequences=new LinkedList<SequenceHandle>();
 	public RestrictionEnzymeSet restrictionEnzymes=new RestrictionEnzymeSet();
 	public boolean isModified=false;
-	
+
+	//Journal of edits since saved, if the project has a file
+	public ProjectJournal journal;
+
+	//Open project file that sequences are read from
+	public CollageneBinary.Reader openFile;
+
+	//Why the journal was dropped, if not yet reported
+	private IOException journalError;
+
+	//Only one save at a time
+	private Semaphore saving=new Semaphore(1);
+
+	//Loaded sequences, least recently used first
+	private LinkedHashMap<SequenceHandle, Boolean> recentlyUsed=new LinkedHashMap<SequenceHandle, Boolean>(16, 0.75f, true);
+
+
+	/**
+	 * Save the project. The format is given by the file name. The journal of the project is started anew
+	 */
 	public void saveProject() throws IOException
 		{
-		CollageneXML.saveProject(currentProjectFile, this);
+		beginSave();
+		try
+			{
+			if(journal!=null && !journal.getProjectFile().equals(currentProjectFile))
+				{
+				journal.close();
+				journal=null;
+				}
+			long journalPos=journal!=null ? journal.getLength() : 0;
+			ProjectSnapshot snapshot=takeSnapshot();
+			if(journal!=null)
+				journal.writeSnapshot(snapshot, journalPos);
+			else
+				{
+				snapshot.write();
+				journal=ProjectJournal.create(this, snapshot.getFingerprint());
+				}
+			}
+		finally
+			{
+			endSave();
+			}
+		isModified=false;
+		}
+
+	/**
+	 * Take the content of the project, to be written later. The format is given by the file name
+	 */
+	public ProjectSnapshot takeSnapshot() throws IOException
+		{
+		if(CollageneBinary.isBinaryFileName(currentProjectFile))
+			return CollageneBinary.takeSnapshot(currentProjectFile, this);
+		else
+			return CollageneXML.takeSnapshot(currentProjectFile, this);
+		}
+
+	/**
+	 * Wait for other saves to finish, and start saving
+	 */
+	public void beginSave()
+		{
+		saving.acquireUninterruptibly();
+		}
+
+	/**
+	 * Start saving, unless another save is going on
+	 */
+	public boolean tryBeginSave()
+		{
+		return saving.tryAcquire();
+		}
+
+	/**
+	 * Done saving
+	 */
+	public void endSave()
+		{
+		saving.release();
+		}
+
+	/**
+	 * Load a project in either format. Sequences in a binary project are read when needed. Edits in the
+	 * journal of the project are applied. If the journal cannot be used, such as in a read-only directory, the
+	 * project is opened without it, see takeJournalError
+	 */
+	public static CollageneProject loadProject(File f) throws IOException
+		{
+		CollageneProject proj;
+		if(CollageneBinary.isBinary(f))
+			proj=CollageneBinary.openProject(f);
+		else
+			proj=CollageneXML.loadProject(f);
+		try
+			{
+			proj.journal=ProjectJournal.open(proj);
+			if(proj.journal.getNumRecovered()>0)
+				proj.isModified=true;
+			}
+		catch (IOException e)
+			{
+			//Edits applied before the failure have marked the project as modified
+			synchronized (proj)
+				{
+				proj.journalFailed(e);
+				}
+			}
+		return proj;
+		}
+
+	/**
+	 * Close the project file and its journal. Sequences not read by then can no longer be read
+	 */
+	public synchronized void close() throws IOException
+		{
+		if(journal!=null)
+			{
+			journal.close();
+			journal=null;
+			}
+		if(openFile!=null)
+			{
+			openFile.close();
+			openFile=null;
+			}
+		}
+
+
+	/**
+	 * Add a sequence
+	 */
+	public synchronized SequenceHandle addSequence(AnnotatedSequence seq)
+		{
+		SequenceHandle h=new SequenceHandle(seq);
+		sequences.add(h);
+		if(journal!=null)
+			try
+				{
+				journal.sequenceAdded(seq);
+				}
+			catch (IOException e)
+				{
+				journalFailed(e);
+				}
+		return h;
+		}
+
+	/**
+	 * Remove a sequence
+	 */
+	public synchronized void removeSequence(SequenceHandle h)
+		{
+		int index=sequences.indexOf(h);
+		if(index<0)
+			return;
+		sequences.remove(index);
+		recentlyUsed.remove(h);
+		if(journal!=null)
+			try
+				{
+				journal.sequenceRemoved(index);
+				}
+			catch (IOException e)
+				{
+				journalFailed(e);
+				}
+		}
+
+	/**
+	 * Get the handle of a loaded sequence, or null if not in the project
+	 */
+	public synchronized SequenceHandle getHandle(AnnotatedSequence seq)
+		{
+		for(SequenceHandle h:sequences)
+			if(h.seq==seq)
+				return h;
+		return null;
+		}
+
+
+	/**
+	 * Get a sequence, reading it if needed
+	 */
+	public synchronized AnnotatedSequence getSequence(SequenceHandle h)
+		{
+		if(!h.isLoaded())
+			try
+				{
+				h.load();
+				}
+			catch (IOException e)
+				{
+				throw new RuntimeException("Could not read sequence "+h.name+": "+e.getMessage(), e);
+				}
+		if(h.reader!=null)
+			{
+			recentlyUsed.put(h, Boolean.TRUE);
+			unloadUnused();
+			}
+		return h.seq;
+		}
+
+	/**
+	 * Get all sequences, reading them if needed. Use for operations over the whole project
+	 */
+	public synchronized List<AnnotatedSequence> getSequences()
+		{
+		ArrayList<AnnotatedSequence> list=new ArrayList<AnnotatedSequence>(sequences.size());
+		for(SequenceHandle h:sequences)
+			list.add(getSequence(h));
+		return list;
+		}
+
+	/**
+	 * Drop the least recently used sequences that can be read again, until few enough are left
+	 */
+	private void unloadUnused()
+		{
+		int numUnloadable=0;
+		for(SequenceHandle h:recentlyUsed.keySet())
+			if(h.canUnload())
+				numUnloadable++;
+		Iterator<SequenceHandle> it=recentlyUsed.keySet().iterator();
+		while(numUnloadable>maxLoadedSequences && it.hasNext())
+			{
+			SequenceHandle h=it.next();
+			if(h.canUnload())
+				{
+				h.unload();
+				it.remove();
+				numUnloadable--;
+				}
+			else if(!h.isLoaded())
+				it.remove();
+			}
+		}
+
+
+	/**
+	 * Keep a sequence in memory, such as while it is shown
+	 */
+	public synchronized void pin(AnnotatedSequence seq)
+		{
+		SequenceHandle h=getHandle(seq);
+		if(h!=null)
+			h.pinCount++;
+		}
+
+	/**
+	 * The sequence need no longer be kept in memory
+	 */
+	public synchronized void unpin(AnnotatedSequence seq)
+		{
+		SequenceHandle h=getHandle(seq);
+		if(h!=null && h.pinCount>0)
+			{
+			h.pinCount--;
+			unloadUnused();
+			}
+		}
+
+	/**
+	 * The sequence has changed. It is kept in memory until saved
+	 */
+	public synchronized void setModified(AnnotatedSequence seq)
+		{
+		SequenceHandle h=markModified(seq);
+		if(h!=null && journal!=null)
+			try
+				{
+				journal.sequenceModified(sequences.indexOf(h), seq);
+				}
+			catch (IOException e)
+				{
+				journalFailed(e);
+				}
+		}
+
+	/**
+	 * Replace part of a sequence, see AnnotatedSequence.replaceSequence. Only the edit is journaled
+	 */
+	public synchronized void editSequence(AnnotatedSequence seq, SequenceRange range, String upper, String lower)
+		{
+		seq.replaceSequence(range, upper, lower);
+		SequenceHandle h=markModified(seq);
+		if(h!=null && journal!=null)
+			try
+				{
+				journal.sequenceEdited(sequences.indexOf(h), range, upper, lower);
+				}
+			catch (IOException e)
+				{
+				journalFailed(e);
+				}
+		}
+
+	private SequenceHandle markModified(AnnotatedSequence seq)
+		{
+		isModified=true;
+		SequenceHandle h=getHandle(seq);
+		if(h!=null)
+			{
+			h.isModified=true;
+			h.modCount++;
+			}
+		return h;
+		}
+
+	/**
+	 * Add an annotation to a sequence
+	 */
+	public synchronized void addAnnotation(AnnotatedSequence seq, SeqAnnotation annot)
+		{
+		seq.addAnnotation(annot);
+		SequenceHandle h=markModified(seq);
+		if(h!=null && journal!=null)
+			try
+				{
+				journal.annotationAdded(sequences.indexOf(h), annot);
+				}
+			catch (IOException e)
+				{
+				journalFailed(e);
+				}
+		}
+
+	/**
+	 * Add a primer to a sequence
+	 */
+	public synchronized void addPrimer(AnnotatedSequence seq, Primer primer)
+		{
+		seq.addPrimer(primer);
+		SequenceHandle h=markModified(seq);
+		if(h!=null && journal!=null)
+			try
+				{
+				journal.primerAdded(sequences.indexOf(h), primer);
+				}
+			catch (IOException e)
+				{
+				journalFailed(e);
+				}
+		}
+
+	/**
+	 * Set a new 0-position of a sequence
+	 */
+	public synchronized void setNew0(AnnotatedSequence seq, int pos)
+		{
+		seq.setNew0(pos);
+		SequenceHandle h=markModified(seq);
+		if(h!=null && journal!=null)
+			try
+				{
+				journal.new0(sequences.indexOf(h), pos);
+				}
+			catch (IOException e)
+				{
+				journalFailed(e);
+				}
+		}
+
+	/**
+	 * The journal could not be written. It is dropped until the project is saved again
+	 */
+	private void journalFailed(IOException e)
+		{
+		if(journalError==null)
+			journalError=e;
+		if(journal!=null)
+			try
+				{
+				journal.close();
+				}
+			catch (IOException e2)
+				{
+				//Already failed, and the journal on disk is complete up to some edit
+				}
+		journal=null;
+		}
+
+	/**
+	 * Get why the journal was dropped, once. Null if it was not
+	 */
+	public synchronized IOException takeJournalError()
+		{
+		IOException e=journalError;
+		journalError=null;
+		return e;
+		}
+
+	/**
+	 * Replace the sequence of a handle
+	 */
+	public synchronized void replaceSequence(SequenceHandle h, AnnotatedSequence seq)
+		{
+		h.seq=seq;
+		h.update();
+		}
+
+	/**
+	 * The given sequences are now stored in a project file, in order. Those not in use can be dropped from memory
+	 */
+	public synchronized void setStored(CollageneBinary.Reader reader, List<SequenceHandle> stored, int[] modCounts)
+		{
+		openFile=reader;
+		for(int i=0;i<stored.size();i++)
+			{
+			SequenceHandle h=stored.get(i);
+			h.setStored(reader, i, modCounts[i]);
+			if(h.isLoaded())
+				recentlyUsed.put(h, Boolean.TRUE);
+			}
+		unloadUnused();
+		}
+
+	/**
+	 * The project file has been opened again. Sequences not read yet are read from the new reader
+	 */
+	public synchronized void setReopened(CollageneBinary.Reader oldReader, CollageneBinary.Reader reader)
+		{
+		openFile=reader;
+		for(SequenceHandle h:sequences)
+			if(h.reader==oldReader)
+				h.reader=reader;
 		}
 	}
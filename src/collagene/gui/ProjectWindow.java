@@ -14,12 +14,12 @@ import collagene.gui.cloneAssembler.CloneAssembler;
 import collagene.gui.qt.QTutil;
 import collagene.gui.resource.ImgResource;
 import collagene.gui.sequenceWindow.CollageneEvent;
+import collagene.gui.sequenceWindow.EventSequenceEdited;
 import collagene.gui.sequenceWindow.EventSequenceModified;
 import collagene.gui.sequenceWindow.SequenceWindow;
 import collagene.io.SequenceExporter;
 import collagene.io.SequenceFileHandlers;
-import collagene.io.SequenceImporter;
-import collagene.io.collagene.CollageneXML;
+import collagene.io.collagene.CollageneBinary;
 import collagene.io.input.ImportAddgene;
 import collagene.io.trace.SequenceTrace;
 import collagene.io.trace.TraceIO;
@@ -233,8 +233,9 @@ public class ProjectWindow extends QMainWindow
 		LinkedList<AnnotatedSequence> seqs=new LinkedList<AnnotatedSequence>();
 		for(QModelIndex ind:wtree.selectionModel().selectedIndexes())
 			{
-			AnnotatedSequence seq=(AnnotatedSequence)ind.data(Qt.ItemDataRole.UserRole);
-			seqs.add(seq);
+			SequenceHandle h=(SequenceHandle)ind.data(Qt.ItemDataRole.UserRole);
+			if(h!=null)
+				seqs.add(proj.getSequence(h));
 			}
 		return seqs;
 		}
@@ -245,8 +246,8 @@ public class ProjectWindow extends QMainWindow
 		QTreeWidgetItem item=wtree.currentItem();
 		if(item!=null)
 			{
-			AnnotatedSequence seq=(AnnotatedSequence)item.data(0, Qt.ItemDataRole.UserRole);
-			return seq;
+			SequenceHandle h=(SequenceHandle)item.data(0, Qt.ItemDataRole.UserRole);
+			return h==null ? null : proj.getSequence(h);
 			}
 		else
 			return null;
@@ -273,13 +274,17 @@ public class ProjectWindow extends QMainWindow
 		{
 		while(itemPlasmids.childCount()>0)
 			itemPlasmids.removeChild(itemPlasmids.child(0));
-		for(AnnotatedSequence seq:proj.sequenceLinkedList)
+		for(SequenceHandle h:proj.sequences)
 			{
-			QTreeWidgetItem item=new QTreeWidgetItem(Arrays.asList(seq.name));
+			QTreeWidgetItem item=new QTreeWidgetItem(Arrays.asList(h.getName()));
 			itemPlasmids.addChild(item);
-			item.setData(0, Qt.ItemDataRole.UserRole, seq);
+			item.setData(0, Qt.ItemDataRole.UserRole, h);
 			}
 		wtree.expandAll();
+
+		IOException e=proj.takeJournalError();
+		if(e!=null)
+			QTutil.showNotice(this, tr("Edits can no longer be recovered after a crash, until the project is saved: ")+e.getMessage());
 		}
 	
 	
@@ -304,8 +309,12 @@ public class ProjectWindow extends QMainWindow
 		boolean ok=QTutil.showOkCancel(tr("Are you sure you wish to delete this sequence?"));
 		if(ok)
 			{
-			for(AnnotatedSequence seq:getSelectedSequences())
-				proj.sequenceLinkedList.remove(seq);
+			for(QModelIndex ind:wtree.selectionModel().selectedIndexes())
+				{
+				SequenceHandle h=(SequenceHandle)ind.data(Qt.ItemDataRole.UserRole);
+				if(h!=null)
+					proj.removeSequence(h);
+				}
 			updateView();
 			}
 		}
@@ -315,6 +324,9 @@ public class ProjectWindow extends QMainWindow
 	protected void closeEvent(QCloseEvent arg__1)
 		{
 		super.closeEvent(arg__1);
+		
+		//Edits not yet written to the journal are written when it is closed
+		closeProject();
 		System.exit(0);
 		}
 	
@@ -336,6 +348,7 @@ public class ProjectWindow extends QMainWindow
 		{
 		SequenceWindow w=new SequenceWindow(this);
 		seqwindows.add(w);
+		proj.pin(seq);
 		w.setSequence(seq);
 		}
 	
@@ -345,7 +358,7 @@ public class ProjectWindow extends QMainWindow
 	public void addSequenceToProject(AnnotatedSequence seq)
 		{
 		proj.isModified=true;
-		proj.sequenceLinkedList.add(seq);
+		proj.addSequence(seq);
 		updateView();
 		}
 	
@@ -411,16 +424,9 @@ public class ProjectWindow extends QMainWindow
 					{
 					File f=new File(sf);
 					lastDirectory=f.getParentFile();
-					SequenceImporter importer=SequenceFileHandlers.getImporter(f);
-					if(importer!=null)
-						{
-						FileInputStream fis=new FileInputStream(f);
-						List<AnnotatedSequence> seqs=importer.load(fis);
-						System.out.println(seqs.size());
-						AnnotatedSequence seq=seqs.get(0);
-						fis.close();
+					AnnotatedSequence seq=SequenceFileHandlers.loadFirst(f);
+					if(seq!=null)
 						addSequenceToProject(seq); //TODO name?
-						}
 					else
 						QTutil.showNotice(this, tr("Unknown file format"));
 					}
@@ -435,6 +441,21 @@ public class ProjectWindow extends QMainWindow
 
 	
 	
+	/**
+	 * Close the file of the current project
+	 */
+	private void closeProject()
+		{
+		try
+			{
+			proj.close();
+			}
+		catch (IOException e)
+			{
+			e.printStackTrace();
+			}
+		}
+
 	/**
 	 * Action: New project
 	 */
@@ -442,6 +463,7 @@ public class ProjectWindow extends QMainWindow
 		{
 		if(QTutil.showOkCancel(tr("Are you sure you want to create a new project?")))
 			{
+			closeProject();
 			proj=new CollageneProject();
 			updateView();
 			//TODO close all other windows too
@@ -457,14 +479,18 @@ public class ProjectWindow extends QMainWindow
 		QFileDialog dia=new QFileDialog();
 		dia.setFileMode(FileMode.ExistingFile);
 		dia.setDirectory(lastDirectory.getAbsolutePath());
-		dia.setNameFilter(tr("Project files (*.collagene)"));
+		dia.setNameFilter(tr("Project files (*.collagene *.collagenebin)"));
 		if(dia.exec()!=0)
 			{
 			File f=new File(dia.selectedFiles().get(0));
 			lastDirectory=f.getParentFile();
 			try
 				{
-				proj=CollageneXML.loadProject(f);
+				CollageneProject newProj=CollageneProject.loadProject(f);
+				closeProject();
+				proj=newProj;
+				if(proj.journal.getNumRecovered()>0)
+					QTutil.showNotice(this, tr("Recovered unsaved edits: ")+proj.journal.getNumRecovered());
 				}
 			catch (IOException e)
 				{
@@ -507,11 +533,18 @@ public class ProjectWindow extends QMainWindow
 		dia.setAcceptMode(AcceptMode.AcceptSave);
 		dia.setDirectory(lastDirectory.getAbsolutePath());
 		dia.setDefaultSuffix("collagene");
-		dia.setNameFilter(tr("Project files (*.collagene)"));
+		dia.setNameFilters(Arrays.asList(tr("Project files (*.collagene)"), tr("Binary project files (*.collagenebin)")));
 		if(dia.exec()!=0)
 			{
 			File f=new File(dia.selectedFiles().get(0));
 			lastDirectory=f.getParentFile();
+			if(dia.selectedNameFilter().contains("*.collagenebin") && !CollageneBinary.isBinaryFileName(f))
+				{
+				String name=f.getName();
+				if(name.endsWith(".collagene"))
+					name=name.substring(0, name.length()-".collagene".length());
+				f=new File(f.getParentFile(), name+"."+CollageneBinary.EXTENSION);
+				}
 			proj.currentProjectFile=f;
 			actionSaveProject();
 			}
@@ -732,15 +765,23 @@ public class ProjectWindow extends QMainWindow
 			}
 		else if(ob instanceof EventSequenceModified)
 			{
-			proj.isModified=true;
 			//Find views that might be interested
 			AnnotatedSequence seq=((EventSequenceModified)ob).seq;
+			proj.setModified(seq);
 			for(SequenceWindow w:seqwindows)
 				{
 				if(w.getSequence()==seq)
 					w.onViewUpdated(ob);
 				}
 			}
+		else if(ob instanceof EventSequenceEdited)
+			{
+			//Already in the project and its journal
+			AnnotatedSequence seq=((EventSequenceEdited)ob).seq;
+			for(SequenceWindow w:seqwindows)
+				if(w.getSequence()==seq)
+					w.onViewUpdated(ob);
+			}
 
 		}
 
@@ -748,6 +789,7 @@ public class ProjectWindow extends QMainWindow
 	public void hasclosed(SequenceWindow sequenceWindow)
 		{
 		seqwindows.remove(sequenceWindow);
+		proj.unpin(sequenceWindow.getSequence());
 		}
 
 
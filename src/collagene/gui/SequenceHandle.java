@@ -0,0 +1,160 @@
+package collagene.gui;
+
+import java.io.IOException;
+
+import collagene.io.collagene.CollageneBinary;
+import collagene.seq.AnnotatedSequence;
+
+/**
+ *
+ * A sequence in a project. What is needed to list it is always present, while the sequence itself may only be read
+ * from the project file when needed
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class SequenceHandle
+	{
+	public String name;
+	public int length;
+	public boolean isCircular;
+	/**
+	 * Checksum of the stored form of the sequence, see CollageneBinary.getChecksum. It is that of the sequence when
+	 * it was added or last stored
+	 */
+	public int checksum;
+
+	//The loaded sequence, or null
+	AnnotatedSequence seq;
+
+	//Where to read it from, if it can be unloaded
+	CollageneBinary.Reader reader;
+	int index;
+
+	//Number of users needing it to stay in memory
+	int pinCount;
+	//Changed since it was read from file
+	boolean isModified;
+	//Number of times it has been changed
+	int modCount;
+
+
+	/**
+	 * Handle of a sequence in memory only
+	 */
+	public SequenceHandle(AnnotatedSequence seq)
+		{
+		this.seq=seq;
+		update();
+		try
+			{
+			checksum=CollageneBinary.getChecksum(seq);
+			}
+		catch (IOException e)
+			{
+			throw new RuntimeException(e);
+			}
+		}
+
+	/**
+	 * Handle of a sequence in a project file, not read yet
+	 */
+	public SequenceHandle(CollageneBinary.Reader reader, int index)
+		{
+		CollageneBinary.Entry e=reader.getEntry(index);
+		name=e.name;
+		length=e.length;
+		isCircular=e.isCircular;
+		checksum=e.checksum;
+		this.reader=reader;
+		this.index=index;
+		}
+
+
+	/**
+	 * Bring the summary up to date with the sequence
+	 */
+	void update()
+		{
+		name=seq.name;
+		length=seq.getLength();
+		isCircular=seq.isCircular;
+		}
+
+	/**
+	 * Get the name, as currently in the sequence if loaded
+	 */
+	public String getName()
+		{
+		if(seq!=null)
+			update();
+		return name;
+		}
+
+	public boolean isLoaded()
+		{
+		return seq!=null;
+		}
+
+	/**
+	 * The sequence, if it is loaded
+	 */
+	public AnnotatedSequence getLoadedSequence()
+		{
+		return seq;
+		}
+
+	/**
+	 * Get the project file and entry from which the sequence can be read, or null if it is only in memory
+	 */
+	public CollageneBinary.Reader getReader()
+		{
+		return reader;
+		}
+
+	public int getIndex()
+		{
+		return index;
+		}
+
+	/**
+	 * Get the number of times the sequence has been changed. Used to tell if it changed while being saved
+	 */
+	public int getModCount()
+		{
+		return modCount;
+		}
+
+	/**
+	 * Whether the sequence can be dropped from memory and read again later
+	 */
+	boolean canUnload()
+		{
+		return seq!=null && reader!=null && pinCount==0 && !isModified;
+		}
+
+	void load() throws IOException
+		{
+		if(seq==null)
+			seq=reader.loadSequence(index);
+		}
+
+	void unload()
+		{
+		update();
+		seq=null;
+		}
+
+	/**
+	 * The sequence has been stored in a file, and can be read from there. If it has been changed since it was
+	 * serialized, it is still considered modified
+	 */
+	void setStored(CollageneBinary.Reader reader, int index, int storedModCount)
+		{
+		this.reader=reader;
+		this.index=index;
+		checksum=reader.getEntry(index).checksum;
+		if(modCount==storedModCount)
+			isModified=false;
+		}
+	}
@@ -21,5 +21,17 @@ public class SimulatedLane
 		mapPosWeight.putAll(dnaLadder.sizes);
 		}
 
+	/**
+	 * Lane of fragments, as from BatchDigestSimulator. Fragments of the same size give a stronger band
+	 */
+	public SimulatedLane(int[] fragmentSizes)
+		{
+		for(int size:fragmentSizes)
+			{
+			Double w=mapPosWeight.get((double)size);
+			mapPosWeight.put((double)size, w==null ? 1.0 : w+1.0);
+			}
+		}
+
 	public TreeMap<Double, Double> mapPosWeight=new TreeMap<Double, Double>();
 	}
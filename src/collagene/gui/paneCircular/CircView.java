@@ -4,8 +4,6 @@ package collagene.gui.paneCircular;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
 import java.util.LinkedList;
 
@@ -371,29 +369,16 @@ public class CircView extends QGraphicsView
 			scene.addItem(itemprim);
 			}
 		
-		//Find restriction sites to draw
-		ArrayList<RestrictionSite> totSites=new ArrayList<RestrictionSite>(200);
-		for(RestrictionEnzyme enz:seq.restrictionSites.keySet())
-			{
-			Collection<RestrictionSite> sites=seq.restrictionSites.get(enz);
-			if(settings.allowsRestrictionSiteCount(enz,sites.size()) || selectedEnz.enzymes.contains(enz))
-				totSites.addAll(sites);
-			}
-
-		
-		//Render restriction sites
-		Collections.sort(totSites, new Comparator<RestrictionSite>()
+		//Render restriction sites. The index has them sorted by position already
+		resetEmittedText();
+		for(RestrictionSite site:seq.getRestrictionSiteIndex().getAll())
 			{
-			public int compare(RestrictionSite o1, RestrictionSite o2)
+			RestrictionEnzyme enz=site.enzyme;
+			if((!site.isBlocked && settings.allowsRestrictionSiteCount(enz,seq.getNumCuttingSites(enz))) || selectedEnz.enzymes.contains(enz))
 				{
-				return Double.compare(o1.cuttingUpperPos, o2.cuttingUpperPos);
+				double ang=(circPan+site.cuttingUpperPos/(double)seq.getLength());
+				addAnnotationText(ang, enz);
 				}
-			});
-		resetEmittedText();
-		for(RestrictionSite site:totSites)
-			{
-			double ang=(circPan+site.cuttingUpperPos/(double)seq.getLength());
-			addAnnotationText(ang, site.enzyme);
 			}
 		emitAnnotationText();
 		
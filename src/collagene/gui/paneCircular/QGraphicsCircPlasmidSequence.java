@@ -63,7 +63,7 @@ public class QGraphicsCircPlasmidSequence extends QGraphicsEllipseItem
 				painter.save();
 				painter.translate(textRadius*Math.cos(curang), textRadius*Math.sin(curang));
 				painter.rotate(curang*360/(2.0*Math.PI)+90);
-				painter.drawText(0, 0, ""+seq.getSequence().charAt(i));
+				painter.drawText(0, 0, ""+seq.getPackedSequence().charAt(i));
 				painter.restore();
 				}
 			}
@@ -232,6 +232,8 @@ public class PaneSequenceInfo extends QScrollArea
 		public void edited()
 			{
 			seq.bacteria=getProp();
+			//Sites blocked by methylation change
+			signalUpdated.emit(new EventSequenceModified(seq));
 			}
 		}
 
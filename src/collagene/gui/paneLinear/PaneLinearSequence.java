@@ -93,10 +93,8 @@ public class PaneLinearSequence extends QWidget
 	
 	public void updateview()
 		{
-		view.settingsRS=menuSettingsRS.getSettings();
-		view.settingsSeq=menuSettingsSeq.getSettings();
-		view.charWidth=8+(sliderZoom.value()/(double)sliderZoom.maximum())*10;
-		setSequence(view.getSequence()); //cruel
+		view.setSettings(menuSettingsRS.getSettings(), menuSettingsSeq.getSettings(), 
+				8+(sliderZoom.value()/(double)sliderZoom.maximum())*10);
 		
 		ViewSettingsSequence ss=menuSettingsSeq.getSettings();
 		sliderZoom.setVisible(!ss.fullsize);
@@ -110,6 +108,22 @@ public class PaneLinearSequence extends QWidget
 		view.setSequence(seq);
 		}
 
+	/**
+	 * The restriction sites have all been found again, see ViewLinearSequence.restrictionSitesFound
+	 */
+	public void restrictionSitesFound()
+		{
+		view.restrictionSitesFound();
+		}
+
+	/**
+	 * Part of the sequence has been replaced, see ViewLinearSequence.sequenceEdited
+	 */
+	public void sequenceEdited(int pos, int removed, int inserted)
+		{
+		view.sequenceEdited(pos, removed, inserted);
+		}
+
 	public void setSelection(SequenceRange range)
 		{
 		view.setSelection(range);
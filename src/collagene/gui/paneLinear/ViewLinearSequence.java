@@ -1,10 +1,17 @@
 package collagene.gui.paneLinear;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import collagene.gui.ProjectWindow;
+import collagene.gui.paneLinear.tracks.LinItemPool;
 import collagene.gui.paneLinear.tracks.LinTrack;
 import collagene.gui.paneLinear.tracks.LinTrackAnnotation;
 import collagene.gui.paneLinear.tracks.LinTrackPrimer;
@@ -16,6 +23,7 @@ import collagene.gui.sequenceWindow.CollageneEvent;
 import collagene.gui.sequenceWindow.EventSelectedRegion;
 import collagene.gui.sequenceWindow.ViewSettingsSequence;
 import collagene.seq.AnnotatedSequence;
+import collagene.seq.PackedSequence;
 import collagene.seq.SequenceRange;
 
 import com.trolltech.qt.QSignalEmitter;
@@ -27,6 +35,7 @@ import com.trolltech.qt.core.Qt.ScrollBarPolicy;
 import com.trolltech.qt.gui.QBrush;
 import com.trolltech.qt.gui.QColor;
 import com.trolltech.qt.gui.QContextMenuEvent;
+import com.trolltech.qt.gui.QGraphicsItemInterface;
 import com.trolltech.qt.gui.QGraphicsLineItem;
 import com.trolltech.qt.gui.QGraphicsRectItem;
 import com.trolltech.qt.gui.QGraphicsScene;
@@ -74,6 +83,27 @@ public class ViewLinearSequence extends QGraphicsView
 
 	public LinkedList<LinTrack> tracks=new LinkedList<LinTrack>();
 
+	/**
+	 * Number of lines above and below the view that also get graphics items, to make scrolling smooth
+	 */
+	public static int linesOutsideView=3;
+
+	//Top of each line in the scene. The last entry is the bottom of the last line
+	private int[] lineY=new int[]{10};
+	private int numLines=0;
+
+	//Height of each track on each line, as [line][track], and the lines of each track to lay out again
+	private int[][] trackHeight=new int[0][];
+	private BitSet[] invalidLines=new BitSet[0];
+
+	//Graphics items of the lines currently in the scene
+	private LinItemPool pool;
+	private HashMap<Integer, List<QGraphicsItemInterface>> placedLines=new HashMap<Integer, List<QGraphicsItemInterface>>();
+	private int firstPlacedLine=0, lastPlacedLine=-1;
+
+	//Sequence that the lines were laid out for. Features can change without the sequence changing
+	private PackedSequence laidOutSequence;
+	private boolean laidOutCircular;
 
 	
 	public AnnotatedSequence getSequence()
@@ -82,12 +112,82 @@ public class ViewLinearSequence extends QGraphicsView
 		}
 
 	/**
-	 * Set current sequence
+	 * Set current sequence. If it is the one laid out, only lines with features that changed are laid out again
 	 */
 	public void setSequence(AnnotatedSequence seq)
 		{
+		boolean sameSequence=seq==this.seq && numLines>0 && 
+				seq.getPackedSequence()==laidOutSequence && seq.isCircular==laidOutCircular;
 		this.seq=seq;
-		buildSceneFromDoc();
+		if(sameSequence)
+			{
+			for(LinTrack track:tracks)
+				track.invalidateChanged();
+			updateInvalidatedLines();
+			}
+		else
+			buildSceneFromDoc();
+		}
+
+	/**
+	 * Part of the sequence has been replaced: [pos,pos+removed) is now [pos,pos+inserted). Only lines from the
+	 * edit onward are laid out again, or only the lines of the edit if the length is the same
+	 */
+	public void sequenceEdited(int pos, int removed, int inserted)
+		{
+		//The number of characters per line may follow the length
+		if(numLines==0 || settingsSeq.fullsize || settingsSeq.charsPerLine<0)
+			{
+			buildSceneFromDoc();
+			return;
+			}
+		
+		int oldNumLines=numLines;
+		numLines=seq.getLength()/charsPerLine+1;
+		if(numLines!=oldNumLines)
+			{
+			lineY=new int[numLines+1];
+			trackHeight=Arrays.copyOf(trackHeight, numLines);
+			for(int curline=oldNumLines;curline<numLines;curline++)
+				trackHeight[curline]=new int[tracks.size()];
+			for(BitSet inv:invalidLines)
+				inv.clear(numLines, Math.max(numLines, oldNumLines));
+			}
+		laidOutSequence=seq.getPackedSequence();
+		
+		//Everything after the edit moves, unless the length is the same
+		int toLine=removed==inserted ? (pos+inserted)/charsPerLine : numLines-1;
+		for(LinTrack track:tracks)
+			invalidateLines(track, pos/charsPerLine-1, toLine);
+		
+		//Restriction sites are found again around the edit, also somewhat before it
+		int len=seq.getLength();
+		int reach=w.restrictionEnzymes.getScanner().getEditReach();
+		int from=pos-reach;
+		int to=pos+inserted+reach;
+		if(seq.isCircular && to-from<len)
+			invalidateRange(trackSequence, (from+len)%len, to%len);
+		else
+			invalidateRange(trackSequence, Math.max(0, from), Math.min(len, to));
+
+		//Near an end of a linear sequence, sites at both ends are found again, as their cuts may wrap around
+		if(!seq.isCircular && (from<reach || to>len-reach))
+			{
+			invalidateRange(trackSequence, 0, Math.min(len, reach));
+			invalidateRange(trackSequence, Math.max(0, len-reach), len);
+			}
+
+		for(LinTrack track:tracks)
+			track.invalidateChanged();
+		updateInvalidatedLines(numLines!=oldNumLines);
+		}
+
+	/**
+	 * The restriction sites have all been found again. The next time the sequence is set, all lines are laid out
+	 */
+	public void restrictionSitesFound()
+		{
+		laidOutSequence=null;
 		}
 
 
@@ -104,8 +204,6 @@ public class ViewLinearSequence extends QGraphicsView
 	 */
 	public void setSelection(SequenceRange s)
 		{
-		ArrayList<Integer> sequenceLineY=trackSequence.sequenceLineY;
-
 		selection=s;
 		if(!isSelecting && selection!=null)
 			{
@@ -113,16 +211,16 @@ public class ViewLinearSequence extends QGraphicsView
 			int lineFrom=selection.from/charsPerLine;
 			if(lineFrom<0)
 				lineFrom=0;
-			else if(lineFrom>=sequenceLineY.size())
-				lineFrom=sequenceLineY.size()-1;
-			lineFrom=sequenceLineY.get(lineFrom);
+			else if(lineFrom>=numLines)
+				lineFrom=numLines-1;
+			lineFrom=getSequenceLineY(lineFrom);
 			
 			int lineTo=selection.to/charsPerLine;
 			if(lineTo<0)
 				lineTo=0;
-			else if(lineTo>=sequenceLineY.size())
-				lineTo=sequenceLineY.size()-1;
-			lineTo=sequenceLineY.get(lineTo);
+			else if(lineTo>=numLines)
+				lineTo=numLines-1;
+			lineTo=getSequenceLineY(lineTo);
 
 			//Check if current view covers selection
 			QRectF currentSceneRect = mapToScene(rect()).boundingRect();
@@ -139,7 +237,7 @@ public class ViewLinearSequence extends QGraphicsView
 				{
 				//Selection goes around the boundary
 				QRectF frect1=new QRectF(0, 0, width(), lineTo);
-				QRectF frect2=new QRectF(0, lineFrom, width(), sequenceLineY.get(sequenceLineY.size()-1));
+				QRectF frect2=new QRectF(0, lineFrom, width(), getSequenceLineY(numLines-1));
 				if(frect1.intersects(currentSceneRect) || frect2.intersects(currentSceneRect))
 					currentlySeesAnnotation=true;
 				}
@@ -176,6 +274,7 @@ public class ViewLinearSequence extends QGraphicsView
 		//charsPerLine=80; //not proper
 		
 		setScene(new QGraphicsScene());
+		pool=new LinItemPool(scene());
 		buildSceneFromDoc();
 		
 		timerAnimation.timeout.connect(this,"timermove()");
@@ -226,12 +325,22 @@ public class ViewLinearSequence extends QGraphicsView
 
 	
 	/**
-	 * Build the scene from the document. This is equivalent to repainting
+	 * Build the scene from the document. This is equivalent to repainting. All lines are laid out, but
+	 * only those in view get graphics items
 	 */
 	public void buildSceneFromDoc()
 		{
 		QGraphicsScene scene=scene();
+		for(List<QGraphicsItemInterface> items:placedLines.values())
+			pool.recycle(items);
+		placedLines.clear();
+		firstPlacedLine=0;
+		lastPlacedLine=-1;
 		scene.clear();
+		selectionItems.clear();
+		
+		//Nothing is placed if the view is resized before the lines are laid out again
+		numLines=0;
 		
 		//Note - it is good to have a separate scene builder class, for making PDFs
 		if(settingsSeq.fullsize)
@@ -269,38 +378,292 @@ public class ViewLinearSequence extends QGraphicsView
 			}
 
 
-		//Render each line. Remember position
-		int currentY=10;
+		//Lay out each line
+		laidOutSequence=seq.getPackedSequence();
+		laidOutCircular=seq.isCircular;
+		numLines=seq.getLength()/charsPerLine+1;
+		lineY=new int[numLines+1];
+		trackHeight=new int[numLines][tracks.size()];
+		invalidLines=new BitSet[tracks.size()];
+		for(int t=0;t<invalidLines.length;t++)
+			invalidLines[t]=new BitSet();
 		for(LinTrack track:tracks)
 			track.initPlacing();
-		for(int curline=0;curline<seq.getLength()/charsPerLine+1;curline++)
+		for(int curline=0;curline<numLines;curline++)
 			{
 			int cposLeft=curline*charsPerLine;
 			int cposRight=(curline+1)*charsPerLine;
+			int t=0;
+			for(LinTrack track:tracks)
+				trackHeight[curline][t++]=track.layout(curline, cposLeft, cposRight);
+			}
+		updateLineY();
+		
+		//Placing the lines also draws the selection
+		placeVisibleLines();
+		}	
+	
+
+	/**
+	 * Compute the position of each line from the heights of the tracks, and update the view size
+	 */
+	private void updateLineY()
+		{
+		int rulerHeight=QGraphicsLinSeqPositionItem.getHeight(this);
+		int currentY=10;
+		for(int curline=0;curline<numLines;curline++)
+			{
+			lineY[curline]=currentY;
+			for(int h:trackHeight[curline])
+				currentY+=h;
 			
-			//Draw all tracks
+			//Room for position item, then move to next line
+			currentY+=rulerHeight+10;
+			}
+		lineY[numLines]=currentY;
+		setSceneRect(0, 0, mapCharToX(charsPerLine)+30, currentY+50);
+		}
+
+
+	/**
+	 * Mark lines of a track, fromLine to toLine inclusive, to be laid out again at the next update
+	 */
+	public void invalidateLines(LinTrack track, int fromLine, int toLine)
+		{
+		fromLine=Math.max(0, fromLine);
+		toLine=Math.min(numLines-1, toLine);
+		if(fromLine<=toLine)
+			invalidLines[tracks.indexOf(track)].set(fromLine, toLine+1);
+		}
+
+	/**
+	 * Mark the lines of a track that show positions from to to, inclusive, to be laid out again. The range wraps
+	 * around the 0-position if to is before from. Something at the start of a line is also shown at the end of
+	 * the line before
+	 */
+	public void invalidateRange(LinTrack track, int from, int to)
+		{
+		if(to<from)
+			{
+			invalidateLines(track, (from-1)/charsPerLine, numLines-1);
+			invalidateLines(track, 0, to/charsPerLine);
+			}
+		else
+			invalidateLines(track, (from-1)/charsPerLine, to/charsPerLine);
+		}
+
+	/**
+	 * Lay out the invalidated lines again, and replace their graphics items. Lines below a line that changed
+	 * height are moved, so their items are replaced as well
+	 */
+	public void updateInvalidatedLines()
+		{
+		updateInvalidatedLines(false);
+		}
+
+	private void updateInvalidatedLines(boolean numLinesChanged)
+		{
+		BitSet changedLines=new BitSet();
+		int firstMoved=numLines;
+		int t=0;
+		for(LinTrack track:tracks)
+			{
+			BitSet inv=invalidLines[t];
+			for(int curline=inv.nextSetBit(0);curline>=0;curline=inv.nextSetBit(curline+1))
+				{
+				int h=track.layout(curline, curline*charsPerLine, (curline+1)*charsPerLine);
+				if(h!=trackHeight[curline][t])
+					{
+					trackHeight[curline][t]=h;
+					firstMoved=Math.min(firstMoved, curline+1);
+					}
+				changedLines.set(curline);
+				}
+			inv.clear();
+			t++;
+			}
+		if(firstMoved<numLines || numLinesChanged)
+			updateLineY();
+		
+		//Recycle the items of lines that changed or moved. They are placed again if in view
+		Iterator<Map.Entry<Integer, List<QGraphicsItemInterface>>> it=placedLines.entrySet().iterator();
+		while(it.hasNext())
+			{
+			Map.Entry<Integer, List<QGraphicsItemInterface>> e=it.next();
+			if(e.getKey()>=firstMoved || changedLines.get(e.getKey()))
+				{
+				pool.recycle(e.getValue());
+				it.remove();
+				}
+			}
+		placeVisibleLines();
+		}
+
+	
+	/**
+	 * Change how the sequence is shown. If the lines keep their size, only the lines with restriction sites that
+	 * are shown or hidden by the new settings are laid out again
+	 */
+	public void setSettings(ViewSettingsRestrictionEnzymes settingsRS, ViewSettingsSequence settingsSeq, double charWidth)
+		{
+		ViewSettingsSequence oldSeq=this.settingsSeq;
+		
+		//In fullsize mode, the width of characters follows the width of the view
+		if(settingsSeq.fullsize)
+			charWidth=this.charWidth;
+		boolean sameLines=charWidth==this.charWidth && 
+				settingsSeq.fullsize==oldSeq.fullsize && 
+				settingsSeq.charsPerLine==oldSeq.charsPerLine && 
+				settingsSeq.showPositionRuler==oldSeq.showPositionRuler;
+		
+		this.settingsRS=settingsRS;
+		this.settingsSeq=settingsSeq;
+		this.charWidth=charWidth;
+		if(sameLines)
+			{
 			for(LinTrack track:tracks)
-				currentY=track.place(scene, currentY, cposLeft, cposRight);
-
-			//Add position item
-			QGraphicsLinSeqPositionItem pitem=new QGraphicsLinSeqPositionItem();
-			pitem.curline=curline;
-			pitem.currentY=currentY;
-			pitem.seq=seq;
-			pitem.view=this;
-			scene.addItem(pitem);
-			currentY+=pitem.boundingRect().height();
+				track.invalidateChanged();
+			updateInvalidatedLines();
 			
-			//Move to next line
-			currentY+=10;
+			//Other settings only change how the sequence is painted
+			scene().update();
 			}
+		else
+			buildSceneFromDoc();
+		}
+	
+
+	/**
+	 * Make sure that the lines in view have graphics items. Items of lines far outside the view are recycled
+	 */
+	private void placeVisibleLines()
+		{
+		if(pool==null)
+			return;
+		QRectF currentSceneRect=mapToScene(rect()).boundingRect();
+		int first=getLineAt(currentSceneRect.top());
+		if(first==-1)
+			first=currentSceneRect.top()<lineY[0] ? 0 : numLines-1;
+		int last=getLineAt(currentSceneRect.bottom());
+		if(last==-1)
+			last=currentSceneRect.bottom()<lineY[0] ? 0 : numLines-1;
+		first=Math.max(0, first-linesOutsideView);
+		last=Math.min(numLines-1, last+linesOutsideView);
+		if(first==firstPlacedLine && last==lastPlacedLine && placedLines.size()==last-first+1)
+			return;
 		
-		//Update view size
-		setSceneRect(0, 0, mapCharToX(charsPerLine)+30, currentY+50);
+		//Recycle lines no longer needed
+		Iterator<Map.Entry<Integer, List<QGraphicsItemInterface>>> it=placedLines.entrySet().iterator();
+		while(it.hasNext())
+			{
+			Map.Entry<Integer, List<QGraphicsItemInterface>> e=it.next();
+			if(e.getKey()<first || e.getKey()>last)
+				{
+				pool.recycle(e.getValue());
+				it.remove();
+				}
+			}
+		
+		//Place lines coming into view
+		for(int curline=first;curline<=last;curline++)
+			if(!placedLines.containsKey(curline))
+				{
+				ArrayList<QGraphicsItemInterface> items=new ArrayList<QGraphicsItemInterface>();
+				int y=lineY[curline];
+				int t=0;
+				for(LinTrack track:tracks)
+					{
+					track.place(pool, items, curline, y);
+					y+=trackHeight[curline][t++];
+					}
+
+				//Add position item
+				QGraphicsLinSeqPositionItem pitem=pool.get(QGraphicsLinSeqPositionItem.class);
+				pitem.curline=curline;
+				pitem.currentY=y;
+				pitem.seq=seq;
+				pitem.view=this;
+				pool.add(pitem, items);
 				
-		selectionItems.clear();
+				placedLines.put(curline, items);
+				}
+		
+		firstPlacedLine=first;
+		lastPlacedLine=last;
 		updateSelectionGraphics();
-		}	
+		}
+
+	/**
+	 * Get the line at a y-position in the scene, or -1 if none
+	 */
+	public int getLineAt(double y)
+		{
+		if(y<lineY[0] || y>=lineY[numLines])
+			return -1;
+		int lo=0, hi=numLines-1;
+		while(lo<hi)
+			{
+			int mid=(lo+hi+1)/2;
+			if(lineY[mid]<=y)
+				lo=mid;
+			else
+				hi=mid-1;
+			}
+		return lo;
+		}
+
+	/**
+	 * Get the top of a line in the scene
+	 */
+	public int getLineY(int line)
+		{
+		return lineY[line];
+		}
+
+	/**
+	 * Get the top of a track on a line in the scene
+	 */
+	public int getTrackY(int line, LinTrack track)
+		{
+		int y=lineY[line];
+		int t=0;
+		for(LinTrack other:tracks)
+			{
+			if(other==track)
+				break;
+			y+=trackHeight[line][t++];
+			}
+		return y;
+		}
+
+	/**
+	 * Get the y-position of the sequence of a line in the scene
+	 */
+	public int getSequenceLineY(int line)
+		{
+		return getTrackY(line, trackSequence)+trackSequence.getSequenceY(line);
+		}
+
+	public int getNumLines()
+		{
+		return numLines;
+		}
+
+	/**
+	 * First line with graphics items in the scene
+	 */
+	public int getFirstPlacedLine()
+		{
+		return firstPlacedLine;
+		}
+
+	/**
+	 * Last line with graphics items in the scene
+	 */
+	public int getLastPlacedLine()
+		{
+		return lastPlacedLine;
+		}
 	
 	
 	/**
@@ -335,10 +698,10 @@ public class ViewLinearSequence extends QGraphicsView
 	private int mapXYtoPos(double x, double y)
 		{
 		//Find which line
-		ArrayList<Integer> sequenceLineY=trackSequence.sequenceLineY;
-		for(int i=0;i<sequenceLineY.size();i++)
+		int i=getLineAt(y);
+		if(i!=-1)
 			{
-			int y1=sequenceLineY.get(i);
+			int y1=getSequenceLineY(i);
 			int y2=y1+30; 
 			if(y>y1 && y<y2)
 				{
@@ -454,6 +817,17 @@ public class ViewLinearSequence extends QGraphicsView
 		{
 		// Call the subclass resize so the scrollbars are updated correctly
 		super.resizeEvent(event);
+		placeVisibleLines();
+		}
+
+	/**
+	 * Handle scrolling. Lines coming into view need graphics items
+	 */
+	@Override
+	protected void scrollContentsBy(int dx, int dy)
+		{
+		super.scrollContentsBy(dx, dy);
+		placeVisibleLines();
 		}
 
 
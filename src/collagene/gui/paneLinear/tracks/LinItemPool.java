@@ -0,0 +1,75 @@
+package collagene.gui.paneLinear.tracks;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.trolltech.qt.gui.QGraphicsItemInterface;
+import com.trolltech.qt.gui.QGraphicsScene;
+
+/**
+ *
+ * Graphics items of lines that went out of view, kept to be used again for lines coming into view.
+ * Items are taken from the pool, set up completely, and then added to the scene
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class LinItemPool
+	{
+	private QGraphicsScene scene;
+	private HashMap<Class<?>, LinkedList<QGraphicsItemInterface>> free=new HashMap<Class<?>, LinkedList<QGraphicsItemInterface>>();
+
+	public LinItemPool(QGraphicsScene scene)
+		{
+		this.scene=scene;
+		}
+
+	/**
+	 * Get an item of a given class, not yet in the scene. A reused item is moved back to the origin
+	 */
+	public <E extends QGraphicsItemInterface> E get(Class<E> c)
+		{
+		LinkedList<QGraphicsItemInterface> list=free.get(c);
+		if(list!=null && !list.isEmpty())
+			{
+			E it=c.cast(list.removeLast());
+			it.setPos(0, 0);
+			it.setZValue(0);
+			return it;
+			}
+		try
+			{
+			return c.getDeclaredConstructor().newInstance();
+			}
+		catch (Exception e)
+			{
+			throw new RuntimeException("Cannot create "+c.getName(), e);
+			}
+		}
+
+	/**
+	 * Add an item to the scene, remembering it as part of a line
+	 */
+	public void add(QGraphicsItemInterface it, List<QGraphicsItemInterface> lineItems)
+		{
+		scene.addItem(it);
+		lineItems.add(it);
+		}
+
+	/**
+	 * Remove the items of a line from the scene, keeping them for later
+	 */
+	public void recycle(List<QGraphicsItemInterface> lineItems)
+		{
+		for(QGraphicsItemInterface it:lineItems)
+			{
+			scene.removeItem(it);
+			LinkedList<QGraphicsItemInterface> list=free.get(it.getClass());
+			if(list==null)
+				free.put(it.getClass(), list=new LinkedList<QGraphicsItemInterface>());
+			list.add(it);
+			}
+		lineItems.clear();
+		}
+	}
@@ -1,24 +1,47 @@
 package collagene.gui.paneLinear.tracks;
 
 import java.util.Collection;
+import java.util.List;
 
 import com.trolltech.qt.core.QPointF;
 import com.trolltech.qt.gui.QContextMenuEvent;
-import com.trolltech.qt.gui.QGraphicsScene;
+import com.trolltech.qt.gui.QGraphicsItemInterface;
 import com.trolltech.qt.gui.QMouseEvent;
 
 /**
  *
- * One track in the linear sequence view
- * 
+ * One track in the linear sequence view.
+ *
+ * All lines are first laid out, which only decides where things go. Graphics items are then only placed for
+ * the lines that are in view. The layout of each line is kept until the view invalidates the line, so that
+ * only lines affected by a change are laid out again
+ *
  * @author Johan Henriksson
  *
  */
 public interface LinTrack
 	{
+	/**
+	 * Prepare for laying out all lines. Layouts kept from before are dropped
+	 */
 	public void initPlacing();
 
-	public int place(QGraphicsScene scene, int currentY, int cposLeft, int cposRight);
+	/**
+	 * Lay out one line, keeping the result until the line is laid out again. Positions are relative to the top
+	 * of this track on the line. Returns the height of the track on the line
+	 */
+	public int layout(int line, int cposLeft, int cposRight);
+
+	/**
+	 * Create the items of a line that has been laid out, with the top of this track at trackY
+	 */
+	public void place(LinItemPool pool, List<QGraphicsItemInterface> lineItems, int line, int trackY);
+
+	/**
+	 * Invalidate the lines of features that have changed since they were laid out, such as added, removed or
+	 * moved. The features as they are now are kept for the next time
+	 */
+	public void invalidateChanged();
 
 	public boolean mousePressEvent(QMouseEvent event, QPointF pos);
 
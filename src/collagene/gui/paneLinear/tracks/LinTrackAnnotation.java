@@ -1,10 +1,11 @@
 package collagene.gui.paneLinear.tracks;
 
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
-import collagene.gui.paneCircular.CircView;
 import collagene.gui.paneLinear.ViewLinearSequence;
 import collagene.gui.sequenceWindow.EventSelectedAnnotation;
 import collagene.gui.sequenceWindow.MenuAnnotation;
@@ -18,8 +19,10 @@ import com.trolltech.qt.core.Qt.BrushStyle;
 import com.trolltech.qt.gui.QBrush;
 import com.trolltech.qt.gui.QColor;
 import com.trolltech.qt.gui.QContextMenuEvent;
+import com.trolltech.qt.gui.QFont;
+import com.trolltech.qt.gui.QFontMetricsF;
+import com.trolltech.qt.gui.QGraphicsItemInterface;
 import com.trolltech.qt.gui.QGraphicsPolygonItem;
-import com.trolltech.qt.gui.QGraphicsScene;
 import com.trolltech.qt.gui.QGraphicsTextItem;
 import com.trolltech.qt.gui.QMouseEvent;
 import com.trolltech.qt.gui.QPen;
@@ -34,8 +37,49 @@ import com.trolltech.qt.gui.QPolygonF;
  */
 public class LinTrackAnnotation implements LinTrack
 	{
-	private HashMap<QRectF,SeqAnnotation> mapAnnotations=new HashMap<QRectF, SeqAnnotation>();
+	/**
+	 * An annotation laid out on a line. Positions are relative to the top of the track
+	 */
+	private static class PlacedAnnotation
+		{
+		SeqAnnotation annot;
+		QPolygonF poly;
+		double textX, textY;
+		QRectF rect;
+		}
+
+	/**
+	 * What is shown of an annotation, to find out if it has changed since laid out
+	 */
+	private static class LaidOutAnnotation
+		{
+		int from, to;
+		String name;
+		Orientation orientation;
+		int r, g, b;
 
+		public LaidOutAnnotation(SeqAnnotation annot)
+			{
+			from=annot.getFrom();
+			to=annot.getTo();
+			name=annot.name;
+			orientation=annot.orientation;
+			r=annot.color.r;
+			g=annot.color.g;
+			b=annot.color.b;
+			}
+
+		public boolean isSame(LaidOutAnnotation o)
+			{
+			return from==o.from && to==o.to && orientation==o.orientation && 
+					r==o.r && g==o.g && b==o.b && (name==null ? o.name==null : name.equals(o.name));
+			}
+		}
+
+	private ArrayList<ArrayList<PlacedAnnotation>> lines=new ArrayList<ArrayList<PlacedAnnotation>>();
+	private IdentityHashMap<SeqAnnotation, LaidOutAnnotation> laidOut=new IdentityHashMap<SeqAnnotation, LaidOutAnnotation>();
+	private QFont fontName;
+	private QFontMetricsF metricsName;
 	
 
 	ViewLinearSequence view;
@@ -46,132 +90,204 @@ public class LinTrackAnnotation implements LinTrack
 	
 	public void initPlacing()
 		{
-		mapAnnotations.clear();
+		lines.clear();
+		laidOut=getLaidOut();
+		fontName=new QFont();
+		metricsName=new QFontMetricsF(fontName);
 		}
 
 	
-	public int place(QGraphicsScene scene, int currentY, int cposLeft, int cposRight)
+	public int layout(int line, int cposLeft, int cposRight)
 		{
+		int currentY=0;
 		AnnotatedSequence seq=view.getSequence();
 		
-		LinkedList<QRectF> prevPlaced=new LinkedList<QRectF>();
+		ArrayList<PlacedAnnotation> prevPlaced=new ArrayList<PlacedAnnotation>();
 		
 		int maxannoth=0;
 		int oneannoth=20;
-		for(SeqAnnotation annot:seq.annotations)
+		for(SeqAnnotation annot:seq.getAnnotationIndex().query(cposLeft, Math.min(cposRight, seq.getLength())))
 			{
-			//Check if this feature is in range
-			if(annot.getTo()>cposLeft && annot.getFrom()<cposRight)
+			//Annotations wrapping around the 0-position are drawn as either the part before or after it
+			int annotFrom=annot.getFrom();
+			int annotTo=annot.getTo();
+			if(seq.isCircular && annotTo<annotFrom)
 				{
-				//Annotation should go beneath sequence, above position line
+				if(annotFrom<cposRight)
+					annotTo+=seq.getLength();
+				else
+					annotFrom-=seq.getLength();
+				}
+
+			//Annotation should go beneath sequence, above position line
 //				int currentAnnotationHeight=0;
 //				if(currentAnnotationHeight==-1)
 //					currentAnnotationHeight=0;  //write a better allocator!
-				int thisannoth=0;
-				
-				
-				int basey=currentY+thisannoth*oneannoth;
-				int polyyup=basey;
-				int polyydown=basey+18;
-				int polyymid=basey+9;
-				
-				QPolygonF poly=new QPolygonF();
-				
-				double frompos;
-				if(annot.getFrom()>=cposLeft)
-					{
-					//Annotation starts here
-					frompos=view.mapCharToX(annot.getFrom()-cposLeft);
-					poly.add(frompos, polyydown);
-					if(annot.orientation==Orientation.REVERSE)
-						poly.add(view.mapCharToX(annot.getFrom()-1-cposLeft)+5, polyymid);
-					poly.add(frompos, polyyup); 
-					}
-				else
-					{
-					//Annotation continued from before
-					frompos=view.mapCharToX(0);
-					poly.add(frompos, polyydown); 
-					poly.add(frompos-3, polyyup+7); 
-					poly.add(frompos+3, polyyup+3); 
-					poly.add(frompos, polyyup); 
-					}
-				
-				double topos;
-				if(annot.getTo()<=cposRight)
-					{
-					//Annotation ends here
-					topos=view.mapCharToX(annot.getTo()+1-cposLeft);
-					poly.add(topos, polyyup);  
-					if(annot.orientation==Orientation.FORWARD)
-						poly.add(view.mapCharToX(annot.getTo()+1-cposLeft)+5, polyymid);
-					poly.add(view.mapCharToX(annot.getTo()+1-cposLeft), polyydown); 
-					}
-				else
-					{
-					//Continues on next line
-					topos=view.mapCharToX(view.charsPerLine+1);
-					poly.add(topos, polyyup); 
-					poly.add(topos+3, polyyup+3); 
-					poly.add(topos-3, polyyup+7); 
-					poly.add(topos, polyydown); 
-					}
-				
-				QPen pen=new QPen();
-				pen.setColor(QColor.fromRgb(0,0,0));
-				
-				QBrush brush=new QBrush();
-				brush.setStyle(BrushStyle.SolidPattern);
-				brush.setColor(QColor.fromRgb(annot.color.r, annot.color.g, annot.color.b));
-				
-				QGraphicsPolygonItem pi=new QGraphicsPolygonItem();
-				pi.setPolygon(poly);
-				pi.setPen(pen);
-				pi.setBrush(brush);
-				
-				QGraphicsTextItem ti=new QGraphicsTextItem();
-				ti.setPlainText(annot.name);
-				ti.setPos(frompos+2, polyyup-2);
-
-				QRectF newrect=poly.boundingRect();
-				newrect.setRight(Math.max(newrect.right(),CircView.textBR(ti).right()));
-				
-				retry: for(;;)
+			int thisannoth=0;
+			
+			
+			int basey=currentY+thisannoth*oneannoth;
+			int polyyup=basey;
+			int polyydown=basey+18;
+			int polyymid=basey+9;
+			
+			QPolygonF poly=new QPolygonF();
+			
+			double frompos;
+			if(annotFrom>=cposLeft)
+				{
+				//Annotation starts here
+				frompos=view.mapCharToX(annotFrom-cposLeft);
+				poly.add(frompos, polyydown);
+				if(annot.orientation==Orientation.REVERSE)
+					poly.add(view.mapCharToX(annotFrom-1-cposLeft)+5, polyymid);
+				poly.add(frompos, polyyup); 
+				}
+			else
+				{
+				//Annotation continued from before
+				frompos=view.mapCharToX(0);
+				poly.add(frompos, polyydown); 
+				poly.add(frompos-3, polyyup+7); 
+				poly.add(frompos+3, polyyup+3); 
+				poly.add(frompos, polyyup); 
+				}
+			
+			double topos;
+			if(annotTo<=cposRight)
+				{
+				//Annotation ends here
+				topos=view.mapCharToX(annotTo+1-cposLeft);
+				poly.add(topos, polyyup);  
+				if(annot.orientation==Orientation.FORWARD)
+					poly.add(view.mapCharToX(annotTo+1-cposLeft)+5, polyymid);
+				poly.add(view.mapCharToX(annotTo+1-cposLeft), polyydown); 
+				}
+			else
+				{
+				//Continues on next line
+				topos=view.mapCharToX(view.charsPerLine+1);
+				poly.add(topos, polyyup); 
+				poly.add(topos+3, polyyup+3); 
+				poly.add(topos-3, polyyup+7); 
+				poly.add(topos, polyydown); 
+				}
+			
+			PlacedAnnotation pa=new PlacedAnnotation();
+			pa.annot=annot;
+			pa.poly=poly;
+			pa.textX=frompos+2;
+			pa.textY=polyyup-2;
+
+			//Cover the polygon and the name, as given by CircView.textBR
+			QRectF newrect=poly.boundingRect();
+			newrect.setRight(Math.max(newrect.right(),pa.textX+metricsName.width(annot.name)*1.1));
+			pa.rect=newrect;
+			
+			retry: for(;;)
+				{
+				for(PlacedAnnotation old:prevPlaced)
 					{
-					for(QRectF oldrect:prevPlaced)
+					if(old.rect.intersects(newrect))
 						{
-						if(oldrect.intersects(newrect))
-							{
-							thisannoth++;
-							pi.moveBy(0, oneannoth);
-							ti.moveBy(0, oneannoth);
-							newrect.adjust(0, oneannoth, 0, oneannoth);
-							continue retry;
-							}
+						thisannoth++;
+						poly.translate(0, oneannoth);
+						pa.textY+=oneannoth;
+						newrect.adjust(0, oneannoth, 0, oneannoth);
+						continue retry;
 						}
-					break;
 					}
-				maxannoth=Math.max(maxannoth,thisannoth+1);
-				mapAnnotations.put(newrect, annot);
-				prevPlaced.add(newrect);
-				
-				scene.addItem(pi);
-				scene.addItem(ti);
+				break;
 				}
+			maxannoth=Math.max(maxannoth,thisannoth+1);
+			prevPlaced.add(pa);
 			}
+
+		while(lines.size()<=line)
+			lines.add(null);
+		lines.set(line, prevPlaced);
+		
 		currentY+=(maxannoth)*oneannoth;
 		return currentY;
 		}
 
 
+	public void place(LinItemPool pool, List<QGraphicsItemInterface> lineItems, int line, int trackY)
+		{
+		QPen pen=new QPen();
+		pen.setColor(QColor.fromRgb(0,0,0));
+		for(PlacedAnnotation pa:lines.get(line))
+			{
+			QBrush brush=new QBrush();
+			brush.setStyle(BrushStyle.SolidPattern);
+			brush.setColor(QColor.fromRgb(pa.annot.color.r, pa.annot.color.g, pa.annot.color.b));
+			
+			QGraphicsPolygonItem pi=pool.get(QGraphicsPolygonItem.class);
+			pi.setPolygon(pa.poly);
+			pi.setPen(pen);
+			pi.setBrush(brush);
+			pi.setPos(0, trackY);
+			pool.add(pi, lineItems);
+			
+			QGraphicsTextItem ti=pool.get(QGraphicsTextItem.class);
+			ti.setFont(fontName);
+			ti.setDefaultTextColor(QColor.fromRgb(0,0,0));
+			ti.setPlainText(pa.annot.name);
+			ti.setPos(pa.textX, trackY+pa.textY);
+			pool.add(ti, lineItems);
+			}
+		}
+
+
+	/**
+	 * Get what is shown of each annotation
+	 */
+	private IdentityHashMap<SeqAnnotation, LaidOutAnnotation> getLaidOut()
+		{
+		IdentityHashMap<SeqAnnotation, LaidOutAnnotation> map=new IdentityHashMap<SeqAnnotation, LaidOutAnnotation>();
+		for(SeqAnnotation annot:view.getSequence().annotations)
+			map.put(annot, new LaidOutAnnotation(annot));
+		return map;
+		}
+
+	/**
+	 * Invalidate where annotations were and are, if added, removed, moved or renamed
+	 */
+	public void invalidateChanged()
+		{
+		IdentityHashMap<SeqAnnotation, LaidOutAnnotation> current=getLaidOut();
+		for(Map.Entry<SeqAnnotation, LaidOutAnnotation> e:current.entrySet())
+			{
+			LaidOutAnnotation now=e.getValue();
+			LaidOutAnnotation before=laidOut.remove(e.getKey());
+			if(before==null || !before.isSame(now))
+				{
+				view.invalidateRange(this, now.from, now.to);
+				if(before!=null)
+					view.invalidateRange(this, before.from, before.to);
+				}
+			}
+		
+		//Those left have been removed
+		for(LaidOutAnnotation before:laidOut.values())
+			view.invalidateRange(this, before.from, before.to);
+		laidOut=current;
+		}
+
+
 	/**
 	 * Find if cursor overlaps a future
 	 */
 	private SeqAnnotation getAnnotationAt(QPointF pos)
 		{
-		for(QRectF region:mapAnnotations.keySet())
-			if(region.contains(pos))
-				return mapAnnotations.get(region);
+		int line=view.getLineAt(pos.y());
+		if(line!=-1)
+			{
+			QPointF linepos=new QPointF(pos.x(), pos.y()-view.getTrackY(line, this));
+			for(PlacedAnnotation pa:lines.get(line))
+				if(pa.rect.contains(linepos))
+					return pa.annot;
+			}
 		return null;
 		}
 
@@ -1,8 +1,10 @@
 package collagene.gui.paneLinear.tracks;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import collagene.gui.paneLinear.ViewLinearSequence;
 import collagene.gui.primer.MenuPrimer;
@@ -15,7 +17,7 @@ import collagene.sequtil.NucleotideUtil;
 import com.trolltech.qt.core.QPointF;
 import com.trolltech.qt.core.QRectF;
 import com.trolltech.qt.gui.QContextMenuEvent;
-import com.trolltech.qt.gui.QGraphicsScene;
+import com.trolltech.qt.gui.QGraphicsItemInterface;
 import com.trolltech.qt.gui.QMouseEvent;
 
 /**
@@ -27,8 +29,18 @@ import com.trolltech.qt.gui.QMouseEvent;
  */
 public class LinTrackPrimer implements LinTrack
 	{
-	private HashMap<QRectF, Primer> primerPosition=new HashMap<QRectF, Primer>();
-	private LinkedList<EvalPrimer> listeval=new LinkedList<LinTrackPrimer.EvalPrimer>();
+	/**
+	 * A primer laid out on a line. Positions are relative to the top of the track
+	 */
+	private static class PlacedPrimer
+		{
+		EvalPrimer ep;
+		int y;
+		QRectF rect;
+		}
+
+	private ArrayList<ArrayList<PlacedPrimer>> lines=new ArrayList<ArrayList<PlacedPrimer>>();
+	private HashMap<Primer,EvalPrimer> mapeval=new HashMap<Primer, LinTrackPrimer.EvalPrimer>();
 
 	ViewLinearSequence view;
 	public LinTrackPrimer(ViewLinearSequence view)
@@ -39,7 +51,7 @@ public class LinTrackPrimer implements LinTrack
 	public void initPlacing()
 		{
 		AnnotatedSequence seq=view.getSequence();
-		primerPosition.clear();
+		lines.clear();
 		/*
 		if(seq.primers.isEmpty())
 			{
@@ -52,9 +64,44 @@ public class LinTrackPrimer implements LinTrack
 			}*/
 
 		//Pre-evaluate all primers
-		listeval.clear();
+		mapeval=getEvaluated();
+		}
+
+	/**
+	 * Evaluate all primers on the current sequence
+	 */
+	private HashMap<Primer,EvalPrimer> getEvaluated()
+		{
+		AnnotatedSequence seq=view.getSequence();
+		HashMap<Primer,EvalPrimer> map=new HashMap<Primer, EvalPrimer>();
 		for(Primer p:seq.primers)
-			listeval.add(new EvalPrimer(p, seq));
+			map.put(p, new EvalPrimer(p, seq));
+		return map;
+		}
+
+	/**
+	 * Invalidate where primers were and are, if added, removed, moved or changed. Primers are evaluated again,
+	 * as they also show how they match the sequence
+	 */
+	public void invalidateChanged()
+		{
+		HashMap<Primer,EvalPrimer> current=getEvaluated();
+		for(Map.Entry<Primer,EvalPrimer> e:current.entrySet())
+			{
+			EvalPrimer now=e.getValue();
+			EvalPrimer before=mapeval.remove(e.getKey());
+			if(before==null || !before.isSame(now))
+				{
+				view.invalidateRange(this, now.r.from, now.r.to);
+				if(before!=null)
+					view.invalidateRange(this, before.r.from, before.r.to);
+				}
+			}
+		
+		//Those left have been removed
+		for(EvalPrimer before:mapeval.values())
+			view.invalidateRange(this, before.r.from, before.r.to);
+		mapeval=current;
 		}
 	
 	
@@ -67,11 +114,13 @@ public class LinTrackPrimer implements LinTrack
 		{
 		String corrsequence;
 		String rotsequence;
+		String name;
 		Primer p;
 		SequenceRange r;
 		public EvalPrimer(Primer p, AnnotatedSequence seq)
 			{
 			this.p=p;
+			name=p.name;
 			
 			r=p.getRange();
 			corrsequence=seq.getSequence(r);
@@ -103,6 +152,15 @@ public class LinTrackPrimer implements LinTrack
 			{
 			return r.to;
 			}
+
+		/**
+		 * Check if the primer is shown the same way as another evaluation of it
+		 */
+		public boolean isSame(EvalPrimer o)
+			{
+			return r.from==o.r.from && r.to==o.r.to && corrsequence.equals(o.corrsequence) && 
+					rotsequence.equals(o.rotsequence) && (name==null ? o.name==null : name.equals(o.name));
+			}
 		
 		}
 	
@@ -111,58 +169,83 @@ public class LinTrackPrimer implements LinTrack
 	
 
 	/**
-	 * Place primers
+	 * Find room for the primers of a line
 	 */
-	public int place(QGraphicsScene scene, int currentY, int cposLeft, int cposRight)
+	public int layout(int line, int cposLeft, int cposRight)
 		{
+		int currentY=0;
 		AnnotatedSequence seq=view.getSequence();
-		LinkedList<QRectF> prevprimerplaced=new LinkedList<QRectF>();
+		ArrayList<PlacedPrimer> placed=new ArrayList<PlacedPrimer>();
 		double maxy=currentY;
-		for(EvalPrimer ep:listeval)
+		for(Primer p:seq.getPrimerIndex().query(cposLeft, Math.min(cposRight, seq.getLength())))
 			{
-			if(ep.overlaps(seq, cposLeft, cposRight))
+			EvalPrimer ep=mapeval.get(p);
+			if(ep!=null)
 				{
-				QGraphicsLinPrimerItem it=new QGraphicsLinPrimerItem();
-				it.cposLeft=cposLeft;
-				it.charHeight=Math.max(5,view.charWidth*1.7); 
-				it.currentY=currentY;
-				it.view=view;
-				it.ep=ep;
-				scene.addItem(it);
+				PlacedPrimer pp=new PlacedPrimer();
+				pp.ep=ep;
+				pp.y=currentY;
 
 				//Find suitable height for primer
-				QRectF thisbb=it.boundingRect();
+				QRectF thisbb=QGraphicsLinPrimerItem.getBoundingRect(view, ep, cposLeft, currentY);
 				retryplace: for(;;)
 					{
-					for(QRectF oldr:prevprimerplaced)
+					for(PlacedPrimer old:placed)
 						{
-						if(oldr.intersects(thisbb))
+						if(old.rect.intersects(thisbb))
 							{
-							it.currentY+=thisbb.height();
+							pp.y+=thisbb.height();
 							thisbb.adjust(0, thisbb.height(), 0, thisbb.height());
 							continue retryplace;
 							}
 						}
-					prevprimerplaced.add(thisbb);
 					break;
 					}
+				pp.rect=thisbb;
+				placed.add(pp);
 				if(thisbb.bottom()>maxy)
 					maxy=thisbb.bottom();
-				primerPosition.put(thisbb, ep.p);
 				}
 			}
+
+		while(lines.size()<=line)
+			lines.add(null);
+		lines.set(line, placed);
 		return (int)maxy;
 		}
 
+	/**
+	 * Place primers
+	 */
+	public void place(LinItemPool pool, List<QGraphicsItemInterface> lineItems, int line, int trackY)
+		{
+		int cposLeft=line*view.charsPerLine;
+		for(PlacedPrimer pp:lines.get(line))
+			{
+			QGraphicsLinPrimerItem it=pool.get(QGraphicsLinPrimerItem.class);
+			it.cposLeft=cposLeft;
+			it.charHeight=Math.max(5,view.charWidth*1.7); 
+			it.currentY=trackY+pp.y;
+			it.view=view;
+			it.ep=pp.ep;
+			pool.add(it, lineItems);
+			}
+		}
+
 
 	/**
 	 * Get primer at location
 	 */
 	private Primer getPrimerAt(QPointF pos)
 		{
-		for(QRectF bb:primerPosition.keySet())
-			if(bb.contains(pos))
-				return primerPosition.get(bb);
+		int line=view.getLineAt(pos.y());
+		if(line!=-1)
+			{
+			QPointF linepos=new QPointF(pos.x(), pos.y()-view.getTrackY(line, this));
+			for(PlacedPrimer pp:lines.get(line))
+				if(pp.rect.contains(linepos))
+					return pp.ep.p;
+			}
 		return null;
 		}
 
@@ -5,9 +5,11 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
-import collagene.gui.paneCircular.CircView;
 import collagene.gui.paneLinear.ViewLinearSequence;
 import collagene.gui.paneRestriction.EventSelectedRestrictionEnzyme;
 import collagene.gui.qt.QTutil;
@@ -24,6 +26,8 @@ import com.trolltech.qt.gui.QBrush;
 import com.trolltech.qt.gui.QColor;
 import com.trolltech.qt.gui.QContextMenuEvent;
 import com.trolltech.qt.gui.QFont;
+import com.trolltech.qt.gui.QFontMetricsF;
+import com.trolltech.qt.gui.QGraphicsItemInterface;
 import com.trolltech.qt.gui.QGraphicsLineItem;
 import com.trolltech.qt.gui.QGraphicsRectItem;
 import com.trolltech.qt.gui.QGraphicsScene;
@@ -40,10 +44,26 @@ import com.trolltech.qt.gui.QPen;
  */
 public class LinTrackSequence implements LinTrack
 	{
-	public ArrayList<Integer> sequenceLineY=new ArrayList<Integer>();
+	/**
+	 * Restriction site labels and sequence of one line. Positions are relative to the top of the track
+	 */
+	private static class LineLayout
+		{
+		ArrayList<RestrictionSite> sites=new ArrayList<RestrictionSite>();
+		ArrayList<QRectF> siteRects=new ArrayList<QRectF>();
+		int sequenceY;
+		int cposLeft;
+		}
+
+	private static final int siteHeightPx=20;
+	private static final int siteDx=-2;
+
+	private ArrayList<LineLayout> lines=new ArrayList<LineLayout>();
+
+	//For each enzyme, if its number of sites was allowed by the settings when laid out
+	private HashMap<RestrictionEnzyme, Boolean> allowedEnzymes=new HashMap<RestrictionEnzyme, Boolean>();
 
 	private RestrictionSite hoveringRestrictionSite=null;
-	private HashMap<RestrictionSite, QRectF> resSitePosition=new HashMap<RestrictionSite, QRectF>();
 	public EventSelectedRestrictionEnzyme selectedEnz=new EventSelectedRestrictionEnzyme();
 
 	double charHeight;
@@ -51,6 +71,10 @@ public class LinTrackSequence implements LinTrack
 	public int currentReadingFrame=0;
 	public boolean showProteinTranslation=true;
 
+	private QFont fontRestriction;
+	private QFontMetricsF metricsRestriction;
+	private QFont fontSequence;
+	private QPen penSequence;
 	
 	
 	public LinTrackSequence(ViewLinearSequence view)
@@ -60,40 +84,39 @@ public class LinTrackSequence implements LinTrack
 	
 	public void initPlacing()
 		{
-		sequenceLineY.clear();
-		resSitePosition.clear();
-		}
-	
-	public int place(QGraphicsScene scene, int currentY, int cposLeft, int cposRight)
-		{
-		AnnotatedSequence seq=view.getSequence();
-		
-		QFont fontRestriction=new QFont();
+		lines.clear();
+		allowedEnzymes=getAllowedEnzymes();
+
+		fontRestriction=new QFont();
 		fontRestriction.setPointSize(10);
+		metricsRestriction=new QFontMetricsF(fontRestriction);
 
-		QPen penSequence=new QPen();
+		penSequence=new QPen();
 		penSequence.setColor(new QColor(100,100,100));
 		penSequence.setWidth(2);
 
 		//Update font choices
-		QFont fontSequence=new QFont();
+		fontSequence=new QFont();
 		fontSequence.setFamily("Courier");
 		fontSequence.setPointSizeF(view.charWidth);
 		charHeight=fontSequence.pointSizeF()*2;
-
+		}
+	
+	public int layout(int line, int cposLeft, int cposRight)
+		{
+		int currentY=0;
+		AnnotatedSequence seq=view.getSequence();
+		LineLayout ll=new LineLayout();
+		ll.cposLeft=cposLeft;
+		
 		//////////////////////////////////////////////// Place enzymes
 		
 		//Find all relevant restriction enzymes, and sort by position
 		LinkedList<RestrictionSite> rsites=new LinkedList<RestrictionSite>();
-		for(RestrictionEnzyme enz:seq.restrictionSites.keySet())
+		for(RestrictionSite site:seq.getRestrictionSiteIndex().query(cposLeft, Math.min(cposRight+1, seq.getLength())))
 			{
-			Collection<RestrictionSite> sites=seq.restrictionSites.get(enz);
-			if(view.settingsRS.allowsRestrictionSiteCount(enz,sites.size()) || selectedEnz.enzymes.contains(enz))
-				{
-				for(RestrictionSite site:sites)
-					if(site.cuttingUpperPos>=cposLeft && site.cuttingUpperPos<=cposRight)
-						rsites.add(site);
-				}
+			if(isShown(seq, site))
+				rsites.add(site);
 			}
 		Collections.sort(rsites,new Comparator<RestrictionSite>()
 			{
@@ -103,73 +126,91 @@ public class LinTrackSequence implements LinTrack
 				}
 			});
 		
-		//Render the enzymes
-		int siteHeightPx=20;
+		//Find room for the name of each enzyme
 		int maxSiteHeight=0;
-		int siteDx=-2;
-		HashMap<RestrictionSite, QRectF> revsitePositionPerLine=new HashMap<RestrictionSite, QRectF>();
 		for(RestrictionSite site:rsites)
 			{
-			QGraphicsTextItem it=new QGraphicsTextItem();
-			it.setFont(fontRestriction);
-			if(selectedEnz.enzymes.contains(site.enzyme))
-				it.setDefaultTextColor(QColor.fromRgb(255,0,0));
-			else
-				it.setDefaultTextColor(QColor.fromRgb(0,0,0));
-			it.setPlainText(site.enzyme.name);
-			it.setPos(view.mapCharToX(site.cuttingUpperPos-cposLeft)+siteDx, currentY);
+			//Same region as CircView.textBR, with some extra room to the right
+			QRectF thisbr=new QRectF(
+					view.mapCharToX(site.cuttingUpperPos-cposLeft)+siteDx, currentY, 
+					metricsRestriction.width(site.enzyme.name)*1.1+40, metricsRestriction.height());
 			
 			//If it overlaps with other sites, move it down
-			QRectF thisbr=CircView.textBR(it);
-			thisbr.adjust(0, 0, 40, 0);
 			int thish=1;
 			sitesretry: for(;;)
 				{
-				for(QRectF otherbr:revsitePositionPerLine.values())
+				for(QRectF otherbr:ll.siteRects)
 					{
 					if(otherbr.intersects(thisbr))
 						{
 						thish++;
-						it.setY(it.y()+siteHeightPx);
-						thisbr=CircView.textBR(it);
-						thisbr.adjust(0, 0, 40, 0);
+						thisbr.translate(0, siteHeightPx);
 						continue sitesretry;
 						}
 					}
 				break;
 				}
-			scene.addItem(it);
-			resSitePosition.put(site,thisbr);
-			revsitePositionPerLine.put(site,thisbr);
+			ll.sites.add(site);
+			ll.siteRects.add(thisbr);
 			maxSiteHeight=Math.max(maxSiteHeight,thish);
 			}
 
 		//Allocate space for the restriction sites
 		currentY+=maxSiteHeight*siteHeightPx+2;			
-		sequenceLineY.add(currentY); //reference to sequence line
+		ll.sequenceY=currentY; //reference to sequence line
+
+		while(lines.size()<=line)
+			lines.add(null);
+		lines.set(line, ll);
+		
+		currentY+=QGraphicsLinSequenceItem.getHeight(charHeight, showProteinTranslation);
+		return currentY;
+		}
 
-		//Draw arrows down onto sequence
-		for(QRectF r:revsitePositionPerLine.values())
+	public void place(LinItemPool pool, List<QGraphicsItemInterface> lineItems, int line, int trackY)
+		{
+		LineLayout ll=lines.get(line);
+		for(int i=0;i<ll.sites.size();i++)
 			{
-			QGraphicsLineItem li=new QGraphicsLineItem();
+			RestrictionSite site=ll.sites.get(i);
+			QRectF r=ll.siteRects.get(i);
+			
+			//Name of the enzyme
+			QGraphicsTextItem it=pool.get(QGraphicsTextItem.class);
+			it.setFont(fontRestriction);
+			if(selectedEnz.enzymes.contains(site.enzyme))
+				it.setDefaultTextColor(QColor.fromRgb(255,0,0));
+			else
+				it.setDefaultTextColor(QColor.fromRgb(0,0,0));
+			it.setPlainText(site.enzyme.name);
+			it.setPos(r.left(), trackY+r.top());
+			pool.add(it, lineItems);
+
+			//Draw arrow down onto sequence
+			QGraphicsLineItem li=pool.get(QGraphicsLineItem.class);
 			li.setPen(penSequence);
-			li.setLine(r.left()-siteDx,r.bottom(),r.left()-siteDx,currentY);
-			scene.addItem(li);
+			li.setLine(r.left()-siteDx,trackY+r.bottom(),r.left()-siteDx,trackY+ll.sequenceY);
+			pool.add(li, lineItems);
 			}
 
 		//Draw the sequence text
-		QGraphicsLinSequenceItem titem=new QGraphicsLinSequenceItem();
-		//titem.curline=curline;
-		titem.cposLeft=cposLeft;
-		titem.currentY=currentY;
-		titem.seq=seq;
+		QGraphicsLinSequenceItem titem=pool.get(QGraphicsLinSequenceItem.class);
+		titem.cposLeft=ll.cposLeft;
+		titem.currentY=trackY+ll.sequenceY;
+		titem.seq=view.getSequence();
 		titem.view=view;
 		titem.charHeight=charHeight;
 		titem.fontSequence=fontSequence;
 		titem.track=this;
-		scene.addItem(titem);
-		currentY+=titem.boundingRect().height();
-		return currentY;
+		pool.add(titem, lineItems);
+		}
+
+	/**
+	 * Get the y-position of the sequence, relative to the top of the track
+	 */
+	public int getSequenceY(int line)
+		{
+		return lines.get(line).sequenceY;
 		}
 
 
@@ -220,13 +261,13 @@ public class LinTrackSequence implements LinTrack
 			penSelect.setColor(new QColor(200,100,200));
 			penSelect.setWidth(2);
 
-			//this could be made a lot more efficient
-			for(int curline=0;curline<sequenceLineY.size();curline++)
+			//Only lines in the scene need the selection
+			for(int curline=view.getFirstPlacedLine();curline<=view.getLastPlacedLine();curline++)
 				{
 				int cposLeft=curline*charsPerLine;
 				int cposRight=(curline+1)*charsPerLine;
 
-				int lyUpper=sequenceLineY.get(curline)+3; 
+				int lyUpper=view.getSequenceLineY(curline)+3; 
 				int lyLower=lyUpper+3;
 
 				//From-|
@@ -336,7 +377,7 @@ public class LinTrackSequence implements LinTrack
 				int lineIndex=hoveringRestrictionSite.cuttingUpperPos/charsPerLine;
 				int cposLeft=lineIndex*charsPerLine;
 				double localUpper=view.mapCharToX(hoveringRestrictionSite.cuttingUpperPos-cposLeft);
-				double y1=sequenceLineY.get(lineIndex);
+				double y1=view.getSequenceLineY(lineIndex);
 				double y2=y1+charHeight+4;
 
 				QGraphicsLineItem liUpper=new QGraphicsLineItem();
@@ -365,7 +406,7 @@ public class LinTrackSequence implements LinTrack
 				int lineIndex=hoveringRestrictionSite.cuttingLowerPos/charsPerLine;
 				int cposLeft=lineIndex*charsPerLine;
 				double localLower=view.mapCharToX(hoveringRestrictionSite.cuttingLowerPos-cposLeft);
-				double y1=sequenceLineY.get(lineIndex);
+				double y1=view.getSequenceLineY(lineIndex);
 				double y2=y1+charHeight+4;
 				double y3=y1+charHeight*2;
 
@@ -396,7 +437,7 @@ public class LinTrackSequence implements LinTrack
 				int cposLeft=curline*charsPerLine;
 				double local1=view.mapCharToX(segment.from-cposLeft);
 				double local2=view.mapCharToX(segment.to-cposLeft);
-				double y1=sequenceLineY.get(curline);
+				double y1=view.getSequenceLineY(curline);
 				double y3=y1+charHeight*2;
 				
 				QGraphicsRectItem rect=new QGraphicsRectItem();
@@ -414,11 +455,14 @@ public class LinTrackSequence implements LinTrack
 
 	private RestrictionSite getRestrictionSiteAt(QPointF pos)
 		{
-		for(RestrictionSite s:resSitePosition.keySet())
+		int line=view.getLineAt(pos.y());
+		if(line!=-1)
 			{
-			QRectF r=resSitePosition.get(s);
-			if(r.contains(pos))
-				return s;
+			LineLayout ll=lines.get(line);
+			QPointF linepos=new QPointF(pos.x(), pos.y()-view.getTrackY(line, this));
+			for(int i=0;i<ll.sites.size();i++)
+				if(ll.siteRects.get(i).contains(linepos))
+					return ll.sites.get(i);
 			}
 		return null;
 		}
@@ -433,6 +477,66 @@ public class LinTrackSequence implements LinTrack
 			view.updateSelectionGraphics();
 		}
 
+	/**
+	 * Invalidate the lines with sites of the given enzymes
+	 */
+	private void invalidateSites(Collection<RestrictionEnzyme> enzymes)
+		{
+		AnnotatedSequence seq=view.getSequence();
+		for(RestrictionEnzyme enz:enzymes)
+			{
+			LinkedList<RestrictionSite> sites=seq.getRestrictionSitesFor(enz);
+			if(sites!=null)
+				for(RestrictionSite site:sites)
+					if(site.cuttingUpperPos!=null)
+						invalidateSite(site.cuttingUpperPos);
+			}
+		}
+
+	/**
+	 * Check if a site is shown with the current settings
+	 */
+	private boolean isShown(AnnotatedSequence seq, RestrictionSite site)
+		{
+		RestrictionEnzyme enz=site.enzyme;
+		return (!site.isBlocked && view.settingsRS.allowsRestrictionSiteCount(enz,seq.getNumCuttingSites(enz))) || selectedEnz.enzymes.contains(enz);
+		}
+
+	/**
+	 * Get, for each enzyme with sites, if its number of cutting sites is allowed by the settings
+	 */
+	private HashMap<RestrictionEnzyme, Boolean> getAllowedEnzymes()
+		{
+		AnnotatedSequence seq=view.getSequence();
+		HashMap<RestrictionEnzyme, Boolean> allowed=new HashMap<RestrictionEnzyme, Boolean>();
+		for(RestrictionEnzyme enz:seq.restrictionSites.keySet())
+			allowed.put(enz, view.settingsRS.allowsRestrictionSiteCount(enz, seq.getNumCuttingSites(enz)));
+		return allowed;
+		}
+
+	/**
+	 * Invalidate the lines with sites of enzymes that are shown or hidden since laid out, such as by new settings
+	 * or by an edit changing the number of sites. Sites moved by an edit are invalidated by the view
+	 */
+	public void invalidateChanged()
+		{
+		HashMap<RestrictionEnzyme, Boolean> current=getAllowedEnzymes();
+		LinkedList<RestrictionEnzyme> changed=new LinkedList<RestrictionEnzyme>();
+		for(Map.Entry<RestrictionEnzyme, Boolean> e:current.entrySet())
+			if(!e.getValue().equals(allowedEnzymes.get(e.getKey())))
+				changed.add(e.getKey());
+		invalidateSites(changed);
+		allowedEnzymes=current;
+		}
+
+	/**
+	 * Invalidate the lines of a site. A site at the start of a line is also shown at the end of the line before
+	 */
+	private void invalidateSite(int cuttingUpperPos)
+		{
+		view.invalidateLines(this, (cuttingUpperPos-1)/view.charsPerLine, cuttingUpperPos/view.charsPerLine);
+		}
+
 	@Override
 	public void handleEvent(Object ob)
 		{
@@ -441,15 +545,21 @@ public class LinTrackSequence implements LinTrack
 			SeqAnnotation annot=((EventSelectedAnnotation)ob).annot;
 			if(annot!=null)
 				{
+				//The reading frame only changes how the translation is painted
 				currentReadingFrame=annot.getFrame();
-				view.buildSceneFromDoc();
+				view.scene().update();
 				}
 			}		
 		else if(ob instanceof EventSelectedRestrictionEnzyme)
 			{
+			//Both previously and newly selected enzymes change color, and may be shown or hidden.
+			//The previous selection may already include the new enzymes, so the difference is not enough
 			EventSelectedRestrictionEnzyme enz=(EventSelectedRestrictionEnzyme)ob;
+			HashSet<RestrictionEnzyme> changed=new HashSet<RestrictionEnzyme>(selectedEnz.enzymes);
+			changed.addAll(enz.enzymes);
 			selectedEnz=enz;
-			view.buildSceneFromDoc();
+			invalidateSites(changed);
+			view.updateInvalidatedLines();
 			}
 		}
 	}
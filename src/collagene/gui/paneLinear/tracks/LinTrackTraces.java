@@ -1,7 +1,11 @@
 package collagene.gui.paneLinear.tracks;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 import collagene.gui.paneLinear.ViewLinearSequence;
 import collagene.seq.AnnotatedSequence;
@@ -9,7 +13,7 @@ import collagene.seq.AnnotatedSequence;
 import com.trolltech.qt.core.QPointF;
 import com.trolltech.qt.core.QRectF;
 import com.trolltech.qt.gui.QContextMenuEvent;
-import com.trolltech.qt.gui.QGraphicsScene;
+import com.trolltech.qt.gui.QGraphicsItemInterface;
 import com.trolltech.qt.gui.QMouseEvent;
 
 /**
@@ -22,6 +26,10 @@ import com.trolltech.qt.gui.QMouseEvent;
 public class LinTrackTraces implements LinTrack
 	{
 	private HashMap<QRectF,PlacedTrace> mapAnnotations=new HashMap<QRectF, PlacedTrace>();
+	private ArrayList<ArrayList<PlacedTrace>> lines=new ArrayList<ArrayList<PlacedTrace>>();
+
+	//Start and end of each trace as laid out
+	private IdentityHashMap<PlacedTrace, int[]> laidOut=new IdentityHashMap<PlacedTrace, int[]>();
 
 	
 
@@ -34,11 +42,49 @@ public class LinTrackTraces implements LinTrack
 	public void initPlacing()
 		{
 		mapAnnotations.clear();
+		lines.clear();
+		laidOut=getLaidOut();
+		}
+
+	/**
+	 * Get the start and end of each trace
+	 */
+	private IdentityHashMap<PlacedTrace, int[]> getLaidOut()
+		{
+		IdentityHashMap<PlacedTrace, int[]> map=new IdentityHashMap<PlacedTrace, int[]>();
+		for(PlacedTrace trace:view.getSequence().traces)
+			map.put(trace, new int[]{trace.getFrom(), trace.getTo()});
+		return map;
+		}
+
+	/**
+	 * Invalidate where traces were and are, if added, removed or moved
+	 */
+	public void invalidateChanged()
+		{
+		IdentityHashMap<PlacedTrace, int[]> current=getLaidOut();
+		for(Map.Entry<PlacedTrace, int[]> e:current.entrySet())
+			{
+			int[] now=e.getValue();
+			int[] before=laidOut.remove(e.getKey());
+			if(before==null || before[0]!=now[0] || before[1]!=now[1])
+				{
+				view.invalidateRange(this, now[0], now[1]);
+				if(before!=null)
+					view.invalidateRange(this, before[0], before[1]);
+				}
+			}
+		
+		//Those left have been removed
+		for(int[] before:laidOut.values())
+			view.invalidateRange(this, before[0], before[1]);
+		laidOut=current;
 		}
 
 	
-	public int place(QGraphicsScene scene, int currentY, int cposLeft, int cposRight)
+	public int layout(int line, int cposLeft, int cposRight)
 		{
+		int currentY=0;
 		AnnotatedSequence seq=view.getSequence();
 		/*
 		try
@@ -59,22 +105,14 @@ public class LinTrackTraces implements LinTrack
 		//LinkedList<QRectF> prevPlaced=new LinkedList<QRectF>();
 		
 		int lasty=currentY;
+		ArrayList<PlacedTrace> placed=new ArrayList<PlacedTrace>();
 		for(PlacedTrace annot:seq.traces)
 			{
 			//Check if this feature is in range
 			if(annot.getTo()>cposLeft && annot.getFrom()<cposRight)
 				{
-				QGraphicsLinTraceItem item=new QGraphicsLinTraceItem();
-				item.charHeight=17; //TODo
-				item.cposLeft=cposLeft;
-				item.currentY=currentY;
-				item.seq=seq;
-				item.trace=annot;
-				item.view=view;
-				item.track=this;
-				
-				
-				lasty=Math.max(lasty, (int)item.boundingRect().bottom());
+				placed.add(annot);
+				lasty=Math.max(lasty, currentY+QGraphicsLinTraceItem.height);
 				
 				/*
 
@@ -100,13 +138,32 @@ public class LinTrackTraces implements LinTrack
 				mapAnnotations.put(newrect, annot);
 				prevPlaced.add(newrect);
 				*/
-				scene.addItem(item);
 				}
 			}
+		while(lines.size()<=line)
+			lines.add(null);
+		lines.set(line, placed);
 //		currentY+=(maxannoth)*oneannoth;
 		return lasty;//currentY+250; //TODO
 		}
 
+	
+	public void place(LinItemPool pool, List<QGraphicsItemInterface> lineItems, int line, int trackY)
+		{
+		for(PlacedTrace annot:lines.get(line))
+			{
+			QGraphicsLinTraceItem item=pool.get(QGraphicsLinTraceItem.class);
+			item.charHeight=17; //TODo
+			item.cposLeft=line*view.charsPerLine;
+			item.currentY=trackY;
+			item.seq=view.getSequence();
+			item.trace=annot;
+			item.view=view;
+			item.track=this;
+			pool.add(item, lineItems);
+			}
+		}
+
 
 	/**
 	 * Find if cursor overlaps a future
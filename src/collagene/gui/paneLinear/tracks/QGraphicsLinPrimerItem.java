@@ -47,7 +47,7 @@ public class QGraphicsLinPrimerItem extends QGraphicsRectItem
 		}
 
 	
-	private int getRenderFrom()
+	private static int getRenderFrom(EvalPrimer ep, int cposLeft)
 		{
 		if(ep.getLeftAnchor()>=cposLeft)
 			return 0;
@@ -55,7 +55,7 @@ public class QGraphicsLinPrimerItem extends QGraphicsRectItem
 			return cposLeft-ep.getLeftAnchor();
 		}
 
-	private int getRenderTo()
+	private static int getRenderTo(ViewLinearSequence view, EvalPrimer ep, int cposLeft)
 		{
 		int cposRight=cposLeft+view.charsPerLine;
 		if(ep.getRightAnchor()<=cposRight)
@@ -65,7 +65,7 @@ public class QGraphicsLinPrimerItem extends QGraphicsRectItem
 			if(ep.getLeftAnchor()>=cposLeft)
 				return cposRight-ep.getLeftAnchor();  
 			else
-				return getRenderFrom()+view.charsPerLine;
+				return getRenderFrom(ep, cposLeft)+view.charsPerLine;
 			}
 		}
 	
@@ -87,8 +87,8 @@ public class QGraphicsLinPrimerItem extends QGraphicsRectItem
 		penBaseline.setColor(QColor.lightGray);
 
 		//Figure out range to render (in reversed primer coordinates)
-		int renderfrom=getRenderFrom();
-		int renderto=getRenderTo();
+		int renderfrom=getRenderFrom(ep, cposLeft);
+		int renderto=getRenderTo(view, ep, cposLeft);
 		
 		//Draw polygon surrounding
 		QBrush br=new QBrush(QColor.lightGray);
@@ -201,11 +201,13 @@ public class QGraphicsLinPrimerItem extends QGraphicsRectItem
 
 
 
-	@Override
-	public QRectF boundingRect()
+	/**
+	 * Bounding box of a primer on a line, without having to create the item
+	 */
+	public static QRectF getBoundingRect(ViewLinearSequence view, EvalPrimer ep, int cposLeft, int currentY)
 		{
-		int renderfrom=getRenderFrom();
-		int renderto=getRenderTo();
+		int renderfrom=getRenderFrom(ep, cposLeft);
+		int renderto=getRenderTo(view, ep, cposLeft);
 
 		int cposFrom=ep.getLeftAnchor() + renderfrom - cposLeft;
 		int cposTo=ep.getLeftAnchor() + renderto - cposLeft;
@@ -220,4 +222,10 @@ public class QGraphicsLinPrimerItem extends QGraphicsRectItem
 
 		return new QRectF(x-delta,currentY, x2-x+delta*2, primerh); ///////////// note, primer height not computed!
 		}
+
+	@Override
+	public QRectF boundingRect()
+		{
+		return getBoundingRect(view, ep, cposLeft, currentY);
+		}
 	}
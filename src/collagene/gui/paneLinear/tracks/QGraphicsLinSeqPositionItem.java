@@ -28,7 +28,7 @@ public class QGraphicsLinSeqPositionItem extends QGraphicsRectItem
 	public int curline;
 	public ViewLinearSequence view;
 
-	int fontsize=8;
+	static int fontsize=8;
 	
 	public double fonth()
 		{
@@ -90,12 +90,20 @@ public class QGraphicsLinSeqPositionItem extends QGraphicsRectItem
 		
 		}
 
+	/**
+	 * Height of the ruler, without having to create it
+	 */
+	public static int getHeight(ViewLinearSequence view)
+		{
+		if(view.settingsSeq.showPositionRuler)
+			return 10+fontsize-1;
+		else
+			return 0;
+		}
+
 	@Override
 	public QRectF boundingRect()
 		{
-		double h=0;
-		if(view.settingsSeq.showPositionRuler)
-			h+=10+fonth();
-		return new QRectF(0,currentY, 100000, h);
+		return new QRectF(0,currentY, 100000, getHeight(view));
 		}
 	}
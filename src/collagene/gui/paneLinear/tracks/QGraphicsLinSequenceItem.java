@@ -71,8 +71,8 @@ public class QGraphicsLinSequenceItem extends QGraphicsRectItem
 			int cpos=cposLeft + i;
 			if(cpos>=seq.getLength())
 				break;
-			char letterUpper=seq.getSequence().charAt(cpos);
-			char letterLower=seq.getSequenceLower().charAt(cpos);
+			char letterUpper=seq.getPackedSequence().charAt(cpos);
+			char letterLower=seq.getPackedSequenceLower().charAt(cpos);
 
 			painter.setPen(penOK);
 			painter.setFont(fontSequence);
@@ -133,12 +133,21 @@ public class QGraphicsLinSequenceItem extends QGraphicsRectItem
 			}
 		}
 
+	/**
+	 * Height of a line, without having to create it
+	 */
+	public static double getHeight(double charHeight, boolean showProteinTranslation)
+		{
+		double fonth=charHeight-1;
+		double h=fonth*2;
+		if(showProteinTranslation)
+			h+=fonth*3+5;
+		return h;
+		}
+
 	@Override
 	public QRectF boundingRect()
 		{
-		double h=fonth()*2;
-		if(track.showProteinTranslation)
-			h+=fonth()*3+5;
-		return new QRectF(0,currentY, 100000, h);
+		return new QRectF(0,currentY, 100000, getHeight(charHeight, track.showProteinTranslation));
 		}
 	}
@@ -189,10 +189,14 @@ public class QGraphicsLinTraceItem extends QGraphicsRectItem
 
 
 
+	/**
+	 * Height of a trace
+	 */
+	public static final int height=250;
+
 	@Override
 	public QRectF boundingRect()
 		{
-		double h=250;//fonth()*2;
-		return new QRectF(0,currentY, 100000, h);
+		return new QRectF(0,currentY, 100000, height);
 		}
 	}
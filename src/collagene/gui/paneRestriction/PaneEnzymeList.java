@@ -93,17 +93,16 @@ public class PaneEnzymeList extends QWidget
 		
 		for(RestrictionEnzyme enz:projwindow.restrictionEnzymes.enzymes)
 			{
-			LinkedList<RestrictionSite> sites=seq.restrictionSites.get(enz);
-			if(sites==null)
-				sites=new LinkedList<RestrictionSite>();
-			if(menuSettings.getSettings().allowsRestrictionSiteCount(enz, sites.size()))
+			//Sites blocked by methylation are not counted
+			int numSites=seq.getNumCuttingSites(enz);
+			if(menuSettings.getSettings().allowsRestrictionSiteCount(enz, numSites))
 				{
 				tableAvailableEnzymes.setRowCount(currow+1);
 				QTableWidgetItem it=QTutil.createReadOnlyItem(enz.name);
 				it.setData(Qt.ItemDataRole.UserRole, enz);
 				
 				tableAvailableEnzymes.setItem(currow, 0, it);
-				tableAvailableEnzymes.setItem(currow, 1, QTutil.createReadOnlyItem(""+sites.size()));
+				tableAvailableEnzymes.setItem(currow, 1, QTutil.createReadOnlyItem(""+numSites));
 				
 				currow++;
 				}
@@ -47,7 +47,7 @@ public class FitPrimerWindow extends QDialog
 	
 	public static Collection<Primer> collectPrimers(ProjectWindow pw)
 		{
-		return collectPrimers(pw.getProject().sequenceLinkedList);
+		return collectPrimers(pw.getProject().getSequences());
 		}
 	public static Collection<Primer> collectPrimers(Collection<AnnotatedSequence> seqs)
 		{
@@ -7,12 +7,14 @@ import collagene.gui.digest.SimulatedDigestWindow;
 import collagene.gui.qt.QTutil;
 import collagene.gui.sequenceWindow.EventSequenceModified;
 import collagene.melting.CalcTm;
+import collagene.melting.CalcTmSanta04;
 import collagene.melting.CalcTmSanta98;
 import collagene.melting.TmException;
 import collagene.primer.Primer;
 import collagene.primer.PrimerPairInfo;
 import collagene.restrictionEnzyme.SequenceFragmentPCR;
 import collagene.seq.AnnotatedSequence;
+import collagene.seq.Orientation;
 import collagene.sequtil.NucleotideUtil;
 
 import com.trolltech.qt.gui.QAction;
@@ -54,6 +56,7 @@ public class MenuPrimer extends QMenu
 				{
 				addAction("Tm: "+tmFull + " (when fully matching)");
 				addAction("Tm: "+tmPartial+ " (first matching part)");
+				addAction("Tm: "+tryCalcTmOnSequence(seq, primer)+ " (with mismatches)");
 				}
 			addSeparator();
 			}
@@ -124,6 +127,24 @@ public class MenuPrimer extends QMenu
 			}
 		}
 
+	/**
+	 * Tm of a primer on the sequence it is placed on, taking the mismatches into account
+	 */
+	public static String tryCalcTmOnSequence(AnnotatedSequence seq, Primer primer)
+		{
+		String template=seq.getSequence(primer.getRange()).toUpperCase();
+		String p=primer.sequence.toUpperCase();
+		double tm;
+		if(primer.orientation==Orientation.FORWARD)
+			tm=new CalcTmSanta04().calcTm((CharSequence)p, NucleotideUtil.complement(template));
+		else
+			tm=new CalcTmSanta04().calcTm((CharSequence)template, NucleotideUtil.reverse(p));
+		if(Double.isNaN(tm))
+			return "?";
+		else
+			return formatTemp(tm);
+		}
+
 	public static String tryCalcTm(CalcTm tmc, String seq)
 		{
 		String tm="?";
@@ -0,0 +1,25 @@
+package collagene.gui.sequenceWindow;
+
+import collagene.seq.AnnotatedSequence;
+
+/**
+ * 
+ * Part of the sequence has been replaced: [pos,pos+removed) is now [pos,pos+inserted). Features and restriction
+ * sites have already been updated
+ * 
+ * @author Johan Henriksson
+ *
+ */
+public class EventSequenceEdited extends CollageneEvent
+	{
+	public int pos, removed, inserted;
+	
+	public EventSequenceEdited(AnnotatedSequence seq, int pos, int removed, int inserted)
+		{
+		super(seq);
+		this.pos=pos;
+		this.removed=removed;
+		this.inserted=inserted;
+		}
+
+	}
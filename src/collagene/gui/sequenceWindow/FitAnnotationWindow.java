@@ -4,7 +4,10 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
 
+import collagene.alignment.AlignmentRace;
 import collagene.alignment.AnnotatedSequenceAlignment;
 import collagene.gui.ProjectWindow;
 import collagene.gui.colors.ColorSet;
@@ -17,6 +20,7 @@ import collagene.sequtil.NucleotideUtil;
 
 import com.trolltech.qt.core.QModelIndex;
 import com.trolltech.qt.core.Qt;
+import com.trolltech.qt.gui.QApplication;
 import com.trolltech.qt.gui.QDialog;
 import com.trolltech.qt.gui.QPushButton;
 import com.trolltech.qt.gui.QTableWidget;
@@ -55,7 +59,7 @@ public class FitAnnotationWindow extends QDialog
 	public static Collection<OneAnnotation> collectPrimers(ProjectWindow pw)
 		{
 		LinkedList<OneAnnotation> list=new LinkedList<FitAnnotationWindow.OneAnnotation>();
-		for(AnnotatedSequence seq:pw.getProject().sequenceLinkedList)
+		for(AnnotatedSequence seq:pw.getProject().getSequences())
 			{
 			//Add entire sequence as an item
 			OneAnnotation a=new OneAnnotation();
@@ -125,36 +129,93 @@ public class FitAnnotationWindow extends QDialog
 			list.add((OneAnnotation)tableAnnot.item(ind.row(),0).data(Qt.ItemDataRole.UserRole));
 		
 		
-		AnnotatedSequence seqA=sw.getSequence();
+		//Align all annotations at the same time, then add them in order. The alignments run against the sequence
+		//as it is now, so that it can be edited meanwhile
+		final AnnotatedSequence target=sw.getSequence();
+		final AnnotatedSequence seqA=new AnnotatedSequence();
+		seqA.setSequence(target.getPackedSequence(), target.getPackedSequenceLower());
+		seqA.isCircular=target.isCircular;
+		final ArrayList<FitTask> tasks=new ArrayList<FitTask>();
 		for(OneAnnotation annot:list)
 			{
 			//Get sequence normalized to forward orientation
-			AnnotatedSequence seqB=new AnnotatedSequence();
-			Orientation orientation=Orientation.FORWARD;
-			SeqAnnotation prevannot=new SeqAnnotation();
-			prevannot.color=ColorSet.colorset.getRandomColor();
-			prevannot.name=annot.seq.name;
+			final FitTask task=new FitTask();
+			task.seqB=new AnnotatedSequence();
+			task.orientation=Orientation.FORWARD;
+			task.prevannot=new SeqAnnotation();
+			task.prevannot.color=ColorSet.colorset.getRandomColor();
+			task.prevannot.name=annot.seq.name;
 			if(annot.annot!=null)
 				{
 				String seq=annot.seq.getSequence(annot.annot.range);
 				if(annot.annot.orientation==Orientation.REVERSE)
 					seq=NucleotideUtil.revcomplement(seq);
-				seqB.setSequence(seq);
+				task.seqB.setSequence(seq);
 				if(annot.annot.orientation==Orientation.NOTORIENTED)
-					orientation=Orientation.NOTORIENTED;
-				prevannot=annot.annot;
+					task.orientation=Orientation.NOTORIENTED;
+				task.prevannot=annot.annot;
 				}
 			else
 				{
-				seqB.setSequence(annot.seq.getSequence());
+				task.seqB.setSequence(annot.seq.getSequence());
 				}
 			
-			
-			AnnotatedSequenceAlignment al=new AnnotatedSequenceAlignment();
-			al.isLocal=false;
-			al.canGoOutside=true;
-			al.align(seqA, seqB);
-
+			task.al=new AnnotatedSequenceAlignment();
+			task.al.isLocal=false;
+			task.al.canGoOutside=true;
+			task.result=AlignmentRace.submit(new Callable<Object>()
+				{
+				public Object call() throws Exception
+					{
+					task.al.align(seqA, task.seqB);
+					return null;
+					}
+				});
+			tasks.add(task);
+			}
+		
+		//Wait for the alignments without blocking the GUI, then add the annotations from the GUI thread
+		new Thread()
+			{
+			public void run()
+				{
+				try
+					{
+					for(FitTask task:tasks)
+						task.result.join();
+					}
+				catch (RuntimeException e)
+					{
+					e.printStackTrace();
+					QTutil.printError(pw, tr("Could not fit annotation")+": "+e.getMessage());
+					return;
+					}
+				QApplication.invokeLater(new Runnable()
+					{
+					public void run()
+						{
+						addFitted(target, seqA, tasks);
+						}
+					});
+				}
+			}.start();
+		}
+	
+	/**
+	 * Add the annotations that have been fitted to a sequence. If it was edited meanwhile, the positions no longer apply
+	 */
+	private void addFitted(AnnotatedSequence target, AnnotatedSequence seqA, ArrayList<FitTask> tasks)
+		{
+		if(target.getPackedSequence()!=seqA.getPackedSequence())
+			{
+			QTutil.showNotice(pw, tr("The sequence was changed while fitting the annotation. Please try again"));
+			return;
+			}
+		for(FitTask task:tasks)
+			{
+			AnnotatedSequenceAlignment al=task.al;
+			Orientation orientation=task.orientation;
+			SeqAnnotation prevannot=task.prevannot;
 			if(al.rotateB)
 				orientation=Orientation.reverse(orientation);
 
@@ -172,11 +233,21 @@ public class FitAnnotationWindow extends QDialog
 			System.out.println(al.bestal.alignedSequenceB+"!");
 			
 			System.out.println("cost: "+al.bestal.bestCost); //TODO compute best possible cost?
-			sw.getSequence().addAnnotation(newannot);
-			pw.updateEvent(new EventSequenceModified(seqA));
+			target.addAnnotation(newannot);
+			pw.updateEvent(new EventSequenceModified(target));
 			}
-		
-		
+		}
+	
+	/**
+	 * One annotation being fitted
+	 */
+	private static class FitTask
+		{
+		AnnotatedSequence seqB;
+		Orientation orientation;
+		SeqAnnotation prevannot;
+		AnnotatedSequenceAlignment al;
+		ForkJoinTask<Object> result;
 		}
 	
 	
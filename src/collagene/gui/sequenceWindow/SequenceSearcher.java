@@ -1,109 +1,81 @@
 package collagene.gui.sequenceWindow;
 
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.Arrays;
 
 import collagene.seq.AnnotatedSequence;
 import collagene.seq.SequenceRange;
-import collagene.sequtil.NucleotideUtil;
 
 
 /**
- * 
- * 
+ * Hits of a search string on either strand, using the suffix index of the sequence. The search string may contain
+ * degenerate letters
+ *
  * @author Johan Henriksson
  *
  */
 public class SequenceSearcher
 	{
-	private TreeSet<Integer> positions=new TreeSet<Integer>();
+	private int[] positions;
 	private String currentSearchString;
-	
-	
-	
+
+
+
 	public SequenceSearcher(AnnotatedSequence seq, String currentSearchString)
+		{
+		this(seq, currentSearchString, 0);
+		}
+
+	/**
+	 * Search, allowing up to a number of mismatching letters
+	 */
+	public SequenceSearcher(AnnotatedSequence seq, String currentSearchString, int maxMismatches)
 		{
 		currentSearchString=currentSearchString.toUpperCase().replace(" ", "");
 		this.currentSearchString=currentSearchString;
-		String upper=seq.getSequence();
-		String lower=seq.getSequenceLower();
-		String search2=NucleotideUtil.reverse(currentSearchString);
-		
-		if(seq.isCircular)
-			{
-			upper=upper+upper;
-			lower=lower+lower;
-			}
-		
-		int curpos=0;
-		for(;;)
-			{
-			curpos=upper.indexOf(currentSearchString,curpos); 
-			if(curpos>=seq.getLength() || curpos==-1)
-				break;
-			positions.add(curpos);
-			curpos++;
-			}
-		
-		curpos=0;
-		for(;;)
-			{
-			curpos=lower.indexOf(search2,curpos); //how does this treat first position?
-			if(curpos>=seq.getLength() || curpos==-1)
-				break;
-			positions.add(curpos);
-			curpos++;
-			}
+		positions=seq.getSuffixIndex().find(currentSearchString, maxMismatches);
 		}
 
-	
+
 	/**
 	 * Find next hit
 	 */
 	public SequenceRange next(SequenceRange current)
 		{
-		int next;
+		if(positions.length==0)
+			return null;
 		int pos=-1;
 		if(current!=null)
 			pos=current.from;
-		
-		SortedSet<Integer> set=positions.tailSet(pos+1);
-		if(set.isEmpty())
-			{
-			if(positions.isEmpty())
-				return null;
-			else
-				next=positions.first();
-			}
-		else
-			next=set.first();
-		
+
+		int i=insertionPoint(pos+1);
+		int next=i<positions.length ? positions[i] : positions[0];
 		return new SequenceRange(next,next+currentSearchString.length());
 		}
-	
-	
+
+
 	/**
 	 * Find previous hit
 	 */
 	public SequenceRange prev(SequenceRange current)
 		{
-		int next;
+		if(positions.length==0)
+			return null;
 		int pos=0;
 		if(current!=null)
 			pos=current.from;
-		
-		SortedSet<Integer> set=positions.headSet(pos);
-		if(set.isEmpty())
-			{
-			if(positions.isEmpty())
-				return null;
-			else
-				next=positions.last();
-			}
-		else
-			next=set.last();
-		
+
+		int i=insertionPoint(pos)-1;
+		int next=i>=0 ? positions[i] : positions[positions.length-1];
 		return new SequenceRange(next,next+currentSearchString.length());
 		}
-	
+
+	/**
+	 * Index of the first hit at or after a position
+	 */
+	private int insertionPoint(int pos)
+		{
+		int i=Arrays.binarySearch(positions, pos);
+		return i<0 ? -i-1 : i;
+		}
+
 	}
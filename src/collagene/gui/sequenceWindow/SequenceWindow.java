@@ -6,6 +6,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.LinkedList;
 
+import collagene.bacteria.BacteriaProperty;
 import collagene.gui.EventNewSequence;
 import collagene.gui.IndexUtil;
 import collagene.gui.ProjectWindow;
@@ -24,8 +25,10 @@ import collagene.melting.TmException;
 import collagene.primer.Primer;
 import collagene.primer.PrimerFinder;
 import collagene.primer.PrimerFitter;
+import collagene.restrictionEnzyme.RestrictionSiteScanner;
 import collagene.seq.AnnotatedSequence;
 import collagene.seq.Orientation;
+import collagene.seq.PackedSequence;
 import collagene.seq.RestrictionSite;
 import collagene.seq.SeqAnnotation;
 import collagene.seq.SeqColor;
@@ -40,6 +43,7 @@ import com.trolltech.qt.gui.QClipboard;
 import com.trolltech.qt.gui.QCloseEvent;
 import com.trolltech.qt.gui.QDesktopServices;
 import com.trolltech.qt.gui.QHBoxLayout;
+import com.trolltech.qt.gui.QInputDialog;
 import com.trolltech.qt.gui.QIcon;
 import com.trolltech.qt.gui.QLabel;
 import com.trolltech.qt.gui.QMainWindow;
@@ -76,6 +80,12 @@ public class SequenceWindow extends QMainWindow
 	QHBoxLayout layc=new QHBoxLayout();
 
 	private ProjectWindow projwindow;
+
+	//What the restriction sites were found for. They are only searched for again when this changes
+	private PackedSequence sitesForSequence;
+	private boolean sitesForCircular;
+	private BacteriaProperty sitesForBacteria;
+	private RestrictionSiteScanner sitesForScanner;
 	
 	private AnnotatedSequence seq=new AnnotatedSequence();
 	
@@ -293,7 +303,7 @@ public class SequenceWindow extends QMainWindow
 		w.exec();
 		if(w.getAnnotation()!=null)
 			{
-			seq.annotations.add(w.getAnnotation());
+			projwindow.getProject().addAnnotation(seq, w.getAnnotation());
 			updateSequence();
 			}
 		}
@@ -313,16 +323,44 @@ public class SequenceWindow extends QMainWindow
 	 */
 	public void setSequence(AnnotatedSequence seq)
 		{
+		boolean isNew=seq!=this.seq;
 		this.seq=seq;
+		seq.invalidateFeatureIndex();
 		
-		//Find all restriction sites
-		Collection<RestrictionSite> sites=projwindow.restrictionEnzymes.findRestrictionSites(seq);
-		seq.restrictionSites.clear();
-		for(RestrictionSite s:sites)
-			seq.addRestrictionSite(s);
+		//Find all restriction sites, unless they are already for this sequence. Edits update them as they go
+		if(isNew || !areSitesCurrent())
+			{
+			Collection<RestrictionSite> sites=projwindow.restrictionEnzymes.findRestrictionSites(seq);
+			seq.restrictionSites.clear();
+			for(RestrictionSite s:sites)
+				seq.addRestrictionSite(s);
+			setSitesCurrent();
+			viewLinear.restrictionSitesFound();
+			viewOverviewLinear.restrictionSitesFound();
+			}
 		
 		updateSequence();
 		}
+
+	/**
+	 * The restriction sites of the sequence are now up to date
+	 */
+	private void setSitesCurrent()
+		{
+		sitesForSequence=seq.getPackedSequence();
+		sitesForCircular=seq.isCircular;
+		sitesForBacteria=seq.bacteria;
+		sitesForScanner=projwindow.restrictionEnzymes.getScanner();
+		}
+
+	/**
+	 * Check if the restriction sites are still for the sequence as it is, with the current enzymes
+	 */
+	private boolean areSitesCurrent()
+		{
+		return sitesForSequence==seq.getPackedSequence() && sitesForCircular==seq.isCircular && 
+				sitesForBacteria==seq.bacteria && sitesForScanner==projwindow.restrictionEnzymes.getScanner();
+		}
 	
 	public void updateSequence()
 		{
@@ -366,6 +404,14 @@ public class SequenceWindow extends QMainWindow
 			{
 			setSequence(seq);
 			}
+		else if(ob instanceof EventSequenceEdited)
+			{
+			//Restriction sites were updated by the edit. The linear views only lay out the lines affected
+			EventSequenceEdited e=(EventSequenceEdited)ob;
+			viewLinear.sequenceEdited(e.pos, e.removed, e.inserted);
+			viewOverviewLinear.sequenceEdited(e.pos, e.removed, e.inserted);
+			updateSequence();
+			}
 		else if(ob instanceof EventNewSequence)
 			{
 			projwindow.updateEvent(ob); //if it did not already go there?
@@ -473,6 +519,10 @@ public class SequenceWindow extends QMainWindow
 		mseq.addAction(tr("CRISPR design"), this, "crispr()");
 		mseq.addAction(tr("Site directed mutagenesis"), this, "actionSDM()");
 		mseq.addSeparator();
+		mseq.addAction(tr("Replace selection"), this, "actionReplaceSelection()");
+		mseq.addAction(tr("Insert before selection"), this, "actionInsertSequence()");
+		mseq.addAction(tr("Delete selection"), this, "actionDeleteSelection()");
+		mseq.addSeparator();
 		mseq.addAction(tr("Reverse plasmid"), this, "actionReverseSequence()");
 		mseq.addAction(tr("Set plasmid 0-position"), this, "actionSetSequence0()");
 		mseq.addSeparator();
@@ -600,10 +650,10 @@ public class SequenceWindow extends QMainWindow
 			{
 			a.name="ORF "+i;
 			a.color=ColorSet.colorset.getRandomColor();
-			getSequence().addAnnotation(a);
+			projwindow.getProject().addAnnotation(getSequence(), a);
 			i++;
 			}
-		setSequence(seq);
+		updateSequence();
 		}
 	
 	/**
@@ -612,7 +662,8 @@ public class SequenceWindow extends QMainWindow
 	public void actionRemoveORFs()
 		{
 		OrfFinder.removeUnnamedOrfs(getSequence());
-		setSequence(seq);
+		projwindow.getProject().setModified(seq);
+		updateSequence();
 		}
 
 
@@ -642,10 +693,76 @@ public class SequenceWindow extends QMainWindow
 	public void actionReverseSequence()
 		{
 		seq.reverseSequence();
-		setSequence(seq);
+		projwindow.getProject().setModified(seq);
+		setSitesCurrent();
+		updateSequence();  //Restriction sites are mirrored, no need to search again
 		}
 	
 	
+	/**
+	 * Action: Replace the selection with a sequence given by the user
+	 */
+	public void actionReplaceSelection()
+		{
+		SequenceRange r=getSelection();
+		if(r!=null)
+			{
+			String s=QInputDialog.getText(this, tr("Replace selection"), tr("New sequence:"));
+			if(s!=null)
+				editSequence(r, s);
+			}
+		else
+			errNoSelection();
+		}
+
+	/**
+	 * Action: Insert a sequence given by the user, before the selection
+	 */
+	public void actionInsertSequence()
+		{
+		SequenceRange r=getSelection();
+		if(r!=null)
+			{
+			String s=QInputDialog.getText(this, tr("Insert sequence"), tr("Sequence to insert:"));
+			if(s!=null)
+				editSequence(new SequenceRange(r.from, r.from), s);
+			}
+		else
+			errNoSelection();
+		}
+
+	/**
+	 * Action: Delete the selection
+	 */
+	public void actionDeleteSelection()
+		{
+		SequenceRange r=getSelection();
+		if(r!=null)
+			editSequence(r, "");
+		else
+			errNoSelection();
+		}
+
+	/**
+	 * Replace part of the sequence. Restriction sites are only searched for around the edit
+	 */
+	public void editSequence(SequenceRange r, String upper)
+		{
+		upper=upper.trim().toUpperCase();
+		r=r.toNormalizedRange(seq);
+		if(r.to<r.from)
+			{
+			QTutil.showNotice(this, tr("Cannot edit across the 0-position"));
+			return;
+			}
+		projwindow.getProject().editSequence(seq, r, upper, NucleotideUtil.complement(upper));
+		projwindow.restrictionEnzymes.updateRestrictionSites(seq, r.from, upper.length());
+		setSitesCurrent();
+		projwindow.updateEvent(new EventSequenceEdited(seq, r.from, r.to-r.from, upper.length()));
+		emitNewSelection(SequenceRange.getNoRange());
+		}
+
+
 	/**
 	 * Action: Set a new 0-point for the vector
 	 */
@@ -656,9 +773,9 @@ public class SequenceWindow extends QMainWindow
 			SequenceRange r=getSelection();
 			if(r!=null)
 				{
-				seq.setNew0(r.from);
-				setSequence(seq);
-				System.out.println("here");
+				projwindow.getProject().setNew0(seq, r.from);
+				setSitesCurrent();
+				updateSequence();  //Restriction sites are moved, no need to search again
 				}
 			else
 				QTutil.showNotice(this, tr("Need to select position first"));
@@ -893,8 +1010,8 @@ public class SequenceWindow extends QMainWindow
 		w.exec();
 		if(w.getPrimer()!=null)
 			{
-			getSequence().addPrimer(w.getPrimer());
-			setSequence(seq);
+			projwindow.getProject().addPrimer(getSequence(), w.getPrimer());
+			updateSequence();
 			}
 		}
 	
@@ -928,7 +1045,7 @@ public class SequenceWindow extends QMainWindow
 			Primer p=f.getBestPrimer();
 			if(p!=null)
 				{
-				seq.primers.add(p);
+				projwindow.getProject().addPrimer(seq, p);
 				updateSequence();
 				emitNewSelection(p.getRange());
 				}
@@ -9,6 +9,7 @@ import com.trolltech.qt.gui.QIcon;
 import com.trolltech.qt.gui.QLabel;
 import com.trolltech.qt.gui.QLineEdit;
 import com.trolltech.qt.gui.QPushButton;
+import com.trolltech.qt.gui.QSpinBox;
 
 /**
  * 
@@ -22,6 +23,7 @@ public class SequenceWindowSeqSearch extends QHBoxLayout
 	private QLineEdit tfSearch=new QLineEdit();
 	private QPushButton bSearchNext=new QPushButton(new QIcon(ImgResource.moveRight),"");
 	private QPushButton bSearchPrev=new QPushButton(new QIcon(ImgResource.moveLeft),"");
+	private QSpinBox spMismatches=new QSpinBox();
 	
 	public SequenceSearcher currentSearchString=null;
 
@@ -30,13 +32,19 @@ public class SequenceWindowSeqSearch extends QHBoxLayout
 		{
 		this.w=w;
 		
+		spMismatches.setMinimum(0);
+		spMismatches.setMaximum(5);
+		spMismatches.setToolTip(tr("Number of letters that may mismatch"));
+		
 		tfSearch.textChanged.connect(this,"actionSearch()");
+		spMismatches.valueChanged.connect(this,"actionSearch()");
 		tfSearch.returnPressed.connect(this,"actionSearchNext()");
 		bSearchNext.clicked.connect(this,"actionSearchNext()");
 		bSearchPrev.clicked.connect(this,"actionSearchPrev()");
 
 		addWidget(new QLabel(tr("Search:")));
 		addWidget(tfSearch);
+		addWidget(spMismatches);
 		addWidget(bSearchPrev);
 		addWidget(bSearchNext);
 		setMargin(0);
@@ -51,7 +59,7 @@ public class SequenceWindowSeqSearch extends QHBoxLayout
 		if(tfSearch.text().length()==0)
 			currentSearchString=null;
 		else
-			currentSearchString=new SequenceSearcher(getSequence(), tfSearch.text().toUpperCase());
+			currentSearchString=new SequenceSearcher(getSequence(), tfSearch.text().toUpperCase(), spMismatches.value());
 		emitNewSelection(SequenceRange.getNoRange());
 		actionSearchNext();
 		}
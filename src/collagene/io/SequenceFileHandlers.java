@@ -5,6 +5,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -27,6 +29,9 @@ import collagene.seq.AnnotatedSequence;
  */
 public class SequenceFileHandlers
 	{
+	//How much of a file is looked at to detect the format
+	private static final int HEADER_SIZE=4096;
+
 	private static LinkedList<SequenceImporter> listImporters=new LinkedList<SequenceImporter>();
 	private static LinkedList<SequenceExporter> listExporters=new LinkedList<SequenceExporter>();
 	
@@ -60,22 +65,44 @@ public class SequenceFileHandlers
 
 
 	/**
-	 * Get importer for a file
+	 * Get the importer most confident about the beginning of some data, or null if none recognizes it
 	 */
-	public static SequenceImporter getImporter(File f) throws IOException
+	public static SequenceImporter getImporter(ByteBuffer head)
 		{
+		SequenceImporter best=null;
+		double bestScore=0;
 		for(SequenceImporter imp:listImporters)
 			{
-			FileInputStream fis=new FileInputStream(f);
-			boolean b=imp.isType(fis);
-			fis.close();
-			if(b)
+			double score=imp.probe(head.duplicate());
+			if(score>bestScore)
 				{
-				System.out.println("importing with "+imp.getClass());
-				return imp;
+				best=imp;
+				bestScore=score;
 				}
 			}
-		return null;
+		return best;
+		}
+
+
+	/**
+	 * Get importer for a file. Only the beginning is read
+	 */
+	public static SequenceImporter getImporter(File f) throws IOException
+		{
+		FileInputStream fis=new FileInputStream(f);
+		try
+			{
+			FileChannel ch=fis.getChannel();
+			ByteBuffer head=ByteBuffer.allocate((int)Math.min(HEADER_SIZE, ch.size()));
+			while(head.hasRemaining() && ch.read(head)!=-1)
+				;
+			head.flip();
+			return getImporter(head);
+			}
+		finally
+			{
+			fis.close();
+			}
 		}
 
 
@@ -84,15 +111,47 @@ public class SequenceFileHandlers
 	 */
 	public static SequenceImporter getImporter(byte[] arr) throws IOException
 		{
-		for(SequenceImporter imp:listImporters)
+		return getImporter(ByteBuffer.wrap(arr, 0, Math.min(HEADER_SIZE, arr.length)));
+		}
+
+
+	/**
+	 * Detect type and load from file. Returns null if the format is unknown
+	 */
+	public static List<AnnotatedSequence> load(File f) throws IOException
+		{
+		SequenceImporter importer=getImporter(f);
+		if(importer!=null)
 			{
-			ByteArrayInputStream fis=new ByteArrayInputStream(arr);
-			boolean b=imp.isType(fis);
-			fis.close();
-			if(b)
-				return imp;
+			FileInputStream fis=new FileInputStream(f);
+			try
+				{
+				return importer.load(fis);
+				}
+			finally
+				{
+				fis.close();
+				}
 			}
-		return null;
+		else
+			return null;
+		}
+
+
+	/**
+	 * Detect type and load the first sequence of a file. Returns null if the format is unknown or the file has no
+	 * sequence. Of a FASTA file, only the first record is read
+	 */
+	public static AnnotatedSequence loadFirst(File f) throws IOException
+		{
+		SequenceImporter importer=getImporter(f);
+		if(importer instanceof ImportFASTA)
+			return ImportFASTA.loadFirst(f);
+		List<AnnotatedSequence> seqs=load(f);
+		if(seqs!=null && !seqs.isEmpty())
+			return seqs.get(0);
+		else
+			return null;
 		}
 
 
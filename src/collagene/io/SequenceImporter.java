@@ -2,6 +2,7 @@ package collagene.io;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import collagene.seq.AnnotatedSequence;
@@ -15,6 +16,10 @@ import collagene.seq.AnnotatedSequence;
  */
 public interface SequenceImporter
 	{
-	public boolean isType(InputStream is) throws IOException;
+	/**
+	 * How likely the data is in this format, from 0 (not at all) to 1 (certain), judging from the beginning of it.
+	 * Nothing should be parsed; the buffer may end anywhere
+	 */
+	public double probe(ByteBuffer head);
 	public List<AnnotatedSequence> load(InputStream is) throws IOException;
 	}
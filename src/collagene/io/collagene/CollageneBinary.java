@@ -0,0 +1,1043 @@
+package collagene.io.collagene;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import collagene.gui.CollageneProject;
+import collagene.gui.SequenceHandle;
+import collagene.gui.paneLinear.tracks.PlacedTrace;
+import collagene.io.trace.SequenceTrace;
+import collagene.io.trace.SequenceTraceBaseCall;
+import collagene.primer.Primer;
+import collagene.seq.AnnotatedSequence;
+import collagene.seq.Orientation;
+import collagene.seq.PackedSequence;
+import collagene.seq.SeqAnnotation;
+import collagene.util.RandomAccessible;
+import collagene.util.RandomAccessibleFile;
+import collagene.util.RandomAccessibleMapped;
+
+/**
+ *
+ * Compact binary format for storing a project. It holds the same as the XML format, and also traces.
+ *
+ * The file is a header, blocks of sequences, then a table of contents and a trailer pointing to it. Sequences
+ * are stored packed, and their features as columns of primitive arrays. A sequence can be read on its own
+ * using the table of contents.
+ *
+ * Saving into an existing file only appends the sequences that changed, followed by a new table of contents.
+ * The file is written anew when most of it is no longer used
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class CollageneBinary
+	{
+	public static final String EXTENSION="collagenebin";
+
+	private static final int MAGIC=('C'<<24) + ('L'<<16) + ('G'<<8) + 'B';
+	private static final int MAGIC_TRAILER=('C'<<24) + ('L'<<16) + ('G'<<8) + 'E';
+	private static final int VERSION=1;
+	private static final int HEADER_SIZE=8;
+	private static final int TRAILER_SIZE=12;
+
+	private static final byte BLOCK_SEQUENCE='S';
+	private static final byte BLOCK_TOC='T';
+
+	private static final byte ORIENTATION_FORWARD=0, ORIENTATION_REVERSE=1, ORIENTATION_NONE=2;
+
+	/**
+	 * Windows does not allow a mapped file to be replaced, and a mapping is only released once garbage collected.
+	 * There the file is read without mapping it
+	 */
+	private static final boolean canMapFiles=!System.getProperty("os.name").startsWith("Windows");
+
+
+	/**
+	 * What the table of contents knows about a sequence, without reading it
+	 */
+	public static class Entry
+		{
+		public String name;
+		public int length;
+		public boolean isCircular;
+		public int checksum;
+
+		long offset;
+		int blockLength;
+		}
+
+
+	/**
+	 * An open project file, from which sequences are read when needed
+	 */
+	public static class Reader
+		{
+		private RandomAccessible ra;
+		private ArrayList<Entry> entries=new ArrayList<Entry>();
+		private long fileLength;
+		private long realFileLength;
+		private File file;
+
+		public Reader(File f) throws IOException
+			{
+			file=f;
+			ra=canMapFiles ? new RandomAccessibleMapped(f, "r") : new RandomAccessibleFile(f, "r");
+			try
+				{
+				fileLength=realFileLength=ra.length();
+				if(fileLength<HEADER_SIZE+TRAILER_SIZE || ra.getBuffer(0, 4).getInt()!=MAGIC)
+					throw new IOException("Not a binary project file");
+				ByteBuffer header=ra.getBuffer(0, HEADER_SIZE);
+				header.getInt();
+				int version=header.getInt();
+				if(version>VERSION)
+					throw new IOException("Project file is of a newer version: "+version);
+
+				fileLength=findTrailer(fileLength);
+				if(fileLength<0)
+					throw new IOException("Project file is incomplete");
+				}
+			catch (IOException e)
+				{
+				ra.close();
+				throw e;
+				}
+			}
+
+		/**
+		 * Read the table of contents of the last complete trailer, and return where the trailer ends.
+		 * Normally it is at the end of the file, but if the program stopped while appending, the file ends
+		 * with an incomplete append. The table of contents from before the append is then used.
+		 * Returns -1 if there is none
+		 */
+		private long findTrailer(long fileLength) throws IOException
+			{
+			for(long end=fileLength;end>=HEADER_SIZE+5+TRAILER_SIZE;end--)
+				{
+				ByteBuffer trailer=ra.getBuffer(end-TRAILER_SIZE, TRAILER_SIZE);
+				long tocOffset=trailer.getLong();
+				if(trailer.getInt()==MAGIC_TRAILER && tocOffset>=HEADER_SIZE && tocOffset+5<=end-TRAILER_SIZE)
+					{
+					//The table of contents must end where the trailer starts
+					ByteBuffer head=ra.getBuffer(tocOffset, 5);
+					if(head.get()==BLOCK_TOC && tocOffset+5+head.getInt()==end-TRAILER_SIZE)
+						{
+						try
+							{
+							entries.clear();
+							readTOC(getBlock(tocOffset, BLOCK_TOC));
+							return end;
+							}
+						catch (IOException e)
+							{
+							//Not a table of contents after all
+							}
+						}
+					}
+				}
+			entries.clear();
+			return -1;
+			}
+
+		/**
+		 * Get the payload of a block
+		 */
+		private DataInputStream getBlock(long offset, byte type) throws IOException
+			{
+			ByteBuffer head=ra.getBuffer(offset, 5);
+			if(head.get()!=type)
+				throw new IOException("Corrupt project file at "+offset);
+			int len=head.getInt();
+			return new DataInputStream(new ByteBufferInputStream(ra.getBuffer(offset+5, len)));
+			}
+
+		private void readTOC(DataInputStream dis) throws IOException
+			{
+			int n=dis.readInt();
+			if(n<0 || n>dis.available())
+				throw new IOException("Corrupt table of contents");
+			long[] offset=readLongs(dis, n);
+			int[] blockLength=readInts(dis, n);
+			int[] checksum=readInts(dis, n);
+			int[] length=readInts(dis, n);
+			byte[] circular=readBytes(dis, n);
+			String[] names=readStrings(dis, n);
+			for(int i=0;i<n;i++)
+				{
+				Entry e=new Entry();
+				e.offset=offset[i];
+				e.blockLength=blockLength[i];
+				e.checksum=checksum[i];
+				e.length=length[i];
+				e.isCircular=circular[i]!=0;
+				e.name=names[i];
+				if(e.offset<HEADER_SIZE || e.blockLength<0 || e.offset+5+e.blockLength>fileLength)
+					throw new IOException("Corrupt table of contents");
+				entries.add(e);
+				}
+			}
+
+		public int getNumSequences()
+			{
+			return entries.size();
+			}
+
+		public Entry getEntry(int i)
+			{
+			return entries.get(i);
+			}
+
+		/**
+		 * Get the stored form of a sequence
+		 */
+		private byte[] getPayload(int i) throws IOException
+			{
+			Entry e=entries.get(i);
+			ByteBuffer buf=ra.getBuffer(e.offset+5, e.blockLength);
+			byte[] payload=new byte[e.blockLength];
+			buf.get(payload);
+			return payload;
+			}
+
+		public File getFile()
+			{
+			return file;
+			}
+
+		/**
+		 * Read one sequence
+		 */
+		public AnnotatedSequence loadSequence(int i) throws IOException
+			{
+			return readSequence(getBlock(entries.get(i).offset, BLOCK_SEQUENCE));
+			}
+
+		public void close() throws IOException
+			{
+			ra.close();
+			}
+		}
+
+
+	/**
+	 * Check if a file is in this format, from its first bytes
+	 */
+	public static boolean isBinary(File f) throws IOException
+		{
+		if(!f.isFile() || f.length()<4)
+			return false;
+		DataInputStream dis=new DataInputStream(new java.io.FileInputStream(f));
+		try
+			{
+			return dis.readInt()==MAGIC;
+			}
+		finally
+			{
+			dis.close();
+			}
+		}
+
+	/**
+	 * Check if a file should be saved in this format, from its name
+	 */
+	public static boolean isBinaryFileName(File f)
+		{
+		return f.getName().endsWith("."+EXTENSION);
+		}
+
+
+	/**
+	 * Load all sequences of a project
+	 */
+	public static CollageneProject loadProject(File f) throws IOException
+		{
+		CollageneProject proj=new CollageneProject();
+		Reader r=new Reader(f);
+		try
+			{
+			for(int i=0;i<r.getNumSequences();i++)
+				proj.addSequence(r.loadSequence(i));
+			}
+		finally
+			{
+			r.close();
+			}
+		proj.currentProjectFile=f;
+		return proj;
+		}
+
+	/**
+	 * Open a project. Only the table of contents is read; the file is kept open to read sequences when needed
+	 */
+	public static CollageneProject openProject(File f) throws IOException
+		{
+		CollageneProject proj=new CollageneProject();
+		Reader r=new Reader(f);
+		for(int i=0;i<r.getNumSequences();i++)
+			proj.sequences.add(new SequenceHandle(r, i));
+		proj.openFile=r;
+		proj.currentProjectFile=f;
+		return proj;
+		}
+
+
+	/**
+	 * Save a project. If the file is already a binary project, only sequences that changed are appended.
+	 * Sequences that have not been read are copied from the file they are in, without being read
+	 */
+	public static void saveProject(File f, CollageneProject proj) throws IOException
+		{
+		proj.beginSave();
+		try
+			{
+			takeSnapshot(f, proj).write();
+			}
+		finally
+			{
+			proj.endSave();
+			}
+		}
+
+	/**
+	 * Serialize the sequences that are loaded, to be written later. Must be called between
+	 * CollageneProject.beginSave and endSave
+	 */
+	public static ProjectSnapshot takeSnapshot(final File f, final CollageneProject proj) throws IOException
+		{
+		final ArrayList<SequenceHandle> handles=new ArrayList<SequenceHandle>();
+		final ArrayList<byte[]> payloads=new ArrayList<byte[]>();
+		final ArrayList<Entry> entries=new ArrayList<Entry>();
+		final int[] modCounts;
+		synchronized (proj)
+			{
+			handles.addAll(proj.sequences);
+			modCounts=new int[handles.size()];
+			for(int i=0;i<handles.size();i++)
+				{
+				SequenceHandle h=handles.get(i);
+				modCounts[i]=h.getModCount();
+				Entry e=new Entry();
+				byte[] payload=null;
+				if(h.isLoaded())
+					{
+					AnnotatedSequence seq=h.getLoadedSequence();
+					payload=getPayload(seq);
+
+					e.name=seq.name;
+					e.length=seq.getLength();
+					e.isCircular=seq.isCircular;
+					e.checksum=getChecksum(payload);
+					e.blockLength=payload.length;
+					}
+				else
+					{
+					Entry old=h.getReader().getEntry(h.getIndex());
+					e.name=old.name;
+					e.length=old.length;
+					e.isCircular=old.isCircular;
+					e.checksum=old.checksum;
+					e.blockLength=old.blockLength;
+					}
+				e.offset=-1;
+				entries.add(e);
+				payloads.add(payload);
+				}
+			}
+
+		final long fingerprint=getFingerprint(entries);
+		return new ProjectSnapshot()
+			{
+			public long getFingerprint()
+				{
+				return fingerprint;
+				}
+
+			public void write() throws IOException
+				{
+				writeSnapshot(f, proj, handles, modCounts, entries, payloads);
+				}
+			};
+		}
+
+	private static void writeSnapshot(File f, CollageneProject proj,
+			ArrayList<SequenceHandle> handles, int[] modCounts, ArrayList<Entry> entries, ArrayList<byte[]> payloads) throws IOException
+		{
+		//Find sequences already in the file
+		boolean doAppend=false;
+		long fileLength=0;
+		if(isBinary(f))
+			{
+			HashMap<Long, Entry> existing=new HashMap<Long, Entry>();
+			try
+				{
+				Reader r=new Reader(f);
+				fileLength=r.fileLength;
+				for(Entry e:r.entries)
+					existing.put(getKey(e), e);
+				r.close();
+
+				//An append that did not finish would have to be cut off, which is not possible while the file is mapped
+				if(r.realFileLength!=fileLength)
+					fileLength=0;
+				}
+			catch (IOException ex)
+				{
+				//Not readable, so write it anew
+				fileLength=0;
+				}
+
+			if(fileLength!=0)
+				{
+				long used=HEADER_SIZE;
+				long appended=0;
+				for(int i=0;i<entries.size();i++)
+					{
+					Entry e=entries.get(i);
+					Entry old=existing.get(getKey(e));
+					if(old!=null && old.blockLength==e.blockLength)
+						e.offset=old.offset;
+					else
+						appended+=5+e.blockLength;
+					used+=5+e.blockLength;
+					}
+
+				//Append if most of the file would still be in use
+				doAppend=fileLength+appended<2*used;
+				}
+			}
+
+		//Copy what is not in the file being written. This is the only time the old file is read
+		synchronized (proj)
+			{
+			for(int i=0;i<entries.size();i++)
+				if(payloads.get(i)==null && (!doAppend || entries.get(i).offset<0))
+					{
+					SequenceHandle h=handles.get(i);
+					payloads.set(i, h.getReader().getPayload(h.getIndex()));
+					}
+			}
+
+		//Appending leaves the part of the file in use untouched, so sequences can still be read from it meanwhile
+		if(doAppend)
+			{
+			append(f, fileLength, entries, payloads);
+			Reader reader=new Reader(f);
+			synchronized (proj)
+				{
+				Reader oldReader=proj.openFile;
+				proj.setStored(reader, handles, modCounts);
+				if(oldReader!=null)
+					oldReader.close();
+				}
+			}
+		else
+			{
+			for(Entry e:entries)
+				e.offset=-1;
+			File tmp=new File(f.getPath()+".tmp");
+			writeAll(tmp, entries, payloads);
+
+			//The file must not be open while replaced
+			synchronized (proj)
+				{
+				Reader oldReader=proj.openFile;
+				if(oldReader!=null)
+					oldReader.close();
+				boolean ok=false;
+				try
+					{
+					replaceFile(tmp, f);
+					ok=true;
+					}
+				finally
+					{
+					if(ok)
+						proj.setStored(new Reader(f), handles, modCounts);
+					else if(oldReader!=null)
+						proj.setReopened(oldReader, new Reader(oldReader.getFile()));
+					}
+				}
+			}
+		}
+
+	/**
+	 * Get the stored form of a sequence
+	 */
+	static byte[] getPayload(AnnotatedSequence seq) throws IOException
+		{
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		DataOutputStream dos=new DataOutputStream(bos);
+		writeSequence(dos, seq);
+		dos.flush();
+		return bos.toByteArray();
+		}
+
+	/**
+	 * Get the checksum of a sequence, as in the table of contents. It is computed from the stored form
+	 */
+	public static int getChecksum(AnnotatedSequence seq) throws IOException
+		{
+		return getChecksum(getPayload(seq));
+		}
+
+	private static int getChecksum(byte[] payload)
+		{
+		CRC32 crc=new CRC32();
+		crc.update(payload);
+		return (int)crc.getValue();
+		}
+
+	/**
+	 * Read a sequence from its stored form
+	 */
+	static AnnotatedSequence fromPayload(byte[] payload) throws IOException
+		{
+		return readSequence(new DataInputStream(new ByteArrayInputStream(payload)));
+		}
+
+	/**
+	 * Identifies the sequences in a file, from the table of contents
+	 */
+	private static long getFingerprint(ArrayList<Entry> entries)
+		{
+		CRC32 crc=new CRC32();
+		ByteBuffer b=ByteBuffer.allocate(8);
+		for(Entry e:entries)
+			{
+			b.clear();
+			b.putInt(e.checksum);
+			b.putInt(e.blockLength);
+			crc.update(b.array());
+			}
+		return ((long)entries.size()<<32) | crc.getValue();
+		}
+
+	/**
+	 * Identifies the sequences in a file
+	 */
+	public static long getFingerprint(File f) throws IOException
+		{
+		Reader r=new Reader(f);
+		try
+			{
+			return getFingerprint(r.entries);
+			}
+		finally
+			{
+			r.close();
+			}
+		}
+
+	private static Long getKey(Entry e)
+		{
+		return ((long)e.checksum<<32) ^ e.blockLength;
+		}
+
+	/**
+	 * Write a complete project file
+	 */
+	private static void writeAll(File f, ArrayList<Entry> entries, ArrayList<byte[]> payloads) throws IOException
+		{
+		FileOutputStream fos=new FileOutputStream(f);
+		try
+			{
+			DataOutputStream dos=new DataOutputStream(new BufferedOutputStream(fos, 65536));
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			long pos=HEADER_SIZE;
+			for(int i=0;i<entries.size();i++)
+				{
+				entries.get(i).offset=pos;
+				pos+=writeBlock(dos, BLOCK_SEQUENCE, payloads.get(i));
+				}
+			writeBlock(dos, BLOCK_TOC, getTOC(entries));
+			dos.writeLong(pos);
+			dos.writeInt(MAGIC_TRAILER);
+			dos.flush();
+			fos.getFD().sync();
+			}
+		finally
+			{
+			fos.close();
+			}
+		}
+
+	/**
+	 * Replace a file with a complete new one. The old file is kept until then, so that one of them is always on disk
+	 */
+	static void replaceFile(File tmp, File f) throws IOException
+		{
+		try
+			{
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}
+		catch (AtomicMoveNotSupportedException e)
+			{
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+
+	/**
+	 * Append new sequences and a new table of contents to an existing file, which must end with a complete trailer.
+	 * The file is only written with plain writes, so if this stops halfway, the file still ends with the old
+	 * trailer or an incomplete append after it. The file is never cut, as it may be mapped by a reader
+	 */
+	private static void append(File f, long validLength, ArrayList<Entry> entries, ArrayList<byte[]> payloads) throws IOException
+		{
+		RandomAccessFile raf=new RandomAccessFile(f, "rw");
+		try
+			{
+			FileChannel channel=raf.getChannel();
+			if(raf.length()!=validLength)
+				throw new IOException("Project file changed while saving");
+			long pos=validLength;
+			channel.position(pos);
+			DataOutputStream dos=new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 65536));
+			for(int i=0;i<entries.size();i++)
+				if(entries.get(i).offset<0)
+					{
+					entries.get(i).offset=pos;
+					pos+=writeBlock(dos, BLOCK_SEQUENCE, payloads.get(i));
+					}
+			long tocOffset=pos;
+			writeBlock(dos, BLOCK_TOC, getTOC(entries));
+			dos.flush();
+
+			//The data must be on disk before the trailer points to it
+			channel.force(false);
+			dos.writeLong(tocOffset);
+			dos.writeInt(MAGIC_TRAILER);
+			dos.flush();
+			channel.force(false);
+			}
+		finally
+			{
+			raf.close();
+			}
+		}
+
+	private static int writeBlock(DataOutputStream dos, byte type, byte[] payload) throws IOException
+		{
+		dos.writeByte(type);
+		dos.writeInt(payload.length);
+		dos.write(payload);
+		return 5+payload.length;
+		}
+
+	private static byte[] getTOC(ArrayList<Entry> entries) throws IOException
+		{
+		int n=entries.size();
+		long[] offset=new long[n];
+		int[] blockLength=new int[n];
+		int[] checksum=new int[n];
+		int[] length=new int[n];
+		byte[] circular=new byte[n];
+		String[] names=new String[n];
+		for(int i=0;i<n;i++)
+			{
+			Entry e=entries.get(i);
+			offset[i]=e.offset;
+			blockLength[i]=e.blockLength;
+			checksum[i]=e.checksum;
+			length[i]=e.length;
+			circular[i]=(byte)(e.isCircular ? 1 : 0);
+			names[i]=e.name;
+			}
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		DataOutputStream dos=new DataOutputStream(bos);
+		dos.writeInt(n);
+		writeLongs(dos, offset);
+		writeInts(dos, blockLength);
+		writeInts(dos, checksum);
+		writeInts(dos, length);
+		dos.write(circular);
+		writeStrings(dos, names);
+		dos.flush();
+		return bos.toByteArray();
+		}
+
+
+	/**
+	 * Write one sequence with its features
+	 */
+	private static void writeSequence(DataOutputStream dos, AnnotatedSequence seq) throws IOException
+		{
+		writeString(dos, seq.name);
+		writeString(dos, seq.notes);
+		dos.writeBoolean(seq.isCircular);
+		PackedSequence upper=seq.getPackedSequence();
+		PackedSequence lower=seq.getPackedSequenceLower();
+		upper.write(dos);
+		if(lower.isComplementOf(upper))
+			lower.write(dos);
+		else
+			PackedSequence.complementOf(upper, lower).write(dos);
+
+		//Annotations
+		int n=seq.annotations.size();
+		String[] aname=new String[n], anote=new String[n], adesc=new String[n];
+		int[] from=new int[n], to=new int[n], colr=new int[n], colg=new int[n], colb=new int[n];
+		byte[] orientation=new byte[n];
+		int i=0;
+		for(SeqAnnotation a:seq.annotations)
+			{
+			aname[i]=a.name;
+			anote[i]=a.note;
+			adesc[i]=a.desc;
+			from[i]=a.getFrom();
+			to[i]=a.getTo();
+			colr[i]=a.color.r;
+			colg[i]=a.color.g;
+			colb[i]=a.color.b;
+			orientation[i]=orientationToByte(a.orientation);
+			i++;
+			}
+		dos.writeInt(n);
+		writeStrings(dos, aname);
+		writeStrings(dos, anote);
+		writeStrings(dos, adesc);
+		writeInts(dos, from);
+		writeInts(dos, to);
+		writeInts(dos, colr);
+		writeInts(dos, colg);
+		writeInts(dos, colb);
+		dos.write(orientation);
+
+		//Primers
+		n=seq.primers.size();
+		String[] pname=new String[n], psequence=new String[n];
+		int[] target=new int[n];
+		orientation=new byte[n];
+		i=0;
+		for(Primer p:seq.primers)
+			{
+			pname[i]=p.name;
+			psequence[i]=p.sequence;
+			target[i]=p.targetPosition;
+			orientation[i]=orientationToByte(p.orientation);
+			i++;
+			}
+		dos.writeInt(n);
+		writeStrings(dos, pname);
+		writeStrings(dos, psequence);
+		writeInts(dos, target);
+		dos.write(orientation);
+
+		//Traces
+		dos.writeInt(seq.traces.size());
+		for(PlacedTrace pt:seq.traces)
+			{
+			dos.writeInt(pt.from);
+			SequenceTrace t=pt.getTrace();
+			dos.writeInt(t.getLevelLength());
+			writeInts(dos, t.levelA);
+			writeInts(dos, t.levelC);
+			writeInts(dos, t.levelG);
+			writeInts(dos, t.levelT);
+
+			n=t.basecalls.size();
+			int[] peakIndex=new int[n], pA=new int[n], pC=new int[n], pG=new int[n], pT=new int[n];
+			char[] bases=new char[n];
+			for(i=0;i<n;i++)
+				{
+				SequenceTraceBaseCall bc=t.basecalls.get(i);
+				peakIndex[i]=bc.peakIndex;
+				pA[i]=bc.pA;
+				pC[i]=bc.pC;
+				pG[i]=bc.pG;
+				pT[i]=bc.pT;
+				bases[i]=bc.base;
+				}
+			dos.writeInt(n);
+			writeInts(dos, peakIndex);
+			writeInts(dos, pA);
+			writeInts(dos, pC);
+			writeInts(dos, pG);
+			writeInts(dos, pT);
+			writeString(dos, new String(bases));
+
+			dos.writeInt(t.properties.size());
+			for(Map.Entry<String, String> e:t.properties.entrySet())
+				{
+				writeString(dos, e.getKey());
+				writeString(dos, e.getValue());
+				}
+			}
+		}
+
+	/**
+	 * Read one sequence with its features
+	 */
+	private static AnnotatedSequence readSequence(DataInputStream dis) throws IOException
+		{
+		AnnotatedSequence seq=new AnnotatedSequence();
+		seq.name=readString(dis);
+		seq.notes=readString(dis);
+		seq.isCircular=dis.readBoolean();
+		PackedSequence upper=PackedSequence.read(dis, null);
+		PackedSequence lower=PackedSequence.read(dis, upper);
+		seq.setSequence(upper, lower);
+
+		//Annotations
+		int n=dis.readInt();
+		String[] aname=readStrings(dis, n), anote=readStrings(dis, n), adesc=readStrings(dis, n);
+		int[] from=readInts(dis, n), to=readInts(dis, n);
+		int[] colr=readInts(dis, n), colg=readInts(dis, n), colb=readInts(dis, n);
+		byte[] orientation=readBytes(dis, n);
+		for(int i=0;i<n;i++)
+			{
+			SeqAnnotation a=new SeqAnnotation();
+			a.name=aname[i];
+			a.note=anote[i];
+			a.desc=adesc[i];
+			a.setRange(from[i], to[i]);
+			a.color.r=colr[i];
+			a.color.g=colg[i];
+			a.color.b=colb[i];
+			a.orientation=byteToOrientation(orientation[i]);
+			seq.addAnnotation(a);
+			}
+
+		//Primers
+		n=dis.readInt();
+		String[] pname=readStrings(dis, n), psequence=readStrings(dis, n);
+		int[] target=readInts(dis, n);
+		orientation=readBytes(dis, n);
+		for(int i=0;i<n;i++)
+			{
+			Primer p=new Primer();
+			p.name=pname[i];
+			p.sequence=psequence[i];
+			p.targetPosition=target[i];
+			p.orientation=byteToOrientation(orientation[i]);
+			seq.addPrimer(p);
+			}
+
+		//Traces
+		int numTraces=dis.readInt();
+		for(int j=0;j<numTraces;j++)
+			{
+			PlacedTrace pt=new PlacedTrace();
+			pt.from=dis.readInt();
+			SequenceTrace t=new SequenceTrace();
+			int numLevels=dis.readInt();
+			t.levelA=readInts(dis, numLevels);
+			t.levelC=readInts(dis, numLevels);
+			t.levelG=readInts(dis, numLevels);
+			t.levelT=readInts(dis, numLevels);
+
+			n=dis.readInt();
+			int[] peakIndex=readInts(dis, n), pA=readInts(dis, n), pC=readInts(dis, n), pG=readInts(dis, n), pT=readInts(dis, n);
+			String bases=readString(dis);
+			for(int i=0;i<n;i++)
+				{
+				SequenceTraceBaseCall bc=new SequenceTraceBaseCall();
+				bc.peakIndex=peakIndex[i];
+				bc.pA=pA[i];
+				bc.pC=pC[i];
+				bc.pG=pG[i];
+				bc.pT=pT[i];
+				bc.base=bases.charAt(i);
+				t.basecalls.add(bc);
+				}
+
+			int numProps=dis.readInt();
+			for(int i=0;i<numProps;i++)
+				t.properties.put(readString(dis), readString(dis));
+			pt.setTrace(t);
+			seq.traces.add(pt);
+			}
+		return seq;
+		}
+
+
+	static byte orientationToByte(Orientation orientation) throws IOException
+		{
+		if(orientation==Orientation.FORWARD)
+			return ORIENTATION_FORWARD;
+		else if(orientation==Orientation.REVERSE)
+			return ORIENTATION_REVERSE;
+		else if(orientation==Orientation.NOTORIENTED)
+			return ORIENTATION_NONE;
+		else
+			throw new IOException("Unknown orientation "+orientation);
+		}
+
+	static Orientation byteToOrientation(byte b) throws IOException
+		{
+		if(b==ORIENTATION_FORWARD)
+			return Orientation.FORWARD;
+		else if(b==ORIENTATION_REVERSE)
+			return Orientation.REVERSE;
+		else if(b==ORIENTATION_NONE)
+			return Orientation.NOTORIENTED;
+		else
+			throw new IOException("Unknown orientation "+b);
+		}
+
+
+	/**
+	 * Write a string that may be null or long, as UTF-8
+	 */
+	static void writeString(DataOutput dos, String s) throws IOException
+		{
+		if(s==null)
+			dos.writeInt(-1);
+		else
+			{
+			byte[] b=s.getBytes("UTF-8");
+			dos.writeInt(b.length);
+			dos.write(b);
+			}
+		}
+
+	static String readString(DataInput dis) throws IOException
+		{
+		int len=dis.readInt();
+		if(len<0)
+			return null;
+		byte[] b=new byte[len];
+		dis.readFully(b);
+		return new String(b, "UTF-8");
+		}
+
+	private static void writeStrings(DataOutput dos, String[] arr) throws IOException
+		{
+		for(String s:arr)
+			writeString(dos, s);
+		}
+
+	private static String[] readStrings(DataInput dis, int n) throws IOException
+		{
+		String[] arr=new String[n];
+		for(int i=0;i<n;i++)
+			arr[i]=readString(dis);
+		return arr;
+		}
+
+	/**
+	 * Write an array of integers in one go. The length is known by the reader
+	 */
+	private static void writeInts(DataOutputStream dos, int[] arr) throws IOException
+		{
+		ByteBuffer b=ByteBuffer.allocate(arr.length*4);
+		b.asIntBuffer().put(arr);
+		dos.write(b.array());
+		}
+
+	private static int[] readInts(DataInputStream dis, int n) throws IOException
+		{
+		byte[] b=new byte[n*4];
+		dis.readFully(b);
+		int[] arr=new int[n];
+		ByteBuffer.wrap(b).asIntBuffer().get(arr);
+		return arr;
+		}
+
+	private static void writeLongs(DataOutputStream dos, long[] arr) throws IOException
+		{
+		ByteBuffer b=ByteBuffer.allocate(arr.length*8);
+		b.asLongBuffer().put(arr);
+		dos.write(b.array());
+		}
+
+	private static long[] readLongs(DataInputStream dis, int n) throws IOException
+		{
+		byte[] b=new byte[n*8];
+		dis.readFully(b);
+		long[] arr=new long[n];
+		ByteBuffer.wrap(b).asLongBuffer().get(arr);
+		return arr;
+		}
+
+	private static byte[] readBytes(DataInputStream dis, int n) throws IOException
+		{
+		byte[] b=new byte[n];
+		dis.readFully(b);
+		return b;
+		}
+
+
+	/**
+	 * Stream over a buffer
+	 */
+	private static class ByteBufferInputStream extends InputStream
+		{
+		private ByteBuffer buf;
+
+		public ByteBufferInputStream(ByteBuffer buf)
+			{
+			this.buf=buf;
+			}
+
+		@Override
+		public int read() throws IOException
+			{
+			return buf.hasRemaining() ? buf.get()&0xFF : -1;
+			}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+			{
+			if(len==0)
+				return 0;
+			if(!buf.hasRemaining())
+				return -1;
+			len=Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+			}
+
+		@Override
+		public int available() throws IOException
+			{
+			return buf.remaining();
+			}
+		}
+
+
+	/**
+	 * Convert a project between the XML and the binary format. The format to write is given by the file name
+	 */
+	public static void convert(File from, File to) throws IOException
+		{
+		CollageneProject proj=isBinary(from) ? loadProject(from) : CollageneXML.loadProject(from);
+		if(isBinaryFileName(to))
+			{
+			if(to.exists() && !to.delete())
+				throw new IOException("Could not replace "+to);
+			saveProject(to, proj);
+			}
+		else
+			CollageneXML.saveProject(to, proj);
+		proj.close();
+		}
+
+	public static void main(String[] args) throws IOException
+		{
+		if(args.length!=2)
+			throw new IllegalArgumentException("Usage: CollageneBinary from to");
+		convert(new File(args[0]), new File(args[1]));
+		}
+	}
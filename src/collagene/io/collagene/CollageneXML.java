@@ -1,10 +1,13 @@
 package collagene.io.collagene;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.zip.CRC32;
 
 import org.jdom2.Document;
 import org.jdom2.Element;
@@ -32,21 +35,98 @@ public class CollageneXML
 	 * Save XML data
 	 */
 	public static void saveProject(File f, CollageneProject proj) throws IOException
+		{
+		proj.beginSave();
+		try
+			{
+			takeSnapshot(f, proj).write();
+			}
+		finally
+			{
+			proj.endSave();
+			}
+		}
+
+	/**
+	 * Build the XML document, to be written later
+	 */
+	public static ProjectSnapshot takeSnapshot(final File f, CollageneProject proj) throws IOException
 		{
 		Element e=new Element("madgene");
-		Document doc=new Document(e);
+		final Document doc=new Document(e);
 	
-		for(AnnotatedSequence s:proj.sequenceLinkedList)
+		for(AnnotatedSequence s:proj.getSequences())
 			{
 			Element ee=new Element("oneseq");
 			e.addContent(ee);
 			ExportOneXML.save(s,ee);
 			}
-		
-		XMLOutputter xmlOutputter = new XMLOutputter(Format.getPrettyFormat());
-    xmlOutputter.output(doc, new FileOutputStream(f));
+
+		return new ProjectSnapshot()
+			{
+			private byte[] data;
+
+			private synchronized byte[] getData() throws IOException
+				{
+				if(data==null)
+					{
+					ByteArrayOutputStream bos=new ByteArrayOutputStream();
+					XMLOutputter xmlOutputter = new XMLOutputter(Format.getPrettyFormat());
+					xmlOutputter.output(doc, bos);
+					data=bos.toByteArray();
+					}
+				return data;
+				}
+
+			public long getFingerprint() throws IOException
+				{
+				return CollageneXML.getFingerprint(getData());
+				}
+
+			public void write() throws IOException
+				{
+				//Replace the file only once completely written
+				File tmp=new File(f.getPath()+".tmp");
+				FileOutputStream fos=new FileOutputStream(tmp);
+				try
+					{
+					fos.write(getData());
+					fos.getFD().sync();
+					}
+				finally
+					{
+					fos.close();
+					}
+				CollageneBinary.replaceFile(tmp, f);
+				}
+			};
+		}
+
+	private static long getFingerprint(byte[] data)
+		{
+		CRC32 crc=new CRC32();
+		crc.update(data);
+		return ((long)data.length<<32) | crc.getValue();
+		}
+
+	/**
+	 * Identifies the content of a file
+	 */
+	public static long getFingerprint(File f) throws IOException
+		{
+		byte[] data=new byte[(int)f.length()];
+		DataInputStream dis=new DataInputStream(new FileInputStream(f));
+		try
+			{
+			dis.readFully(data);
+			}
+		finally
+			{
+			dis.close();
+			}
+		return getFingerprint(data);
 		}
-	
+
 	public static CollageneProject loadProject(File f) throws IOException
 		{
 		CollageneProject proj;
@@ -73,7 +153,7 @@ public class CollageneXML
 				if(e.getName().equals("oneseq"))
 					{
 					AnnotatedSequence seq=ImportOneXML.loadOne(e);
-					proj.sequenceLinkedList.add(seq);
+					proj.addSequence(seq);
 					}
 				}
 			return proj;
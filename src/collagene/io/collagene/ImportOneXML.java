@@ -2,13 +2,13 @@ package collagene.io.collagene;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
 import org.jdom2.DataConversionException;
 import org.jdom2.Document;
 import org.jdom2.Element;
-import org.jdom2.JDOMException;
 import org.jdom2.input.SAXBuilder;
 
 import collagene.io.SequenceImporter;
@@ -26,20 +26,44 @@ import collagene.seq.SeqAnnotation;
 public class ImportOneXML implements SequenceImporter
 	{
 	/**
-	 * Check if this file format
+	 * Check if this file format: XML with a sequence as root element
 	 */
-	public boolean isType(InputStream is) throws IOException
+	public double probe(ByteBuffer head)
 		{
-		try
+		int i=head.position();
+		int end=head.limit();
+
+		//Skip byte order mark, declarations and comments
+		if(end-i>=3 && (head.get(i)&0xFF)==0xEF && (head.get(i+1)&0xFF)==0xBB && (head.get(i+2)&0xFF)==0xBF)
+			i+=3;
+		for(;;)
 			{
-			SAXBuilder sax = new SAXBuilder();
-			Document doc = sax.build(is);
-			return doc.getRootElement().getName().equals("sequence");
+			while(i<end && Character.isWhitespace(head.get(i)))
+				i++;
+			if(i+1<end && head.get(i)=='<' && (head.get(i+1)=='?' || head.get(i+1)=='!'))
+				{
+				while(i<end && head.get(i)!='>')
+					i++;
+				i++;
+				}
+			else
+				break;
 			}
-		catch (JDOMException e)
+
+		//The sequence may also be wrapped, as in a project
+		for(String root:new String[]{"<sequence", "<oneseq"})
 			{
-			return false;
+			if(end-i<=root.length())
+				continue;
+			boolean matches=true;
+			for(int j=0;j<root.length();j++)
+				if(head.get(i+j)!=root.charAt(j))
+					matches=false;
+			byte next=head.get(i+root.length());
+			if(matches && (Character.isWhitespace(next) || next=='>' || next=='/'))
+				return 0.9;
 			}
+		return 0;
 		}
 
 	
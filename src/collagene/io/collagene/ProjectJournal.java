@@ -0,0 +1,740 @@
+package collagene.io.collagene;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import collagene.gui.CollageneProject;
+import collagene.gui.SequenceHandle;
+import collagene.primer.Primer;
+import collagene.seq.AnnotatedSequence;
+import collagene.seq.SeqAnnotation;
+import collagene.seq.SequenceRange;
+
+/**
+ *
+ * Journal of the edits to a project since it was last saved, kept next to the project file. Every edit is
+ * appended as a small record, so that little is lost if the program crashes. Records are written and synced
+ * by another thread, shortly after the edit, so several edits in quick succession are synced at once. When the
+ * project is opened again, the edits are applied to it.
+ *
+ * When the journal grows large, the project is saved in the background and the journal started anew.
+ * The journal identifies the saved project it applies to by a fingerprint. A checkpoint is written before
+ * saving, so the journal can be applied whether or not the save completed
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class ProjectJournal
+	{
+	private static final int MAGIC=('C'<<24) + ('L'<<16) + ('G'<<8) + 'J';
+	private static final int VERSION=1;
+	private static final int HEADER_SIZE=16;
+
+	private static final byte REC_SEQUENCE_MODIFIED='M';
+	private static final byte REC_SEQUENCE_EDITED='E';
+	private static final byte REC_ANNOTATION_ADDED='A';
+	private static final byte REC_PRIMER_ADDED='P';
+	private static final byte REC_NEW0='0';
+	private static final byte REC_SEQUENCE_ADDED='N';
+	private static final byte REC_SEQUENCE_REMOVED='D';
+	private static final byte REC_CHECKPOINT='C';
+
+	/**
+	 * Save in the background when the journal is larger than this
+	 */
+	public static long compactSize=1000000;
+
+	/**
+	 * Time in ms from an edit until it is written, during which more edits are gathered
+	 */
+	public static int flushDelay=200;
+
+	private CollageneProject proj;
+	private File projectFile;
+	private File journalFile;
+	private boolean isCompacting=false;
+	private int numRecovered=0;
+
+	//The file is only written while holding this lock, to keep the records in order
+	private final Object writeLock=new Object();
+	private RandomAccessFile raf;
+
+	//Records not yet written. The last one may be replaced if it has the whole of the given sequence
+	private ArrayList<byte[]> pending=new ArrayList<byte[]>();
+	private long pendingLength=0;
+	private int replaceableIndex=-1;
+	private boolean isFlushScheduled=false;
+
+	private long writtenLength=0;
+	private boolean isOpen=false;
+	private IOException writeError;
+
+
+	/**
+	 * One record read from the journal
+	 */
+	private static class Record
+		{
+		long offset;
+		byte type;
+		byte[] payload;
+		}
+
+
+	/**
+	 * Get the journal of a project file
+	 */
+	public static File getJournalFile(File projectFile)
+		{
+		return new File(projectFile.getPath()+".journal");
+		}
+
+	private ProjectJournal(CollageneProject proj, File projectFile)
+		{
+		this.proj=proj;
+		this.projectFile=projectFile;
+		journalFile=getJournalFile(projectFile);
+		}
+
+
+	/**
+	 * Open the journal of a project just loaded. Edits in it that are not in the project file are applied
+	 */
+	public static ProjectJournal open(CollageneProject proj) throws IOException
+		{
+		ProjectJournal j=new ProjectJournal(proj, proj.currentProjectFile);
+		long fingerprint=getFingerprint(j.projectFile);
+		if(j.journalFile.exists())
+			j.recover(fingerprint);
+		else
+			j.start(fingerprint);
+		return j;
+		}
+
+	/**
+	 * Start a new journal for a project just saved
+	 */
+	public static ProjectJournal create(CollageneProject proj, long fingerprint) throws IOException
+		{
+		ProjectJournal j=new ProjectJournal(proj, proj.currentProjectFile);
+		j.start(fingerprint);
+		return j;
+		}
+
+	/**
+	 * Identifies the content of a project file
+	 */
+	private static long getFingerprint(File f) throws IOException
+		{
+		if(CollageneBinary.isBinary(f))
+			return CollageneBinary.getFingerprint(f);
+		else
+			return CollageneXML.getFingerprint(f);
+		}
+
+	/**
+	 * The project file this is the journal for
+	 */
+	public File getProjectFile()
+		{
+		return projectFile;
+		}
+
+	/**
+	 * Number of edits applied when the journal was opened
+	 */
+	public int getNumRecovered()
+		{
+		return numRecovered;
+		}
+
+
+	/**
+	 * Write an empty journal
+	 */
+	private void start(long fingerprint) throws IOException
+		{
+		synchronized (writeLock)
+			{
+			if(raf!=null)
+				raf.close();
+			File tmp=new File(journalFile.getPath()+".tmp");
+			writeJournal(tmp, fingerprint, new byte[0]);
+			replaceJournal(tmp);
+			}
+		}
+
+	/**
+	 * Write a journal file, synced
+	 */
+	private static void writeJournal(File f, long fingerprint, byte[] records) throws IOException
+		{
+		FileOutputStream fos=new FileOutputStream(f);
+		try
+			{
+			DataOutputStream dos=new DataOutputStream(fos);
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(fingerprint);
+			dos.write(records);
+			dos.flush();
+			fos.getFD().sync();
+			}
+		finally
+			{
+			fos.close();
+			}
+		}
+
+	/**
+	 * Replace the journal and open it for appending. Must hold writeLock
+	 */
+	private void replaceJournal(File tmp) throws IOException
+		{
+		CollageneBinary.replaceFile(tmp, journalFile);
+		raf=new RandomAccessFile(journalFile, "rw");
+		raf.seek(raf.length());
+		setOpen(raf.length());
+		}
+
+	private synchronized void setOpen(long length)
+		{
+		writtenLength=length;
+		isOpen=true;
+		}
+
+
+	/**
+	 * Apply the edits of the journal that are not in the project file
+	 */
+	private void recover(long fingerprint) throws IOException
+		{
+		long baseFingerprint;
+		ArrayList<Record> records=new ArrayList<Record>();
+		long validLength;
+		long fileLength=journalFile.length();
+		DataInputStream dis=new DataInputStream(new FileInputStream(journalFile));
+		try
+			{
+			if(dis.readInt()!=MAGIC || dis.readInt()>VERSION)
+				throw new IOException("Not a project journal: "+journalFile);
+			baseFingerprint=dis.readLong();
+			validLength=HEADER_SIZE;
+			for(;;)
+				{
+				//A record cut short or broken is where the program stopped
+				Record r=readRecord(dis, validLength, fileLength);
+				if(r==null)
+					break;
+				records.add(r);
+				validLength+=5+r.payload.length+4;
+				}
+			}
+		catch (EOFException e)
+			{
+			throw new IOException("Not a project journal: "+journalFile);
+			}
+		finally
+			{
+			dis.close();
+			}
+
+		//Find where the project file is in the journal. If the last save completed, edits before it are in the file
+		long from=-1;
+		if(baseFingerprint==fingerprint)
+			from=0;
+		else
+			for(Record r:records)
+				if(r.type==REC_CHECKPOINT)
+					{
+					DataInputStream rdis=new DataInputStream(new ByteArrayInputStream(r.payload));
+					if(rdis.readLong()==fingerprint)
+						from=rdis.readLong();
+					}
+		if(from<0)
+			{
+			//The journal is for another version of the project. Keep it aside rather than apply it
+			CollageneBinary.replaceFile(journalFile, new File(journalFile.getPath()+".old"));
+			start(fingerprint);
+			return;
+			}
+
+		for(Record r:records)
+			if(r.offset>=from && r.type!=REC_CHECKPOINT)
+				{
+				apply(r);
+				numRecovered++;
+				}
+
+		//Continue after the last complete record
+		synchronized (writeLock)
+			{
+			raf=new RandomAccessFile(journalFile, "rw");
+			raf.setLength(validLength);
+			raf.seek(validLength);
+			setOpen(validLength);
+			}
+		}
+
+	private static Record readRecord(DataInputStream dis, long offset, long fileLength) throws IOException
+		{
+		try
+			{
+			Record r=new Record();
+			r.offset=offset;
+			r.type=dis.readByte();
+			int len=dis.readInt();
+			if(len<0 || len>fileLength-offset-9)
+				return null;
+			r.payload=new byte[len];
+			dis.readFully(r.payload);
+			int checksum=dis.readInt();
+			if(checksum!=getChecksum(r.type, r.payload))
+				return null;
+			return r;
+			}
+		catch (EOFException e)
+			{
+			return null;
+			}
+		}
+
+	private static int getChecksum(byte type, byte[] payload)
+		{
+		CRC32 crc=new CRC32();
+		crc.update(type);
+		crc.update(payload);
+		return (int)crc.getValue();
+		}
+
+	/**
+	 * Apply one edit to the project
+	 */
+	private void apply(Record r) throws IOException
+		{
+		DataInputStream dis=new DataInputStream(new ByteArrayInputStream(r.payload));
+		if(r.type==REC_SEQUENCE_ADDED)
+			{
+			byte[] payload=new byte[r.payload.length];
+			dis.readFully(payload);
+			AnnotatedSequence seq=CollageneBinary.fromPayload(payload);
+			proj.addSequence(seq);
+			proj.setModified(seq);
+			return;
+			}
+
+		int index=dis.readInt();
+		if(index<0 || index>=proj.sequences.size())
+			throw new IOException("Journal refers to missing sequence "+index);
+		SequenceHandle h=proj.sequences.get(index);
+		if(r.type==REC_SEQUENCE_REMOVED)
+			proj.removeSequence(h);
+		else if(r.type==REC_SEQUENCE_MODIFIED)
+			{
+			byte[] payload=new byte[r.payload.length-4];
+			dis.readFully(payload);
+			AnnotatedSequence seq=CollageneBinary.fromPayload(payload);
+			proj.replaceSequence(h, seq);
+			proj.setModified(seq);
+			}
+		else if(r.type==REC_SEQUENCE_EDITED)
+			{
+			AnnotatedSequence seq=proj.getSequence(h);
+			int from=dis.readInt();
+			int to=dis.readInt();
+			String upper=CollageneBinary.readString(dis);
+			String lower=CollageneBinary.readString(dis);
+			if(from<0 || from>to || to>seq.getLength())
+				throw new IOException("Journal edits outside sequence "+index);
+			proj.editSequence(seq, new SequenceRange(from, to), upper, lower);
+			}
+		else
+			{
+			AnnotatedSequence seq=proj.getSequence(h);
+			if(r.type==REC_ANNOTATION_ADDED)
+				{
+				SeqAnnotation a=new SeqAnnotation();
+				a.name=CollageneBinary.readString(dis);
+				a.note=CollageneBinary.readString(dis);
+				a.desc=CollageneBinary.readString(dis);
+				int from=dis.readInt();
+				int to=dis.readInt();
+				a.setRange(from, to);
+				a.orientation=CollageneBinary.byteToOrientation(dis.readByte());
+				a.color.r=dis.readInt();
+				a.color.g=dis.readInt();
+				a.color.b=dis.readInt();
+				seq.addAnnotation(a);
+				}
+			else if(r.type==REC_PRIMER_ADDED)
+				{
+				Primer p=new Primer();
+				p.name=CollageneBinary.readString(dis);
+				p.sequence=CollageneBinary.readString(dis);
+				p.targetPosition=dis.readInt();
+				p.orientation=CollageneBinary.byteToOrientation(dis.readByte());
+				seq.addPrimer(p);
+				}
+			else if(r.type==REC_NEW0)
+				seq.setNew0(dis.readInt());
+			else
+				throw new IOException("Unknown journal record "+(char)r.type);
+			proj.setModified(seq);
+			}
+		}
+
+
+	/**
+	 * Queue a record to be written. If the last record queued has the whole of the same sequence, and
+	 * replaceIndex is not -1, this record replaces it
+	 */
+	private synchronized void append(byte type, ByteArrayOutputStream bos, int replaceIndex) throws IOException
+		{
+		if(writeError!=null)
+			throw new IOException("Journal could not be written: "+writeError.getMessage(), writeError);
+		if(!isOpen)
+			throw new IOException("Journal is closed");
+		byte[] payload=bos.toByteArray();
+		ByteArrayOutputStream rec=new ByteArrayOutputStream(payload.length+9);
+		DataOutputStream dos=new DataOutputStream(rec);
+		dos.writeByte(type);
+		dos.writeInt(payload.length);
+		dos.write(payload);
+		dos.writeInt(getChecksum(type, payload));
+		dos.flush();
+
+		if(replaceIndex!=-1 && replaceIndex==replaceableIndex)
+			pendingLength-=pending.remove(pending.size()-1).length;
+		pending.add(rec.toByteArray());
+		pendingLength+=rec.size();
+		replaceableIndex=replaceIndex;
+
+		if(!isFlushScheduled)
+			{
+			isFlushScheduled=true;
+			new Thread()
+				{
+				public void run()
+					{
+					try
+						{
+						Thread.sleep(flushDelay);
+						}
+					catch (InterruptedException e)
+						{
+						}
+					synchronized (ProjectJournal.this)
+						{
+						isFlushScheduled=false;
+						}
+					try
+						{
+						flush();
+						}
+					catch (IOException e)
+						{
+						//Kept, and reported by the next edit
+						}
+					}
+				}.start();
+			}
+		}
+
+	/**
+	 * Write the records queued so far, and make sure they are on disk
+	 */
+	public void flush() throws IOException
+		{
+		synchronized (writeLock)
+			{
+			ArrayList<byte[]> toWrite;
+			synchronized (this)
+				{
+				if(writeError!=null)
+					throw new IOException("Journal could not be written: "+writeError.getMessage(), writeError);
+				toWrite=pending;
+				pending=new ArrayList<byte[]>();
+				replaceableIndex=-1;
+				}
+			if(toWrite.isEmpty())
+				return;
+
+			ByteArrayOutputStream bos=new ByteArrayOutputStream();
+			for(byte[] rec:toWrite)
+				bos.write(rec);
+			try
+				{
+				raf.write(bos.toByteArray());
+				raf.getChannel().force(false);
+				}
+			catch (IOException e)
+				{
+				synchronized (this)
+					{
+					writeError=e;
+					}
+				throw e;
+				}
+			synchronized (this)
+				{
+				pendingLength-=bos.size();
+				writtenLength+=bos.size();
+				}
+			}
+		}
+
+	/**
+	 * Start a record about a sequence
+	 */
+	private DataOutputStream startRecord(ByteArrayOutputStream bos, int index) throws IOException
+		{
+		DataOutputStream dos=new DataOutputStream(bos);
+		dos.writeInt(index);
+		return dos;
+		}
+
+	/**
+	 * Append a record, and save the project in the background if the journal is large
+	 */
+	private void appendAndCompact(byte type, ByteArrayOutputStream bos, int replaceIndex) throws IOException
+		{
+		append(type, bos, replaceIndex);
+		boolean isLarge;
+		synchronized (this)
+			{
+			isLarge=writtenLength+pendingLength>compactSize;
+			}
+		if(isLarge)
+			compactInBackground();
+		}
+
+	private void appendAndCompact(byte type, ByteArrayOutputStream bos) throws IOException
+		{
+		appendAndCompact(type, bos, -1);
+		}
+
+	/**
+	 * Current length of the journal, including records not yet written. These are no longer replaced, so
+	 * that the length can be used to tell which edits are in a snapshot
+	 */
+	public synchronized long getLength()
+		{
+		replaceableIndex=-1;
+		return isOpen ? writtenLength+pendingLength : 0;
+		}
+
+
+	/**
+	 * The sequence has changed in some other way than below. All of it is kept, but if it changes again before
+	 * written, only the latest version
+	 */
+	public void sequenceModified(int index, AnnotatedSequence seq) throws IOException
+		{
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		startRecord(bos, index).write(CollageneBinary.getPayload(seq));
+		appendAndCompact(REC_SEQUENCE_MODIFIED, bos, index);
+		}
+
+	/**
+	 * Part of the sequence has been replaced, see AnnotatedSequence.replaceSequence. Only the edit is kept
+	 */
+	public void sequenceEdited(int index, SequenceRange range, String upper, String lower) throws IOException
+		{
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		DataOutputStream dos=startRecord(bos, index);
+		dos.writeInt(range.from);
+		dos.writeInt(range.to);
+		CollageneBinary.writeString(dos, upper);
+		CollageneBinary.writeString(dos, lower);
+		dos.flush();
+		appendAndCompact(REC_SEQUENCE_EDITED, bos);
+		}
+
+	public void sequenceAdded(AnnotatedSequence seq) throws IOException
+		{
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		bos.write(CollageneBinary.getPayload(seq));
+		appendAndCompact(REC_SEQUENCE_ADDED, bos);
+		}
+
+	public void sequenceRemoved(int index) throws IOException
+		{
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		startRecord(bos, index).flush();
+		appendAndCompact(REC_SEQUENCE_REMOVED, bos);
+		}
+
+	public void annotationAdded(int index, SeqAnnotation a) throws IOException
+		{
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		DataOutputStream dos=startRecord(bos, index);
+		CollageneBinary.writeString(dos, a.name);
+		CollageneBinary.writeString(dos, a.note);
+		CollageneBinary.writeString(dos, a.desc);
+		dos.writeInt(a.getFrom());
+		dos.writeInt(a.getTo());
+		dos.writeByte(CollageneBinary.orientationToByte(a.orientation));
+		dos.writeInt(a.color.r);
+		dos.writeInt(a.color.g);
+		dos.writeInt(a.color.b);
+		dos.flush();
+		appendAndCompact(REC_ANNOTATION_ADDED, bos);
+		}
+
+	public void primerAdded(int index, Primer p) throws IOException
+		{
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		DataOutputStream dos=startRecord(bos, index);
+		CollageneBinary.writeString(dos, p.name);
+		CollageneBinary.writeString(dos, p.sequence);
+		dos.writeInt(p.targetPosition);
+		dos.writeByte(CollageneBinary.orientationToByte(p.orientation));
+		dos.flush();
+		appendAndCompact(REC_PRIMER_ADDED, bos);
+		}
+
+	public void new0(int index, int pos) throws IOException
+		{
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		startRecord(bos, index).writeInt(pos);
+		appendAndCompact(REC_NEW0, bos);
+		}
+
+
+	/**
+	 * Write a snapshot of the project, and start the journal anew. The snapshot holds the edits in the journal
+	 * up to the given position. Edits appended while it is written are kept
+	 */
+	public void writeSnapshot(ProjectSnapshot snapshot, long journalPos) throws IOException
+		{
+		long fingerprint=snapshot.getFingerprint();
+
+		//If the save does not complete, the old project file is still there. Otherwise this tells which edits are in it.
+		//It must be on disk before the project file is written
+		ByteArrayOutputStream bos=new ByteArrayOutputStream();
+		DataOutputStream dos=new DataOutputStream(bos);
+		dos.writeLong(fingerprint);
+		dos.writeLong(journalPos);
+		dos.flush();
+		append(REC_CHECKPOINT, bos, -1);
+		flush();
+
+		snapshot.write();
+
+		//Edits can still be queued meanwhile, but not written
+		synchronized (writeLock)
+			{
+			//If closed meanwhile, the checkpoint tells which edits are in the new file
+			if(raf==null)
+				return;
+
+			//Keep the edits written after the snapshot was taken
+			long length;
+			synchronized (this)
+				{
+				length=writtenLength;
+				}
+			byte[] rest=new byte[(int)(length-journalPos)];
+			raf.seek(journalPos);
+			raf.readFully(rest);
+			raf.close();
+			raf=null;
+
+			File tmp=new File(journalFile.getPath()+".tmp");
+			writeJournal(tmp, fingerprint, rest);
+			replaceJournal(tmp);
+			}
+		}
+
+	/**
+	 * Save the project in another thread, unless it is already being saved
+	 */
+	public void compactInBackground() throws IOException
+		{
+		synchronized (this)
+			{
+			if(isCompacting || !proj.tryBeginSave())
+				return;
+			isCompacting=true;
+			}
+		try
+			{
+			final long journalPos=getLength();
+			final ProjectSnapshot snapshot=proj.takeSnapshot();
+			new Thread()
+				{
+				public void run()
+					{
+					try
+						{
+						writeSnapshot(snapshot, journalPos);
+						}
+					catch (IOException e)
+						{
+						//The journal is still complete, so nothing is lost. The next save will tell if the problem remains
+						}
+					finally
+						{
+						endCompact();
+						}
+					}
+				}.start();
+			}
+		catch (IOException e)
+			{
+			endCompact();
+			throw e;
+			}
+		catch (RuntimeException e)
+			{
+			endCompact();
+			throw e;
+			}
+		}
+
+	private void endCompact()
+		{
+		synchronized (this)
+			{
+			isCompacting=false;
+			}
+		proj.endSave();
+		}
+
+
+	/**
+	 * Stop writing to the journal. It is kept, so the edits can be recovered
+	 */
+	public void close() throws IOException
+		{
+		try
+			{
+			flush();
+			}
+		finally
+			{
+			synchronized (writeLock)
+				{
+				synchronized (this)
+					{
+					isOpen=false;
+					}
+				if(raf!=null)
+					{
+					raf.close();
+					raf=null;
+					}
+				}
+			}
+		}
+	}
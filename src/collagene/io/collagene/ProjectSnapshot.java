@@ -0,0 +1,23 @@
+package collagene.io.collagene;
+
+import java.io.IOException;
+
+/**
+ * 
+ * The content of a project, taken so that it can be written to file later, possibly by another thread
+ * 
+ * @author Johan Henriksson
+ *
+ */
+public interface ProjectSnapshot
+	{
+	/**
+	 * Identifies the content of the file once written. May be called from another thread
+	 */
+	public long getFingerprint() throws IOException;
+
+	/**
+	 * Write the file
+	 */
+	public void write() throws IOException;
+	}
@@ -0,0 +1,299 @@
+package collagene.io.input;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import collagene.seq.AnnotatedSequence;
+import collagene.util.RandomAccessible;
+import collagene.util.RandomAccessibleMapped;
+
+/**
+ * Index of a FASTA file, compatible with samtools faidx (.fai). Records, or parts of them, can then be read
+ * without reading the rest of the file.
+ *
+ * Every line of a record must have the same length, except the last one. The name of a record is the first word
+ * of its header
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class FastaIndex
+	{
+	/**
+	 * Where a record is in the file
+	 */
+	public static class Entry
+		{
+		public String name;
+		public long length;     //Number of bases
+		public long offset;     //Position of the first base
+		public int lineBases;   //Bases per line
+		public int lineWidth;   //Bytes per line, including the line break
+		}
+
+	private static final Charset latin1=Charset.forName("ISO-8859-1");
+
+	private ArrayList<Entry> entries=new ArrayList<Entry>();
+	private HashMap<String, Entry> mapEntries=new HashMap<String, Entry>();
+
+
+	/**
+	 * Get the file holding the index of a FASTA file
+	 */
+	public static File getIndexFile(File fasta)
+		{
+		return new File(fasta.getPath()+".fai");
+		}
+
+	/**
+	 * Get the index of a FASTA file. An existing index is used if it is newer than the file, otherwise one is built
+	 * and stored if possible
+	 */
+	public static FastaIndex open(File fasta) throws IOException
+		{
+		File fai=getIndexFile(fasta);
+		if(fai.exists() && fai.lastModified()>=fasta.lastModified())
+			return read(fai);
+
+		RandomAccessible ra=new RandomAccessibleMapped(fasta, "r");
+		FastaIndex index;
+		try
+			{
+			index=build(ra);
+			}
+		finally
+			{
+			ra.close();
+			}
+		try
+			{
+			index.write(fai);
+			}
+		catch (IOException e)
+			{
+			//The directory may not be writable. The index can still be used
+			}
+		return index;
+		}
+
+
+	/**
+	 * Build an index by reading through the file once
+	 */
+	public static FastaIndex build(RandomAccessible ra) throws IOException
+		{
+		FastaIndex index=new FastaIndex();
+		ra.seek(0);
+
+		byte[] buf=new byte[65536];
+		long bufStart=0;
+		int bufLen=0;
+
+		Entry cur=null;
+		StringBuilder header=null;
+		long lineStart=0;
+		int lineBases=0;
+		boolean lastLineShort=false;
+
+		for(long pos=0;;pos++)
+			{
+			if(pos==bufStart+bufLen)
+				{
+				bufStart=pos;
+				bufLen=Math.max(0, ra.read(buf, 0, buf.length));
+				}
+			int c=pos<bufStart+bufLen ? buf[(int)(pos-bufStart)]&0xFF : -1;
+
+			if(header!=null)
+				{
+				//Reading the header
+				if(c=='\n' || c==-1)
+					{
+					cur=new Entry();
+					String h=header.toString().trim();
+					int spacei=h.indexOf(' ');
+					if(spacei==-1)
+						spacei=h.indexOf('\t');
+					cur.name=spacei==-1 ? h : h.substring(0,spacei);
+					cur.offset=pos+1;
+					index.add(cur);
+					header=null;
+					lineStart=pos+1;
+					lineBases=0;
+					lastLineShort=false;
+					}
+				else if(c!='\r')
+					header.append((char)c);
+				}
+			else if(c=='>' && pos==lineStart)
+				header=new StringBuilder();
+			else if(c=='\n' || c==-1)
+				{
+				//End of a line of sequence. The last line of the file may lack the line break, so its width is not known
+				int width=(int)(pos+1-lineStart);
+				if(cur!=null && lineBases>0)
+					{
+					if(lastLineShort)
+						throw new IOException("Lines of different length in record "+cur.name);
+					if(cur.lineBases==0)
+						{
+						cur.lineBases=lineBases;
+						cur.lineWidth=width;
+						}
+					else if(lineBases>cur.lineBases || (c!=-1 && width-lineBases!=cur.lineWidth-cur.lineBases))
+						throw new IOException("Lines of different length in record "+cur.name);
+					else if(lineBases<cur.lineBases)
+						lastLineShort=true;
+					cur.length+=lineBases;
+					}
+				else if(cur!=null && cur.length>0)
+					lastLineShort=true;
+				lineStart=pos+1;
+				lineBases=0;
+				}
+			else if(c!='\r')
+				lineBases++;
+
+			if(c==-1)
+				break;
+			}
+		return index;
+		}
+
+	private void add(Entry e)
+		{
+		entries.add(e);
+		mapEntries.put(e.name, e);
+		}
+
+
+	/**
+	 * Read an index file
+	 */
+	public static FastaIndex read(File fai) throws IOException
+		{
+		FastaIndex index=new FastaIndex();
+		BufferedReader br=new BufferedReader(new FileReader(fai));
+		try
+			{
+			String line;
+			while((line=br.readLine())!=null)
+				{
+				if(line.isEmpty())
+					continue;
+				String[] cols=line.split("\t");
+				if(cols.length<5)
+					throw new IOException("Malformed index line: "+line);
+				Entry e=new Entry();
+				e.name=cols[0];
+				e.length=Long.parseLong(cols[1]);
+				e.offset=Long.parseLong(cols[2]);
+				e.lineBases=Integer.parseInt(cols[3]);
+				e.lineWidth=Integer.parseInt(cols[4]);
+				index.add(e);
+				}
+			}
+		catch (NumberFormatException e)
+			{
+			throw new IOException("Malformed index: "+e.getMessage());
+			}
+		finally
+			{
+			br.close();
+			}
+		return index;
+		}
+
+
+	/**
+	 * Write an index file
+	 */
+	public void write(File fai) throws IOException
+		{
+		PrintWriter pw=new PrintWriter(new FileWriter(fai));
+		for(Entry e:entries)
+			pw.println(e.name+"\t"+e.length+"\t"+e.offset+"\t"+e.lineBases+"\t"+e.lineWidth);
+		pw.close();
+		if(pw.checkError())
+			throw new IOException("Could not write "+fai);
+		}
+
+
+	/**
+	 * All records, in the order of the file
+	 */
+	public List<Entry> getEntries()
+		{
+		return Collections.unmodifiableList(entries);
+		}
+
+	/**
+	 * Get a record by name, or null if not present
+	 */
+	public Entry getEntry(String name)
+		{
+		return mapEntries.get(name);
+		}
+
+
+	/**
+	 * Read the bases [from,to) of a record
+	 */
+	public String getSequence(RandomAccessible ra, String name, long from, long to) throws IOException
+		{
+		Entry e=mapEntries.get(name);
+		if(e==null)
+			throw new IOException("No such record: "+name);
+		if(from<0 || to>e.length || from>to)
+			throw new IOException("Range "+from+"-"+to+" outside record "+name+" of length "+e.length);
+		if(from==to)
+			return "";
+
+		//Read the lines covering the range in one go, then remove the line breaks
+		long start=getFilePosition(e, from);
+		long end=getFilePosition(e, to-1)+1;
+		ByteBuffer buf=ra.getBuffer(start, (int)(end-start));
+		byte[] bases=new byte[(int)(to-from)];
+		int n=0;
+		while(buf.hasRemaining())
+			{
+			byte b=buf.get();
+			if(b!='\n' && b!='\r')
+				bases[n++]=b;
+			}
+		return new String(bases, 0, n, latin1);
+		}
+
+	/**
+	 * Position in the file of a base
+	 */
+	private static long getFilePosition(Entry e, long i)
+		{
+		return e.offset + (i/e.lineBases)*e.lineWidth + i%e.lineBases;
+		}
+
+
+	/**
+	 * Read a whole record as a sequence
+	 */
+	public AnnotatedSequence getRecord(RandomAccessible ra, String name) throws IOException
+		{
+		Entry e=mapEntries.get(name);
+		if(e==null)
+			throw new IOException("No such record: "+name);
+		AnnotatedSequence seq=new AnnotatedSequence();
+		seq.name=name;
+		seq.setSequence(getSequence(ra, name, 0, e.length));
+		return seq;
+		}
+	}
@@ -1,14 +1,17 @@
 package collagene.io.input;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.LinkedList;
 
 import collagene.io.SequenceImporter;
 import collagene.seq.AnnotatedSequence;
+import collagene.util.RandomAccessible;
+import collagene.util.RandomAccessibleMapped;
 
 
 /**
- * Reader of FASTA files, without indexing them
+ * Reader of FASTA files. Whole files are read without indexing them; see FastaIndex for reading single records
  * 
  * @author Johan Henriksson
  */
@@ -23,6 +26,51 @@ public class ImportFASTA implements SequenceImporter
 		}
 	
 	
+	/**
+	 * Load one record, using the index of the file. The index is built if needed
+	 */
+	public static AnnotatedSequence load(File infile, String name) throws IOException
+		{
+		return load(infile, FastaIndex.open(infile), name);
+		}
+	
+	
+	/**
+	 * Load the first record, or null if there is none. Only this record is kept in memory, using the index of the
+	 * file. A file that cannot be indexed, such as with lines of different length, is read whole instead
+	 */
+	public static AnnotatedSequence loadFirst(File infile) throws IOException
+		{
+		FastaIndex index;
+		try
+			{
+			index=FastaIndex.open(infile);
+			}
+		catch (IOException e)
+			{
+			LinkedList<AnnotatedSequence> list=load(infile);
+			return list.isEmpty() ? null : list.getFirst();
+			}
+		if(index.getEntries().isEmpty())
+			return null;
+		return load(infile, index, index.getEntries().get(0).name);
+		}
+	
+	
+	private static AnnotatedSequence load(File infile, FastaIndex index, String name) throws IOException
+		{
+		RandomAccessible ra=new RandomAccessibleMapped(infile, "r");
+		try
+			{
+			return index.getRecord(ra, name);
+			}
+		finally
+			{
+			ra.close();
+			}
+		}
+	
+	
 	/**
 	 * 
 	 * @param input2
@@ -67,13 +115,14 @@ public class ImportFASTA implements SequenceImporter
 
 
 	/**
-	 * Check if data is FASTA
+	 * Check if data is FASTA: the first line is a header
 	 */
-	public boolean isType(InputStream is) throws IOException
+	public double probe(ByteBuffer head)
 		{
-		BufferedReader br=new BufferedReader(new InputStreamReader(is));
-		String line=br.readLine();
-		return line!=null && line.startsWith(">");
+		int i=head.position();
+		while(i<head.limit() && Character.isWhitespace(head.get(i)))
+			i++;
+		return i<head.limit() && head.get(i)=='>' ? 0.9 : 0;
 		}
 
 
@@ -1,10 +1,14 @@
 package collagene.io.input;
 
-import java.io.BufferedReader;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
 
 import collagene.gui.colors.ColorSet;
@@ -16,193 +20,416 @@ import collagene.seq.SeqColor;
 
 /**
  * Importer from the genbank format
- * 
+ *
  * SerialCloner has extensions: http://serialbasics.free.fr/Serial_Cloner-Download_files/Features%20ReadMe.pdf
  * ApE has extensions
- * 
+ *
+ * The file is parsed from a byte buffer, mapped into memory if it comes from a file. Strings are only made for
+ * names and qualifiers; the sequence is copied directly into a buffer
+ *
  * @author Johan Henriksson
  *
  */
 public class ImportGenbank implements SequenceImporter
 	{
-	
+	private static final Charset latin1=Charset.forName("ISO-8859-1");
+
+	//Column where qualifiers and location continuations start
+	private static final int QUALIFIER_COLUMN=21;
+
+	private static final int SECTION_NONE=0, SECTION_FEATURES=1, SECTION_ORIGIN=2;
+
 
-	
 	/**
-	 * Check if data is in genbank format
+	 * Check if data is in genbank format: it starts with a LOCUS line
 	 */
-	public boolean isType(InputStream is) throws IOException
+	public double probe(ByteBuffer head)
 		{
-		try
+		int i=head.position();
+		while(i<head.limit() && Character.isWhitespace(head.get(i)))
+			i++;
+		String magic="LOCUS";
+		if(head.limit()-i<magic.length())
+			return 0;
+		for(int j=0;j<magic.length();j++)
+			if(head.get(i+j)!=magic.charAt(j))
+				return 0;
+		return 1;
+		}
+
+	/**
+	 * Load data
+	 */
+	public List<AnnotatedSequence> load(InputStream is) throws IOException
+		{
+		if(is instanceof FileInputStream)
 			{
-			load(is);
-			return true;
+			FileChannel ch=((FileInputStream)is).getChannel();
+			return load(ch.map(FileChannel.MapMode.READ_ONLY, ch.position(), ch.size()-ch.position()));
 			}
-		catch (Exception e)
+		else
 			{
-		e.printStackTrace();
-			return false;
+			byte[] arr=new byte[65536];
+			int len=0;
+			for(;;)
+				{
+				if(len==arr.length)
+					arr=Arrays.copyOf(arr, arr.length*2);
+				int n=is.read(arr, len, arr.length-len);
+				if(n==-1)
+					break;
+				len+=n;
+				}
+			return load(ByteBuffer.wrap(arr, 0, len));
 			}
-		/*
-		BufferedReader br=new BufferedReader(new InputStreamReader(is));
-		String line=br.readLine();
-		return line!=null && line.contains("LOCUS");*/
 		}
 
 	/**
-	 * Load data
+	 * Load all records from a buffer
 	 */
-	public List<AnnotatedSequence> load(InputStream is) throws IOException
+	public List<AnnotatedSequence> load(ByteBuffer buf) throws IOException
+		{
+		Parser p=new Parser(buf);
+		p.parse();
+		if(p.seqs.isEmpty())
+			throw new IOException("No genbank record found");
+		return p.seqs;
+		}
+
+
+	/**
+	 * State while parsing. The current line is [lineStart,lineEnd) in the buffer
+	 */
+	private static class Parser
 		{
-		AnnotatedSequence seq=new AnnotatedSequence();
-		BufferedReader br=new BufferedReader(new InputStreamReader(is));
-
-		ColorSet colorset=ColorSet.colorset;
-		int curcol=0;
-		String line;
-		line=br.readLine();
-		upper: for(;;)
+		private ByteBuffer buf;
+		private int pos, limit;
+		private int lineStart, lineEnd;
+
+		private LinkedList<AnnotatedSequence> seqs=new LinkedList<AnnotatedSequence>();
+		private AnnotatedSequence seq;
+		private byte[] letters=new byte[0];
+		private int numLetters;
+
+		private ColorSet colorset=ColorSet.colorset;
+		private int curcol=0;
+
+		//The feature being read
+		private String featureKey;
+		private StringBuilder featureLocation=new StringBuilder();
+		private ArrayList<String> qualifierNames=new ArrayList<String>();
+		private ArrayList<StringBuilder> qualifierValues=new ArrayList<StringBuilder>();
+
+		public Parser(ByteBuffer buf)
 			{
-			if(line.contains("LOCUS"))
+			this.buf=buf;
+			pos=buf.position();
+			limit=buf.limit();
+			}
+
+		/**
+		 * Move to the next line, without the line break. Returns false at the end
+		 */
+		private boolean nextLine()
+			{
+			if(pos>=limit)
+				return false;
+			lineStart=pos;
+			while(pos<limit && buf.get(pos)!='\n')
+				pos++;
+			lineEnd=pos;
+			if(lineEnd>lineStart && buf.get(lineEnd-1)=='\r')
+				lineEnd--;
+			pos++;
+			return true;
+			}
+
+		private boolean lineStartsWith(String s)
+			{
+			if(lineEnd-lineStart<s.length())
+				return false;
+			for(int i=0;i<s.length();i++)
+				if(buf.get(lineStart+i)!=s.charAt(i))
+					return false;
+			return true;
+			}
+
+		private byte charAt(int i)
+			{
+			return lineStart+i<lineEnd ? buf.get(lineStart+i) : (byte)' ';
+			}
+
+		/**
+		 * Part of the current line as a string, trimmed
+		 */
+		private String getLine(int from)
+			{
+			int s=Math.min(lineStart+from, lineEnd);
+			int e=lineEnd;
+			while(s<e && buf.get(s)<=' ')
+				s++;
+			while(e>s && buf.get(e-1)<=' ')
+				e--;
+			byte[] b=new byte[e-s];
+			for(int i=0;i<b.length;i++)
+				b[i]=buf.get(s+i);
+			return new String(b, latin1);
+			}
+
+		public void parse() throws IOException
+			{
+			int section=SECTION_NONE;
+			while(nextLine())
 				{
-				seq.name=line.substring("LOCUS".length(),"LOCUS".length()+31).trim();
-				line=line.toUpperCase();
-				seq.isCircular=line.contains("CIRCULAR");
+				if(lineStartsWith("LOCUS"))
+					{
+					endRecord();
+					parseLocus();
+					section=SECTION_NONE;
+					}
+				else if(seq==null)
+					;
+				else if(lineStartsWith("//"))
+					{
+					endRecord();
+					section=SECTION_NONE;
+					}
+				else if(lineStartsWith("FEATURES"))
+					section=SECTION_FEATURES;
+				else if(lineStartsWith("ORIGIN"))
+					{
+					endFeature();
+					section=SECTION_ORIGIN;
+					}
+				else if(charAt(0)!=' ')
+					{
+					//Some other header
+					endFeature();
+					section=SECTION_NONE;
+					}
+				else if(section==SECTION_FEATURES)
+					parseFeatureLine();
+				else if(section==SECTION_ORIGIN)
+					{
+					//Letters only, skipping positions and spaces
+					if(letters.length-numLetters<lineEnd-lineStart)
+						letters=Arrays.copyOf(letters, Math.max(letters.length*2, numLetters+lineEnd-lineStart));
+					for(int i=lineStart;i<lineEnd;i++)
+						{
+						byte c=buf.get(i);
+						if(c>='a' && c<='z')
+							letters[numLetters++]=(byte)(c-'a'+'A');
+						else if(c>='A' && c<='Z')
+							letters[numLetters++]=c;
+						}
+					}
 				}
-			else if(line.contains("FEATURES"))
+			endRecord();
+			}
+
+		/**
+		 * LOCUS name length bp type topology ...
+		 */
+		private void parseLocus()
+			{
+			seq=new AnnotatedSequence();
+			String[] tok=getLine("LOCUS".length()).split("\\s+");
+			seq.name=tok[0];
+			for(int i=1;i<tok.length;i++)
 				{
-				line=br.readLine();
-				for(;;)
+				String t=tok[i].toUpperCase();
+				if(t.equals("CIRCULAR"))
+					seq.isCircular=true;
+				else if(t.equals("BP") && i>1)
 					{
-					if(line.startsWith("     "))
+					//Allocate room for the sequence in advance
+					try
+						{
+						letters=new byte[Integer.parseInt(tok[i-1])];
+						}
+					catch (NumberFormatException e)
 						{
-						line=line.trim();
-						String fname=line.substring(0,line.indexOf(' '));
-						System.out.println(fname);
-						line=line.substring(line.indexOf(' ')).trim();
-						
-						SeqAnnotation annot=new SeqAnnotation();
-						seq.annotations.add(annot);
-						annot.name=fname;
-
-						annot.orientation=Orientation.FORWARD;
-						if(line.startsWith("complement"))
-							{ //Handle complement(....)
-							annot.orientation=Orientation.REVERSE;
-							line=line.substring("complement(".length());
-							line=line.substring(0,line.length()-1);
-							}
-						int doti=line.indexOf('.');
-						String sfrom=line.substring(0,doti);
-						String sto=line.substring(doti+2);
-						annot.range.from=Integer.parseInt(sfrom)-1;
-						annot.range.to=Integer.parseInt(sto);
-						
-						curcol=(curcol+1)%colorset.size();
-						annot.color=new SeqColor(colorset.get(curcol));
-
-						
-						line=br.readLine();
-						for(;;)
-							{
-							if(line.startsWith("                     /"))
-								{
-								line=line.trim().substring(1);
-
-								int eqIndeX=line.indexOf('=');
-								String pname=line.substring(0,eqIndeX);
-								String pvalue="";
-								line=line.substring(eqIndeX+1);
-								if(line.startsWith("\""))
-									{
-									//Read until the last " if a starting " appears
-									line=line.substring(1);
-									for(;;)
-										{
-										int ind=line.indexOf('"');
-										if(ind!=-1)
-											{
-											System.out.println("================ "+line);
-											pvalue+=line.substring(0,ind).trim();
-											break;
-											}
-										else
-											{
-											pvalue+=line;
-											line=br.readLine();
-											}
-										}
-									}
-								else
-									pvalue=line;
-								System.out.println("name:"+pname);
-								System.out.println("value:"+pvalue);
-								System.out.println();
-								System.out.println();
-								
-								if(pname.equals("label"))
-									{
-									annot.name=pvalue;
-									}
-								else if(pname.equals("note"))
-									{
-									annot.name=pvalue;
-									}
-								else if(pname.equals("ApEinfo_revcolor"))
-									{
-									String c=pvalue.substring("#".length());
-									annot.color.r=Integer.parseInt(c.substring(0,2), 16);
-									annot.color.g=Integer.parseInt(c.substring(2,4), 16);
-									annot.color.b=Integer.parseInt(c.substring(4,6), 16);
-									}
-								else
-									{
-									System.out.println("Unknown pname:"+pname);
-									}
-								
-//								System.out.println("++++ "+line);
-								line=br.readLine();
-								}
-							else
-								{
-								System.out.println("end on:"+line);
-								break;
-								}
-							}
 						}
-					else
-						continue upper;
 					}
 				}
-			else if(line.contains("ORIGIN"))
+			numLetters=0;
+			}
+
+		private void endRecord() throws IOException
+			{
+			if(seq!=null)
 				{
-				//Here is the sequence
-				StringBuilder sb=new StringBuilder();
-				line=br.readLine();
-				for(;;)
+				endFeature();
+				seq.setSequence(new String(letters, 0, numLetters, latin1));
+				seqs.add(seq);
+				seq=null;
+				letters=new byte[0];
+				numLetters=0;
+				}
+			}
+
+		/**
+		 * A line in the feature table: a new feature, a qualifier, or a continuation of either
+		 */
+		private void parseFeatureLine() throws IOException
+			{
+			if(charAt(5)!=' ')
+				{
+				endFeature();
+				String line=getLine(5);
+				int spacei=line.indexOf(' ');
+				if(spacei==-1)
 					{
-					if(line.startsWith(" "))
+					featureKey=line;
+					featureLocation.setLength(0);
+					}
+				else
+					{
+					featureKey=line.substring(0,spacei);
+					featureLocation.setLength(0);
+					featureLocation.append(line.substring(spacei).trim());
+					}
+				}
+			else if(featureKey!=null)
+				{
+				String line=getLine(QUALIFIER_COLUMN);
+				if(charAt(QUALIFIER_COLUMN)=='/')
+					{
+					int eqIndex=line.indexOf('=');
+					StringBuilder value=new StringBuilder();
+					if(eqIndex==-1)
+						qualifierNames.add(line.substring(1));
+					else
 						{
-						for(char c:line.toCharArray())
-							if(" 0123456789".indexOf(c)==-1)
-								sb.append(c);
+						qualifierNames.add(line.substring(1,eqIndex));
+						value.append(line.substring(eqIndex+1));
 						}
+					qualifierValues.add(value);
+					}
+				else if(!qualifierValues.isEmpty())
+					{
+					//Continuation of a value. Sequences are joined without space
+					StringBuilder value=qualifierValues.get(qualifierValues.size()-1);
+					if(!qualifierNames.get(qualifierNames.size()-1).equals("translation"))
+						value.append(' ');
+					value.append(line);
+					}
+				else
+					featureLocation.append(line);
+				}
+			}
+
+		/**
+		 * Add the feature that has been read, if any
+		 */
+		private void endFeature() throws IOException
+			{
+			if(featureKey==null)
+				return;
+
+			SeqAnnotation annot=new SeqAnnotation();
+			annot.name=featureKey;
+			curcol=(curcol+1)%colorset.size();
+			annot.color=new SeqColor(colorset.get(curcol));
+			if(parseLocation(featureLocation.toString(), annot))
+				seq.annotations.add(annot);
+
+			for(int i=0;i<qualifierNames.size();i++)
+				{
+				String pname=qualifierNames.get(i);
+				String pvalue=qualifierValues.get(i).toString();
+				if(pvalue.startsWith("\""))
+					{
+					pvalue=pvalue.substring(1);
+					if(pvalue.endsWith("\""))
+						pvalue=pvalue.substring(0,pvalue.length()-1);
+					pvalue=pvalue.replace("\"\"", "\"");
+					}
+
+				if(pname.equals("label"))
+					annot.name=pvalue;
+				else if(pname.equals("note"))
+					annot.name=pvalue;
+				else if(pname.equals("ApEinfo_revcolor"))
+					{
+					String c=pvalue.substring("#".length());
+					annot.color.r=Integer.parseInt(c.substring(0,2), 16);
+					annot.color.g=Integer.parseInt(c.substring(2,4), 16);
+					annot.color.b=Integer.parseInt(c.substring(4,6), 16);
+					}
+				}
+
+			featureKey=null;
+			featureLocation.setLength(0);
+			qualifierNames.clear();
+			qualifierValues.clear();
+			}
+
+		/**
+		 * Parse a location such as 3..10, complement(3..10), join(1..5,8..10) or order(...). A location of several
+		 * parts is covered from the start of the first part to the end of the last, so it may wrap around the
+		 * 0-position. Returns false if it refers to another record
+		 */
+		private boolean parseLocation(String loc, SeqAnnotation annot) throws IOException
+			{
+			annot.orientation=Orientation.FORWARD;
+			if(loc.startsWith("complement("))
+				annot.orientation=Orientation.REVERSE;
+
+			//The parts, in the order listed
+			boolean innerComplement=false;
+			ArrayList<int[]> parts=new ArrayList<int[]>();
+			for(String part:loc.replace("<", "").replace(">", "").split(","))
+				{
+				if(part.contains("complement(") && annot.orientation==Orientation.FORWARD)
+					innerComplement=true;
+				part=part.replace("complement(", "").replace("join(", "").replace("order(", "").replace(")", "").trim();
+				if(part.contains(":"))
+					return false;
+				try
+					{
+					int doti=part.indexOf("..");
+					int careti=part.indexOf('^');
+					if(doti!=-1)
+						parts.add(new int[]{Integer.parseInt(part.substring(0,doti))-1, Integer.parseInt(part.substring(doti+2))});
+					else if(careti!=-1)
+						parts.add(new int[]{Integer.parseInt(part.substring(0,careti))-1, Integer.parseInt(part.substring(careti+1))});
 					else
 						{
-						seq.setSequence(sb.toString());
-						break upper;
+						int p=Integer.parseInt(part);
+						parts.add(new int[]{p-1, p});
 						}
-					line=br.readLine();
+					}
+				catch (NumberFormatException e)
+					{
+					throw new IOException("Cannot parse location: "+loc);
 					}
 				}
-			else if(line.equals("//"))
-				break;
-			line=br.readLine();
-			}
-		
+			if(parts.isEmpty())
+				throw new IOException("Cannot parse location: "+loc);
 
-		System.out.println(seq.getSequence());
-		
-		return Arrays.asList(seq);
+			//join(complement(b),complement(a)) lists the parts from the end of the sequence
+			if(innerComplement)
+				{
+				annot.orientation=Orientation.REVERSE;
+				for(int i=0;i<parts.size()/2;i++)
+					{
+					int[] t=parts.get(i);
+					parts.set(i, parts.get(parts.size()-1-i));
+					parts.set(parts.size()-1-i, t);
+					}
+				}
+			annot.range.from=parts.get(0)[0];
+			annot.range.to=parts.get(parts.size()-1)[1];
+			if(annot.range.from>annot.range.to && !seq.isCircular)
+				{
+				for(int[] p:parts)
+					{
+					annot.range.from=Math.min(annot.range.from, p[0]);
+					annot.range.to=Math.max(annot.range.to, p[1]);
+					}
+				}
+			return true;
+			}
 		}
 	}
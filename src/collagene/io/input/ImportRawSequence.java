@@ -1,6 +1,7 @@
 package collagene.io.input;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -45,21 +46,24 @@ public class ImportRawSequence implements SequenceImporter
 
 
 	/**
-	 * Check if data is FASTA
+	 * Check if data is a raw sequence: only nucleotide letters, spaces and numbers. As any format could start like
+	 * this, others take precedence
 	 */
-	public boolean isType(InputStream is) throws IOException
+	public double probe(ByteBuffer head)
 		{
-		try
+		int numLetters=0;
+		for(int i=head.position();i<head.limit();i++)
 			{
-			load(is);
-			return true;
-			}
-		catch (Exception e)
-			{
-			System.out.println("not raw sequence");
-			//e.printStackTrace();
-			return false;
+			char c=Character.toUpperCase((char)(head.get(i)&0xFF));
+			if(!Character.isWhitespace(c) && !Character.isDigit(c))
+				{
+				if(NucleotideUtil.isValidNucLetter(c))
+					numLetters++;
+				else
+					return 0;
+				}
 			}
+		return numLetters>0 ? 0.5 : 0;
 		}
 
 
@@ -2,6 +2,7 @@ package collagene.io.input;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -21,20 +22,19 @@ import collagene.sequtil.NucleotideUtil;
  */
 public class ImportSeqTrace implements SequenceImporter
 	{
-	@Override
-	public boolean isType(InputStream is) throws IOException
+	/**
+	 * Check if data is SCF, by the magic number
+	 */
+	public double probe(ByteBuffer head)
 		{
-		try
-			{
-			new TraceReaderSCF().readFile(is);
-			return true;
-			}
-		catch (Exception e)
-			{
-			System.out.println("not scf");
-			//e.printStackTrace();
-			return false;
-			}
+		int i=head.position();
+		String magic=".scf";
+		if(head.limit()-i<magic.length())
+			return 0;
+		for(int j=0;j<magic.length();j++)
+			if(head.get(i+j)!=magic.charAt(j))
+				return 0;
+		return 1;
 		}
 
 
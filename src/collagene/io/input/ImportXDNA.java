@@ -3,6 +3,7 @@ package collagene.io.input;
 import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 
@@ -44,20 +45,24 @@ public class ImportXDNA implements SequenceImporter
 
 
 
-	@Override
-	public boolean isType(InputStream is) throws IOException
+	/**
+	 * Check if data is XDNA: the header has a known type and topology, and the sequence follows it
+	 */
+	public double probe(ByteBuffer head)
 		{
-		try
-			{
-			load(is);
-			return true;
-			}
-		catch (Exception e)
-			{
-			System.out.println("not xdna");
-			//e.printStackTrace();
-			return false;
-			}
+		int start=head.position();
+		if(head.limit()-start<112)
+			return 0;
+		int seqtype=head.get(start+1);
+		int topology=head.get(start+2);
+		int seqlength=head.getInt(start+28);
+		int commentLength=head.getInt(start+96);
+		if(seqtype<1 || seqtype>3 || (topology!=0 && topology!=1) || seqlength<0 || commentLength<0)
+			return 0;
+		for(int i=start+112;i<head.limit() && i<start+112+seqlength;i++)
+			if(!NucleotideUtil.isValidNucLetter(Character.toUpperCase((char)(head.get(i)&0xFF))))
+				return 0;
+		return 0.8;
 		}
 
 
@@ -0,0 +1,363 @@
+package collagene.melting;
+
+import java.util.Arrays;
+
+import collagene.sequtil.NucleotideUtil;
+
+/**
+ * Santa lucia 2004, with mismatches and dangling ends. The duplex may have internal mismatches, a terminal
+ * mismatch or a dangling end at each side, and unpaired overhangs beyond those.
+ *
+ * SantaLucia & Hicks (2004), The thermodynamics of DNA structural motifs. Annu Rev Biophys Biomol Struct 33:415-40
+ *
+ * Internal mismatches: Allawi & SantaLucia (1997, 1998), Peyret et al (1999).
+ * Terminal mismatches and dangling ends: Bommarito et al (2000)
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class CalcTmSanta04 implements CalcTm
+	{
+	//Letters, with 4 meaning no base
+	private static final byte[] code=new byte[128];
+	private static final int NONE=4;
+
+	//Values for a pair of neighbours, indexed by the codes of the upper pair (5'->3') and the lower pair (3'->5').
+	//Watson-Crick pairs, internal mismatches and dangling ends. NaN if not known
+	private static final double[] stackdH=new double[625];
+	private static final double[] stackdS=new double[625];
+
+	//Same, for a terminal mismatch
+	private static final double[] termdH=new double[625];
+	private static final double[] termdS=new double[625];
+
+	//Free energy of internal loops by number of unpaired letters, kcal/mol. Only entropy is assumed
+	private static final double[] loopdG=new double[]{0, 0, 0, 3.2, 3.6, 4.0, 4.4, 4.6, 4.8, 4.9, 4.9};
+
+	private static final double initdH=0.2*1000;
+	private static final double initdS=-5.7;
+	private static final double terminalATdH=2.2*1000;
+	private static final double terminalATdS=6.9;
+	private static final double dHsym=0;
+	private static final double dSsym=-1.4;
+	private static final double LOG4=Math.log(4);
+
+	public double concNa;   //[M] or other monovalent
+	public double concMg2;  //[M] or other divalent
+	public double concDNA;  //[M] total oligonucleotide concentration, C_T in paper
+	public double concDntp; //[M]
+
+
+	static
+		{
+		Arrays.fill(code, (byte)-1);
+		String letters="ACGT";
+		for(int i=0;i<4;i++)
+			{
+			code[letters.charAt(i)]=(byte)i;
+			code[Character.toLowerCase(letters.charAt(i))]=(byte)i;
+			}
+		code['.']=NONE;
+		code[' ']=NONE;
+		code['-']=NONE;
+
+		Arrays.fill(stackdH, Double.NaN);
+		Arrays.fill(stackdS, Double.NaN);
+		Arrays.fill(termdH, Double.NaN);
+		Arrays.fill(termdS, Double.NaN);
+
+		//Watson-Crick
+		String[] nn=new String[]{
+				"AA/TT", "-7.9", "-22.2",
+				"AT/TA", "-7.2", "-20.4",
+				"TA/AT", "-7.2", "-21.3",
+				"CA/GT", "-8.5", "-22.7",
+				"GT/CA", "-8.4", "-22.4",
+				"CT/GA", "-7.8", "-21.0",
+				"GA/CT", "-8.2", "-22.2",
+				"CG/GC", "-10.6", "-27.2",
+				"GC/CG", "-9.8", "-24.4",
+				"GG/CC", "-8.0", "-19.9"};
+
+		//Internal mismatches
+		String[] imm=new String[]{
+				"AG/TT", "1.0", "0.9",     "AT/TG", "-2.5", "-8.3",   "CG/GT", "-4.1", "-11.7",  "CT/GG", "-2.8", "-8.0",
+				"GG/CT", "3.3", "10.4",    "GG/TT", "5.8", "16.3",    "GT/CG", "-4.4", "-12.3",  "GT/TG", "4.1", "9.5",
+				"TG/AT", "-0.1", "-1.7",   "TG/GT", "-1.4", "-6.2",   "TT/AG", "-1.3", "-5.3",
+				"AA/TG", "-0.6", "-2.3",   "AG/TA", "-0.7", "-2.3",   "CA/GG", "-0.7", "-2.3",   "CG/GA", "-4.0", "-13.2",
+				"GA/CG", "-0.6", "-1.0",   "GG/CA", "0.5", "3.2",     "TA/AG", "0.7", "0.7",     "TG/AA", "3.0", "7.4",
+				"AC/TT", "0.7", "0.2",     "AT/TC", "-1.2", "-6.2",   "CC/GT", "-0.8", "-4.5",   "CT/GC", "-1.5", "-6.1",
+				"GC/CT", "2.3", "5.4",     "GT/CC", "5.2", "13.5",    "TC/AT", "1.2", "0.7",     "TT/AC", "1.0", "0.7",
+				"AA/TC", "2.3", "4.6",     "AC/TA", "5.3", "14.6",    "CA/GC", "1.9", "3.7",     "CC/GA", "0.6", "-0.6",
+				"GA/CC", "5.2", "14.2",    "GC/CA", "-0.7", "-3.8",   "TA/AC", "3.4", "8.0",     "TC/AA", "7.6", "20.2",
+				"AA/TA", "1.2", "1.7",     "CA/GA", "-0.9", "-4.2",   "GA/CA", "-2.9", "-9.8",   "TA/AA", "4.7", "12.9",
+				"AC/TC", "0.0", "-4.4",    "CC/GC", "-1.5", "-7.2",   "GC/CC", "3.6", "8.9",     "TC/AC", "6.1", "16.4",
+				"AG/TG", "-3.1", "-9.5",   "CG/GG", "-4.9", "-15.3",  "GG/CG", "-6.0", "-15.8",  "TG/AG", "1.6", "3.6",
+				"AT/TT", "-2.7", "-10.8",  "CT/GT", "-5.0", "-15.8",  "GT/CT", "-2.2", "-8.4",   "TT/AT", "0.2", "-1.5"};
+
+		//Dangling ends. A dot is a missing base
+		String[] de=new String[]{
+				"AA/.T", "0.2", "2.3",     "AC/.G", "-6.3", "-17.1",  "AG/.C", "-3.7", "-10.0",  "AT/.A", "-2.9", "-7.6",
+				"CA/.T", "0.6", "3.3",     "CC/.G", "-4.4", "-12.6",  "CG/.C", "-4.0", "-11.9",  "CT/.A", "-4.1", "-13.0",
+				"GA/.T", "-1.1", "-1.6",   "GC/.G", "-5.1", "-14.0",  "GG/.C", "-3.9", "-10.9",  "GT/.A", "-4.2", "-15.0",
+				"TA/.T", "-6.9", "-20.0",  "TC/.G", "-4.0", "-10.9",  "TG/.C", "-4.9", "-13.8",  "TT/.A", "-0.2", "-0.5",
+				".A/AT", "-0.7", "-0.8",   ".C/AG", "-2.1", "-3.9",   ".G/AC", "-5.9", "-16.5",  ".T/AA", "-0.5", "-1.1",
+				".A/CT", "4.4", "14.9",    ".C/CG", "-0.2", "-0.1",   ".G/CC", "-2.6", "-7.4",   ".T/CA", "4.7", "14.2",
+				".A/GT", "-1.6", "-3.6",   ".C/GG", "-3.9", "-11.2",  ".G/GC", "-3.2", "-10.4",  ".T/GA", "-4.1", "-13.1",
+				".A/TT", "2.9", "10.4",    ".C/TG", "-4.4", "-13.1",  ".G/TC", "-5.2", "-15.0",  ".T/TA", "-3.8", "-12.6"};
+
+		//Terminal mismatches
+		String[] tmm=new String[]{
+				"AA/TA", "-3.1", "-7.8",   "TA/AA", "-2.5", "-6.3",   "CA/GA", "-4.3", "-10.7",  "GA/CA", "-8.0", "-22.5",
+				"AC/TC", "-0.1", "0.5",    "TC/AC", "-0.7", "-1.3",   "CC/GC", "-2.1", "-5.1",   "GC/CC", "-3.9", "-10.6",
+				"AG/TG", "-1.1", "-2.1",   "TG/AG", "-1.1", "-2.7",   "CG/GG", "-3.8", "-9.5",   "GG/CG", "-0.7", "-19.2",
+				"AT/TT", "-2.4", "-6.5",   "TT/AT", "-3.2", "-8.9",   "CT/GT", "-6.1", "-16.9",  "GT/CT", "-7.4", "-21.2",
+				"AA/TC", "-1.6", "-4.0",   "AC/TA", "-1.8", "-3.8",   "CA/GC", "-2.6", "-5.9",   "CC/GA", "-2.7", "-6.0",
+				"GA/CC", "-5.0", "-13.8",  "GC/CA", "-3.2", "-7.1",   "TA/AC", "-2.3", "-5.9",   "TC/AA", "-2.7", "-7.0",
+				"AC/TT", "-0.9", "-1.7",   "AT/TC", "-2.3", "-6.3",   "CC/GT", "-3.2", "-8.0",   "CT/GC", "-3.9", "-10.6",
+				"GC/CT", "-4.9", "-13.5",  "GT/CC", "-3.0", "-7.8",   "TC/AT", "-2.5", "-6.3",   "TT/AC", "-0.7", "-1.2",
+				"AA/TG", "-1.9", "-4.4",   "AG/TA", "-2.5", "-5.9",   "CA/GG", "-3.9", "-9.6",   "CG/GA", "-6.0", "-15.5",
+				"GA/CG", "-4.3", "-11.1",  "GG/CA", "-4.6", "-11.4",  "TA/AG", "-2.0", "-4.7",   "TG/AA", "-2.4", "-5.8",
+				"AG/TT", "-3.2", "-8.7",   "AT/TG", "-3.5", "-9.4",   "CG/GT", "-3.8", "-9.0",   "CT/GG", "-6.6", "-18.7",
+				"GG/CT", "-5.7", "-15.9",  "GT/CG", "-5.9", "-16.1",  "TG/AT", "-3.9", "-10.5",  "TT/AG", "-3.6", "-9.8"};
+
+		reg(stackdH, stackdS, nn);
+		reg(stackdH, stackdS, imm);
+		reg(stackdH, stackdS, de);
+		reg(termdH, termdS, tmm);
+		}
+
+	/**
+	 * Register values. A pair of neighbours read from the other strand is the same, so fill in those as well
+	 * unless given explicitly
+	 */
+	private static void reg(double[] tabledH, double[] tabledS, String[] values)
+		{
+		for(int i=0;i<values.length;i+=3)
+			{
+			String k=values[i];
+			int ind=getIndex(k.charAt(0), k.charAt(1), k.charAt(3), k.charAt(4));
+			tabledH[ind]=Double.parseDouble(values[i+1])*1000;
+			tabledS[ind]=Double.parseDouble(values[i+2]);
+			}
+		for(int i=0;i<values.length;i+=3)
+			{
+			String k=values[i];
+			int ind=getIndex(k.charAt(4), k.charAt(3), k.charAt(1), k.charAt(0));
+			if(Double.isNaN(tabledH[ind]))
+				{
+				tabledH[ind]=Double.parseDouble(values[i+1])*1000;
+				tabledS[ind]=Double.parseDouble(values[i+2]);
+				}
+			}
+		}
+
+	public CalcTmSanta04()
+		{
+		setDefaultsCollagene();
+		}
+
+	/**
+	 * Code of a letter, NONE for no base, or -1 if not supported
+	 */
+	private static int getCode(char c)
+		{
+		return c<128 ? code[c] : -1;
+		}
+
+	private static int getIndex(char a, char b, char c, char d)
+		{
+		return ((getCode(a)*5+getCode(b))*5+getCode(c))*5+getCode(d);
+		}
+
+	private static boolean isPair(int a, int b)
+		{
+		return a<NONE && b<NONE && a+b==3;
+		}
+
+
+	/**
+	 * Compute Tm of a duplex. The lower strand is given 3'->5', aligned with the upper strand, so that a perfect duplex
+	 * has the complement. Letters that are missing on either strand are given as space, dot or dash
+	 */
+	public double calcTm(String seq1, String seq2) throws TmException
+		{
+		double tm=calcTm((CharSequence)seq1, (CharSequence)seq2);
+		if(Double.isNaN(tm))
+			throw new TmException("Cannot compute Tm for "+seq1+"/"+seq2);
+		return tm;
+		}
+
+	/**
+	 * Compute Tm of a sequence against its complement
+	 */
+	public double calcTm(String sequence) throws TmException
+		{
+		return calcTm(sequence, NucleotideUtil.complement(sequence));
+		}
+
+	/**
+	 * Compute Tm of a duplex, as calcTm(String,String), but NaN if it cannot be computed. Nothing is allocated,
+	 * so this can be used to rank many candidates
+	 */
+	public double calcTm(CharSequence seq1, CharSequence seq2)
+		{
+		int len=seq1.length();
+		if(seq2.length()!=len)
+			return Double.NaN;
+
+		//Find the outermost base pairs
+		int first=-1, last=-1;
+		for(int i=0;i<len;i++)
+			{
+			int a=getCode(seq1.charAt(i)), b=getCode(seq2.charAt(i));
+			if(a<0 || b<0)
+				return Double.NaN;
+			if(isPair(a, b))
+				{
+				if(first==-1)
+					first=i;
+				last=i;
+				}
+			}
+		if(first==-1 || first==last)
+			return Double.NaN;
+
+		double dH=initdH;
+		double dS=initdS;
+
+		//Penalty for A-T at the ends
+		if(getCode(seq1.charAt(first))%3==0)
+			{
+			dH+=terminalATdH;
+			dS+=terminalATdS;
+			}
+		if(getCode(seq1.charAt(last))%3==0)
+			{
+			dH+=terminalATdH;
+			dS+=terminalATdS;
+			}
+
+		//Ends: a terminal mismatch, a dangling end, or nothing
+		if(first>0)
+			{
+			int ind=getIndex(seq1.charAt(first-1), seq1.charAt(first), seq2.charAt(first-1), seq2.charAt(first));
+			double[] ends=getCode(seq1.charAt(first-1))<NONE && getCode(seq2.charAt(first-1))<NONE ? termdH : stackdH;
+			double[] endsS=ends==termdH ? termdS : stackdS;
+			if(!Double.isNaN(ends[ind]))
+				{
+				dH+=ends[ind];
+				dS+=endsS[ind];
+				}
+			}
+		if(last<len-1)
+			{
+			int ind=getIndex(seq1.charAt(last), seq1.charAt(last+1), seq2.charAt(last), seq2.charAt(last+1));
+			double[] ends=getCode(seq1.charAt(last+1))<NONE && getCode(seq2.charAt(last+1))<NONE ? termdH : stackdH;
+			double[] endsS=ends==termdH ? termdS : stackdS;
+			if(!Double.isNaN(ends[ind]))
+				{
+				dH+=ends[ind];
+				dS+=endsS[ind];
+				}
+			}
+
+		//Neighbours within the duplex. A run of mismatches between two pairs is summed if all its neighbours
+		//are known, otherwise it is taken as an internal loop
+		boolean allPaired=true;
+		int i=first;
+		while(i<last)
+			{
+			int next=i+1;
+			while(!isPair(getCode(seq1.charAt(next)), getCode(seq2.charAt(next))))
+				next++;
+
+			double runH=0, runS=0;
+			boolean known=true;
+			for(int j=i;j<next;j++)
+				{
+				int ind=getIndex(seq1.charAt(j), seq1.charAt(j+1), seq2.charAt(j), seq2.charAt(j+1));
+				if(Double.isNaN(stackdH[ind]))
+					known=false;
+				else
+					{
+					runH+=stackdH[ind];
+					runS+=stackdS[ind];
+					}
+				}
+			if(next>i+1)
+				{
+				allPaired=false;
+
+				//Bulges are not supported
+				for(int j=i+1;j<next;j++)
+					if(getCode(seq1.charAt(j))==NONE || getCode(seq2.charAt(j))==NONE)
+						return Double.NaN;
+				}
+			if(!known)
+				{
+				//Internal loop. The mismatches next to the closing pairs are kept, the loop costs only entropy
+				runH=0;
+				runS=0;
+				for(int j=i;j<next;j+=Math.max(1, next-1-i))
+					{
+					int ind=getIndex(seq1.charAt(j), seq1.charAt(j+1), seq2.charAt(j), seq2.charAt(j+1));
+					if(!Double.isNaN(termdH[ind]))
+						{
+						runH+=termdH[ind];
+						runS+=termdS[ind];
+						}
+					}
+				runS-=getLoopdG(2*(next-i-1))*1000/310.15;
+				}
+			dH+=runH;
+			dS+=runS;
+			i=next;
+			}
+
+		//Salt correction, and symmetry only for a perfect duplex
+		boolean isSymmetric=allPaired && first==0 && last==len-1 && CalcTmSanta98.isSymmetric(seq1, 0, len);
+		if(isSymmetric)
+			{
+			dH+=dHsym;
+			dS+=dSsym;
+			}
+		int N=last-first;
+		double concMonovalent=concNa + CalcTmSanta98.divalentToMonovalent(concMg2, concDntp);
+		dS+=0.368*N*Math.log(concMonovalent);
+
+		double R=1.9872;
+		double logDNA=Math.log(concDNA);
+		if(isSymmetric)
+			return dH / (dS + R*logDNA) - 273.15;
+		else
+			return dH / (dS + R*(logDNA-LOG4)) - 273.15;
+		}
+
+	/**
+	 * Free energy of an internal loop with n unpaired letters. Longer loops are extrapolated
+	 */
+	private static double getLoopdG(int n)
+		{
+		if(n<loopdG.length)
+			return loopdG[n];
+		else
+			return loopdG[loopdG.length-1] + 2.44*1.9872e-3*310.15*Math.log(n/(double)(loopdG.length-1));
+		}
+
+
+	public void setDefaultsCollagene()
+		{
+		setDefaultsPrimer3();
+		concDNA=500e-9; //from neb tmcalc
+		concMg2=500e-9; //invented
+		}
+
+	public void setDefaultsPrimer3()
+		{
+		concDNA=50e-9;
+		concMg2=0e-9;
+		concNa=50e-3;
+		concDntp=0;
+		}
+	}
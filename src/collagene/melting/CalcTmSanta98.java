@@ -1,6 +1,6 @@
 package collagene.melting;
 
-import java.util.HashMap;
+import java.util.Arrays;
 
 import collagene.sequtil.NucleotideUtil;
 
@@ -20,8 +20,16 @@ import collagene.sequtil.NucleotideUtil;
  */
 public class CalcTmSanta98 implements CalcTm
 	{
-	private HashMap<String, Double> mapdH=new HashMap<String, Double>();
-	private HashMap<String, Double> mapdS=new HashMap<String, Double>();
+	//Nearest-neighbour values, indexed by the 2-bit codes of the upper pair and the lower pair. NaN if not known
+	private static final double[] tabledH=new double[256];
+	private static final double[] tabledS=new double[256];
+	
+	//Same, for a pair and its complement
+	private static final double[] stackdH=new double[16];
+	private static final double[] stackdS=new double[16];
+	
+	private static final byte[] code=new byte[128];
+	private static final double LOG4=Math.log(4);
 
 	private double dHsym=-0;
 	private double dSsym=-1.4;
@@ -41,23 +49,34 @@ public class CalcTmSanta98 implements CalcTm
 	
 	
 	
-	private void reg(String seq1,String seq2,double dH, double dS)
+	private static void reg(String seq1,String seq2,double dH, double dS)
 		{
 		regs(seq1,seq2,dH,dS);
 		regs(seq2,seq1,dH,dS);
 		}
-	private void reg(String seq1,double dH, double dS)
+	private static void reg(String seq1,double dH, double dS)
 		{
 		reg(seq1,NucleotideUtil.complement(seq1), dH, dS);
 		}
-	private void regs(String seq1,String seq2,double dH, double dS)
+	private static void regs(String seq1,String seq2,double dH, double dS)
 		{
-		mapdH.put(seq1+"/"+seq2, dH*1000);
-		mapdS.put(seq1+"/"+seq2, dS);
+		int i=getIndex(seq1.charAt(0), seq1.charAt(1), seq2.charAt(0), seq2.charAt(1));
+		tabledH[i]=dH*1000;
+		tabledS[i]=dS;
 		}
 	
-	public CalcTmSanta98()
+	static
 		{
+		Arrays.fill(code, (byte)-1);
+		String letters="ACGT";
+		for(int i=0;i<4;i++)
+			{
+			code[letters.charAt(i)]=(byte)i;
+			code[Character.toLowerCase(letters.charAt(i))]=(byte)i;
+			}
+		Arrays.fill(tabledH, Double.NaN);
+		Arrays.fill(tabledS, Double.NaN);
+		
 		reg("AA", -7.9, -22.2);
 		reg("AC", -8.4, -22.4); 
 		reg("AG", -7.8, -21.0); 
@@ -77,69 +96,93 @@ public class CalcTmSanta98 implements CalcTm
 		reg("TC", -8.2, -22.2);
 		reg("TG", -8.5, -22.7);
 		reg("TT", -7.9, -22.2);
-				
+		
+		for(int a=0;a<4;a++)
+			for(int b=0;b<4;b++)
+				{
+				stackdH[a*4+b]=tabledH[((a*4+b)*4+(3-a))*4+(3-b)];
+				stackdS[a*4+b]=tabledS[((a*4+b)*4+(3-a))*4+(3-b)];
+				}
+		}
+	
+	public CalcTmSanta98()
+		{
 		setDefaultsCollagene();
 		}
 	
+	/**
+	 * The 2-bit code of a letter, or -1 if not ACGT
+	 */
+	private static int getCode(char c)
+		{
+		return c<128 ? code[c] : -1;
+		}
+	
+	/**
+	 * Index into the tables of a pair of letters on each strand, or -1 if not ACGT
+	 */
+	private static int getIndex(char a, char b, char c, char d)
+		{
+		int ca=getCode(a), cb=getCode(b), cc=getCode(c), cd=getCode(d);
+		if(ca<0 || cb<0 || cc<0 || cd<0)
+			return -1;
+		return ((ca*4+cb)*4+cc)*4+cd;
+		}
+	
 	
 	public double calcTm(String seq1, String seq2) throws TmException
 		{
 		double dH=0;
 		double dS=0;
-
-		if(isSymmetric(seq1))
-			{
-			dH += dHsym;
-			dS += dSsym;
-			}
-
-		//Starting penalty for helix initialization
-		if(seq1.startsWith("A") || seq1.startsWith("T"))
+		if(!seq1.isEmpty())
 			{
-			dS += initATdS;
-			dH += initATdH;
-			}
-		else if(seq1.startsWith("C") || seq1.startsWith("G"))
-			{
-			dS += initGCdS;
-			dH += initGCdH;
-			}
-
-		//Ending penalty for helix initialization
-		if(seq1.endsWith("A") || seq1.endsWith("T"))
-			{
-			dS += initATdS;
-			dH += initATdH;
-			}
-		else if(seq1.endsWith("C") || seq1.endsWith("G"))
-			{
-			dS += initGCdS;
-			dH += initGCdH;
+			dH=getInitdH(seq1.charAt(0))+getInitdH(seq1.charAt(seq1.length()-1));
+			dS=getInitdS(seq1.charAt(0))+getInitdS(seq1.charAt(seq1.length()-1));
 			}
 
 		//Pair-wise contributions
-		seq1=seq1.toUpperCase();
-		seq2=seq2.toUpperCase();
 		for(int i=0;i<seq1.length()-1;i++)
 			{
-			String part1=seq1.substring(i,i+2);
-			String part2=seq2.substring(i,i+2);
-			Double partdH=mapdH.get(part1+"/"+part2);
-			Double partdS=mapdS.get(part1+"/"+part2);
-			
-			if(partdH==null)
-				throw new TmException("Missing: "+part1+"/"+part2);
-			
-			dH+=partdH;
-			dS+=partdS;
+			int ind=getIndex(seq1.charAt(i), seq1.charAt(i+1), seq2.charAt(i), seq2.charAt(i+1));
+			if(ind<0 || Double.isNaN(tabledH[ind]))
+				throw new TmException("Missing: "+seq1.substring(i,i+2).toUpperCase()+"/"+seq2.substring(i,i+2).toUpperCase());
+			dH+=tabledH[ind];
+			dS+=tabledS[ind];
 			}
 		
-		//Monovalent salt correction
-		int N=seq1.length()-1;  
+		return calcTm(dH, dS, seq1.length(), isSymmetric(seq1));
+		}
+
+	/**
+	 * Compute Tm given the total enthalpy and entropy of the duplex, before corrections for symmetry and salt
+	 */
+	public double calcTm(double dH, double dS, int length, boolean isSymmetric)
+		{
+		return calcTm(dH, dS, length, isSymmetric, getLogMonovalent(), Math.log(concDNA));
+		}
+	
+	/**
+	 * Logarithm of the concentration of monovalent ions, including the divalent ones converted
+	 */
+	private double getLogMonovalent()
+		{
 		double concMonovalent=concNa;
 		concMonovalent += divalentToMonovalent(concMg2, concDntp);
+		return Math.log(concMonovalent);
+		}
+	
+	private double calcTm(double dH, double dS, int length, boolean isSymmetric, double logMonovalent, double logDNA)
+		{
+		if(isSymmetric)
+			{
+			dH += dHsym;
+			dS += dSsym;
+			}
+
+		//Monovalent salt correction
+		int N=length-1;  
 		//double saltCorrectionH=(0.175*Math.log(concMonovalent)-0.2)*1000;
-		double saltCorrectionS=0.368*N*Math.log(concMonovalent);              
+		double saltCorrectionS=0.368*N*logMonovalent;              
 		//dH += saltCorrectionH; //primer3 does not
 		dS += saltCorrectionS;
 
@@ -149,14 +192,160 @@ public class CalcTmSanta98 implements CalcTm
 		//Correction for symmetry, and final calculation
 		double R=1.9872;
 		double Tm;
-		if(isSymmetric(seq1))
-			Tm = dH / (dS + R*Math.log(concDNA)) - 273.15;
+		if(isSymmetric)
+			Tm = dH / (dS + R*logDNA) - 273.15;
 		else
-			Tm = dH / (dS + R*Math.log(concDNA/4)) - 273.15;
+			Tm = dH / (dS + R*(logDNA-LOG4)) - 273.15;
 		
 		return Tm;
 		}
 	
+	/**
+	 * Compute Tm of many oligos, each against its perfect complement. Oligos that cannot be computed get NaN.
+	 * Nothing is allocated
+	 */
+	public void calcTm(CharSequence[] oligos, double[] tm)
+		{
+		double logMonovalent=getLogMonovalent();
+		double logDNA=Math.log(concDNA);
+		for(int i=0;i<oligos.length;i++)
+			tm[i]=calcTmPerfect(oligos[i], 0, oligos[i].length(), logMonovalent, logDNA);
+		}
+	
+	/**
+	 * Compute Tm of every window of a given length, against its perfect complement. tm[i] is the Tm of [i,i+length),
+	 * or NaN if it cannot be computed. The array must have room for seq.length()-length+1 values. Each window takes
+	 * constant time, and nothing is allocated
+	 */
+	public void calcTmWindows(CharSequence seq, int length, double[] tm)
+		{
+		int numWindows=seq.length()-length+1;
+		double logMonovalent=getLogMonovalent();
+		double logDNA=Math.log(concDNA);
+		double dH=0, dS=0;
+		int missing=0;
+		for(int i=0;i<length-1 && i+1<seq.length();i++)
+			{
+			int ind=getStackIndex(seq.charAt(i), seq.charAt(i+1));
+			if(ind<0)
+				missing++;
+			else
+				{
+				dH+=stackdH[ind];
+				dS+=stackdS[ind];
+				}
+			}
+		for(int i=0;i<numWindows;i++)
+			{
+			//Slide the window, adding the last pair and removing the first
+			if(i>0)
+				{
+				int ind=getStackIndex(seq.charAt(i-1), seq.charAt(i));
+				if(ind<0)
+					missing--;
+				else
+					{
+					dH-=stackdH[ind];
+					dS-=stackdS[ind];
+					}
+				ind=getStackIndex(seq.charAt(i+length-2), seq.charAt(i+length-1));
+				if(ind<0)
+					missing++;
+				else
+					{
+					dH+=stackdH[ind];
+					dS+=stackdS[ind];
+					}
+				}
+			if(missing>0)
+				tm[i]=Double.NaN;
+			else
+				{
+				char first=seq.charAt(i), last=seq.charAt(i+length-1);
+				tm[i]=calcTm(
+						dH+getInitdH(first)+getInitdH(last), 
+						dS+getInitdS(first)+getInitdS(last), 
+						length, isSymmetric(seq, i, i+length), logMonovalent, logDNA);
+				}
+			}
+		}
+	
+	/**
+	 * Tm of [from,to) against its perfect complement, or NaN
+	 */
+	private double calcTmPerfect(CharSequence seq, int from, int to, double logMonovalent, double logDNA)
+		{
+		if(to-from<2)
+			return Double.NaN;
+		char first=seq.charAt(from), last=seq.charAt(to-1);
+		double dH=getInitdH(first)+getInitdH(last);
+		double dS=getInitdS(first)+getInitdS(last);
+		for(int i=from;i<to-1;i++)
+			{
+			int ind=getStackIndex(seq.charAt(i), seq.charAt(i+1));
+			if(ind<0)
+				return Double.NaN;
+			dH+=stackdH[ind];
+			dS+=stackdS[ind];
+			}
+		return calcTm(dH, dS, to-from, isSymmetric(seq, from, to), logMonovalent, logDNA);
+		}
+	
+	/**
+	 * Index of a pair among the perfectly matched stacks, or -1 if not known
+	 */
+	private static int getStackIndex(char a, char b)
+		{
+		int ca=getCode(a), cb=getCode(b);
+		if(ca<0 || cb<0 || Double.isNaN(stackdH[ca*4+cb]))
+			return -1;
+		return ca*4+cb;
+		}
+	
+	/**
+	 * Enthalpy of a nearest-neighbour pair on a perfectly matched duplex, or NaN if not known
+	 */
+	public double getStackdH(char a, char b)
+		{
+		int ind=getStackIndex(a, b);
+		return ind<0 ? Double.NaN : stackdH[ind];
+		}
+
+	/**
+	 * Entropy of a nearest-neighbour pair on a perfectly matched duplex, or NaN if not known
+	 */
+	public double getStackdS(char a, char b)
+		{
+		int ind=getStackIndex(a, b);
+		return ind<0 ? Double.NaN : stackdS[ind];
+		}
+	
+	/**
+	 * Enthalpy of helix initiation, for a letter at one end
+	 */
+	public double getInitdH(char c)
+		{
+		if(c=='A' || c=='T')
+			return initATdH;
+		else if(c=='C' || c=='G')
+			return initGCdH;
+		else
+			return 0;
+		}
+
+	/**
+	 * Entropy of helix initiation, for a letter at one end
+	 */
+	public double getInitdS(char c)
+		{
+		if(c=='A' || c=='T')
+			return initATdS;
+		else if(c=='C' || c=='G')
+			return initGCdS;
+		else
+			return 0;
+		}
+	
 	public double correctOwczarzy(String seq,double Tm)
 		{
 		//note, needs more corrections. depends on other ions as well
@@ -167,7 +356,7 @@ public class CalcTmSanta98 implements CalcTm
 		}
 	
 	
-	double divalentToMonovalent(double divalent, double dntp)
+	static double divalentToMonovalent(double divalent, double dntp)
 		{
 		if(divalent==0) 
 			dntp=0;
@@ -183,10 +372,18 @@ public class CalcTmSanta98 implements CalcTm
 	 */
 	private boolean isSymmetric(String s)
 		{
-		for(int i=0;i<s.length();i++)
+		return isSymmetric(s, 0, s.length());
+		}
+
+	/**
+	 * Check for self-complementarity of [from,to)
+	 */
+	public static boolean isSymmetric(CharSequence s, int from, int to)
+		{
+		for(int i=from;i<to;i++)
 			{
-			char c=s.charAt(i);
-			char b=s.charAt(s.length()-i-1);
+			char c=Character.toUpperCase(s.charAt(i));
+			char b=Character.toUpperCase(s.charAt(to-1-(i-from)));
 			if(
 					(c=='A' && b!='T') ||
 					(c=='T' && b!='A') ||
@@ -245,6 +442,10 @@ public class CalcTmSanta98 implements CalcTm
 	@Override
 	public double calcTm(String sequence) throws TmException
 		{
-		return calcTm(sequence, NucleotideUtil.complement(sequence));
+		double tm=calcTmPerfect(sequence, 0, sequence.length(), getLogMonovalent(), Math.log(concDNA));
+		if(Double.isNaN(tm))
+			return calcTm(sequence, NucleotideUtil.complement(sequence));
+		else
+			return tm;
 		}
 	}
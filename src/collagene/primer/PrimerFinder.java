@@ -1,14 +1,13 @@
 package collagene.primer;
 
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.LinkedList;
 
-import collagene.melting.CalcTm;
 import collagene.melting.CalcTmSanta98;
-import collagene.melting.TmException;
 import collagene.seq.AnnotatedSequence;
+import collagene.seq.KmerIndex;
 import collagene.seq.Orientation;
 import collagene.seq.SequenceRange;
 import collagene.sequtil.NucleotideUtil;
@@ -22,8 +21,6 @@ import collagene.sequtil.NucleotideUtil;
  */
 public class PrimerFinder
 	{
-	private HashMap<String,Integer> hasKmers=new HashMap<String,Integer>();
-
 	public int minlength=22;
 	public int maxlength=30;
 	public double optimalTm=58;
@@ -31,38 +28,14 @@ public class PrimerFinder
 
 	public LinkedList<PrimerInfo> primerCandidates=new LinkedList<PrimerInfo>();
 
-	/**
-	 * Count one Kmer
-	 */
-	private void addKmer(String s, int k)
-		{
-		for(int i=0;i<s.length()-k;i++) //TODO handle wrapping as well(?). or do this on a higher level?
-			{
-			String kmer=s.substring(i,i+k);
-			hasKmers.put(kmer,getKmerCount(kmer)+1);
-			}
-		}
-	
-	
-	/**
-	 * Compare best hit to second best hit
-	 */
-	private double countSecondBestMatch(AnnotatedSequence seq, String s)
-		{
-		PrimerFitter fitter=new PrimerFitter();
-		fitter.scorePerfectLength=0;
-		fitter.run(seq, "", s);
-
-		if(fitter.candidates.size()<2)
-			return 0;
-		else
-			{
-			double score1=fitter.candidates.get(0).score;
-			double score2=fitter.candidates.get(1).score;
-			return score2/score1;
-			}
-		}
-	
+	//Work data during a search
+	private String base, within;
+	private int regionFrom;
+	private boolean isCircular;
+	private double[] sumdH, sumdS;
+	private int[] sumMissing;
+	private int[] hitFrom, hitDiag, hitFromLower, hitDiagLower;
+	private int[] bufDiag=new int[64];
 	
 
 	public static class PrimerInfo
@@ -76,58 +49,73 @@ public class PrimerFinder
 	
 	
 	/**
-	 * Perform search
+	 * Perform search.
+	 * 
+	 * The nearest-neighbour enthalpy and entropy are summed along the region once, so the Tm of any primer within
+	 * it is a difference of two sums. Other places a primer may bind are found from the k-mers it shares with them
 	 */
 	public void run(AnnotatedSequence seq, SequenceRange region, Orientation orientation)
 		{
 		primerCandidates.clear();
-		String base=seq.getSequence();
-		String baseLower=seq.getSequence();
-		CalcTm tmc=new CalcTmSanta98();
+		CalcTmSanta98 tmc=new CalcTmSanta98();
 		
-		String within=seq.getSequence(region);
+		base=seq.getSequence();
+		within=seq.getSequence(region);
+		regionFrom=region.toNormalizedRange(seq).from;
+		isCircular=seq.isCircular;
 		
-		addKmer(base, kmerlen);
-		addKmer(baseLower, kmerlen);
+		//Occurrences of k-mers on both strands
+		KmerIndex kmers=seq.getKmerIndex(kmerlen);
 		
+		//Sums of the contributions of pairs of letters. Pair i is letters i and i+1
+		int len=within.length();
+		sumdH=new double[len+1];
+		sumdS=new double[len+1];
+		sumMissing=new int[len+1];
+		for(int i=0;i+1<len;i++)
+			{
+			double dH=tmc.getStackdH(within.charAt(i), within.charAt(i+1));
+			double dS=tmc.getStackdS(within.charAt(i), within.charAt(i+1));
+			boolean missing=Double.isNaN(dH);
+			sumdH[i+1]=sumdH[i]+(missing ? 0 : dH);
+			sumdS[i+1]=sumdS[i]+(missing ? 0 : dS);
+			sumMissing[i+1]=sumMissing[i]+(missing ? 1 : 0);
+			}
+		
+		findOtherHits(kmers);
 		
 		for(int toPos=kmerlen;toPos<within.length();toPos++)
 			{
 			//Don't bother trying this position if the first K letters are not unique
-			if(getKmerCount(within.substring(toPos-kmerlen,toPos))<6)
+			if(kmers.getCount(KmerIndex.encode(within, toPos-kmerlen, kmerlen))<6)
 				{
 				for(int fromPos=Math.max(toPos-maxlength,0);fromPos<toPos-minlength;fromPos++)
 					{
-					try
+					//Skip primers with letters that have no values
+					if(sumMissing[toPos-1]!=sumMissing[fromPos])
+						continue;
+					double dH=sumdH[toPos-1]-sumdH[fromPos] + tmc.getInitdH(within.charAt(fromPos)) + tmc.getInitdH(within.charAt(toPos-1));
+					double dS=sumdS[toPos-1]-sumdS[fromPos] + tmc.getInitdS(within.charAt(fromPos)) + tmc.getInitdS(within.charAt(toPos-1));
+					double tm=tmc.calcTm(dH, dS, toPos-fromPos, CalcTmSanta98.isSymmetric(within, fromPos, toPos));
+					if(tm>50+10 && tm<70+10)
 						{
-						String pseq=within.substring(fromPos,toPos);
-						double tm=tmc.calcTm(pseq, NucleotideUtil.complement(pseq));
-						if(tm>50+10 && tm<70+10)
+						double score=countSecondBestMatch(fromPos, toPos)/*+ Math.abs(tm-optimalTm)/20*/;
+						if(score<0.8)
 							{
 							Primer p=new Primer();
 							p.name=""+Math.random();
-							p.sequence=pseq;
+							p.sequence=within.substring(fromPos,toPos);
 							p.orientation=Orientation.FORWARD;
 							p.targetPosition=seq.normalizePos(toPos+region.from);
 							
 							PrimerInfo pi=new PrimerInfo();
 							pi.p=p;
-							pi.score=countSecondBestMatch(seq, pseq)/*+ Math.abs(tm-optimalTm)/20*/;
+							pi.score=score;
 							pi.tm=tm;
-							if(pi.score<0.8)
-								primerCandidates.add(pi);							
-							else
-								System.out.println(pi.score);
+							primerCandidates.add(pi);
 							}
 						}
-					catch (TmException e)
-						{
-						System.out.println(e.getMessage());
-//						e.printStackTrace();
-						}
-					
 					}
-				
 				}
 			}
 
@@ -140,19 +128,133 @@ public class PrimerFinder
 				}
 			});
 		
-		hasKmers.clear();
+		base=within=null;
+		sumdH=sumdS=null;
+		sumMissing=hitFrom=hitDiag=hitFromLower=hitDiagLower=null;
+		}
+	
+	/**
+	 * For each k-mer of the region, find where else it occurs. Each hit is stored as a diagonal: on the upper strand,
+	 * letter i of the region is then compared to letter regionFrom+i+diagonal. On the lower strand, letter i is compared
+	 * to the complement of letter diagonal-i
+	 */
+	private void findOtherHits(KmerIndex kmers)
+		{
+		int len=within.length();
+		int[] pos=new int[16];
+		int[] diag=new int[16];
+		int[] diagLower=new int[16];
+		int num=0, numLower=0;
+		hitFrom=new int[len+1];
+		hitFromLower=new int[len+1];
+		for(int q=0;q<len;q++)
+			{
+			hitFrom[q]=num;
+			hitFromLower[q]=numLower;
+			long kmer=q+kmerlen<=len ? KmerIndex.encode(within, q, kmerlen) : -1;
+			if(kmer<0)
+				continue;
+			int cnt=kmers.getCount(kmer);
+			if(pos.length<cnt)
+				pos=new int[cnt];
+			if(diag.length<num+cnt)
+				diag=Arrays.copyOf(diag, Math.max(diag.length*2, num+cnt));
+			if(diagLower.length<numLower+cnt)
+				diagLower=Arrays.copyOf(diagLower, Math.max(diagLower.length*2, numLower+cnt));
+			
+			int n=kmers.getPositions(kmer, pos, 0);
+			for(int i=0;i<n;i++)
+				{
+				int d=normalize(pos[i]-(regionFrom+q));
+				if(d!=0)
+					diag[num++]=d;
+				}
+			n=kmers.getPositionsLower(kmer, pos, 0);
+			for(int i=0;i<n;i++)
+				diagLower[numLower++]=normalize(pos[i]+kmerlen-1+q);
+			}
+		hitFrom[len]=num;
+		hitFromLower[len]=numLower;
+		hitDiag=diag;
+		hitDiagLower=diagLower;
+		}
+	
+	private int normalize(int d)
+		{
+		if(isCircular)
+			{
+			d%=base.length();
+			if(d<0)
+				d+=base.length();
+			}
+		return d;
+		}
+	
+	/**
+	 * Compare the best other place the primer [fromPos,toPos) of the region binds to, to where it should bind.
+	 * The score is the number of matching letters without gaps
+	 */
+	private double countSecondBestMatch(int fromPos, int toPos)
+		{
+		int len=toPos-fromPos;
+		int second=0;
+		
+		//Upper strand
+		int n=collectDiagonals(hitFrom, hitDiag, fromPos, toPos);
+		for(int k=0;k<n;k++)
+			if(k==0 || bufDiag[k]!=bufDiag[k-1])
+				{
+				int score=0;
+				for(int i=0;i<len;i++)
+					{
+					int p=getBasePos(regionFrom+fromPos+i+bufDiag[k]);
+					if(p>=0 && base.charAt(p)==within.charAt(fromPos+i))
+						score++;
+					}
+				second=Math.max(second, score);
+				}
+		
+		//Lower strand
+		n=collectDiagonals(hitFromLower, hitDiagLower, fromPos, toPos);
+		for(int k=0;k<n;k++)
+			if(k==0 || bufDiag[k]!=bufDiag[k-1])
+				{
+				int score=0;
+				for(int i=0;i<len;i++)
+					{
+					int p=getBasePos(bufDiag[k]-fromPos-i);
+					if(p>=0 && NucleotideUtil.complement(base.charAt(p))==within.charAt(fromPos+i))
+						score++;
+					}
+				second=Math.max(second, score);
+				}
+		
+		return second/(double)len;
+		}
+	
+	/**
+	 * Collect the sorted diagonals of all k-mers within [fromPos,toPos)
+	 */
+	private int collectDiagonals(int[] hitFrom, int[] hitDiag, int fromPos, int toPos)
+		{
+		int a=hitFrom[fromPos];
+		int b=hitFrom[Math.max(fromPos, toPos-kmerlen+1)];
+		if(bufDiag.length<b-a)
+			bufDiag=new int[b-a];
+		System.arraycopy(hitDiag, a, bufDiag, 0, b-a);
+		Arrays.sort(bufDiag, 0, b-a);
+		return b-a;
 		}
 	
 	/**
-	 * Get count of kmer
+	 * Position in the sequence, wrapping if circular. -1 if outside a linear sequence
 	 */
-	private int getKmerCount(String kmer)
+	private int getBasePos(int p)
 		{
-		Integer s=hasKmers.get(kmer);
-		if(s==null)
-			return 0;
+		if(isCircular)
+			return normalize(p);
 		else
-			return s;
+			return p>=0 && p<base.length() ? p : -1;
 		}
 	
 
@@ -0,0 +1,312 @@
+package collagene.restrictionEnzyme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
+
+import collagene.alignment.AlignmentRace;
+import collagene.seq.AnnotatedSequence;
+import collagene.seq.RestrictionSite;
+
+/**
+ *
+ * Simulator of many digests at once: several sequences, each cut by several combinations of enzymes.
+ * The sites of each enzyme are found once per sequence and kept as sorted positions. The cuts of a combination
+ * are then found by merging these, and the combinations are simulated in parallel.
+ *
+ * Only fragment sizes are computed. A sequence that is not cut gives one fragment of its full length. Sites blocked
+ * by methylation do not cut, while partially blocked sites are assumed to cut
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class BatchDigestSimulator
+	{
+	private static final int[] NO_CUTS=new int[0];
+
+	/**
+	 * Number of combinations simulated by one task
+	 */
+	private static final int CHUNK_SIZE=256;
+
+	private final List<AnnotatedSequence> seqs;
+	private final List<RestrictionEnzyme> enzymes;
+	private final HashMap<RestrictionEnzyme, Integer> enzymeIndex=new HashMap<RestrictionEnzyme, Integer>();
+
+	//Upper strand cutting positions, sorted, for each sequence and enzyme
+	private final int[][][] cutPos;
+
+	//Number of partially blocked sites, for each sequence and enzyme
+	private final int[][] numPartiallyBlocked;
+
+
+	/**
+	 * Find the sites of all enzymes in all sequences
+	 */
+	public BatchDigestSimulator(List<AnnotatedSequence> seqs, List<RestrictionEnzyme> enzymes)
+		{
+		this.seqs=new ArrayList<AnnotatedSequence>(seqs);
+		this.enzymes=new ArrayList<RestrictionEnzyme>(enzymes);
+		for(int i=0;i<enzymes.size();i++)
+			enzymeIndex.put(enzymes.get(i), i);
+
+		RestrictionSiteScanner scanner=new RestrictionSiteScanner(this.enzymes);
+		cutPos=new int[seqs.size()][][];
+		numPartiallyBlocked=new int[seqs.size()][enzymes.size()];
+		for(int i=0;i<seqs.size();i++)
+			{
+			Collection<RestrictionSite> sites=scanner.findRestrictionSites(seqs.get(i));
+			cutPos[i]=getCutPositions(sites, seqs.get(i).getLength());
+			for(RestrictionSite s:sites)
+				if(s.isPartiallyBlocked)
+					numPartiallyBlocked[i][enzymeIndex.get(s.enzyme)]++;
+			}
+		}
+
+	/**
+	 * Sort the cutting positions by enzyme
+	 */
+	private int[][] getCutPositions(Collection<RestrictionSite> sites, int len)
+		{
+		int[] count=new int[enzymes.size()];
+		for(RestrictionSite s:sites)
+			if(isCutting(s))
+				count[enzymeIndex.get(s.enzyme)]++;
+		int[][] pos=new int[enzymes.size()][];
+		for(int i=0;i<pos.length;i++)
+			pos[i]=count[i]==0 ? NO_CUTS : new int[count[i]];
+		Arrays.fill(count, 0);
+		for(RestrictionSite s:sites)
+			if(isCutting(s))
+				{
+				int e=enzymeIndex.get(s.enzyme);
+				pos[e][count[e]++]=s.cuttingUpperPos;
+				}
+		for(int i=0;i<pos.length;i++)
+			pos[i]=sortUnique(pos[i], len);
+		return pos;
+		}
+
+	/**
+	 * Check if a site cuts both strands
+	 */
+	private static boolean isCutting(RestrictionSite s)
+		{
+		return s.cuttingUpperPos!=null && s.cuttingLowerPos!=null && !s.enzyme.isNicking() && !s.isBlocked;
+		}
+
+	/**
+	 * Sort positions and remove duplicates. Positions at the ends of the sequence do not cut anything
+	 */
+	private static int[] sortUnique(int[] pos, int len)
+		{
+		Arrays.sort(pos);
+		int n=0;
+		for(int i=0;i<pos.length;i++)
+			if((n==0 || pos[i]!=pos[n-1]) && pos[i]>=0 && pos[i]<=len)
+				pos[n++]=pos[i];
+		return n==pos.length ? pos : Arrays.copyOf(pos, n);
+		}
+
+
+	/**
+	 * All combinations of 1 to maxSize enzymes from a list
+	 */
+	public static List<RestrictionEnzyme[]> getCombinations(List<RestrictionEnzyme> enzymes, int maxSize)
+		{
+		ArrayList<RestrictionEnzyme[]> list=new ArrayList<RestrictionEnzyme[]>();
+		for(int size=1;size<=maxSize && size<=enzymes.size();size++)
+			{
+			int[] ind=new int[size];
+			for(int i=0;i<size;i++)
+				ind[i]=i;
+			for(;;)
+				{
+				RestrictionEnzyme[] combo=new RestrictionEnzyme[size];
+				for(int i=0;i<size;i++)
+					combo[i]=enzymes.get(ind[i]);
+				list.add(combo);
+
+				//Next combination in lexicographic order
+				int i=size-1;
+				while(i>=0 && ind[i]==enzymes.size()-size+i)
+					i--;
+				if(i<0)
+					break;
+				ind[i]++;
+				for(int j=i+1;j<size;j++)
+					ind[j]=ind[j-1]+1;
+				}
+			}
+		return list;
+		}
+
+
+	/**
+	 * Simulate every combination on every sequence. The result is indexed by [sequence][combination] and holds
+	 * the fragment sizes in increasing order
+	 */
+	public int[][][] simulate(List<RestrictionEnzyme[]> combinations)
+		{
+		final int[][] comboIndex=new int[combinations.size()][];
+		for(int i=0;i<comboIndex.length;i++)
+			comboIndex[i]=getEnzymeIndex(combinations.get(i));
+
+		final int[][][] result=new int[seqs.size()][combinations.size()][];
+		ArrayList<ForkJoinTask<?>> tasks=new ArrayList<ForkJoinTask<?>>();
+		for(int s=0;s<seqs.size();s++)
+			for(int from=0;from<comboIndex.length;from+=CHUNK_SIZE)
+				{
+				final int seqi=s;
+				final int chunkFrom=from;
+				final int chunkTo=Math.min(comboIndex.length, from+CHUNK_SIZE);
+				tasks.add(AlignmentRace.submit(new Callable<Object>()
+					{
+					public Object call() throws Exception
+						{
+						int[] merged=new int[0];
+						for(int c=chunkFrom;c<chunkTo;c++)
+							{
+							merged=mergeCuts(seqi, comboIndex[c], merged);
+							result[seqi][c]=getFragmentSizes(seqi, merged);
+							}
+						return null;
+						}
+					}));
+				}
+		for(ForkJoinTask<?> t:tasks)
+			t.join();
+		return result;
+		}
+
+	/**
+	 * Simulate one combination on one sequence. Gives the fragment sizes in increasing order
+	 */
+	public int[] simulate(int seqIndex, RestrictionEnzyme... combination)
+		{
+		return getFragmentSizes(seqIndex, mergeCuts(seqIndex, getEnzymeIndex(combination), new int[0]));
+		}
+
+	private int[] getEnzymeIndex(RestrictionEnzyme[] combination)
+		{
+		int[] ind=new int[combination.length];
+		for(int i=0;i<ind.length;i++)
+			{
+			Integer e=enzymeIndex.get(combination[i]);
+			if(e==null)
+				throw new RuntimeException("Enzyme not given to simulator: "+combination[i].name);
+			ind[i]=e;
+			}
+		return ind;
+		}
+
+	/**
+	 * Get the number of cuts of one enzyme in one sequence
+	 */
+	public int getNumCuts(int seqIndex, RestrictionEnzyme enzyme)
+		{
+		return cutPos[seqIndex][enzymeIndex.get(enzyme)].length;
+		}
+
+	/**
+	 * Get the number of sites of one enzyme in one sequence where only one strand is methylated
+	 */
+	public int getNumPartiallyBlocked(int seqIndex, RestrictionEnzyme enzyme)
+		{
+		return numPartiallyBlocked[seqIndex][enzymeIndex.get(enzyme)];
+		}
+
+
+	/**
+	 * Merge the sorted cutting positions of several enzymes. The result is stored in buf if it fits, with
+	 * the number of positions first
+	 */
+	private int[] mergeCuts(int seqIndex, int[] enzymes, int[] buf)
+		{
+		int[][] pos=cutPos[seqIndex];
+		int total=0;
+		for(int e:enzymes)
+			total+=pos[e].length;
+		if(buf.length<total+1)
+			buf=new int[total+1];
+
+		//Merge one enzyme at a time into the buffer, from the back so that no copy is needed
+		int n=0;
+		for(int e:enzymes)
+			{
+			int[] p=pos[e];
+			int i=n-1, j=p.length-1;
+			int k=n+p.length;
+			while(j>=0)
+				{
+				if(i>=0 && buf[1+i]>p[j])
+					buf[k--]=buf[1+i--];
+				else
+					buf[k--]=p[j--];
+				}
+			n+=p.length;
+			}
+
+		//Enzymes may cut at the same position
+		int m=0;
+		for(int i=0;i<n;i++)
+			if(m==0 || buf[1+i]!=buf[m])
+				buf[1+m++]=buf[1+i];
+		buf[0]=m;
+		return buf;
+		}
+
+	/**
+	 * Get the sizes of the fragments, given the merged cutting positions
+	 */
+	private int[] getFragmentSizes(int seqIndex, int[] merged)
+		{
+		AnnotatedSequence seq=seqs.get(seqIndex);
+		int len=seq.getLength();
+		int n=merged[0];
+		int[] sizes;
+		if(n==0)
+			sizes=new int[]{len};
+		else if(seq.isCircular)
+			{
+			sizes=new int[n];
+			for(int i=0;i<n-1;i++)
+				sizes[i]=merged[2+i]-merged[1+i];
+			sizes[n-1]=len-merged[n]+merged[1];
+			}
+		else
+			{
+			//Cuts at the very ends give no fragment
+			sizes=new int[n+1];
+			int m=0;
+			int prev=0;
+			for(int i=0;i<n;i++)
+				{
+				if(merged[1+i]>prev)
+					sizes[m++]=merged[1+i]-prev;
+				prev=merged[1+i];
+				}
+			if(len>prev)
+				sizes[m++]=len-prev;
+			if(m<sizes.length)
+				sizes=Arrays.copyOf(sizes, m);
+			}
+		Arrays.sort(sizes);
+		return sizes;
+		}
+
+
+	public List<AnnotatedSequence> getSequences()
+		{
+		return seqs;
+		}
+
+	public List<RestrictionEnzyme> getEnzymes()
+		{
+		return enzymes;
+		}
+	}
@@ -0,0 +1,321 @@
+package collagene.restrictionEnzyme;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
+
+import collagene.alignment.AlignmentRace;
+import collagene.ladder.DNALadder;
+import collagene.seq.AnnotatedSequence;
+
+/**
+ *
+ * Search for digests that tell several candidate constructs apart on a gel. Combinations of enzymes are
+ * enumerated as a tree, each node adding one enzyme, and the subtrees of the first enzyme are searched in parallel.
+ *
+ * Bands are placed on the gel as in SimulatedGel, at a distance ~ 1/sqrt(bp), scaled so that the ladder spans
+ * the gel. How well two constructs are told apart is the largest distance from a band in one lane to the nearest
+ * band in the other. A digest is scored by the worst pair of constructs, minus a penalty for the number of bands.
+ *
+ * Adding an enzyme never gives fewer fragments nor a better common buffer. Subtrees are therefore pruned when the
+ * buffer or number of bands is no longer acceptable, or when even a perfect separation could not beat the top results
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class DiagnosticDigestDesigner
+	{
+	/**
+	 * Maximum number of enzymes in one digest
+	 */
+	public int maxEnzymes=2;
+
+	/**
+	 * Number of digests to return
+	 */
+	public int numResults=10;
+
+	/**
+	 * Lowest acceptable efficiency of all enzymes in the common buffer, in %. If 0, buffers are not considered
+	 */
+	public double minBufferEfficiency=75;
+
+	/**
+	 * Maximum number of fragments in one lane
+	 */
+	public int maxBands=10;
+
+	/**
+	 * Score subtracted for every fragment in the most crowded lane
+	 */
+	public double bandPenalty=0.01;
+
+	/**
+	 * One digest and its predicted outcome
+	 */
+	public static class Design
+		{
+		public RestrictionEnzyme[] enzymes;
+
+		/**
+		 * Best common buffer, or null if not considered
+		 */
+		public String buffer;
+		public double bufferEfficiency;
+
+		/**
+		 * Fragment sizes of each construct, in increasing order
+		 */
+		public int[][] fragmentSizes;
+
+		/**
+		 * Worst separation of two constructs, as a fraction of the gel
+		 */
+		public double separation;
+		public double score;
+
+		public String toString()
+			{
+			StringBuilder sb=new StringBuilder();
+			for(RestrictionEnzyme e:enzymes)
+				sb.append(e.name+" ");
+			sb.append(String.format("score=%.3f sep=%.3f", score, separation));
+			if(buffer!=null)
+				sb.append(" "+buffer+" ("+bufferEfficiency+"%)");
+			return sb.toString();
+			}
+		}
+
+	private final List<AnnotatedSequence> constructs;
+	private final DNALadder ladder;
+	private final BatchDigestSimulator sim;
+	private final List<RestrictionEnzyme> candidates;
+
+	//Gel position of the ladder ends
+	private final double posLargest, posSmallest;
+
+	//The best designs found so far, and the score to beat once there are enough of them
+	private final ArrayList<Design> best=new ArrayList<Design>();
+	private volatile double scoreToBeat=Double.NEGATIVE_INFINITY;
+
+
+	/**
+	 * Prepare a search over the given enzymes. Enzymes that cut none of the constructs are not used, nor those with
+	 * sites that are partially blocked by methylation; how well they cut cannot be predicted
+	 */
+	public DiagnosticDigestDesigner(List<AnnotatedSequence> constructs, Collection<RestrictionEnzyme> enzymes, DNALadder ladder)
+		{
+		if(constructs.size()<2)
+			throw new RuntimeException("At least two constructs are needed");
+		if(ladder.sizes.isEmpty())
+			throw new RuntimeException("Ladder has no bands");
+		this.constructs=new ArrayList<AnnotatedSequence>(constructs);
+		this.ladder=ladder;
+		posLargest=1/Math.sqrt(ladder.sizes.lastKey());
+		posSmallest=1/Math.sqrt(ladder.sizes.firstKey());
+
+		ArrayList<RestrictionEnzyme> usable=new ArrayList<RestrictionEnzyme>();
+		for(RestrictionEnzyme e:enzymes)
+			if(!e.isNicking())
+				usable.add(e);
+		BatchDigestSimulator all=new BatchDigestSimulator(this.constructs, usable);
+
+		candidates=new ArrayList<RestrictionEnzyme>();
+		for(RestrictionEnzyme e:usable)
+			{
+			boolean cuts=false, partial=false;
+			for(int i=0;i<constructs.size();i++)
+				{
+				cuts|=all.getNumCuts(i, e)>0;
+				partial|=all.getNumPartiallyBlocked(i, e)>0;
+				}
+			if(cuts && !partial)
+				candidates.add(e);
+			}
+		sim=new BatchDigestSimulator(this.constructs, candidates);
+		}
+
+	/**
+	 * Get the enzymes that are considered
+	 */
+	public List<RestrictionEnzyme> getCandidates()
+		{
+		return candidates;
+		}
+
+	public DNALadder getLadder()
+		{
+		return ladder;
+		}
+
+
+	/**
+	 * Find the best digests, best first
+	 */
+	public List<Design> design()
+		{
+		synchronized (best)
+			{
+			best.clear();
+			scoreToBeat=Double.NEGATIVE_INFINITY;
+			}
+
+		ArrayList<ForkJoinTask<?>> tasks=new ArrayList<ForkJoinTask<?>>();
+		for(int i=0;i<candidates.size();i++)
+			{
+			final int first=i;
+			tasks.add(AlignmentRace.submit(new Callable<Object>()
+				{
+				public Object call() throws Exception
+					{
+					search(new RestrictionEnzyme[]{candidates.get(first)}, first);
+					return null;
+					}
+				}));
+			}
+		for(ForkJoinTask<?> t:tasks)
+			t.join();
+
+		synchronized (best)
+			{
+			return new ArrayList<Design>(best);
+			}
+		}
+
+	/**
+	 * Evaluate a combination, then the combinations made by adding later enzymes to it
+	 */
+	private void search(RestrictionEnzyme[] combo, int last)
+		{
+		//Buffer of the combination
+		String buffer=null;
+		double bufferEfficiency=0;
+		if(minBufferEfficiency>0)
+			{
+			for(Map.Entry<String, Double> e:RestrictionEnzyme.getCommonBufferEfficiency(Arrays.asList(combo)).entrySet())
+				if(buffer==null || e.getValue()>bufferEfficiency)
+					{
+					buffer=e.getKey();
+					bufferEfficiency=e.getValue();
+					}
+			if(buffer==null || bufferEfficiency<minBufferEfficiency)
+				return;
+			}
+
+		//Fragments of each construct
+		int[][] sizes=new int[constructs.size()][];
+		int numBands=0;
+		for(int i=0;i<sizes.length;i++)
+			{
+			sizes[i]=sim.simulate(i, combo);
+			numBands=Math.max(numBands, sizes[i].length);
+			}
+		if(numBands>maxBands)
+			return;
+
+		double sep=getSeparation(sizes);
+		double score=sep-bandPenalty*numBands;
+		if(score>scoreToBeat)
+			{
+			Design d=new Design();
+			d.enzymes=combo;
+			d.buffer=buffer;
+			d.bufferEfficiency=bufferEfficiency;
+			d.fragmentSizes=sizes;
+			d.separation=sep;
+			d.score=score;
+			addResult(d);
+			}
+
+		//Any larger combination has at least as many bands, and no better separation than 1
+		if(combo.length<maxEnzymes && 1-bandPenalty*numBands>scoreToBeat)
+			for(int i=last+1;i<candidates.size();i++)
+				{
+				RestrictionEnzyme[] next=Arrays.copyOf(combo, combo.length+1);
+				next[combo.length]=candidates.get(i);
+				search(next, i);
+				}
+		}
+
+
+	/**
+	 * Keep a design if among the best
+	 */
+	private void addResult(Design d)
+		{
+		synchronized (best)
+			{
+			best.add(d);
+			Collections.sort(best, new Comparator<Design>()
+				{
+				public int compare(Design a, Design b)
+					{
+					if(a.score!=b.score)
+						return Double.compare(b.score, a.score);
+					else
+						return Integer.compare(a.enzymes.length, b.enzymes.length);
+					}
+				});
+			while(best.size()>numResults)
+				best.remove(best.size()-1);
+			if(best.size()==numResults)
+				scoreToBeat=best.get(best.size()-1).score;
+			}
+		}
+
+
+	/**
+	 * Position of a band on the gel; 0 at the largest band of the ladder and 1 at the smallest.
+	 * Bands outside the ladder end up at the ends
+	 */
+	public double getGelPosition(double bp)
+		{
+		double p=(1/Math.sqrt(bp)-posLargest)/(posSmallest-posLargest);
+		return Math.max(0, Math.min(1, p));
+		}
+
+	/**
+	 * Separation of the constructs that are hardest to tell apart
+	 */
+	private double getSeparation(int[][] sizes)
+		{
+		double[][] pos=new double[sizes.length][];
+		for(int i=0;i<sizes.length;i++)
+			{
+			//Fragments are in increasing size, so positions are decreasing
+			pos[i]=new double[sizes[i].length];
+			for(int j=0;j<sizes[i].length;j++)
+				pos[i][sizes[i].length-1-j]=getGelPosition(sizes[i][j]);
+			}
+		double sep=Double.POSITIVE_INFINITY;
+		for(int i=0;i<pos.length;i++)
+			for(int j=i+1;j<pos.length;j++)
+				sep=Math.min(sep, Math.max(getMaxDistanceToNearest(pos[i], pos[j]), getMaxDistanceToNearest(pos[j], pos[i])));
+		return sep;
+		}
+
+	/**
+	 * Largest distance from a band in one lane to the nearest band in another. Positions are in increasing order
+	 */
+	private static double getMaxDistanceToNearest(double[] a, double[] b)
+		{
+		double max=0;
+		int j=0;
+		for(double p:a)
+			{
+			while(j+1<b.length && b[j+1]<=p)
+				j++;
+			double d=Math.abs(p-b[j]);
+			if(j+1<b.length)
+				d=Math.min(d, b[j+1]-p);
+			max=Math.max(max, d);
+			}
+		return max;
+		}
+	}
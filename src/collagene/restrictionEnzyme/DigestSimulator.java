@@ -25,7 +25,8 @@ public class DigestSimulator
 		for(RestrictionEnzyme e:enzymes)
 			for(RestrictionSite s:seq.restrictionSites.get(e))
 				//TODO only keep those that cut both sides
-				sites.add(s);
+				if(!s.isBlocked)
+					sites.add(s);
 		
 		//Sort from left to right
 		Collections.sort(sites,new Comparator<RestrictionSite>()
@@ -58,23 +58,6 @@ public class NEBparser
 					
 					RestrictionEnzyme enz=new RestrictionEnzyme();
 					enz.name=els.get(0).getChildText("a");
-					for(Element ee:els.get(1).getChildren())
-						{
-						if(ee.getName().equals("img"))
-							{
-							String alt=ee.getAttributeValue("alt");
-							if(alt.equals("cpg"))
-								enz.affectedBy.add("CpG");
-							/*else if(alt.contains("timesaver"))
-								enz.affectedBy.add("timesaver");*/
-							else if(alt.contains("dam"))
-								{
-								enz.affectedBy.add("dam"); //source does not tell which!!! need a different source
-								enz.affectedBy.add("dcm");
-								}
-							}
-						}
-					
 					enz.url="https://www.neb.com"+els.get(0).getChild("a").getAttributeValue("href");
 					String seq=els.get(2).getText().trim();
 					if(seq.equals(""))
@@ -93,10 +76,14 @@ public class NEBparser
 					
 					enz.tempInactivation=cleantemp(els.get(8).getText());
 					enz.tempIncubation=cleantemp(els.get(9).getText());
+
+					//Sensitivity to methylation: blocked or impaired, always or only by overlapping motifs
+					cleanmethyl(enz, "dam", els.get(11));
+					cleanmethyl(enz, "dcm", els.get(12));
+					cleanmethyl(enz, "CpG", els.get(13));
 					
 					db.addEnzyme(enz);
-					
-					//Could also include info on Dam, Dcm, CpG. These could be made into notes
+
 					}
 				else
 					throw new IOException("wut");
@@ -116,6 +103,13 @@ public class NEBparser
 			enz.bufferEfficiency.put(buf, Double.parseDouble(s.replace("*", "")));
 		}
 
+	private static void cleanmethyl(RestrictionEnzyme enz, String methylase, Element el)
+		{
+		Element img=el.getChild("img");
+		if(img!=null && !img.getAttributeValue("alt").equals("Not Sensitive"))
+			enz.affectedBy.add(methylase);
+		}
+
 	private static Double cleantemp(String s)
 		{
 		if(s.equals("No") || s.equals("") || s.equals("N/R"))
@@ -120,7 +120,7 @@ public class RestrictionEnzyme
 				for(String buf:e.bufferEfficiency.keySet())
 					{
 					double eff=e.bufferEfficiency.get(buf);
-					if(map.get(buf)==null || map.get(buf)>eff)
+					if(map.containsKey(buf) && map.get(buf)>eff)
 						map.put(buf,eff);
 					}
 				}
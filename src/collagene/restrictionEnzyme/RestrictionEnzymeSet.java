@@ -1,16 +1,12 @@
 package collagene.restrictionEnzyme;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import collagene.seq.AnnotatedSequence;
 import collagene.seq.RestrictionSite;
-import collagene.seq.SequenceRange;
-import collagene.sequtil.NucleotideUtil;
 
 /**
  * 
@@ -21,119 +17,79 @@ import collagene.sequtil.NucleotideUtil;
  */
 public class RestrictionEnzymeSet
 	{
-	public List<RestrictionEnzyme> enzymes=new LinkedList<RestrictionEnzyme>();
-
 	/**
-	 * Find restriction sites
+	 * List of enzymes where every change drops the scanner. Changes through iterators and bulk operations
+	 * also end up in set, add or remove
 	 */
-	public Collection<RestrictionSite> findRestrictionSites(AnnotatedSequence sequence)
+	private class EnzymeList extends AbstractList<RestrictionEnzyme>
 		{
-		String searchUpper=sequence.getSequence();
-		String searchLower=NucleotideUtil.revcomplement(sequence.getSequence());
+		private ArrayList<RestrictionEnzyme> list=new ArrayList<RestrictionEnzyme>();
 
-		//Handle circular sequences. Easiest way is to pad sequence with itself, 30bp or so. then exclude overlaps
-		if(sequence.isCircular)
+		public RestrictionEnzyme get(int index)
 			{
-			searchUpper=searchUpper+searchUpper;
-			searchLower=searchLower+searchLower;
+			return list.get(index);
 			}
 
-		//Search both ways
-		List<RestrictionSite> list=findRestrictionSitesOneway(searchUpper);
-		List<RestrictionSite> list2=findRestrictionSitesOneway(searchLower);
-		
-		//Transform cut-site for lower strand into upper strand
-		for(RestrictionSite s:list2)
+		public int size()
 			{
-			if(s.cuttingUpperPos!=null)
-				s.cuttingUpperPos=sequence.getLength()-s.cuttingUpperPos;
-			if(s.cuttingLowerPos!=null)
-				s.cuttingLowerPos=sequence.getLength()-s.cuttingLowerPos;
-			Integer temp=s.cuttingLowerPos;
-			s.cuttingLowerPos=s.cuttingUpperPos;
-			s.cuttingUpperPos=temp;
-			s.motif=new SequenceRange(
-					sequence.getLength()-s.motif.to,
-					sequence.getLength()-s.motif.from).toNormalizedRange(sequence);
+			return list.size();
 			}
-		
-		//Normalize positions
-		LinkedList<RestrictionSite> listTot=new LinkedList<RestrictionSite>();
-		listTot.addAll(list);
-		listTot.addAll(list2);
-		for(RestrictionSite s:listTot)
+
+		public RestrictionEnzyme set(int index, RestrictionEnzyme e)
 			{
-			if(s.cuttingUpperPos!=null)
-				{
-				while(s.cuttingUpperPos<0)
-					{
-					s.cuttingUpperPos+=sequence.getLength();
-					if(s.cuttingLowerPos!=null)
-						s.cuttingLowerPos+=sequence.getLength();
-					}
-				while(s.cuttingUpperPos>=sequence.getLength())
-					{
-					s.cuttingUpperPos-=sequence.getLength();
-					if(s.cuttingLowerPos!=null)
-						s.cuttingLowerPos-=sequence.getLength();
-					}
-				}
-			else if(s.cuttingLowerPos!=null)
-				{
-				while(s.cuttingLowerPos<0)
-					s.cuttingLowerPos+=sequence.getLength();
-				while(s.cuttingLowerPos>=sequence.getLength())
-					s.cuttingLowerPos-=sequence.getLength();
-				}
+			scanner=null;
+			return list.set(index, e);
 			}
-		
-		//Use a hashset to omit those found twice - in particular symmetric palindromic cutters
-		HashSet<RestrictionSite> sites=new HashSet<RestrictionSite>();
-		sites.addAll(listTot);
-		
-		return sites;
-		}
 
-	
-	
-	private List<RestrictionSite> findRestrictionSitesOneway(String sequence)
-		{
-		LinkedList<RestrictionSite> list=new LinkedList<RestrictionSite>();
-		sequence=sequence.toUpperCase();
-		
-		
-		
-		//To make the search fast, one should really build a trie structure first.
-		//A dirty version is to build a regexp, find hits, then figure out what they are
-
-		//java pattern:     p1|p2|p3    with N=[ATCG] etc
-
-		//This is a lazy version of speeding up search: Build a regular expression for each enzyme. Then scan through.
-		//Java has capture groups, http://docs.oracle.com/javase/7/docs/api/java/util/regex/Pattern.html#cg
-		for(RestrictionEnzyme e:enzymes)
+		public void add(int index, RestrictionEnzyme e)
 			{
-			Pattern pa=Pattern.compile(e.getRegexp());
-			Matcher m=pa.matcher(sequence);
-			while(m.find())
-				{
-				for(RestrictionEnzymeCut cut:e.cuts)
-					{
-					RestrictionSite site=new RestrictionSite();
-					site.enzyme=e;
-					site.cuttingUpperPos=cut.upper+m.start();
-					site.cuttingLowerPos=cut.lower+m.start();
-					site.cut=cut;
-					
-					site.motif=new SequenceRange(m.start(), m.start()+e.sequence.length());
-					
-					if(Math.min(site.cuttingUpperPos,site.cuttingLowerPos)<=sequence.length() &&
-							Math.max(site.cuttingUpperPos,site.cuttingLowerPos)>=0)  //This test is very blunt
-						list.add(site);
-					}
-				}
+			scanner=null;
+			modCount++;
+			list.add(index, e);
 			}
-		return list;
+
+		public RestrictionEnzyme remove(int index)
+			{
+			scanner=null;
+			modCount++;
+			return list.remove(index);
+			}
+		}
+
+	public final List<RestrictionEnzyme> enzymes=new EnzymeList();
+
+	/**
+	 * Scanner for the current enzymes, built on demand
+	 */
+	private RestrictionSiteScanner scanner;
+
+	/**
+	 * Get a scanner for all enzymes. It is cached until the list of enzymes changes
+	 */
+	public RestrictionSiteScanner getScanner()
+		{
+		if(scanner==null)
+			scanner=new RestrictionSiteScanner(enzymes);
+		return scanner;
 		}
+
+	/**
+	 * Find restriction sites
+	 */
+	public Collection<RestrictionSite> findRestrictionSites(AnnotatedSequence sequence)
+		{
+		return getScanner().findRestrictionSites(sequence);
+		}
+
+	/**
+	 * Update restriction sites after an edit, where [pos,pos+insertSize) is the new part of the sequence.
+	 * This only rescans a window around the edit
+	 */
+	public void updateRestrictionSites(AnnotatedSequence sequence, int pos, int insertSize)
+		{
+		getScanner().updateRestrictionSites(sequence, pos, insertSize);
+		}
+
 	
 	/**
 	 * Return a subset of enzymes matching the given names
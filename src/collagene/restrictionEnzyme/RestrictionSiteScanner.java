@@ -0,0 +1,802 @@
+package collagene.restrictionEnzyme;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import collagene.bacteria.BacteriaProperty;
+import collagene.seq.AnnotatedSequence;
+import collagene.seq.RestrictionSite;
+import collagene.seq.SequenceRange;
+import collagene.sequtil.DegenerateBases;
+
+/**
+ *
+ * Multi-pattern scanner for restriction sites (Aho-Corasick automaton).
+ *
+ * All motifs, and their reverse complements, are compiled into one automaton over ACGT. Degenerate motifs
+ * are expanded into all concrete sequences. If a motif has too many expansions (long stretches of N), only its
+ * most specific part is put in the automaton and the rest of the motif is verified for each hit.
+ *
+ * One linear pass over the sequence then finds all sites, for all enzymes, on both strands. Circular sequences
+ * are handled by continuing the scan a motif length past the end, wrapping around to the start.
+ *
+ * The motifs of DNA methylases are in the same automaton. Sites of enzymes affected by a methylase of the source of
+ * the DNA are held back until all methylation motifs that could overlap them have been passed, and are then marked
+ * as blocked if bases on both strands of the motif are methylated, or partially blocked if only one strand is.
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class RestrictionSiteScanner
+	{
+	/**
+	 * Maximum number of concrete sequences a motif may expand to in the automaton
+	 */
+	private static final int maxExpansion=256;
+
+	/**
+	 * DNA methylases, with names as in RestrictionEnzyme.affectedBy, their motifs, and the methylated base on
+	 * each strand given as the position in the motif
+	 */
+	private static final String[] methylaseName={"dam", "dcm", "EcoKI", "CpG"};
+	private static final String[] methylaseMotif={"GATC", "CCWGG", "AACNNNNNNGTGC", "CG"};
+	private static final int[] methylaseUpper={1, 1, 1, 0};
+	private static final int[] methylaseLower={2, 3, 10, 1};
+
+	/**
+	 * One pattern in the automaton; a motif on either strand
+	 */
+	private static class Entry
+		{
+		RestrictionEnzyme enzyme;
+		boolean reverse;
+		byte[] mask;
+		int anchorOffset;
+		int anchorLength;
+		boolean verify;
+
+		//For enzymes, the methylases that can block it, one bit each
+		int sensitiveTo;
+
+		//For methylation motifs, the methylase and the methylated bases on each strand
+		int methylase=-1;
+		int methylUpper, methylLower;
+		}
+
+	/**
+	 * A site held back until it is known if it is methylated
+	 */
+	private static class PendingSite
+		{
+		Entry en;
+		int motifStart;
+		int sensitiveTo;
+		boolean upperMethylated, lowerMethylated;
+		}
+
+	private Entry[] entries;
+	private int maxMotifLength=0;
+	private int maxCutReach=0;
+	private int maxMethylLength=0;
+
+	//The automaton. Transitions are complete, i.e. failure links are already resolved
+	private int[] delta;
+	private int[] dictLink;
+	private int[][] output;
+	private int numStates;
+
+	private static byte[] baseCode=new byte[128];
+	static
+		{
+		for(int i=0;i<baseCode.length;i++)
+			baseCode[i]=-1;
+		baseCode['A']=baseCode['a']=0;
+		baseCode['C']=baseCode['c']=1;
+		baseCode['G']=baseCode['g']=2;
+		baseCode['T']=baseCode['t']=3;
+		}
+
+	/**
+	 * Get 2-bit code for a base, or -1 if it is not A, C, G or T
+	 */
+	public static int getBaseCode(char c)
+		{
+		if(c<128)
+			return baseCode[c];
+		else
+			return -1;
+		}
+
+
+	/**
+	 * Build the scanner for a set of enzymes
+	 */
+	public RestrictionSiteScanner(Collection<RestrictionEnzyme> enzymes)
+		{
+		ArrayList<Entry> listEntries=new ArrayList<Entry>();
+		for(RestrictionEnzyme e:enzymes)
+			{
+			byte[] mask=getMotifMask(e.sequence);
+			if(mask!=null)
+				{
+				maxMotifLength=Math.max(maxMotifLength, mask.length);
+				for(RestrictionEnzymeCut cut:e.cuts)
+					maxCutReach=Math.max(maxCutReach, getCutReach(cut, mask.length));
+				
+				//Palindromic motifs will be found on both strands. These duplicates are removed later
+				Entry fwd=createEntry(e, false, mask);
+				Entry rev=createEntry(e, true, revcomplementMask(mask));
+				fwd.sensitiveTo=rev.sensitiveTo=getSensitivity(e);
+				listEntries.add(fwd);
+				listEntries.add(rev);
+				}
+			}
+		for(int m=0;m<methylaseName.length;m++)
+			{
+			byte[] mask=getMotifMask(methylaseMotif[m]);
+			byte[] revmask=revcomplementMask(mask);
+			maxMethylLength=Math.max(maxMethylLength, mask.length);
+
+			Entry en=createEntry(null, false, mask);
+			en.methylase=m;
+			en.methylUpper=methylaseUpper[m];
+			en.methylLower=methylaseLower[m];
+			listEntries.add(en);
+
+			//The reverse strand need only be searched if the motif is not palindromic
+			if(!Arrays.equals(mask, revmask))
+				{
+				en=createEntry(null, true, revmask);
+				en.methylase=m;
+				en.methylUpper=mask.length-1-methylaseLower[m];
+				en.methylLower=mask.length-1-methylaseUpper[m];
+				listEntries.add(en);
+				}
+			}
+		entries=listEntries.toArray(new Entry[0]);
+		build();
+		}
+
+
+	/**
+	 * Get the methylases that can block an enzyme, one bit each
+	 */
+	private static int getSensitivity(RestrictionEnzyme e)
+		{
+		int sensitiveTo=0;
+		for(String s:e.affectedBy)
+			for(int m=0;m<methylaseName.length;m++)
+				if(s.equalsIgnoreCase(methylaseName[m]))
+					sensitiveTo|=1<<m;
+		return sensitiveTo;
+		}
+
+	/**
+	 * Get the methylases of a source of DNA, one bit each
+	 */
+	private static int getMethylases(BacteriaProperty bacteria)
+		{
+		int methylases=0;
+		if(bacteria.isDam())
+			methylases|=1;
+		if(bacteria.isDcm())
+			methylases|=2;
+		if(bacteria.isEcoKI())
+			methylases|=4;
+		if(bacteria.isCpG())
+			methylases|=8;
+		return methylases;
+		}
+
+
+	/**
+	 * Get the allowed bases for each position of a motif, one bit per base. Returns null if the motif cannot match anything.
+	 * Lower case motifs, which have unknown cutting positions, are not matched
+	 */
+	public static byte[] getMotifMask(String motif)
+		{
+		byte[] mask=new byte[motif.length()];
+		for(int i=0;i<motif.length();i++)
+			{
+			String letters=DegenerateBases.getLettersFor(""+motif.charAt(i));
+			if(letters!=null)
+				for(char c:letters.toCharArray())
+					mask[i]|=1<<getBaseCode(c);
+			if(mask[i]==0)
+				return null;
+			}
+		return mask;
+		}
+
+	/**
+	 * Reverse complement a motif mask. A<->T is bit 0<->3, C<->G is bit 1<->2
+	 */
+	public static byte[] revcomplementMask(byte[] mask)
+		{
+		byte[] rev=new byte[mask.length];
+		for(int i=0;i<mask.length;i++)
+			{
+			int m=mask[mask.length-1-i];
+			rev[i]=(byte)(((m&1)<<3) | ((m&2)<<1) | ((m&4)>>1) | ((m&8)>>3));
+			}
+		return rev;
+		}
+
+
+	/**
+	 * Create an entry and decide which part of it should go into the automaton
+	 */
+	private static Entry createEntry(RestrictionEnzyme enzyme, boolean reverse, byte[] mask)
+		{
+		Entry en=new Entry();
+		en.enzyme=enzyme;
+		en.reverse=reverse;
+		en.mask=mask;
+		int motifLength=mask.length;
+
+		//Pick the window with the most information that does not expand into too many sequences
+		double bestInfo=-1;
+		int from=0;
+		double curInfo=0;
+		long curExpansion=1;
+		for(int to=0;to<motifLength;to++)
+			{
+			int n=Integer.bitCount(en.mask[to]);
+			curExpansion*=n;
+			curInfo+=2-log2(n);
+			while(curExpansion>maxExpansion)
+				{
+				int m=Integer.bitCount(en.mask[from]);
+				curExpansion/=m;
+				curInfo-=2-log2(m);
+				from++;
+				}
+			if(curInfo>bestInfo)
+				{
+				bestInfo=curInfo;
+				en.anchorOffset=from;
+				en.anchorLength=to-from+1;
+				}
+			}
+		en.verify=en.anchorLength!=motifLength;
+		return en;
+		}
+
+	/**
+	 * How far from its motif a cut can be. The same cut can be produced by one motif on each strand, and these
+	 * are at most twice this distance apart
+	 */
+	private static int getCutReach(RestrictionEnzymeCut cut, int motifLength)
+		{
+		int reach=motifLength;
+		for(Integer c:new Integer[]{cut.upper, cut.lower})
+			if(c!=null)
+				reach=Math.max(reach, Math.max(Math.abs(c), Math.abs(c-motifLength)));
+		return reach;
+		}
+
+	private static double log2(int n)
+		{
+		return Math.log(n)/Math.log(2);
+		}
+
+
+	/**
+	 * Build the automaton
+	 */
+	private void build()
+		{
+		//Build the trie
+		int capacity=1024;
+		delta=new int[capacity*4];
+		ArrayList<List<Integer>> outputList=new ArrayList<List<Integer>>();
+		outputList.add(null);
+		numStates=1;
+		for(int i=0;i<4;i++)
+			delta[i]=-1;
+
+		for(int ei=0;ei<entries.length;ei++)
+			{
+			Entry en=entries[ei];
+
+			//Insert all expansions of the anchor
+			int[] codes=new int[en.anchorLength];
+			for(int i=0;i<en.anchorLength;i++)
+				codes[i]=firstBase(en.mask[en.anchorOffset+i]);
+			for(;;)
+				{
+				//Walk down the trie, creating states as needed
+				int state=0;
+				for(int i=0;i<en.anchorLength;i++)
+					{
+					int next=delta[state*4+codes[i]];
+					if(next==-1)
+						{
+						if(numStates==capacity)
+							{
+							capacity*=2;
+							int[] newdelta=new int[capacity*4];
+							System.arraycopy(delta, 0, newdelta, 0, numStates*4);
+							delta=newdelta;
+							}
+						next=numStates++;
+						for(int j=0;j<4;j++)
+							delta[next*4+j]=-1;
+						outputList.add(null);
+						delta[state*4+codes[i]]=next;
+						}
+					state=next;
+					}
+				List<Integer> out=outputList.get(state);
+				if(out==null)
+					outputList.set(state, out=new ArrayList<Integer>(1));
+				out.add(ei);
+
+				//Next expansion
+				if(!nextExpansion(en, codes))
+					break;
+				}
+			}
+
+		output=new int[numStates][];
+		for(int i=0;i<numStates;i++)
+			{
+			List<Integer> out=outputList.get(i);
+			if(out!=null)
+				{
+				output[i]=new int[out.size()];
+				for(int j=0;j<out.size();j++)
+					output[i][j]=out.get(j);
+				}
+			}
+
+		//Resolve failure links breadth first
+		int[] fail=new int[numStates];
+		dictLink=new int[numStates];
+		int[] queue=new int[numStates];
+		int qhead=0, qtail=0;
+		dictLink[0]=-1;
+		for(int c=0;c<4;c++)
+			{
+			int next=delta[c];
+			if(next==-1)
+				delta[c]=0;
+			else
+				{
+				fail[next]=0;
+				dictLink[next]=-1;
+				queue[qtail++]=next;
+				}
+			}
+		while(qhead<qtail)
+			{
+			int state=queue[qhead++];
+			for(int c=0;c<4;c++)
+				{
+				int next=delta[state*4+c];
+				int f=delta[fail[state]*4+c];
+				if(next==-1)
+					delta[state*4+c]=f;
+				else
+					{
+					fail[next]=f;
+					dictLink[next]=output[f]!=null ? f : dictLink[f];
+					queue[qtail++]=next;
+					}
+				}
+			}
+		}
+
+	/**
+	 * Step to the next concrete sequence of the anchor. Returns false when all have been generated
+	 */
+	private static boolean nextExpansion(Entry en, int[] codes)
+		{
+		//Increase the last position that can be increased, and reset all after it
+		for(int i=en.anchorLength-1;i>=0;i--)
+			{
+			int mask=en.mask[en.anchorOffset+i];
+			for(int c=codes[i]+1;c<4;c++)
+				if((mask & (1<<c))!=0)
+					{
+					codes[i]=c;
+					for(int j=i+1;j<en.anchorLength;j++)
+						codes[j]=firstBase(en.mask[en.anchorOffset+j]);
+					return true;
+					}
+			}
+		return false;
+		}
+
+	private static int firstBase(int mask)
+		{
+		for(int c=0;c<4;c++)
+			if((mask & (1<<c))!=0)
+				return c;
+		return 0;
+		}
+
+
+	/**
+	 * Get the length of the longest motif
+	 */
+	public int getMaxMotifLength()
+		{
+		return maxMotifLength;
+		}
+
+
+	/**
+	 * How far from an edit the cutting positions of sites may change, when updated by updateRestrictionSites
+	 */
+	public int getEditReach()
+		{
+		return maxMotifLength+3*maxCutReach+maxMethylLength;
+		}
+
+
+	/**
+	 * Find all restriction sites in a sequence
+	 */
+	public Collection<RestrictionSite> findRestrictionSites(AnnotatedSequence sequence)
+		{
+		LinkedList<RestrictionSite> list=new LinkedList<RestrictionSite>();
+		scan(sequence, 0, sequence.getLength(), list);
+
+		//Omit those found twice - in particular symmetric palindromic cutters. The least blocked one is kept,
+		//so the result does not depend on the order of scanning
+		HashMap<RestrictionSite, RestrictionSite> sites=new HashMap<RestrictionSite, RestrictionSite>();
+		for(RestrictionSite site:list)
+			{
+			RestrictionSite old=sites.get(site);
+			if(old==null || site.isLessBlockedThan(old))
+				sites.put(site, site);
+			}
+		return sites.values();
+		}
+
+
+	/**
+	 * Update restriction sites after an edit, where [pos,pos+insertSize) is the new part of the sequence.
+	 * Only motifs that can overlap the new part are searched for. Sites overlapping the removed part must already
+	 * have been removed, see AnnotatedSequence.replaceSequence
+	 */
+	public void updateRestrictionSites(AnnotatedSequence sequence, int pos, int insertSize)
+		{
+		int len=sequence.getLength();
+		if(len==0)
+			return;
+		
+		//Sites with the same cut are only kept once. If one was removed, the other motif must be found again, so
+		//also rescan as far away as the other motif can be. Sites next to the edit may also have become methylated
+		int from=pos-(maxMotifLength-1)-2*maxCutReach-(maxMethylLength-1);
+		int to=pos+insertSize+2*maxCutReach+(maxMethylLength-1);
+
+		//Collect windows of motif starts. For circular sequences these may wrap around
+		LinkedList<SequenceRange> windows=new LinkedList<SequenceRange>();
+		if(!sequence.isCircular)
+			{
+			//Cutting positions beyond the ends of a linear sequence are wrapped around, so a site close to one end
+			//can have the same cut as one close to the other end. Near an end, both ends are thus rescanned
+			int wFrom=Math.max(0,from);
+			int wTo=Math.min(len,to);
+			int endReach=maxMotifLength+2*maxCutReach;
+			if(wFrom<endReach || wTo>len-endReach)
+				{
+				if(wFrom<=endReach)
+					wFrom=0;
+				else
+					windows.add(new SequenceRange(0, endReach));
+				if(wTo>=len-endReach)
+					wTo=len;
+				else
+					windows.add(new SequenceRange(len-endReach, len));
+				}
+			windows.add(new SequenceRange(wFrom, wTo));
+			}
+		else if(to-from>=len)
+			windows.add(new SequenceRange(0, len));
+		else if(from<0)
+			{
+			windows.add(new SequenceRange(from+len, len));
+			windows.add(new SequenceRange(0, to));
+			}
+		else if(to>len)
+			{
+			windows.add(new SequenceRange(from, len));
+			windows.add(new SequenceRange(0, to-len));
+			}
+		else
+			windows.add(new SequenceRange(from, to));
+
+		//Sites starting in the windows are found again, so remove them first. Remember the sites close to the
+		//windows; the same cut may be found again from a motif in the window
+		HashMap<RestrictionEnzyme, HashMap<RestrictionSite, RestrictionSite>> existing=new HashMap<RestrictionEnzyme, HashMap<RestrictionSite, RestrictionSite>>();
+		int zone=2*maxCutReach;
+		for(RestrictionEnzyme enz:sequence.restrictionSites.keySet())
+			{
+			HashMap<RestrictionSite, RestrictionSite> set=new HashMap<RestrictionSite, RestrictionSite>();
+			for(Iterator<RestrictionSite> it=sequence.restrictionSites.get(enz).iterator();it.hasNext();)
+				{
+				RestrictionSite site=it.next();
+				int start=site.motif.from;
+				if(isWithin(start, windows, 0, len, sequence.isCircular))
+					it.remove();
+				else if(isWithin(start, windows, zone, len, sequence.isCircular))
+					set.put(site, site);
+				else if(site.cuttingUpperPos!=null && isWithin(site.cuttingUpperPos, windows, zone, len, true))
+					set.put(site, site);  //Cutting positions are wrapped around also for linear sequences
+				}
+			existing.put(enz, set);
+			}
+		sequence.invalidateRestrictionSites();
+
+		//Rescan the windows
+		LinkedList<RestrictionSite> found=new LinkedList<RestrictionSite>();
+		for(SequenceRange w:windows)
+			scan(sequence, w.from, w.to, found);
+
+		//Add new sites, but not those found twice. In particular palindromes, and sites found from both strands.
+		//As for a full scan, the least blocked one is kept
+		for(RestrictionSite site:found)
+			{
+			HashMap<RestrictionSite, RestrictionSite> set=existing.get(site.enzyme);
+			if(set==null)
+				existing.put(site.enzyme, set=new HashMap<RestrictionSite, RestrictionSite>());
+			RestrictionSite old=set.get(site);
+			if(old==null || site.isLessBlockedThan(old))
+				{
+				if(old!=null)
+					sequence.restrictionSites.get(site.enzyme).remove(old);
+				set.put(site, site);
+				sequence.addRestrictionSite(site);
+				}
+			}
+		}
+
+
+	/**
+	 * Check if a position is within any of the windows, extended by a margin on both sides
+	 */
+	private static boolean isWithin(int pos, Collection<SequenceRange> windows, int margin, int len, boolean isCircular)
+		{
+		for(SequenceRange w:windows)
+			if(isWithin(pos, w.from-margin, w.to+margin, len, isCircular))
+				return true;
+		return false;
+		}
+
+
+	/**
+	 * Check if a position is within [from,to). For circular sequences, the range may extend outside the sequence
+	 */
+	private static boolean isWithin(int pos, int from, int to, int len, boolean isCircular)
+		{
+		if(isCircular)
+			{
+			if(to-from>=len)
+				return true;
+			int d=(pos-from)%len;
+			if(d<0)
+				d+=len;
+			return d<to-from;
+			}
+		else
+			return pos>=from && pos<to;
+		}
+
+
+	/**
+	 * Find restriction sites with a motif starting within [from,to). Cutting positions are normalized
+	 */
+	public void scan(AnnotatedSequence sequence, int from, int to, Collection<RestrictionSite> list)
+		{
+		String seq=sequence.getSequence();
+		int len=seq.length();
+		if(len==0 || maxMotifLength==0)
+			return;
+
+		//Methylation motifs overlapping the range also have to be seen
+		int methylases=getMethylases(sequence.bacteria);
+		int methylReach=methylases!=0 ? maxMethylLength-1 : 0;
+		ArrayDeque<PendingSite> pending=new ArrayDeque<PendingSite>();
+		ArrayDeque<int[]> recentMethylation=new ArrayDeque<int[]>();
+
+		//The bases that could be part of a motif starting in the range, or of a methylation motif overlapping it
+		int first=from-methylReach;
+		int last=to-1+maxMotifLength-1+methylReach;
+		if(!sequence.isCircular)
+			{
+			first=Math.max(first, 0);
+			last=Math.min(last, len-1);
+			}
+
+		int state=0;
+		for(int i=first;i<=last;i++)
+			{
+			int pos=i%len;
+			if(pos<0)
+				pos+=len;
+			char ch=seq.charAt(pos);
+			int code=ch<128 ? baseCode[ch] : -1;
+			if(code==-1)
+				state=0;
+			else
+				{
+				state=delta[state*4+code];
+
+				//Report all patterns ending here
+				for(int s=output[state]!=null ? state : dictLink[state];s!=-1;s=dictLink[s])
+					for(int ei:output[s])
+						{
+						Entry en=entries[ei];
+						int motifStart=i-en.anchorLength+1-en.anchorOffset;
+						if(en.methylase!=-1)
+							{
+							if((methylases & (1<<en.methylase))!=0 && matches(en, seq, motifStart, sequence.isCircular))
+								{
+								int[] m=new int[]{ei, motifStart};
+								recentMethylation.add(m);
+								for(PendingSite p:pending)
+									markMethylated(p, m);
+								}
+							}
+						else if(motifStart>=from && motifStart<to && matches(en, seq, motifStart, sequence.isCircular))
+							{
+							int sensitiveTo=en.sensitiveTo & methylases;
+							if(sensitiveTo==0)
+								addSites(sequence, en, motifStart, list, false, false);
+							else
+								{
+								PendingSite p=new PendingSite();
+								p.en=en;
+								p.motifStart=motifStart;
+								p.sensitiveTo=sensitiveTo;
+								for(int[] m:recentMethylation)
+									markMethylated(p, m);
+								pending.add(p);
+								}
+							}
+						}
+				}
+
+			//Sites are done once no more overlapping methylation motifs can be found
+			while(!pending.isEmpty() && i>=pending.getFirst().motifStart+pending.getFirst().en.mask.length+maxMethylLength-2)
+				addPendingSites(sequence, pending.removeFirst(), list);
+			//Methylation motifs that end before any site that can still be found are not needed
+			while(!recentMethylation.isEmpty() && recentMethylation.getFirst()[1]+entries[recentMethylation.getFirst()[0]].mask.length<=i-maxMotifLength+2)
+				recentMethylation.removeFirst();
+			}
+		for(PendingSite p:pending)
+			addPendingSites(sequence, p, list);
+		}
+
+	/**
+	 * Mark the strands of a site that are methylated by a methylation motif, given as entry and start
+	 */
+	private void markMethylated(PendingSite p, int[] m)
+		{
+		Entry men=entries[m[0]];
+		if((p.sensitiveTo & (1<<men.methylase))!=0)
+			{
+			int upper=m[1]+men.methylUpper;
+			int lower=m[1]+men.methylLower;
+			int end=p.motifStart+p.en.mask.length;
+			if(upper>=p.motifStart && upper<end)
+				p.upperMethylated=true;
+			if(lower>=p.motifStart && lower<end)
+				p.lowerMethylated=true;
+			}
+		}
+
+	private static void addPendingSites(AnnotatedSequence sequence, PendingSite p, Collection<RestrictionSite> list)
+		{
+		addSites(sequence, p.en, p.motifStart, list,
+				p.upperMethylated && p.lowerMethylated, p.upperMethylated != p.lowerMethylated);
+		}
+
+
+	/**
+	 * Check that the full motif matches, not just the anchor
+	 */
+	private static boolean matches(Entry en, String seq, int motifStart, boolean isCircular)
+		{
+		int len=seq.length();
+		if(!isCircular && (motifStart<0 || motifStart+en.mask.length>len))
+			return false;
+		if(en.verify)
+			{
+			for(int i=0;i<en.mask.length;i++)
+				{
+				int pos=(motifStart+i)%len;
+				if(pos<0)
+					pos+=len;
+				char ch=seq.charAt(pos);
+				int code=ch<128 ? baseCode[ch] : -1;
+				if(code==-1 || (en.mask[i] & (1<<code))==0)
+					return false;
+				}
+			}
+		return true;
+		}
+
+
+	/**
+	 * Create the sites for a motif occurrence, one per cut of the enzyme
+	 */
+	private static void addSites(AnnotatedSequence sequence, Entry en, int motifStart, Collection<RestrictionSite> list,
+			boolean isBlocked, boolean isPartiallyBlocked)
+		{
+		RestrictionEnzyme e=en.enzyme;
+		int motifLen=en.mask.length;
+		for(RestrictionEnzymeCut cut:e.cuts)
+			{
+			RestrictionSite site=new RestrictionSite();
+			site.enzyme=e;
+			site.cut=cut;
+			site.isBlocked=isBlocked;
+			site.isPartiallyBlocked=isPartiallyBlocked;
+			if(!en.reverse)
+				{
+				site.cuttingUpperPos=add(cut.upper, motifStart);
+				site.cuttingLowerPos=add(cut.lower, motifStart);
+				site.motif=new SequenceRange(motifStart, motifStart+motifLen);
+				}
+			else
+				{
+				//Cut positions mirrored onto the upper strand
+				site.cuttingUpperPos=sub(motifStart+motifLen, cut.lower);
+				site.cuttingLowerPos=sub(motifStart+motifLen, cut.upper);
+				site.motif=new SequenceRange(motifStart, motifStart+motifLen).toNormalizedRange(sequence);
+				}
+
+			if(sequence.isCircular || isCutWithin(site, sequence.getLength()))
+				{
+				site.normalizeCutPos(sequence.getLength());
+				list.add(site);
+				}
+			}
+		}
+
+	private static Integer add(Integer a, int b)
+		{
+		if(a==null)
+			return null;
+		else
+			return a+b;
+		}
+
+	private static Integer sub(int a, Integer b)
+		{
+		if(b==null)
+			return null;
+		else
+			return a-b;
+		}
+
+	/**
+	 * Check if the cut is within a linear sequence. This test is very blunt
+	 */
+	private static boolean isCutWithin(RestrictionSite site, int len)
+		{
+		int min=Integer.MAX_VALUE, max=Integer.MIN_VALUE;
+		if(site.cuttingUpperPos!=null)
+			{
+			min=Math.min(min, site.cuttingUpperPos);
+			max=Math.max(max, site.cuttingUpperPos);
+			}
+		if(site.cuttingLowerPos!=null)
+			{
+			min=Math.min(min, site.cuttingLowerPos);
+			max=Math.max(max, site.cuttingLowerPos);
+			}
+		return min<=len && max>=0;
+		}
+
+	}
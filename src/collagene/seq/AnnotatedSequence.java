@@ -1,7 +1,10 @@
 package collagene.seq;
 
+import java.lang.ref.SoftReference;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.Map;
 
 import collagene.bacteria.BacteriaProperty;
 import collagene.gui.paneLinear.tracks.PlacedTrace;
@@ -17,8 +20,12 @@ import collagene.sequtil.NucleotideUtil;
  */
 public class AnnotatedSequence
 	{
-	private String sequenceUpper;
-	private String sequenceLower;
+	private PackedSequence sequenceUpper;
+	private PackedSequence sequenceLower;
+	
+	//Unpacked sequences, kept for as long as there is memory to spare
+	private SoftReference<String> cacheUpper=new SoftReference<String>(null);
+	private SoftReference<String> cacheLower=new SoftReference<String>(null);
 	public String name="";
 	public String notes="";
 	public boolean isCircular;
@@ -37,6 +44,18 @@ public class AnnotatedSequence
 	public LinkedList<PlacedTrace> traces=new LinkedList<PlacedTrace>();
 	public BacteriaProperty bacteria=new BacteriaProperty();
 	
+	//Position indexes of the features, built when needed
+	private FeatureIndex<RestrictionSite> indexRestrictionSites;
+	private HashMap<RestrictionEnzyme, Integer> numCuttingSites;
+	private FeatureIndex<SeqAnnotation> indexAnnotations;
+	private FeatureIndex<Primer> indexPrimers;
+	
+	//k-mer indexes of the sequence, built when needed. Element k holds the index of k-mers of length k
+	private KmerIndex[] indexKmers=new KmerIndex[16];
+	
+	//Suffix index of both strands, built when needed
+	private SuffixIndex indexSuffix;
+	
 	
 	/**
 	 * some things from benchling:
@@ -75,6 +94,10 @@ public class AnnotatedSequence
 		{
 		sequenceUpper=seq.sequenceUpper;
 		sequenceLower=seq.sequenceLower;
+		cacheUpper=seq.cacheUpper;
+		cacheLower=seq.cacheLower;
+		indexKmers=seq.indexKmers.clone();
+		indexSuffix=seq.indexSuffix;
 		name=seq.name;
 		notes=seq.notes;
 		isCircular=seq.isCircular;
@@ -83,15 +106,34 @@ public class AnnotatedSequence
 
 	public void setSequence(String upper)
 		{
-		sequenceUpper=upper.toUpperCase();
-		sequenceLower=NucleotideUtil.complement(sequenceUpper);
+		PackedSequence packedUpper=new PackedSequence(upper.toUpperCase());
+		setSequence(packedUpper, PackedSequence.complementOf(packedUpper));
 		}
 	public void setSequence(String upper, String lower)
 		{
-		sequenceUpper=upper.toUpperCase();
-		sequenceLower=lower.toUpperCase();
-		if(sequenceUpper.length()!=sequenceLower.length())
+		upper=upper.toUpperCase();
+		lower=lower.toUpperCase();
+		if(upper.length()!=lower.length())
 			throw new RuntimeException("upper and lower sequence not the same length");
+		PackedSequence packedUpper=new PackedSequence(upper);
+		setSequence(packedUpper, PackedSequence.complementOf(packedUpper, lower));
+		cacheUpper=new SoftReference<String>(upper);
+		cacheLower=new SoftReference<String>(lower);
+		}
+	/**
+	 * Set the sequence from packed strands, without unpacking them
+	 */
+	public void setSequence(PackedSequence upper, PackedSequence lower)
+		{
+		if(upper.length()!=lower.length())
+			throw new RuntimeException("upper and lower sequence not the same length");
+		sequenceUpper=upper;
+		sequenceLower=lower;
+		cacheUpper=new SoftReference<String>(null);
+		cacheLower=new SoftReference<String>(null);
+		indexKmers=new KmerIndex[indexKmers.length];
+		indexSuffix=null;
+		invalidateFeatureIndex();
 		}
 	
 	public int getLength()
@@ -108,18 +150,39 @@ public class AnnotatedSequence
 		if(list==null)
 			restrictionSites.put(s.enzyme, list=new LinkedList<RestrictionSite>());
 		list.add(s);
+		indexRestrictionSites=null;
+		numCuttingSites=null;
 		}
 
 	public void addAnnotation(SeqAnnotation annot)
 		{
 		annotations.add(annot);
+		indexAnnotations=null;
 		}
 
 	public String getSequence()
 		{
-		return sequenceUpper;
+		String s=cacheUpper.get();
+		if(s==null)
+			cacheUpper=new SoftReference<String>(s=sequenceUpper.toString());
+		return s;
 		}
 	public String getSequenceLower()
+		{
+		String s=cacheLower.get();
+		if(s==null)
+			cacheLower=new SoftReference<String>(s=sequenceLower.toString());
+		return s;
+		}
+	
+	/**
+	 * Get the upper strand without unpacking it. Also gives reverse and complement views
+	 */
+	public PackedSequence getPackedSequence()
+		{
+		return sequenceUpper;
+		}
+	public PackedSequence getPackedSequenceLower()
 		{
 		return sequenceLower;
 		}
@@ -145,12 +208,135 @@ public class AnnotatedSequence
 	public void addPrimer(Primer primer)
 		{
 		primers.add(primer);
+		indexPrimers=null;
 		}
 
 	public LinkedList<RestrictionSite> getRestrictionSitesFor(RestrictionEnzyme curenz)
 		{
 		return restrictionSites.get(curenz);
 		}
+
+	/**
+	 * Get the number of sites where an enzyme cuts, i.e. those not blocked by methylation
+	 */
+	public int getNumCuttingSites(RestrictionEnzyme enz)
+		{
+		//Counted for all enzymes at once, as this is asked for every site shown
+		if(numCuttingSites==null)
+			{
+			numCuttingSites=new HashMap<RestrictionEnzyme, Integer>();
+			for(Map.Entry<RestrictionEnzyme, LinkedList<RestrictionSite>> e:restrictionSites.entrySet())
+				{
+				int n=0;
+				for(RestrictionSite site:e.getValue())
+					if(!site.isBlocked)
+						n++;
+				numCuttingSites.put(e.getKey(), n);
+				}
+			}
+		Integer n=numCuttingSites.get(enz);
+		return n==null ? 0 : n;
+		}
+	
+	/**
+	 * Restriction sites have been removed without going through this class
+	 */
+	public void invalidateRestrictionSites()
+		{
+		indexRestrictionSites=null;
+		numCuttingSites=null;
+		}
+	
+	/**
+	 * Mark the feature indexes as outdated. This has to be called after features have been moved without
+	 * going through this class. Adding or removing features is detected
+	 */
+	public void invalidateFeatureIndex()
+		{
+		indexRestrictionSites=null;
+		numCuttingSites=null;
+		indexAnnotations=null;
+		indexPrimers=null;
+		}
+	
+	private int getNumRestrictionSites()
+		{
+		int n=0;
+		for(LinkedList<RestrictionSite> list:restrictionSites.values())
+			n+=list.size();
+		return n;
+		}
+	
+	/**
+	 * Get restriction sites indexed by upper cutting position
+	 */
+	public FeatureIndex<RestrictionSite> getRestrictionSiteIndex()
+		{
+		if(indexRestrictionSites==null || indexRestrictionSites.size()!=getNumRestrictionSites())
+			{
+			indexRestrictionSites=new FeatureIndex<RestrictionSite>(this);
+			for(LinkedList<RestrictionSite> list:restrictionSites.values())
+				for(RestrictionSite site:list)
+					if(site.cuttingUpperPos!=null)
+						indexRestrictionSites.add(site.cuttingUpperPos, site);
+			}
+		return indexRestrictionSites;
+		}
+
+	/**
+	 * Get annotations indexed by range
+	 */
+	public FeatureIndex<SeqAnnotation> getAnnotationIndex()
+		{
+		if(indexAnnotations==null || indexAnnotations.size()!=annotations.size())
+			{
+			indexAnnotations=new FeatureIndex<SeqAnnotation>(this);
+			for(SeqAnnotation annot:annotations)
+				indexAnnotations.add(annot.getFrom(), annot.getTo(), annot);
+			}
+		return indexAnnotations;
+		}
+
+	/**
+	 * Get primers indexed by the range they cover
+	 */
+	public FeatureIndex<Primer> getPrimerIndex()
+		{
+		if(indexPrimers==null || indexPrimers.size()!=primers.size())
+			{
+			indexPrimers=new FeatureIndex<Primer>(this);
+			for(Primer p:primers)
+				{
+				SequenceRange r=p.getRange();
+				indexPrimers.add(r.from, r.to, p);
+				}
+			}
+		return indexPrimers;
+		}
+	
+
+	/**
+	 * Get an index of all k-mers of length k, on both strands. It is kept until the sequence changes
+	 */
+	public synchronized KmerIndex getKmerIndex(int k)
+		{
+		if(k<1 || k>=indexKmers.length)
+			throw new RuntimeException("Unsupported k-mer size: "+k);
+		KmerIndex index=indexKmers[k];
+		if(index==null || index.isCircular()!=isCircular)
+			indexKmers[k]=index=new KmerIndex(getSequence(), isCircular, k);
+		return index;
+		}
+	
+	/**
+	 * Get a suffix index of both strands, for searching. It is kept until the sequence changes
+	 */
+	public synchronized SuffixIndex getSuffixIndex()
+		{
+		if(indexSuffix==null || indexSuffix.isCircular()!=isCircular)
+			indexSuffix=new SuffixIndex(getSequence(), getSequenceLower(), isCircular);
+		return indexSuffix;
+		}
 	
 
 	/**
@@ -192,12 +378,9 @@ public class AnnotatedSequence
 	 */
 	public void reverseSequence()
 		{
-		//The sequence itself
-		String upper=getSequence();
-		String lower=getSequenceLower();
-		setSequence(
-				NucleotideUtil.reverse(lower),
-				NucleotideUtil.reverse(upper));
+		//The sequence itself. The strands swap places so the lower strand, read backwards, is the new upper strand
+		PackedSequence upper=new PackedSequence(sequenceLower.reverseView());
+		setSequence(upper, PackedSequence.complementOf(upper, sequenceUpper.reverseView()));
 		
 		//The annotation
 		for(SeqAnnotation a:annotations)
@@ -210,8 +393,10 @@ public class AnnotatedSequence
 			System.out.println("range now "+a.range);
 			}
 		
-		//TODO restriction sites
-		restrictionSites.clear(); //TODO
+		//The restriction sites end up on the other strand
+		for(RestrictionEnzyme enz:restrictionSites.keySet())
+			for(RestrictionSite site:restrictionSites.get(enz))
+				site.reverse(getLength());
 		
 		//The primers
 		for(Primer p:primers)
@@ -227,7 +412,7 @@ public class AnnotatedSequence
 	@Override
 	public String toString()
 		{
-		return sequenceUpper+"\n"+sequenceLower;
+		return getSequence()+"\n"+getSequenceLower();
 		}
 
 	
@@ -261,6 +446,7 @@ public class AnnotatedSequence
 	
 	public void normalizeFeaturePos()
 		{
+		invalidateFeatureIndex();
 		for(SeqAnnotation annot:annotations)
 			annot.range=annot.range.toNormalizedRange(this);
 		for(Primer p:primers)
@@ -282,6 +468,7 @@ public class AnnotatedSequence
 	public void moveFeaturesByInsertion(int pos, int insertSize)
 		{
 		System.out.println(insertSize);
+		invalidateFeatureIndex();
 		for(SeqAnnotation annot:annotations)
 			{
 			if(annot.range.from>=pos)
@@ -289,17 +476,98 @@ public class AnnotatedSequence
 			if(annot.range.to>=pos)
 				annot.range.to+=insertSize;
 			}
+		moveRestrictionSitesByEdit(pos, Math.max(0, -insertSize), Math.max(0, insertSize));
+		for(Primer p:primers)
+			{
+			if(p.targetPosition>=pos)
+				p.targetPosition+=insertSize;
+			}
+		}
+	
+	
+	/**
+	 * Adjust restriction sites after [pos,pos+removed) has been replaced by [pos,pos+inserted). Sites with a motif
+	 * overlapping the edit are no longer valid and are removed. The sequence must already have been changed
+	 */
+	private void moveRestrictionSitesByEdit(int pos, int removed, int inserted)
+		{
+		int insertSize=inserted-removed;
+		int oldLength=getLength()-insertSize;
+		numCuttingSites=null;
 		for(RestrictionEnzyme enz:restrictionSites.keySet())
-			for(RestrictionSite rs:restrictionSites.get(enz))
+			for(Iterator<RestrictionSite> it=restrictionSites.get(enz).iterator();it.hasNext();)
 				{
-				if(rs.cuttingUpperPos!=null && rs.cuttingUpperPos>=pos)
-					rs.cuttingUpperPos+=insertSize;
+				RestrictionSite rs=it.next();
+				int motifSize=enz.getMotifSize();
+				int motifFrom=rs.motif.from;
+				
+				//Does the motif overlap the edit? For an insertion, this means that it spans the position
+				boolean overlaps=motifFrom<pos+removed && motifFrom+motifSize>pos;
+				if(isCircular && motifFrom-oldLength+motifSize>pos)
+					overlaps=true;  //Motif wrapping around the 0-position
+				if(overlaps)
+					it.remove();
+				else if(motifFrom>=pos)
+					rs.move(insertSize, oldLength, getLength());
+				else
+					rs.move(0, oldLength, getLength());  //Cutting positions may still have to be wrapped differently
 				}
+		}
+	
+	
+	/**
+	 * Replace part of the sequence. Features are moved accordingly, and those ending in the removed part are cut
+	 * at the end of the new part. Restriction sites overlapping the edit are removed;
+	 * new sites can then be found with RestrictionEnzymeSet.updateRestrictionSites
+	 */
+	public void replaceSequence(SequenceRange range, String upper, String lower)
+		{
+		upper=upper.toUpperCase();
+		lower=lower.toUpperCase();
+		if(upper.length()!=lower.length())
+			throw new RuntimeException("upper and lower sequence not the same length");
+		setSequence(
+				sequenceUpper.substring(0,range.from)+upper+sequenceUpper.substring(range.to),
+				sequenceLower.substring(0,range.from)+lower+sequenceLower.substring(range.to));
+		
+		int removed=range.to-range.from;
+		int insertSize=upper.length()-removed;
+		for(SeqAnnotation annot:annotations)
+			{
+			if(annot.range.from>=range.to)
+				annot.range.from+=insertSize;
+			else if(annot.range.from>range.from+upper.length())
+				annot.range.from=range.from+upper.length();
+			if(annot.range.to>=range.to)
+				annot.range.to+=insertSize;
+			else if(annot.range.to>range.from+upper.length())
+				annot.range.to=range.from+upper.length();
+			}
+		moveRestrictionSitesByEdit(range.from, removed, upper.length());
 		for(Primer p:primers)
 			{
-			if(p.targetPosition>=pos)
+			//Primers targeting the removed part are clamped to the new part, as annotations are
+			if(p.targetPosition>=range.to)
 				p.targetPosition+=insertSize;
+			else if(p.targetPosition>range.from+upper.length())
+				p.targetPosition=range.from+upper.length();
 			}
 		}
 	
+	/**
+	 * Insert sequence at a position
+	 */
+	public void insertSequence(int pos, String upper)
+		{
+		replaceSequence(new SequenceRange(pos,pos), upper, NucleotideUtil.complement(upper));
+		}
+
+	/**
+	 * Delete part of the sequence
+	 */
+	public void deleteSequence(SequenceRange range)
+		{
+		replaceSequence(range, "", "");
+		}
+	
 	}
@@ -0,0 +1,206 @@
+package collagene.seq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+
+/**
+ * Index of features by position, to find all features overlapping a range in O(log n + k).
+ *
+ * Features are kept sorted by start. Each node of the implicit binary tree over this array stores the largest end
+ * of its subtree, so subtrees ending before the range can be skipped. On circular sequences, features and ranges
+ * may wrap around the 0-position. A wrapping feature is stored with an end beyond the sequence length
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class FeatureIndex<E>
+	{
+	private int length;
+	private boolean isCircular;
+
+	private int size;
+	private Object[] items;
+	private int[] from;
+	private int[] to;
+	private int[] maxTo;
+
+	private ArrayList<Object> addItems=new ArrayList<Object>();
+	private ArrayList<int[]> addRanges=new ArrayList<int[]>();
+
+	/**
+	 * Create an empty index for a sequence
+	 */
+	public FeatureIndex(AnnotatedSequence seq)
+		{
+		length=seq.getLength();
+		isCircular=seq.isCircular;
+		}
+
+	/**
+	 * Add a feature covering [from,to). On a circular sequence, to<from means that the feature wraps around.
+	 * The index must be built again afterwards
+	 */
+	public void add(int from, int to, E item)
+		{
+		if(isCircular && length>0)
+			{
+			int size=to-from;
+			if(size<0)
+				size+=length;
+			from=normalize(from);
+			to=from+size;
+			}
+		addItems.add(item);
+		addRanges.add(new int[]{from,to});
+		items=null;
+		}
+
+	/**
+	 * Add a feature covering a single position
+	 */
+	public void add(int pos, E item)
+		{
+		add(pos, pos+1, item);
+		}
+
+	/**
+	 * Sort the features and compute the tree
+	 */
+	private void build()
+		{
+		size=addItems.size();
+		Integer[] order=new Integer[size];
+		for(int i=0;i<size;i++)
+			order[i]=i;
+		Arrays.sort(order, new Comparator<Integer>()
+			{
+			public int compare(Integer o1, Integer o2)
+				{
+				return Integer.compare(addRanges.get(o1)[0], addRanges.get(o2)[0]);
+				}
+			});
+		items=new Object[size];
+		from=new int[size];
+		to=new int[size];
+		maxTo=new int[size];
+		for(int i=0;i<size;i++)
+			{
+			items[i]=addItems.get(order[i]);
+			int[] r=addRanges.get(order[i]);
+			from[i]=r[0];
+			to[i]=r[1];
+			}
+		buildMax(0, size);
+		}
+
+	private int buildMax(int lo, int hi)
+		{
+		if(lo>=hi)
+			return Integer.MIN_VALUE;
+		int mid=(lo+hi)>>>1;
+		int m=Math.max(to[mid], Math.max(buildMax(lo, mid), buildMax(mid+1, hi)));
+		maxTo[mid]=m;
+		return m;
+		}
+
+	private int normalize(int pos)
+		{
+		pos%=length;
+		if(pos<0)
+			pos+=length;
+		return pos;
+		}
+
+	/**
+	 * Number of features
+	 */
+	public int size()
+		{
+		return addItems.size();
+		}
+
+	/**
+	 * Find all features overlapping [rfrom,rto). On a circular sequence, rto<rfrom means that the range wraps around, while rto==rfrom is empty.
+	 * Features are added in order of start position, except that features found on the other side of the 0-position come last
+	 */
+	public void query(int rfrom, int rto, Collection<? super E> list)
+		{
+		if(items==null)
+			build();
+		if(size==0 || rfrom==rto)
+			return;
+		if(isCircular && length>0)
+			{
+			int rsize=rto-rfrom;
+			if(rsize<0)
+				rsize+=length;
+			int a=normalize(rfrom);
+			int b=a+rsize;
+
+			//The range as it is, the range passing the 0-position, and wrapping features passing the 0-position.
+			//A feature can overlap in several of these ways but should only be reported once
+			query(0, size, a, b, 0, a, b, list);
+			if(b>length)
+				query(0, size, a-length, b-length, 1, a, b, list);
+			if(maxTo[size>>>1]>length)
+				query(0, size, a+length, b+length, 2, a, b, list);
+			}
+		else
+			query(0, size, rfrom, rto, 0, rfrom, rto, list);
+		}
+
+	/**
+	 * Find all features overlapping [rfrom,rto)
+	 */
+	public ArrayList<E> query(int rfrom, int rto)
+		{
+		ArrayList<E> list=new ArrayList<E>();
+		query(rfrom, rto, list);
+		return list;
+		}
+
+	/**
+	 * Get all features, in order of start position
+	 */
+	@SuppressWarnings("unchecked")
+	public ArrayList<E> getAll()
+		{
+		if(items==null)
+			build();
+		ArrayList<E> list=new ArrayList<E>(size);
+		for(int i=0;i<size;i++)
+			list.add((E)items[i]);
+		return list;
+		}
+
+	@SuppressWarnings("unchecked")
+	private void query(int lo, int hi, int a, int b, int pass, int ra, int rb, Collection<? super E> list)
+		{
+		while(lo<hi)
+			{
+			int mid=(lo+hi)>>>1;
+			if(maxTo[mid]<=a)
+				return;
+			query(lo, mid, a, b, pass, ra, rb, list);
+			if(from[mid]>=b)
+				return;
+			if(to[mid]>a && !isFoundEarlier(mid, pass, ra, rb))
+				list.add((E)items[mid]);
+			lo=mid+1;
+			}
+		}
+
+	/**
+	 * Check if a feature was already found in an earlier pass over the range [ra,rb)
+	 */
+	private boolean isFoundEarlier(int i, int pass, int ra, int rb)
+		{
+		if(pass>=1 && from[i]<rb && to[i]>ra)
+			return true;
+		if(pass>=2 && rb>length && from[i]<rb-length && to[i]>ra-length)
+			return true;
+		return false;
+		}
+	}
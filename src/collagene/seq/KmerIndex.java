@@ -0,0 +1,215 @@
+package collagene.seq;
+
+import java.util.Arrays;
+
+/**
+ * Index of all k-mers of a sequence, on both strands. A k-mer is encoded at 2 bits per base into a long; k-mers
+ * with other letters than ACGT are left out. On a circular sequence, k-mers may wrap around the 0-position.
+ *
+ * The k-mers are kept sorted, each with a range in a list of positions, so a lookup is a binary search
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class KmerIndex
+	{
+	private static final byte[] code=new byte[128];
+	static
+		{
+		Arrays.fill(code, (byte)-1);
+		String letters="ACGT";
+		for(int i=0;i<letters.length();i++)
+			{
+			code[letters.charAt(i)]=(byte)i;
+			code[Character.toLowerCase(letters.charAt(i))]=(byte)i;
+			}
+		}
+
+	public final int k;
+	private int length;
+	private boolean isCircular;
+
+	private Table upper, lower;
+
+	/**
+	 * The k-mers of one strand, sorted, each with a range in a list of positions
+	 */
+	private static class Table
+		{
+		long[] kmers;
+		int[] start;
+		int[] positions;
+
+		/**
+		 * Build from k-mers and positions packed into longs
+		 */
+		Table(long[] pairs, int numPairs)
+			{
+			Arrays.sort(pairs, 0, numPairs);
+			int numKmers=0;
+			for(int i=0;i<numPairs;i++)
+				if(i==0 || (pairs[i]>>>32)!=(pairs[i-1]>>>32))
+					numKmers++;
+			kmers=new long[numKmers];
+			start=new int[numKmers+1];
+			positions=new int[numPairs];
+			int cur=-1;
+			for(int i=0;i<numPairs;i++)
+				{
+				if(i==0 || (pairs[i]>>>32)!=(pairs[i-1]>>>32))
+					{
+					cur++;
+					kmers[cur]=pairs[i]>>>32;
+					start[cur]=i;
+					}
+				positions[i]=(int)pairs[i];
+				}
+			start[numKmers]=numPairs;
+			}
+
+		int getCount(long kmer)
+			{
+			int i=Arrays.binarySearch(kmers, kmer);
+			return i<0 ? 0 : start[i+1]-start[i];
+			}
+
+		int[] getPositions(long kmer)
+			{
+			int i=Arrays.binarySearch(kmers, kmer);
+			if(i<0)
+				return new int[0];
+			return Arrays.copyOfRange(positions, start[i], start[i+1]);
+			}
+
+		int getPositions(long kmer, int[] dst, int dstFrom)
+			{
+			int i=Arrays.binarySearch(kmers, kmer);
+			if(i<0)
+				return 0;
+			System.arraycopy(positions, start[i], dst, dstFrom, start[i+1]-start[i]);
+			return start[i+1]-start[i];
+			}
+		}
+
+
+	/**
+	 * Index both strands of a sequence. k can be at most 15
+	 */
+	public KmerIndex(CharSequence seq, boolean isCircular, int k)
+		{
+		if(k<1 || k>15)
+			throw new RuntimeException("Unsupported k-mer size: "+k);
+		this.k=k;
+		this.length=seq.length();
+		this.isCircular=isCircular;
+
+		//Pack each k-mer and its position into one long. The k-mer on the lower strand, read 5' to 3',
+		//is the reverse complement
+		int numPos=isCircular ? (length>=k ? length : 0) : Math.max(0, length-k+1);
+		long[] pairsUpper=new long[numPos];
+		long[] pairsLower=new long[numPos];
+		int numPairs=0;
+		long mask=(1L<<(2*k))-1;
+		long kmer=0, kmerLower=0;
+		int valid=0;
+		for(int i=0;numPos>0 && i<numPos+k-1;i++)
+			{
+			int v=encode(seq.charAt(i%length));
+			if(v<0)
+				valid=0;
+			else
+				{
+				kmer=((kmer<<2)|v)&mask;
+				kmerLower=(kmerLower>>>2)|((long)(3-v)<<(2*(k-1)));
+				valid++;
+				}
+			int pos=i-k+1;
+			if(valid>=k && pos>=0)
+				{
+				pairsUpper[numPairs]=(kmer<<32)|pos;
+				pairsLower[numPairs]=(kmerLower<<32)|pos;
+				numPairs++;
+				}
+			}
+		upper=new Table(pairsUpper, numPairs);
+		lower=new Table(pairsLower, numPairs);
+		}
+
+	/**
+	 * The 2-bit code of a letter, or -1 if not ACGT
+	 */
+	public static int encode(char c)
+		{
+		return c<128 ? code[c] : -1;
+		}
+
+	/**
+	 * Encode the k-mer at a position, or -1 if it has other letters than ACGT
+	 */
+	public static long encode(CharSequence s, int from, int k)
+		{
+		long kmer=0;
+		for(int i=from;i<from+k;i++)
+			{
+			int v=encode(s.charAt(i));
+			if(v<0)
+				return -1;
+			kmer=(kmer<<2)|v;
+			}
+		return kmer;
+		}
+
+	/**
+	 * Length of the indexed sequence
+	 */
+	public int getLength()
+		{
+		return length;
+		}
+
+	public boolean isCircular()
+		{
+		return isCircular;
+		}
+
+	/**
+	 * Number of times a k-mer occurs, on either strand
+	 */
+	public int getCount(long kmer)
+		{
+		return upper.getCount(kmer)+lower.getCount(kmer);
+		}
+
+	/**
+	 * Positions where a k-mer starts on the upper strand, in increasing order
+	 */
+	public int[] getPositions(long kmer)
+		{
+		return upper.getPositions(kmer);
+		}
+
+	/**
+	 * Positions where a k-mer occurs on the lower strand, in increasing order. The position is the first letter
+	 * it covers on the upper strand, which is where the k-mer ends
+	 */
+	public int[] getPositionsLower(long kmer)
+		{
+		return lower.getPositions(kmer);
+		}
+	
+	/**
+	 * Copy the positions of a k-mer on the upper strand into an array, returning how many there are
+	 */
+	public int getPositions(long kmer, int[] dst, int dstFrom)
+		{
+		return upper.getPositions(kmer, dst, dstFrom);
+		}
+
+	/**
+	 * Copy the positions of a k-mer on the lower strand into an array, returning how many there are
+	 */
+	public int getPositionsLower(long kmer, int[] dst, int dstFrom)
+		{
+		return lower.getPositions(kmer, dst, dstFrom);
+		}
+	}
@@ -0,0 +1,381 @@
+package collagene.seq;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import collagene.sequtil.NucleotideUtil;
+
+/**
+ * A nucleotide sequence packed into 2 bits per base (ACGT), or 4 bits per base if there are many IUPAC letters.
+ * Letters that do not fit, such as the gaps of sticky ends, are kept in a sparse list of exceptions.
+ *
+ * A sequence can also be stored as the complement of another sequence. Then only the positions that are not
+ * complementary are kept, which for a normal double-stranded sequence are the overhangs.
+ *
+ * The sequence is immutable and can be shared between sequences
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class PackedSequence implements CharSequence
+	{
+	private static final char[] letters2="ACGT".toCharArray();
+	private static final char[] letters4=" ACMGRSVTWYHKDBN".toCharArray(); //Index is the A,C,G,T bit mask
+	private static final byte[] code2=new byte[128];
+	private static final byte[] code4=new byte[128];
+	private static final char[] complementTable=new char[128];
+	static
+		{
+		Arrays.fill(code2, (byte)-1);
+		Arrays.fill(code4, (byte)-1);
+		for(int i=0;i<letters2.length;i++)
+			code2[letters2[i]]=(byte)i;
+		for(int i=0;i<letters4.length;i++)
+			code4[letters4[i]]=(byte)i;
+		for(char c=0;c<128;c++)
+			complementTable[c]=NucleotideUtil.complement(c);
+		}
+
+	private final int length;
+	private final int bitsPerBase;
+	private final long[] packed;
+	private final PackedSequence complementOf;
+	private final int[] exceptionPos;
+	private final char[] exceptionLetter;
+
+
+	/**
+	 * Pack a sequence
+	 */
+	public PackedSequence(CharSequence s)
+		{
+		length=s.length();
+		complementOf=null;
+
+		//Use 4 bits if exceptions would otherwise take more space
+		int numNotACGT=0;
+		for(int i=0;i<length;i++)
+			if(getCode(code2, s.charAt(i))<0)
+				numNotACGT++;
+		bitsPerBase=numNotACGT*16>length ? 4 : 2;
+		byte[] code=bitsPerBase==2 ? code2 : code4;
+		int basesPerLong=64/bitsPerBase;
+
+		packed=new long[(length+basesPerLong-1)/basesPerLong];
+		ArrayList<Integer> exPos=new ArrayList<Integer>();
+		StringBuilder exLetter=new StringBuilder();
+		for(int i=0;i<length;i++)
+			{
+			char c=s.charAt(i);
+			int v=getCode(code, c);
+			if(v<0)
+				{
+				exPos.add(i);
+				exLetter.append(c);
+				v=0;
+				}
+			packed[i/basesPerLong]|=((long)v)<<((i%basesPerLong)*bitsPerBase);
+			}
+		exceptionPos=toArray(exPos);
+		exceptionLetter=exLetter.toString().toCharArray();
+		}
+
+	private PackedSequence(PackedSequence complementOf, int[] exceptionPos, char[] exceptionLetter)
+		{
+		length=complementOf.length;
+		bitsPerBase=0;
+		packed=null;
+		this.complementOf=complementOf;
+		this.exceptionPos=exceptionPos;
+		this.exceptionLetter=exceptionLetter;
+		}
+
+	private PackedSequence(int length, int bitsPerBase, long[] packed, int[] exceptionPos, char[] exceptionLetter)
+		{
+		this.length=length;
+		this.bitsPerBase=bitsPerBase;
+		this.packed=packed;
+		this.complementOf=null;
+		this.exceptionPos=exceptionPos;
+		this.exceptionLetter=exceptionLetter;
+		}
+
+	/**
+	 * The complement of a sequence, without storing anything
+	 */
+	public static PackedSequence complementOf(PackedSequence seq)
+		{
+		return new PackedSequence(seq, new int[0], new char[0]);
+		}
+
+	/**
+	 * Pack a sequence that is mostly complementary to another one. Only the differences are stored,
+	 * unless there are so many that it is cheaper to pack it on its own
+	 */
+	public static PackedSequence complementOf(PackedSequence seq, CharSequence s)
+		{
+		if(s.length()!=seq.length())
+			throw new RuntimeException("upper and lower sequence not the same length");
+		ArrayList<Integer> exPos=new ArrayList<Integer>();
+		StringBuilder exLetter=new StringBuilder();
+		for(int i=0;i<s.length();i++)
+			{
+			char c=s.charAt(i);
+			if(c!=complement(seq.charAt(i)))
+				{
+				exPos.add(i);
+				exLetter.append(c);
+				if(exPos.size()*16>s.length())
+					return new PackedSequence(s);
+				}
+			}
+		return new PackedSequence(seq, toArray(exPos), exLetter.toString().toCharArray());
+		}
+
+	private static int[] toArray(ArrayList<Integer> list)
+		{
+		int[] arr=new int[list.size()];
+		for(int i=0;i<arr.length;i++)
+			arr[i]=list.get(i);
+		return arr;
+		}
+
+	private static int getCode(byte[] code, char c)
+		{
+		return c<128 ? code[c] : -1;
+		}
+
+	/**
+	 * Complement of a letter, same as NucleotideUtil.complement
+	 */
+	public static char complement(char c)
+		{
+		return c<128 ? complementTable[c] : NucleotideUtil.complement(c);
+		}
+
+
+	public int length()
+		{
+		return length;
+		}
+
+	public char charAt(int i)
+		{
+		if(i<0 || i>=length)
+			throw new StringIndexOutOfBoundsException(i);
+		if(exceptionPos.length!=0)
+			{
+			int k=Arrays.binarySearch(exceptionPos, i);
+			if(k>=0)
+				return exceptionLetter[k];
+			}
+		if(complementOf!=null)
+			return complement(complementOf.charAt(i));
+		else if(bitsPerBase==2)
+			return letters2[(int)(packed[i>>>5]>>>((i&31)<<1))&3];
+		else
+			return letters4[(int)(packed[i>>>4]>>>((i&15)<<2))&15];
+		}
+
+	/**
+	 * Unpack [from,to) into an array
+	 */
+	public void getChars(int from, int to, char[] dst, int dstFrom)
+		{
+		if(from<0 || to>length || from>to)
+			throw new StringIndexOutOfBoundsException("("+from+","+to+")");
+		if(complementOf!=null)
+			{
+			complementOf.getChars(from, to, dst, dstFrom);
+			for(int i=dstFrom;i<dstFrom+to-from;i++)
+				dst[i]=complement(dst[i]);
+			}
+		else
+			{
+			int basesPerLong=64/bitsPerBase;
+			char[] letters=bitsPerBase==2 ? letters2 : letters4;
+			int mask=(1<<bitsPerBase)-1;
+			for(int i=from;i<to;i++)
+				dst[dstFrom+i-from]=letters[(int)(packed[i/basesPerLong]>>>((i%basesPerLong)*bitsPerBase))&mask];
+			}
+
+		//Overlay the exceptions
+		int k=Arrays.binarySearch(exceptionPos, from);
+		if(k<0)
+			k=-k-1;
+		for(;k<exceptionPos.length && exceptionPos[k]<to;k++)
+			dst[dstFrom+exceptionPos[k]-from]=exceptionLetter[k];
+		}
+
+	/**
+	 * Get [from,to) as a string
+	 */
+	public String substring(int from, int to)
+		{
+		char[] arr=new char[to-from];
+		getChars(from, to, arr, 0);
+		return new String(arr);
+		}
+
+	public String substring(int from)
+		{
+		return substring(from, length);
+		}
+
+	public CharSequence subSequence(int from, int to)
+		{
+		return substring(from, to);
+		}
+
+	@Override
+	public String toString()
+		{
+		return substring(0, length);
+		}
+
+
+	/**
+	 * Write in packed form. A complement is written as its differences only
+	 */
+	public void write(DataOutput out) throws IOException
+		{
+		out.writeInt(length);
+		if(complementOf!=null)
+			out.writeByte(0);
+		else
+			{
+			out.writeByte(bitsPerBase);
+			out.writeInt(packed.length);
+			for(long v:packed)
+				out.writeLong(v);
+			}
+		out.writeInt(exceptionPos.length);
+		for(int i=0;i<exceptionPos.length;i++)
+			{
+			out.writeInt(exceptionPos[i]);
+			out.writeChar(exceptionLetter[i]);
+			}
+		}
+
+	/**
+	 * Whether this is stored as the complement of the given sequence
+	 */
+	public boolean isComplementOf(PackedSequence seq)
+		{
+		return complementOf==seq;
+		}
+
+	/**
+	 * Read a sequence written in packed form. If it was written as a complement, it is read as the complement
+	 * of the given sequence
+	 */
+	public static PackedSequence read(DataInput in, PackedSequence complementBase) throws IOException
+		{
+		int length=in.readInt();
+		int bitsPerBase=in.readByte();
+		long[] packed=null;
+		if(bitsPerBase!=0)
+			{
+			if(bitsPerBase!=2 && bitsPerBase!=4)
+				throw new IOException("Unsupported packing: "+bitsPerBase);
+			packed=new long[in.readInt()];
+			for(int i=0;i<packed.length;i++)
+				packed[i]=in.readLong();
+			}
+		int numExceptions=in.readInt();
+		int[] exceptionPos=new int[numExceptions];
+		char[] exceptionLetter=new char[numExceptions];
+		for(int i=0;i<numExceptions;i++)
+			{
+			exceptionPos[i]=in.readInt();
+			exceptionLetter[i]=in.readChar();
+			}
+		if(bitsPerBase!=0)
+			return new PackedSequence(length, bitsPerBase, packed, exceptionPos, exceptionLetter);
+		else if(complementBase==null || complementBase.length!=length)
+			throw new IOException("Complement without matching sequence");
+		else
+			return new PackedSequence(complementBase, exceptionPos, exceptionLetter);
+		}
+
+
+	/**
+	 * View of the sequence backwards. Nothing is copied
+	 */
+	public CharSequence reverseView()
+		{
+		return new View(this, true, false);
+		}
+
+	/**
+	 * View of the complement sequence. Nothing is copied
+	 */
+	public CharSequence complementView()
+		{
+		return new View(this, false, true);
+		}
+
+	/**
+	 * View of the reverse complement sequence. Nothing is copied
+	 */
+	public CharSequence revcomplementView()
+		{
+		return new View(this, true, true);
+		}
+
+	/**
+	 * A sequence computed on the fly from a packed sequence
+	 */
+	private static class View implements CharSequence
+		{
+		private PackedSequence seq;
+		private boolean reverse, complement;
+
+		public View(PackedSequence seq, boolean reverse, boolean complement)
+			{
+			this.seq=seq;
+			this.reverse=reverse;
+			this.complement=complement;
+			}
+
+		public int length()
+			{
+			return seq.length;
+			}
+
+		public char charAt(int i)
+			{
+			char c=seq.charAt(reverse ? seq.length-1-i : i);
+			return complement ? complement(c) : c;
+			}
+
+		public CharSequence subSequence(int from, int to)
+			{
+			char[] arr=new char[to-from];
+			if(reverse)
+				seq.getChars(seq.length-to, seq.length-from, arr, 0);
+			else
+				seq.getChars(from, to, arr, 0);
+			for(int i=0;i<arr.length;i++)
+				if(complement)
+					arr[i]=complement(arr[i]);
+			if(reverse)
+				for(int i=0;i<arr.length/2;i++)
+					{
+					char t=arr[i];
+					arr[i]=arr[arr.length-1-i];
+					arr[arr.length-1-i]=t;
+					}
+			return new String(arr);
+			}
+
+		@Override
+		public String toString()
+			{
+			return subSequence(0, length()).toString();
+			}
+		}
+	}
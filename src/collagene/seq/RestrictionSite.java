@@ -18,6 +18,16 @@ public class RestrictionSite
 	public Integer cuttingUpperPos;
 	public Integer cuttingLowerPos;
 	public SequenceRange motif;
+
+	/**
+	 * Cutting is blocked by methylation of the DNA, on both strands of the motif
+	 */
+	public boolean isBlocked;
+
+	/**
+	 * Only one strand of the motif is methylated. The enzyme may cut, but poorly
+	 */
+	public boolean isPartiallyBlocked;
 	
 	//Note that some enzymes only nick one side
 	
@@ -34,6 +44,8 @@ public class RestrictionSite
 		cuttingUpperPos=site.cuttingUpperPos;
 		cuttingLowerPos=site.cuttingLowerPos;
 		motif=new SequenceRange(site.motif);
+		isBlocked=site.isBlocked;
+		isPartiallyBlocked=site.isPartiallyBlocked;
 		}
 
 
@@ -70,6 +82,26 @@ public class RestrictionSite
 		}
 
 
+	/**
+	 * Check if this site is less blocked by methylation than another. Of two sites with the same cut, this is the
+	 * one that counts
+	 */
+	public boolean isLessBlockedThan(RestrictionSite o)
+		{
+		return getBlockedLevel()<o.getBlockedLevel();
+		}
+
+	private int getBlockedLevel()
+		{
+		if(isBlocked)
+			return 2;
+		else if(isPartiallyBlocked)
+			return 1;
+		else
+			return 0;
+		}
+
+
 	public int getEarliestPos()
 		{
 		if(cuttingUpperPos!=null)
@@ -100,10 +132,7 @@ public class RestrictionSite
 
 	public void setNew0(int pos, AnnotatedSequence seq)
 		{
-		if(cuttingUpperPos!=null)
-			cuttingUpperPos=seq.normalizePos(cuttingUpperPos-pos);
-		if(cuttingLowerPos!=null)
-			cuttingLowerPos=seq.normalizePos(cuttingLowerPos-pos);
+		move(-pos, seq.getLength(), seq.getLength());
 		}
 	
 	
@@ -114,4 +143,79 @@ public class RestrictionSite
 		if(cuttingLowerPos!=null)
 			cuttingLowerPos+=shift;
 		}
+	
+	
+	/**
+	 * Move the site together with its motif, as when the sequence changes length from oldLen to newLen.
+	 * Cutting positions keep their distance to the motif
+	 */
+	public void move(int shift, int oldLen, int newLen)
+		{
+		//Cutting positions may have been wrapped around. Take the ones closest to the motif
+		Integer ref=cuttingUpperPos!=null ? cuttingUpperPos : cuttingLowerPos;
+		int wrap=0;
+		if(ref!=null && oldLen>0 && Math.abs(motif.from-ref)*2>oldLen)
+			wrap=(int)Math.round((motif.from-ref)/(double)oldLen)*oldLen;
+		if(wrap==0 && shift==0 && (ref==null || ref<newLen))
+			return;
+		shift(wrap+shift);
+		
+		int motifSize=enzyme.getMotifSize();
+		int from=motif.from+shift;
+		while(from<0)
+			from+=newLen;
+		while(from>=newLen)
+			from-=newLen;
+		motif.from=from;
+		motif.to=from+motifSize;
+		normalizeCutPos(newLen);
+		}
+	
+	
+	/**
+	 * Mirror the site onto the other strand, as when the sequence of given length is reversed
+	 */
+	public void reverse(int len)
+		{
+		Integer upper=cuttingUpperPos;
+		Integer lower=cuttingLowerPos;
+		cuttingUpperPos=lower==null ? null : len-lower;
+		cuttingLowerPos=upper==null ? null : len-upper;
+		int motifSize=enzyme.getMotifSize();
+		int from=len-motif.from-motifSize;
+		if(from<0)
+			from+=len;
+		motif=new SequenceRange(from, from+motifSize);
+		normalizeCutPos(len);
+		}
+	
+	
+	/**
+	 * Normalize cutting positions to be within a sequence of given length
+	 */
+	public void normalizeCutPos(int len)
+		{
+		if(cuttingUpperPos!=null)
+			{
+			while(cuttingUpperPos<0)
+				{
+				cuttingUpperPos+=len;
+				if(cuttingLowerPos!=null)
+					cuttingLowerPos+=len;
+				}
+			while(cuttingUpperPos>=len)
+				{
+				cuttingUpperPos-=len;
+				if(cuttingLowerPos!=null)
+					cuttingLowerPos-=len;
+				}
+			}
+		else if(cuttingLowerPos!=null)
+			{
+			while(cuttingLowerPos<0)
+				cuttingLowerPos+=len;
+			while(cuttingLowerPos>=len)
+				cuttingLowerPos-=len;
+			}
+		}
 	}
@@ -0,0 +1,352 @@
+package collagene.seq;
+
+import java.util.Arrays;
+
+import collagene.sequtil.DegenerateBases;
+
+/**
+ * FM-index of a sequence, on both strands, for finding all occurrences of a pattern. The text is the upper strand
+ * and the lower strand read 5' to 3'; on a circular sequence each strand is followed by its beginning again, so
+ * that hits may wrap around the 0-position.
+ *
+ * A pattern is matched backwards, one letter at a time, each step narrowing a range of the suffix array. A lookup
+ * thus takes time proportional to the pattern length plus the number of hits. Degenerate letters and mismatches
+ * branch the search.
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class SuffixIndex
+	{
+	//Symbols of the text. END is last in the text, SEP between the strands, OTHER for letters besides ACGT
+	private static final int END=0, SEP=1, A=2, OTHER=6;
+	private static final int SIGMA=7;
+	private static final int CHECKPOINT=64;
+
+	private static final byte[] code=new byte[128];
+	static
+		{
+		Arrays.fill(code, (byte)OTHER);
+		String letters="ACGT";
+		for(int i=0;i<letters.length();i++)
+			{
+			code[letters.charAt(i)]=(byte)(A+i);
+			code[Character.toLowerCase(letters.charAt(i))]=(byte)(A+i);
+			}
+		}
+
+	private int length;
+	private int lengthStrand;
+	private boolean isCircular;
+
+	private int[] sa;
+	private byte[] bwt;
+	private int[] occ;
+	private int[] count=new int[SIGMA+1];
+
+	/**
+	 * Index a sequence. The lower strand is given as written under the upper strand, 3' to 5'
+	 */
+	public SuffixIndex(CharSequence upper, CharSequence lower, boolean isCircular)
+		{
+		this.length=upper.length();
+		this.isCircular=isCircular;
+
+		//Upper strand, then the lower strand reversed, each with a copy of the beginning if circular
+		int wrap=isCircular ? Math.max(0, length-1) : 0;
+		lengthStrand=length+wrap;
+		int n=2*lengthStrand+2;
+		byte[] text=new byte[n];
+		for(int i=0;i<lengthStrand;i++)
+			{
+			text[i]=encode(upper.charAt(i%length));
+			text[lengthStrand+1+i]=encode(lower.charAt(length-1-(i%length)));
+			}
+		text[lengthStrand]=SEP;
+		text[n-1]=END;
+
+		sa=buildSuffixArray(text);
+
+		//Burrows-Wheeler transform, with the number of each symbol before every checkpoint
+		bwt=new byte[n];
+		occ=new int[(n/CHECKPOINT+1)*SIGMA];
+		int[] cur=new int[SIGMA];
+		for(int i=0;i<n;i++)
+			{
+			if(i%CHECKPOINT==0)
+				System.arraycopy(cur, 0, occ, (i/CHECKPOINT)*SIGMA, SIGMA);
+			bwt[i]=sa[i]==0 ? text[n-1] : text[sa[i]-1];
+			cur[bwt[i]]++;
+			}
+		if(n%CHECKPOINT==0)
+			System.arraycopy(cur, 0, occ, (n/CHECKPOINT)*SIGMA, SIGMA);
+		for(int c=0;c<SIGMA;c++)
+			count[c+1]=count[c]+cur[c];
+		}
+
+	private static byte encode(char c)
+		{
+		return c<128 ? code[c] : OTHER;
+		}
+
+	/**
+	 * Sort all suffixes, by induced sorting (SA-IS; Nong, Zhang & Chan 2009). This takes linear time
+	 */
+	private static int[] buildSuffixArray(byte[] text)
+		{
+		int n=text.length;
+		int[] s=new int[n];
+		for(int i=0;i<n;i++)
+			s[i]=text[i];
+		int[] sa=new int[n];
+		sais(s, sa, n, SIGMA);
+		return sa;
+		}
+
+	/**
+	 * Suffix array of s, in which the last symbol is unique and smallest, and all symbols are less than K
+	 */
+	private static void sais(int[] s, int[] sa, int n, int K)
+		{
+		//S-type suffixes are smaller than the next suffix, L-type larger
+		boolean[] t=new boolean[n];
+		t[n-1]=true;
+		for(int i=n-2;i>=0;i--)
+			t[i]=s[i]<s[i+1] || (s[i]==s[i+1] && t[i+1]);
+
+		//Sort the leftmost S-type (LMS) substrings
+		int[] bkt=new int[K];
+		getBuckets(s, bkt, n, K, true);
+		Arrays.fill(sa, -1);
+		for(int i=1;i<n;i++)
+			if(isLMS(t, i))
+				sa[--bkt[s[i]]]=i;
+		induce(s, sa, t, bkt, n, K);
+
+		//Name the LMS substrings by their order
+		int n1=0;
+		for(int i=0;i<n;i++)
+			if(isLMS(t, sa[i]))
+				sa[n1++]=sa[i];
+		Arrays.fill(sa, n1, n, -1);
+		int name=0, prev=-1;
+		for(int i=0;i<n1;i++)
+			{
+			int pos=sa[i];
+			boolean diff=false;
+			for(int d=0;d<n;d++)
+				if(prev==-1 || s[pos+d]!=s[prev+d] || t[pos+d]!=t[prev+d])
+					{
+					diff=true;
+					break;
+					}
+				else if(d>0 && (isLMS(t, pos+d) || isLMS(t, prev+d)))
+					break;
+			if(diff)
+				{
+				name++;
+				prev=pos;
+				}
+			sa[n1+pos/2]=name-1;
+			}
+		int[] s1=new int[n1];
+		for(int i=n-1, j=n1-1;i>=n1;i--)
+			if(sa[i]>=0)
+				s1[j--]=sa[i];
+
+		//Sort the LMS suffixes, recursing if the names are not unique
+		int[] sa1=new int[n1];
+		if(name<n1)
+			sais(s1, sa1, n1, name);
+		else
+			for(int i=0;i<n1;i++)
+				sa1[s1[i]]=i;
+
+		//Induce the order of all suffixes from the sorted LMS suffixes
+		for(int i=1, j=0;i<n;i++)
+			if(isLMS(t, i))
+				s1[j++]=i;
+		getBuckets(s, bkt, n, K, true);
+		Arrays.fill(sa, -1);
+		for(int i=n1-1;i>=0;i--)
+			{
+			int j=s1[sa1[i]];
+			sa[--bkt[s[j]]]=j;
+			}
+		induce(s, sa, t, bkt, n, K);
+		}
+
+	private static boolean isLMS(boolean[] t, int i)
+		{
+		return i>0 && t[i] && !t[i-1];
+		}
+
+	/**
+	 * Start or end of the bucket of every symbol
+	 */
+	private static void getBuckets(int[] s, int[] bkt, int n, int K, boolean end)
+		{
+		Arrays.fill(bkt, 0);
+		for(int i=0;i<n;i++)
+			bkt[s[i]]++;
+		int sum=0;
+		for(int i=0;i<K;i++)
+			{
+			sum+=bkt[i];
+			bkt[i]=end ? sum : sum-bkt[i];
+			}
+		}
+
+	/**
+	 * Place L-type suffixes left to right, then S-type suffixes right to left
+	 */
+	private static void induce(int[] s, int[] sa, boolean[] t, int[] bkt, int n, int K)
+		{
+		getBuckets(s, bkt, n, K, false);
+		for(int i=0;i<n;i++)
+			{
+			int j=sa[i]-1;
+			if(j>=0 && !t[j])
+				sa[bkt[s[j]]++]=j;
+			}
+		getBuckets(s, bkt, n, K, true);
+		for(int i=n-1;i>=0;i--)
+			{
+			int j=sa[i]-1;
+			if(j>=0 && t[j])
+				sa[--bkt[s[j]]]=j;
+			}
+		}
+
+	/**
+	 * Number of a symbol in the transform before a position
+	 */
+	private int getOcc(int c, int i)
+		{
+		int cp=i/CHECKPOINT;
+		int v=occ[cp*SIGMA+c];
+		for(int j=cp*CHECKPOINT;j<i;j++)
+			if(bwt[j]==c)
+				v++;
+		return v;
+		}
+
+	/**
+	 * Length of the indexed sequence
+	 */
+	public int getLength()
+		{
+		return length;
+		}
+
+	public boolean isCircular()
+		{
+		return isCircular;
+		}
+
+	/**
+	 * Find the start positions of a pattern on either strand, sorted and without duplicates. The pattern may contain
+	 * degenerate letters, and up to a number of letters may mismatch
+	 */
+	public int[] find(String pattern, int maxMismatches)
+		{
+		return find(pattern, maxMismatches, true, true);
+		}
+
+	/**
+	 * Find the start positions of a pattern, sorted and without duplicates. A hit on the lower strand is given as
+	 * the first position it covers on the upper strand
+	 */
+	public int[] find(String pattern, int maxMismatches, boolean onUpper, boolean onLower)
+		{
+		int m=pattern.length();
+		if(m==0 || m>lengthStrand)
+			return new int[0];
+
+		//The symbols each letter of the pattern matches
+		int[] masks=new int[m];
+		for(int i=0;i<m;i++)
+			{
+			char c=Character.toUpperCase(pattern.charAt(i));
+			String letters=DegenerateBases.getLettersFor(""+c);
+			if(letters==null)
+				masks[i]=1<<OTHER;
+			else
+				for(int j=0;j<letters.length();j++)
+					masks[i]|=1<<encode(letters.charAt(j));
+			if(c=='N')
+				masks[i]|=1<<OTHER;
+			}
+
+		Hits hits=new Hits();
+		hits.m=m;
+		hits.onUpper=onUpper;
+		hits.onLower=onLower;
+		search(masks, m-1, 0, sa.length, maxMismatches, hits);
+
+		int[] pos=Arrays.copyOf(hits.pos, hits.num);
+		Arrays.sort(pos);
+		int num=0;
+		for(int i=0;i<pos.length;i++)
+			if(i==0 || pos[i]!=pos[i-1])
+				pos[num++]=pos[i];
+		return Arrays.copyOf(pos, num);
+		}
+
+	/**
+	 * Hits collected during a search
+	 */
+	private static class Hits
+		{
+		int m;
+		boolean onUpper, onLower;
+		int[] pos=new int[16];
+		int num;
+
+		void add(int p)
+			{
+			if(num==pos.length)
+				pos=Arrays.copyOf(pos, num*2);
+			pos[num++]=p;
+			}
+		}
+
+	/**
+	 * Extend a match backwards by letter j, within a range of the suffix array
+	 */
+	private void search(int[] masks, int j, int from, int to, int mismatchesLeft, Hits hits)
+		{
+		if(from>=to)
+			return;
+		if(j<0)
+			{
+			for(int i=from;i<to;i++)
+				addHit(sa[i], hits);
+			return;
+			}
+		for(int c=A;c<SIGMA;c++)
+			{
+			boolean matches=(masks[j]&(1<<c))!=0;
+			if(matches || mismatchesLeft>0)
+				search(masks, j-1, count[c]+getOcc(c, from), count[c]+getOcc(c, to), matches ? mismatchesLeft : mismatchesLeft-1, hits);
+			}
+		}
+
+	/**
+	 * Turn a position in the text into a position on the sequence. Copies of the beginning are left out
+	 */
+	private void addHit(int p, Hits hits)
+		{
+		if(p<lengthStrand)
+			{
+			if(hits.onUpper && p<length)
+				hits.add(p);
+			}
+		else
+			{
+			int q=p-lengthStrand-1;
+			if(hits.onLower && q<length)
+				hits.add(((length-q-hits.m)%length+length)%length);
+			}
+		}
+	}
@@ -3,6 +3,7 @@ package collagene.util;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -87,6 +88,13 @@ public interface RandomAccessible
 	public int readInt() throws IOException;
 
 
+	/**
+	 * Get a view of len bytes from a position, without moving the file pointer. It may share memory with the
+	 * data, so it should not be kept while writing
+	 */
+	public ByteBuffer getBuffer(long pos, int len) throws IOException;
+
+
 	/**
 	 * Get file pointer
 	 */
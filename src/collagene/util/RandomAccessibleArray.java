@@ -2,9 +2,11 @@ package collagene.util;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * 
@@ -124,7 +126,7 @@ public class RandomAccessibleArray implements RandomAccessible
 		
 		if(len==0)
 			return 0;
-		else if(currentPos==length()-1)
+		else if(currentPos>=length())
 			return -1;
 		else
 			{
@@ -199,6 +201,17 @@ public class RandomAccessibleArray implements RandomAccessible
 		}
 
 
+	/**
+	 * A view of the array, without copying
+	 */
+	public ByteBuffer getBuffer(long pos, int len) throws IOException
+		{
+		if(pos<0 || pos+len>fileSize)
+			throw new EOFException();
+		return ByteBuffer.wrap(fileContentArray, (int)pos, len).slice();
+		}
+
+
 	/**
 	 * This will drop the underlying array for GC
 	 */
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 /**
  * Random accessible file
@@ -110,6 +111,20 @@ public class RandomAccessibleFile implements RandomAccessible
 		}
 
 
+	/**
+	 * The data is copied into a new buffer
+	 */
+	public ByteBuffer getBuffer(long pos, int len) throws IOException
+		{
+		byte[] arr=new byte[len];
+		long oldPos=ra.getFilePointer();
+		ra.seek(pos);
+		ra.readFully(arr);
+		ra.seek(oldPos);
+		return ByteBuffer.wrap(arr);
+		}
+
+
 	public void close() throws IOException
 		{
 		ra.close();
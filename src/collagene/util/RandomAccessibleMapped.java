@@ -0,0 +1,446 @@
+package collagene.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Random accessible file, mapped into memory. Reads and writes do not need system calls. The file is mapped in
+ * segments of 1 GB, so it may be larger than a single buffer can hold.
+ *
+ * Only what is in the file is mapped. Writing beyond the end is kept in memory and appended through the channel
+ * when flushed, after which the mapping is extended. The file is never cut while mapped, as Windows does not
+ * allow a mapped file to be truncated or replaced. Mappings are only released once garbage collected, so
+ * this also holds for some time after closing
+ *
+ * @author Johan Henriksson
+ *
+ */
+public class RandomAccessibleMapped implements RandomAccessible
+	{
+	private static final int SEGMENT_BITS=30;
+	private static final long SEGMENT_SIZE=1L<<SEGMENT_BITS;
+	private static final long SEGMENT_MASK=SEGMENT_SIZE-1;
+	private static final int MAX_TAIL=1<<24;
+
+	private RandomAccessFile ra;
+	private FileChannel ch;
+	private boolean writable;
+
+	private MappedByteBuffer[] segments=new MappedByteBuffer[0];
+	private long capacity;
+	private long length;
+	private long currentPos;
+
+	//Written data from capacity to length, not yet in the file
+	private byte[] tail=new byte[0];
+	private byte[] scratch=new byte[8];
+
+
+	public RandomAccessibleMapped(File f, String mode) throws IOException
+		{
+		ra=new RandomAccessFile(f, mode);
+		ch=ra.getChannel();
+		writable=mode.contains("w");
+		length=ch.size();
+		map(length);
+		}
+
+
+	/**
+	 * Map the file up to a size, which must not be beyond its end. Segments that are already mapped to their
+	 * full size are kept
+	 */
+	private void map(long newCapacity) throws IOException
+		{
+		int numSegments=(int)((newCapacity+SEGMENT_SIZE-1)>>>SEGMENT_BITS);
+		MappedByteBuffer[] newSegments=Arrays.copyOf(segments, numSegments);
+		for(int i=0;i<numSegments;i++)
+			{
+			long start=(long)i<<SEGMENT_BITS;
+			long size=Math.min(SEGMENT_SIZE, newCapacity-start);
+			if(newSegments[i]==null || newSegments[i].capacity()!=size)
+				newSegments[i]=ch.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, start, size);
+			}
+		segments=newSegments;
+		capacity=newCapacity;
+		}
+
+	/**
+	 * Append the data written beyond the end of the file, and map it
+	 */
+	private void flushTail() throws IOException
+		{
+		if(length>capacity)
+			{
+			ByteBuffer b=ByteBuffer.wrap(tail, 0, (int)(length-capacity));
+			long pos=capacity;
+			while(b.hasRemaining())
+				pos+=ch.write(b, pos);
+			map(length);
+			}
+		}
+
+	/**
+	 * Make sure that data up to a position can be read from the mapping
+	 */
+	private void ensureMapped(long needed) throws IOException
+		{
+		if(needed>capacity)
+			flushTail();
+		}
+
+	private MappedByteBuffer getSegment(long pos)
+		{
+		return segments[(int)(pos>>>SEGMENT_BITS)];
+		}
+
+	/**
+	 * Write data beyond the end of the file into memory
+	 */
+	private void writeTail(byte[] buf, int off, int len) throws IOException
+		{
+		if(!writable)
+			throw new IOException("File is opened read-only");
+		if(currentPos+len-capacity>MAX_TAIL && length>capacity)
+			{
+			flushTail();
+			write(buf, off, len);
+			return;
+			}
+		long start=currentPos-capacity;
+		long end=start+len;
+		if(end>Integer.MAX_VALUE)
+			throw new IOException("Too far beyond the end of the file");
+		if(end>tail.length)
+			//This ensures O(n) amortized time for growing files
+			tail=Arrays.copyOf(tail, (int)Math.min(Integer.MAX_VALUE, Math.max(end, Math.max(tail.length*2L, 65536))));
+		//Skipped bytes past the end are zero
+		if(currentPos>length)
+			Arrays.fill(tail, (int)(length-capacity), (int)start, (byte)0);
+		System.arraycopy(buf, off, tail, (int)start, len);
+		currentPos+=len;
+		if(currentPos>length)
+			length=currentPos;
+		}
+
+
+
+	public void write(byte[] arr) throws IOException
+		{
+		write(arr, 0, arr.length);
+		}
+
+
+	public void write(byte[] buf, int off, int len) throws IOException
+		{
+		while(len>0 && currentPos<capacity)
+			{
+			ByteBuffer seg=getSegment(currentPos).duplicate();
+			seg.position((int)(currentPos&SEGMENT_MASK));
+			int n=(int)Math.min(Math.min(len, seg.remaining()), capacity-currentPos);
+			seg.put(buf, off, n);
+			off+=n;
+			len-=n;
+			currentPos+=n;
+			}
+		if(len>0)
+			writeTail(buf, off, len);
+		}
+
+
+	public void writeByte(int value) throws IOException
+		{
+		if(currentPos<capacity)
+			{
+			getSegment(currentPos).put((int)(currentPos&SEGMENT_MASK), (byte)value);
+			currentPos++;
+			}
+		else
+			{
+			scratch[0]=(byte)value;
+			writeTail(scratch, 0, 1);
+			}
+		}
+
+
+	public void writeLong(long value) throws IOException
+		{
+		int off=(int)(currentPos&SEGMENT_MASK);
+		if(currentPos+8<=capacity && off+8<=SEGMENT_SIZE)
+			{
+			getSegment(currentPos).putLong(off, value);
+			currentPos+=8;
+			}
+		else
+			{
+			ByteBuffer.wrap(scratch).putLong(0, value);
+			write(scratch, 0, 8);
+			}
+		}
+
+
+	public void writeInt(int value) throws IOException
+		{
+		int off=(int)(currentPos&SEGMENT_MASK);
+		if(currentPos+4<=capacity && off+4<=SEGMENT_SIZE)
+			{
+			getSegment(currentPos).putInt(off, value);
+			currentPos+=4;
+			}
+		else
+			{
+			ByteBuffer.wrap(scratch).putInt(0, value);
+			write(scratch, 0, 4);
+			}
+		}
+
+
+	public int read() throws IOException
+		{
+		if(currentPos>=length)
+			return -1;
+		ensureMapped(currentPos+1);
+		int b=getSegment(currentPos).get((int)(currentPos&SEGMENT_MASK)) & 0xFF;
+		currentPos++;
+		return b;
+		}
+
+
+	public int read(byte[] b, int off, int len) throws IOException
+		{
+		if(len==0)
+			return 0;
+		else if(currentPos>=length)
+			return -1;
+		len=(int)Math.min(len, length-currentPos);
+		ensureMapped(currentPos+len);
+		int total=len;
+		while(len>0)
+			{
+			ByteBuffer seg=getSegment(currentPos).duplicate();
+			seg.position((int)(currentPos&SEGMENT_MASK));
+			int n=Math.min(len, seg.remaining());
+			seg.get(b, off, n);
+			off+=n;
+			len-=n;
+			currentPos+=n;
+			}
+		return total;
+		}
+
+
+	public int read(byte[] arr) throws IOException
+		{
+		return read(arr, 0, arr.length);
+		}
+
+
+	public int readByte() throws IOException
+		{
+		int b=read();
+		if(b<0)
+			throw new EOFException();
+		return (byte)b;
+		}
+
+
+	public long readLong() throws IOException
+		{
+		if(currentPos+8>length)
+			throw new EOFException();
+		ensureMapped(currentPos+8);
+		int off=(int)(currentPos&SEGMENT_MASK);
+		if(off+8<=SEGMENT_SIZE)
+			{
+			long v=getSegment(currentPos).getLong(off);
+			currentPos+=8;
+			return v;
+			}
+		else
+			return ((long)readInt()<<32) | (readInt() & 0xFFFFFFFFL);
+		}
+
+
+	public int readInt() throws IOException
+		{
+		if(currentPos+4>length)
+			throw new EOFException();
+		ensureMapped(currentPos+4);
+		int off=(int)(currentPos&SEGMENT_MASK);
+		if(off+4<=SEGMENT_SIZE)
+			{
+			int v=getSegment(currentPos).getInt(off);
+			currentPos+=4;
+			return v;
+			}
+		else
+			{
+			int v=0;
+			for(int i=0;i<4;i++)
+				v=(v<<8) | read();
+			return v;
+			}
+		}
+
+
+	public void seek(long pos) throws IOException
+		{
+		if(pos<0)
+			throw new IOException("Negative seek offset");
+		currentPos=pos;
+		}
+
+
+	public long skipBytes(long n) throws IOException
+		{
+		n=Math.max(0, Math.min(n, length-currentPos));
+		currentPos+=n;
+		return n;
+		}
+
+
+	public long getFilePointer() throws IOException
+		{
+		return currentPos;
+		}
+
+
+	public long length() throws IOException
+		{
+		return length;
+		}
+
+
+	/**
+	 * A view of the data, without copying if it is within one segment
+	 */
+	public ByteBuffer getBuffer(long pos, int len) throws IOException
+		{
+		if(pos<0 || pos+len>length)
+			throw new EOFException();
+		ensureMapped(pos+len);
+		int off=(int)(pos&SEGMENT_MASK);
+		if(off+len<=SEGMENT_SIZE)
+			{
+			ByteBuffer b=getSegment(pos).duplicate();
+			b.position(off);
+			b.limit(off+len);
+			return b.slice();
+			}
+		else
+			{
+			byte[] arr=new byte[len];
+			long oldPos=currentPos;
+			seek(pos);
+			read(arr);
+			seek(oldPos);
+			return ByteBuffer.wrap(arr);
+			}
+		}
+
+
+	/**
+	 * Write out changes. The mappings stay until garbage collected
+	 */
+	public void close() throws IOException
+		{
+		flush();
+		segments=new MappedByteBuffer[0];
+		tail=null;
+		ra.close();
+		ra=null;
+		ch=null;
+		}
+
+
+	/**
+	 * Write out changes to the file
+	 */
+	public void flush() throws IOException
+		{
+		if(writable)
+			{
+			flushTail();
+			for(MappedByteBuffer seg:segments)
+				seg.force();
+			}
+		}
+
+
+	public void sync() throws IOException
+		{
+		flush();
+		if(writable)
+			ch.force(true);
+		}
+
+
+	public OutputStream getOutputStream()
+		{
+		return new OutputStream()
+			{
+
+			@Override
+			public void flush() throws IOException
+				{
+				RandomAccessibleMapped.this.flush();
+				}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+				{
+				RandomAccessibleMapped.this.write(b,off,len);
+				}
+
+			@Override
+			public void write(int b) throws IOException
+				{
+				RandomAccessibleMapped.this.writeByte(b);
+				}
+			};
+		}
+
+	public InputStream getInputStream()
+		{
+		return new InputStream()
+			{
+			@Override
+			public long skip(long n) throws IOException
+				{
+				return RandomAccessibleMapped.this.skipBytes(n);
+				}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException
+				{
+				return RandomAccessibleMapped.this.read(b,off,len);
+				}
+
+			@Override
+			public int read(byte[] b) throws IOException
+				{
+				return RandomAccessibleMapped.this.read(b);
+				}
+
+			@Override
+			public int read() throws IOException
+				{
+				return RandomAccessibleMapped.this.read();
+				}
+
+			@Override
+			public int available() throws IOException
+				{
+				return (int)Math.min(Integer.MAX_VALUE, Math.max(0, length-currentPos));
+				}
+			};
+		}
+	}